@@ -28,11 +28,13 @@ public class MainActivity extends AppCompatActivity {
         final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
         final ConfigurationInfo configurationInfo = activityManager.getDeviceConfigurationInfo();
         final boolean supportsEs2 = configurationInfo.reqGlEsVersion >= 0x20000;
+        final boolean supportsEs3 = configurationInfo.reqGlEsVersion >= 0x30000;
 
         if (supportsEs2)
         {
-            // Request an OpenGL ES 2.0 compatible context.
-            mGLSurfaceView.setEGLContextClientVersion(2);
+            // Request an OpenGL ES 3.0 context where available, it adds vertex array objects.
+            // The renderer only relies on ES 2.0 features otherwise.
+            mGLSurfaceView.setEGLContextClientVersion(supportsEs3 ? 3 : 2);
 
             // Set the renderer to our demo renderer, defined below.
             mGLSurfaceView.setRenderer(new Renderer(this));
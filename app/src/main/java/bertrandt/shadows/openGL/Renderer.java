@@ -3,24 +3,57 @@ package bertrandt.shadows.openGL;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import bertrandt.shadows.R;
-import bertrandt.shadows.openGL.common.RawResourceReader;
+import bertrandt.shadows.openGL.basicObjects.Plane;
+import bertrandt.shadows.openGL.common.Clock;
+import bertrandt.shadows.openGL.common.FrameScheduler;
+import bertrandt.shadows.openGL.common.Frustum;
+import bertrandt.shadows.openGL.common.GlCapabilities;
+import bertrandt.shadows.openGL.common.GlStateCache;
+import bertrandt.shadows.openGL.common.GpuTimer;
+import bertrandt.shadows.openGL.common.PendingProgram;
+import bertrandt.shadows.openGL.common.ProgramBinaryCache;
+import bertrandt.shadows.openGL.common.RenderStats;
 import bertrandt.shadows.openGL.common.ShaderHelper;
+import bertrandt.shadows.openGL.common.ShaderProgram;
+import bertrandt.shadows.openGL.common.ShaderSources;
+import bertrandt.shadows.openGL.common.ShaderVariantCache;
+import bertrandt.shadows.openGL.common.ShadowCascades;
+import bertrandt.shadows.openGL.common.ShadowQuality;
+import bertrandt.shadows.openGL.common.ShadowResolution;
 import bertrandt.shadows.openGL.common.ShapeBuilder;
 import bertrandt.shadows.openGL.common.TextureHelper;
+import bertrandt.shadows.openGL.draw.ClusterCuller;
+import bertrandt.shadows.openGL.draw.DrawBatch;
 import bertrandt.shadows.openGL.draw.DrawObj;
 import bertrandt.shadows.openGL.draw.DrawPlane;
+import bertrandt.shadows.openGL.draw.InstancedMesh;
+import bertrandt.shadows.openGL.draw.LodSelector;
+import bertrandt.shadows.openGL.draw.Renderable;
+import bertrandt.shadows.openGL.importer.MeshData;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.importer.StaticBatcher;
+import bertrandt.shadows.openGL.loader.AssetLoader;
+import bertrandt.shadows.openGL.math.Mat4;
+import bertrandt.shadows.openGL.math.Vec4;
+import bertrandt.shadows.openGL.scene.InstanceSet;
+import bertrandt.shadows.openGL.scene.SceneBvh;
+import bertrandt.shadows.openGL.scene.SceneCamera;
+import bertrandt.shadows.openGL.scene.SceneNode;
+import bertrandt.shadows.openGL.scene.StaticShadowCache;
 
 /**
  * Created by buhrmanc on 05.02.2018.
@@ -31,6 +64,7 @@ public class Renderer implements GLSurfaceView.Renderer {
      * Used for debug logs.
      */
     private static final String TAG = "Renderer";
+    private static final String PROGRAM_CACHE_DIRECTORY = "program-cache";
 
     /**
      * Current X,Y axis rotation of center cube
@@ -44,43 +78,43 @@ public class Renderer implements GLSurfaceView.Renderer {
      * Store the model matrix. This matrix is used to move models from object space (where each model can be thought
      * of being located at the center of the universe) to world space.
      */
-    private float[] mModelMatrix = new float[16];
+    private final Mat4 mModelMatrix = new Mat4();
 
     /**
      * Store the view matrix. This can be thought of as our camera. This matrix transforms world space to eye space;
      * it positions things relative to our eye.
      */
-    private float[] mViewMatrix = new float[16];
+    private final Mat4 mViewMatrix = new Mat4();
 
     /**
      * Store the projection matrix. This is used to project the scene onto a 2D viewport.
      */
-    private float[] mProjectionMatrix = new float[16];
+    private final Mat4 mProjectionMatrix = new Mat4();
 
     /**
      * Allocate storage for the final combined matrix. This will be passed into the shader program.
      */
-    private float[] mMVPMatrix = new float[16];
+    private final Mat4 mMVPMatrix = new Mat4();
 
     /**
      * Store the accumulated rotation.
      */
-    private final float[] mAccumulatedRotation = new float[16];
+    private final Mat4 mAccumulatedRotation = new Mat4();
 
     /**
      * Store the current rotation.
      */
-    private final float[] mCurrentRotation = new float[16];
+    private final Mat4 mCurrentRotation = new Mat4();
 
     /**
      * A temporary matrix.
      */
-    private float[] mTemporaryMatrix = new float[16];
+    private final Mat4 mTemporaryMatrix = new Mat4();
 
     /**
      * Stores a copy of the model matrix specifically for the light position.
      */
-    private float[] mLightModelMatrix = new float[16];
+    private final Mat4 mLightModelMatrix = new Mat4();
 
 
     /**
@@ -142,27 +176,70 @@ public class Renderer implements GLSurfaceView.Renderer {
      * Used to hold a light centered on the origin in model space. We need a 4th coordinate so we can get translations to work when
      * we multiply this by our transformation matrices.
      */
-    private final float[] mLightPosInModelSpace = new float[]{3.0f, 5.0f, 0.0f, 1.0f};
+    private final Vec4 mLightPosInModelSpace = new Vec4(3.0f, 5.0f, 0.0f, 1.0f);
 
     /**
      * Used to hold the current position of the light in world space (after transformation via model matrix).
      */
-    private final float[] mLightPosInWorldSpace = new float[4];
+    private final Vec4 mLightPosInWorldSpace = new Vec4();
 
     /**
      * Used to hold the transformed position of the light in eye space (after transformation via modelview matrix)
      */
-    private final float[] mLightPosInEyeSpace = new float[4];
+    private final Vec4 mLightPosInEyeSpace = new Vec4();
 
     /**
-     * This is a handle to our cube shading program.
+     * This is our cube shading program.
      */
-    private int mProgramHandle;
+    private ShaderProgram mProgram;
 
     /**
-     * This is a handle to our light point program.
+     * Variants of the scene programs per shadow filter, switching the quality compiles each
+     * variant at most once per surface.
      */
-    private int mPointProgramHandle;
+    private final ShaderVariantCache mShaderVariants = new ShaderVariantCache();
+    private static final String[] SCENE_ATTRIBUTES = {"a_Position", "a_Normal", "a_TextureCoordinate"};
+    private volatile int mShadowQuality = ShadowQuality.PCF_16;
+    private int mSceneProgramQuality;
+    private String mSceneVertexShader;
+    private String mSceneFragmentShader;
+    private String mInstancedSceneVertexShader;
+    private String[] mInstancedSceneAttributes;
+
+    /**
+     * Read in the background from construction on, the GL thread finds them ready.
+     */
+    private final ShaderSources mShaderSources;
+    /**
+     * Submitted with the surface and resolved on the first frame, the driver compiles them
+     * while the surface is set up.
+     */
+    private PendingProgram mPendingPointProgram;
+    private PendingProgram mPendingDepthMapProgram;
+    private PendingProgram mPendingInstancedDepthMapProgram;
+    private boolean mProgramsPending;
+    /**
+     * Start of the surface, for the time until its first frame.
+     */
+    private long mSurfaceCreatedNanos;
+    private boolean mFirstFrame;
+
+    /**
+     * Told about every change that needs a frame, null when the view renders continuously.
+     */
+    private FrameScheduler mFrameScheduler;
+
+    /**
+     * This is our light point program and its locations.
+     */
+    private ShaderProgram mPointProgram;
+    private int mPointMVPMatrixHandle;
+    private int mPointPositionHandle;
+
+    /**
+     * Skips redundant binds and uniform uploads.
+     */
+    private final GlStateCache mGlState = new GlStateCache();
 
     /**
      * These are handles to our texture data.
@@ -184,27 +261,165 @@ public class Renderer implements GLSurfaceView.Renderer {
     private DrawPlane mDrawPlane;
     private DrawObj mDrawObj;
 
+    /**
+     * Loads meshes and textures in the background, uploads are spread over the first frames.
+     */
+    private AssetLoader mAssetLoader;
+    private long mUploadTimeBudgetNanos = AssetLoader.DEFAULT_TIME_BUDGET_NANOS;
+    private long mUploadByteBudget = AssetLoader.DEFAULT_BYTE_BUDGET;
+
+    /**
+     * Version and extensions of the current context.
+     */
+    private GlCapabilities mCapabilities;
+
+    /**
+     * CPU time per pass, logged every {@link #STATS_INTERVAL} frames.
+     */
+    private static final int STATS_INTERVAL = 120;
+    private final RenderStats mRenderStats = new RenderStats(Clock.SYSTEM, STATS_INTERVAL);
+
+    /**
+     * Store meshes with 16 bit positions, octahedral normals and 16 bit texels.
+     */
+    private boolean mCompactVertices = true;
+
+    /**
+     * Level of detail per pass, the shadow map is drawn one level coarser.
+     */
+    private static final float LOD_MAX_ERROR_PIXELS = 1f;
+    private static final int SHADOW_LOD_BIAS = 1;
+    private final LodSelector mSceneLodSelector = new LodSelector(LOD_MAX_ERROR_PIXELS, 0);
+    private final LodSelector mShadowLodSelector = new LodSelector(LOD_MAX_ERROR_PIXELS, SHADOW_LOD_BIAS);
+
+    /**
+     * Skips clusters of the full detail level outside the frustum or facing away.
+     */
+    private final ClusterCuller mClusterCuller = new ClusterCuller();
+
+    /**
+     * Everything the passes draw. Nodes cache their matrices per camera, static nodes are not
+     * recomputed while the camera stands still.
+     */
+    private final SceneNode mSceneRoot = new SceneNode();
+    /**
+     * Culls the nodes of the scene per pass, the nodes that survived are drawn.
+     */
+    private final SceneBvh mSceneBvh = new SceneBvh(mSceneRoot);
+    private final Frustum mCullFrustum = new Frustum();
+    private final ArrayList<SceneNode> mVisibleNodes = new ArrayList<>();
+    /**
+     * Static scenery besides the plane, merged into few batches when the surface is created.
+     */
+    private final ArrayList<MeshData> mStaticMeshes = new ArrayList<>();
+    private final ArrayList<Mat4> mStaticTransforms = new ArrayList<>();
+    private final ArrayList<SceneNode> mStaticNodes = new ArrayList<>();
+    private boolean mStaticBatching = true;
+    /**
+     * All static meshes are drawn with the shadow programs.
+     */
+    private static final int MATERIAL_SHADOWED = 0;
+
+    /**
+     * Static casters are drawn into a second shadow map that is only rendered again when the
+     * light or one of them changed, the scene shader takes the nearer depth of both maps.
+     */
+    private boolean mStaticShadowCaching = true;
+    private boolean mCachedStaticShadows;
+    private static final int DYNAMIC_SHADOW_MAP = 0;
+    private static final int STATIC_SHADOW_MAP = 1;
+    private static final int STATIC_SHADOW_TEXTURE_UNIT = 1;
+    private final StaticShadowCache mStaticShadowCache = new StaticShadowCache();
+    private boolean mLightAnimated = true;
+
+    private static final int DEFAULT_SHADOW_MAP_SIZE = 1024;
+    private final ShadowResolution mShadowResolution = new ShadowResolution(DEFAULT_SHADOW_MAP_SIZE);
+    private GpuTimer mShadowTimer;
+    private float mLightRotationDegree;
+    private SceneNode mObjectNode;
+    private final SceneCamera mSceneCamera = new SceneCamera(0);
+    private final SceneCamera mShadowCamera = new SceneCamera(1);
+    /**
+     * Light view with the projection used to look up the depth map.
+     */
+    private final SceneCamera mShadowLookupCamera = new SceneCamera(2);
+    private final Mat4 mShadowLookupProjection = new Mat4();
+
+    /**
+     * Cascaded shadow maps: the camera frustum up to {@link #SHADOW_DISTANCE} is split into
+     * slices, each drawn with an orthographic projection of a directional light into its own
+     * tile of the shadow maps. 0 keeps the single perspective light frustum.
+     */
+    private int mShadowCascadeCount = 4;
+    private ShadowCascades mShadowCascades;
+    private static final float SHADOW_DISTANCE = 40f;
+    private static final float CASCADE_SPLIT_LAMBDA = 0.75f;
+    private final SceneCamera[] mCascadeCameras = new SceneCamera[ShadowCascades.MAX_CASCADES];
+    private final Mat4 mCascadeLightView = new Mat4();
+    private final Mat4 mCascadeLookup = new Mat4();
+    private final float[] mCascadeLookupMatrices = new float[16 * ShadowCascades.MAX_CASCADES];
+    private final float[] mSceneBox = new float[6];
+    /**
+     * The cameras the shadow pass draws with, the cascades or the light frustum.
+     */
+    private final SceneCamera[] mShadowPassCameras = new SceneCamera[ShadowCascades.MAX_CASCADES];
+    private int mShadowPassCameraCount;
+    /**
+     * Rotation the object node was last transformed with.
+     */
+    private float mObjectRotationX = Float.NaN;
+    private float mObjectRotationY = Float.NaN;
+
     /**
      * Lightning
      */
-    private float[] mLightProjectionMatrix = new float[16];
-    private final float[] mLightViewMatrix = new float[16];
+    /**
+     * Copies of the object drawn with instancing, laid out on a grid around it.
+     */
+    private int mObjectInstanceCount;
+    private float mObjectInstanceSpacing = 2f;
+    private InstanceSet mObjectInstances;
+    /**
+     * vec4 uniforms of the instanced shaders besides the model matrices.
+     */
+    private static final int INSTANCE_RESERVED_UNIFORM_VECTORS = 24;
+    private final Mat4 mInstanceMatrix = new Mat4();
+    private final float[] mIdentity = new Mat4().setIdentity().getValues();
+
+    private final Mat4 mLightProjectionMatrix = new Mat4();
+    private final Mat4 mLightViewMatrix = new Mat4();
 
     /**
      * Initialize the model data.
      */
     public Renderer(final Context activityContext) {
         mActivityContext = activityContext;
+        mShaderSources = new ShaderSources(activityContext, R.raw.point_vertex_shader, R.raw.point_fragment_shader,
+                R.raw.vertex_shader_depth_map, R.raw.fragment_shader_depth_map, R.raw.vertex_shader_shadow,
+                R.raw.fragment_shader_shadow);
+        for (int i = 0; i < mCascadeCameras.length; i++) {
+            mCascadeCameras[i] = new SceneCamera(3 + i);
+        }
 
     }
 
     @Override
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
-        // Test OES_depth_texture extension
-        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
-
-        if (extensions.contains("OES_depth_texture"))
-            mHasDepthTextureExtension = true;
+        mSurfaceCreatedNanos = System.nanoTime();
+        mFirstFrame = true;
+        mCapabilities = GlCapabilities.query();
+        Log.i(TAG, "onSurfaceCreated: " + mCapabilities.getVersion() + ", " + mCapabilities.getRenderer());
+
+        // Render the shadow maps into depth textures where possible, pack depth into colors otherwise
+        mDepthTextureShadows = mCapabilities.hasDepthTexture();
+        Log.i(TAG, "onSurfaceCreated: shadow maps " + (mDepthTextureShadows ? "in depth textures" : "packed into RGBA"));
+
+        // the programs of the previous context are gone with it
+        mShaderVariants.clear();
+        mShaderVariants.setBinaryCache(ProgramBinaryCache.isSupported(mCapabilities)
+                ? new ProgramBinaryCache(new File(mActivityContext.getFilesDir(), PROGRAM_CACHE_DIRECTORY), mCapabilities)
+                : null);
+        mShaderVariants.setParallelCompile(PendingProgram.isParallelSupported(mCapabilities));
 
         // Set the background clear color to black.
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
@@ -237,7 +452,7 @@ public class Renderer implements GLSurfaceView.Renderer {
         // Set the view matrix. This matrix can be said to represent the camera position.
         // NOTE: In OpenGL 1, a ModelView matrix is used, which is a combination of a model and
         // view matrix. In OpenGL 2, we can keep track of these matrices separately if we choose.
-        Matrix.setLookAtM(mViewMatrix, 0, eyeX, eyeY, eyeZ, lookX, lookY, lookZ, upX, upY, upZ);
+        mViewMatrix.setLookAt(eyeX, eyeY, eyeZ, lookX, lookY, lookZ, upX, upY, upZ);
 
     /*    final String vertexShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.per_pixel_vertex_shader_tex_and_light);
         final String fragmentShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.per_pixel_fragment_shader_tex_and_light);
@@ -249,45 +464,207 @@ public class Renderer implements GLSurfaceView.Renderer {
                 new String[]{"a_Position", "a_Normal", "a_TexCoordinate"});*/
 
         // Define a simple shader program for our point.
-        final String pointVertexShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.point_vertex_shader);
-        final String pointFragmentShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.point_fragment_shader);
+        final String pointVertexShader = mShaderSources.get(R.raw.point_vertex_shader);
+        final String pointFragmentShader = mShaderSources.get(R.raw.point_fragment_shader);
 
-        final int pointVertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, pointVertexShader);
-        final int pointFragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, pointFragmentShader);
-        mPointProgramHandle = ShaderHelper.createAndLinkProgram(pointVertexShaderHandle, pointFragmentShaderHandle,
-                new String[]{"a_Position"});
+        mPendingPointProgram = mShaderVariants.submit(pointVertexShader, pointFragmentShader, new String[]{"a_Position"});
 
 
-        mDrawPlane = new DrawPlane(mActivityContext);
+        // A new surface means a new GL context, uploads queued for the old one are dropped.
+        if (mAssetLoader != null) {
+            mAssetLoader.shutdown();
+        }
+        mAssetLoader = new AssetLoader(mUploadTimeBudgetNanos, mUploadByteBudget);
+
+        int instanceBatchSize = 0;
+        if (mObjectInstanceCount > 0) {
+            instanceBatchSize = InstancedMesh.getBatchSize(mCapabilities, INSTANCE_RESERVED_UNIFORM_VECTORS);
+        }
+        mDrawObj = new DrawObj(mActivityContext, "android.obj", mAssetLoader, mCapabilities, mCompactVertices,
+                instanceBatchSize);
+        mObjectInstances = null;
+        if (mObjectInstanceCount > 0) {
+            mObjectInstances = createGrid(mDrawObj, mObjectInstanceCount, mObjectInstanceSpacing);
+        }
 
-        mDrawObj = new DrawObj(mActivityContext, "android.obj");
+        // the nodes of the previous surface reference its meshes
+        for (int i = 0; i < mStaticNodes.size(); i++) {
+            mSceneRoot.removeChild(mStaticNodes.get(i));
+        }
+        mStaticNodes.clear();
+        if (mObjectNode != null) {
+            mSceneRoot.removeChild(mObjectNode);
+        }
+        createStaticNodes();
+        mObjectNode = new SceneNode(mDrawObj);
+        mSceneRoot.addChild(mObjectNode);
+        mObjectRotationX = Float.NaN;
+        mObjectRotationY = Float.NaN;
 
         // Initialize the accumulated rotation matrix
-        Matrix.setIdentityM(mAccumulatedRotation, 0);
+        mAccumulatedRotation.setIdentity();
 
         //Shadow Testing
 
-        final String VertexShaderDepthMap = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.vertex_shader_depth_map);
-        final String FragmentShaderDepthMap = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.fragment_shader_depth_map);
+        final String VertexShaderDepthMap = mShaderSources.get(R.raw.vertex_shader_depth_map);
+        String FragmentShaderDepthMap = mShaderSources.get(R.raw.fragment_shader_depth_map);
+        if (!mDepthTextureShadows) {
+            FragmentShaderDepthMap = ShaderHelper.addDefines(FragmentShaderDepthMap, "PACK_DEPTH");
+        }
 
-        final int VertexShaderHandleDepthMap = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, VertexShaderDepthMap);
-        final int FragmentShaderHandleDepthMap = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShaderDepthMap);
-        mDepthMapProgram = ShaderHelper.createAndLinkProgram(VertexShaderHandleDepthMap, FragmentShaderHandleDepthMap,
+        mPendingDepthMapProgram = mShaderVariants.submit(VertexShaderDepthMap, FragmentShaderDepthMap,
                 new String[]{"a_ShadowPosition"});
 
         //Shadow Testing
 
-        final String VertexShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.vertex_shader_shadow);
-        final String FragmentShader = RawResourceReader.readTextFileFromRawResource(mActivityContext, R.raw.fragment_shader_shadow);
+        String VertexShader = mShaderSources.get(R.raw.vertex_shader_shadow);
+        if (mCompactVertices) {
+            VertexShader = ShaderHelper.addDefines(VertexShader, "OCT_NORMALS");
+        }
+        String FragmentShader = mShaderSources.get(R.raw.fragment_shader_shadow);
+        // the framebuffers are created with the surface size, both follow the setting of this surface
+        mCachedStaticShadows = mStaticShadowCaching;
+        if (mCachedStaticShadows) {
+            FragmentShader = ShaderHelper.addDefines(FragmentShader, "STATIC_SHADOW_MAP");
+        }
+        if (!mDepthTextureShadows) {
+            FragmentShader = ShaderHelper.addDefines(FragmentShader, "PACKED_DEPTH");
+        }
+        mShadowCascades = null;
+        mShadowPassCameras[0] = mShadowCamera;
+        mShadowPassCameraCount = 1;
+        if (mShadowCascadeCount > 0) {
+            mShadowCascades = new ShadowCascades(mShadowCascadeCount, CASCADE_SPLIT_LAMBDA);
+            System.arraycopy(mCascadeCameras, 0, mShadowPassCameras, 0, mShadowCascadeCount);
+            mShadowPassCameraCount = mShadowCascadeCount;
+            VertexShader = ShaderHelper.addDefines(VertexShader, "CASCADES " + mShadowCascadeCount);
+            FragmentShader = ShaderHelper.addDefines(FragmentShader, "CASCADES " + mShadowCascadeCount);
+        }
+
+        mSceneVertexShader = VertexShader;
+        mSceneFragmentShader = FragmentShader;
+
+        mInstancedSceneVertexShader = null;
+        mPendingInstancedDepthMapProgram = null;
+        if (mObjectInstances != null) {
+            // a mat4 attribute takes four locations, the instance attribute comes last
+            String instanceAttribute;
+            String[] defines;
+            if (mCapabilities.hasInstancing()) {
+                instanceAttribute = "a_ModelMatrix";
+                defines = new String[]{InstancedMesh.DEFINE_INSTANCED};
+            } else {
+                instanceAttribute = "a_InstanceIndex";
+                defines = new String[]{InstancedMesh.DEFINE_INSTANCE_ARRAY, "MAX_INSTANCES " + instanceBatchSize};
+            }
+            mPendingInstancedDepthMapProgram = mShaderVariants.submit(ShaderHelper.addDefines(VertexShaderDepthMap, defines),
+                    FragmentShaderDepthMap, new String[]{"a_ShadowPosition", instanceAttribute});
+            mInstancedSceneVertexShader = ShaderHelper.addDefines(VertexShader, defines);
+            mInstancedSceneAttributes = new String[]{"a_Position", "a_Normal", "a_TextureCoordinate", instanceAttribute};
+        }
+        submitSceneProgram(mShadowQuality);
+        // nothing waits for the driver before the first frame
+        mProgramsPending = true;
+
+        // the objects of the previous context are gone with it
+        fboId = null;
+        mShadowTimer = GpuTimer.isSupported(mCapabilities) ? new GpuTimer() : null;
 
-        final int VertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, VertexShaderDepthMap);
-        final int FragmentShaderHande = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, FragmentShaderDepthMap);
-        mProgramHandle = ShaderHelper.createAndLinkProgram(VertexShaderHandleDepthMap, FragmentShaderHandleDepthMap,
-                new String[]{"a_ShadowPosition"});
+        // A new context starts with default state
+        mGlState.invalidate();
+    }
+
+    /**
+     * Waits for the programs submitted with the surface and looks up their handles.
+     */
+    private void resolvePrograms() {
+        int complete = 0;
+        PendingProgram[] pending = {mPendingPointProgram, mPendingDepthMapProgram, mPendingInstancedDepthMapProgram};
+        for (PendingProgram program : pending) {
+            if (program != null && program.isComplete()) {
+                complete++;
+            }
+        }
+        long start = System.nanoTime();
+        mPointProgram = mPendingPointProgram.get();
+        mDepthMapProgram = mPendingDepthMapProgram.get();
+        mInstancedDepthMapProgram = null;
+        if (mPendingInstancedDepthMapProgram != null) {
+            mInstancedDepthMapProgram = mPendingInstancedDepthMapProgram.get();
+            mInstanceAttributeShadow = mInstancedDepthMapProgram.getAttributeLocation(
+                    mInstancedSceneAttributes[mInstancedSceneAttributes.length - 1]);
+        }
+        selectSceneProgram(mShadowQuality);
+        mProgramsPending = false;
+        Log.i(TAG, "resolvePrograms: " + complete + " programs done before the first frame, waited "
+                + (System.nanoTime() - start) / 1000000L + " ms for the rest");
+        ProgramBinaryCache binaryCache = mShaderVariants.getBinaryCache();
+        if (binaryCache != null) {
+            Log.i(TAG, "resolvePrograms: programs " + binaryCache.getLoaded() + " loaded, "
+                    + binaryCache.getCompiled() + " compiled, " + binaryCache.getRejected() + " binaries rejected");
+        }
+
+        // Locations are reflected at link time, they stay valid as long as the programs do.
+        //Depthmap Handles
+        mMVPMatrixHandleShadow = mDepthMapProgram.getUniformLocation("u_MVPMatrix");
+        mPositionHandleShadow = mDepthMapProgram.getAttributeLocation("a_ShadowPosition");
+
+        mPointMVPMatrixHandle = mPointProgram.getUniformLocation("u_MVPMatrix");
+        mPointPositionHandle = mPointProgram.getAttributeLocation("a_Position");
+    }
+
+    /**
+     * Hands the scene programs of a shadow filter to the driver without waiting for them.
+     */
+    private void submitSceneProgram(int quality) {
+        String filter = ShadowQuality.getDefine(quality);
+        mShaderVariants.submit(mSceneVertexShader, mSceneFragmentShader, SCENE_ATTRIBUTES, filter);
+        if (mInstancedSceneVertexShader != null) {
+            mShaderVariants.submit(mInstancedSceneVertexShader, mSceneFragmentShader, mInstancedSceneAttributes, filter);
+        }
+    }
+
+    /**
+     * Switches the scene programs to the variant of a shadow filter and looks up their handles.
+     */
+    private void selectSceneProgram(int quality) {
+        String filter = ShadowQuality.getDefine(quality);
+        mProgram = mShaderVariants.get(mSceneVertexShader, mSceneFragmentShader, SCENE_ATTRIBUTES, filter);
+        mInstancedProgram = null;
+        if (mInstancedSceneVertexShader != null) {
+            mInstancedProgram = mShaderVariants.get(mInstancedSceneVertexShader, mSceneFragmentShader,
+                    mInstancedSceneAttributes, filter);
+            mInstanceAttribute = mInstancedProgram.getAttributeLocation(
+                    mInstancedSceneAttributes[mInstancedSceneAttributes.length - 1]);
+        }
+        mSceneProgramQuality = quality;
+
+        // Set program handles for object drawing.
+        //Uniform
+        mMVPMatrixHandle = mProgram.getUniformLocation("u_MVPMatrix");
+        mMVMatrixHandle = mProgram.getUniformLocation("u_MVMatrix");
+        mLightPosHandle = mProgram.getUniformLocation("u_LightPos");
+        mNormalMatrixHandle = mProgram.getUniformLocation("u_NormalMatrix");
+        mShadowProjHandle = mProgram.getUniformLocation("u_ShadowProjMatrix");
+        mShadowProjMatricesHandle = mProgram.getUniformLocation("u_ShadowProjMatrices");
+        mCascadeSplitsHandle = mProgram.getUniformLocation("u_CascadeSplits");
+        mShadowTextureUniformHandle = mProgram.getUniformLocation("u_ShadowTexture");
+        mStaticShadowTextureUniformHandle = mProgram.getUniformLocation("u_StaticShadowTexture");
+        mMapStepXHandle = mProgram.getUniformLocation("u_xPixelOffset");
+        mMapStepYHandle = mProgram.getUniformLocation("u_yPixelOffset");
+        //mTextureUniformHandle = mProgram.getUniformLocation("u_Texture");
 
+        //Attribute
+        mPositionHandle = mProgram.getAttributeLocation("a_Position");
+        mNormalHandle = mProgram.getAttributeLocation("a_Normal");
+        mTextureCoordinateHandle = mProgram.getAttributeLocation("a_TextureCoordinate");
     }
 
-    private int mDepthMapProgram;
+    private ShaderProgram mDepthMapProgram;
+    private ShaderProgram mInstancedProgram;
+    private ShaderProgram mInstancedDepthMapProgram;
+    private int mInstanceAttribute;
+    private int mInstanceAttributeShadow;
 
     @Override
     public void onSurfaceChanged(GL10 glUnused, int width, int height) {
@@ -295,10 +672,7 @@ public class Renderer implements GLSurfaceView.Renderer {
         mDisplayHeight = height;
 
         // Set the OpenGL viewport to the same size as the surface.
-        GLES20.glViewport(0, 0, width, height);
-
-        //GenerateFrameBuffer
-        generateFrameBuffer();
+        mGlState.viewport(0, 0, width, height);
 
         // Create a new perspective projection matrix. The height will stay the same
         // while the width will vary as per aspect ratio.
@@ -310,10 +684,28 @@ public class Renderer implements GLSurfaceView.Renderer {
         final float near = 1.0f;
         final float far = 1000.0f;
 
-        Matrix.frustumM(mProjectionMatrix, 0, left, right, bottom, top, near, far);
+        mProjectionMatrix.setFrustum(left, right, bottom, top, near, far);
 
-        Matrix.frustumM(mLightProjectionMatrix, 0, 1.1f*left, 1.1f*right, 1.1f*bottom, 1.1f*top,near,far);
+        mLightProjectionMatrix.setFrustum(1.1f*left, 1.1f*right, 1.1f*bottom, 1.1f*top,near,far);
+
+        mSceneCamera.setProjection(mProjectionMatrix, height);
+        if (mShadowCascades != null) {
+            mShadowCascades.setCameraFrustum(left, right, bottom, top, near, Math.min(far, SHADOW_DISTANCE));
+        }
+        // both kinds of shadow maps are sampled and hold depth in [0, 1]
+        mShadowLookupProjection.multiply(mDepthBias, mLightProjectionMatrix);
+        resizeShadowMap();
+    }
 
+    /**
+     * Recreates the shadow maps with the size of {@link #mShadowResolution}.
+     */
+    private void resizeShadowMap() {
+        generateFrameBuffer();
+        // the frame buffer setup binds textures and frame buffers directly
+        mGlState.invalidate();
+        mShadowCamera.setProjection(mLightProjectionMatrix, mShadowMapHeight);
+        mShadowLookupCamera.setProjection(mShadowLookupProjection, mShadowMapHeight);
     }
 
     //Shadows
@@ -321,80 +713,133 @@ public class Renderer implements GLSurfaceView.Renderer {
     private int mPositionHandleShadow;
     private int mNormalMatrixHandle;
     private int mShadowProjHandle;
+    private int mShadowProjMatricesHandle;
+    private int mCascadeSplitsHandle;
     private int mMapStepXHandle;
     private int mMapStepYHandle;
     private int mShadowTextureUniformHandle;
+    private int mStaticShadowTextureUniformHandle;
+
+    private final Vec4 mActualLightPosition = new Vec4();
+    private final Mat4 mLightRotation = new Mat4();
+    private final Mat4 mCubeRotation = new Mat4();
+    private final Mat4 mCubeRotationX = new Mat4();
+    private final Mat4 mCubeRotationY = new Mat4();
 
-    private float[] mActualLightPosition = new float[4];
-    private float[] mCubeRotation = new float[16];
-    private float[] mLightMvpMatrix_staticShapes = new float[16];
-    private float[] mLightMvpMatrix_dynamicShapes = new float[16];
-    private float[] mMVMatrix = new float[16];
-    private float[] mNormalMatrix = new float[16];
+    /**
+     * Maps clip space to texture space, [-1, 1] to [0, 1] on every axis.
+     */
+    private final Mat4 mDepthBias = new Mat4().setRows(
+            0.5f, 0.0f, 0.0f, 0.5f,
+            0.0f, 0.5f, 0.0f, 0.5f,
+            0.0f, 0.0f, 0.5f, 0.5f,
+            0.0f, 0.0f, 0.0f, 1.0f);
 
     @Override
     public void onDrawFrame(GL10 glUnused) {
+        // Make assets resident that finished loading, within this frame's upload budget.
+        if (mAssetLoader.processUploads() > 0) {
+            // uploads bind textures and buffers directly
+            mGlState.invalidate();
+        }
+
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
+        if (mProgramsPending) {
+            resolvePrograms();
+        }
+        int shadowQuality = mShadowQuality;
+        if (shadowQuality != mSceneProgramQuality) {
+            selectSceneProgram(shadowQuality);
+        }
+
         // Do a complete rotation every 10 seconds.
         long time = SystemClock.uptimeMillis() % 10000L;
         long slowTime = SystemClock.uptimeMillis() % 100000L;
         float angleInDegrees = (360.0f / 10000L) * ((int) time);
         float slowAngleInDegrees = (360.0f / 100000.0f) * ((int) slowTime);
 
-        //Depthmap Handles
-        mMVPMatrixHandleShadow = GLES20.glGetUniformLocation(mDepthMapProgram,"u_MVPMatrix");
-        mPositionHandleShadow = GLES20.glGetAttribLocation(mDepthMapProgram,"a_ShadowPosition");
-
-        // Set program handles for object drawing.
-        //Uniform
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_MVPMatrix");
-        mMVMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_MVMatrix");
-        mLightPosHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_LightPos");
-        mNormalMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_NormalMatrix");
-        mShadowProjHandle = GLES20.glGetUniformLocation(mProgramHandle,"u_ShadowProjMatrix");
-        mShadowTextureUniformHandle = GLES20.glGetUniformLocation(mProgramHandle,"u_ShadowTexture");
-        mMapStepXHandle = GLES20.glGetUniformLocation(mProgramHandle,"u_xPixelOffset");
-        mMapStepYHandle = GLES20.glGetUniformLocation(mProgramHandle,"u_yPixelOffset");
-        //mTextureUniformHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_Texture");
-
-        //Attribute
-        mPositionHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_Position");
-        mNormalHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_Normal");
-        mTextureCoordinateHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_TexCoordinate");
-
         //Calculate Values for all renderers
         long elapsedMilliSec = SystemClock.elapsedRealtime();
         long rotationCounter = elapsedMilliSec % 12000L;
-        float lightRotationDegree = (360.0f / 12000.0f) * ((int)rotationCounter);
-        float[] rotationMatrix = new float[16];
-        Matrix.setIdentityM(rotationMatrix, 0);
-        Matrix.rotateM(rotationMatrix, 0, lightRotationDegree, 0.0f, 1.0f, 0.0f);
-        Matrix.multiplyMV(mActualLightPosition, 0, rotationMatrix, 0, mLightPosInModelSpace, 0);
-        Matrix.setIdentityM(mModelMatrix, 0);
+        if (mLightAnimated) {
+            mLightRotationDegree = (360.0f / 12000.0f) * ((int) rotationCounter);
+        }
+        mLightRotation.setRotate(mLightRotationDegree, 0.0f, 1.0f, 0.0f);
+        mActualLightPosition.transform(mLightRotation, mLightPosInModelSpace);
         //Set view matrix from light source position
-        Matrix.setLookAtM(mLightViewMatrix, 0,
+        mLightViewMatrix.setLookAt(
          					//lightX, lightY, lightZ,
-         					mActualLightPosition[0], mActualLightPosition[1], mActualLightPosition[2],
+         					mActualLightPosition.getX(), mActualLightPosition.getY(), mActualLightPosition.getZ(),
          					//lookX, lookY, lookZ,
          					//look in direction -y
-         					mActualLightPosition[0], -mActualLightPosition[1], mActualLightPosition[2],
+         					mActualLightPosition.getX(), -mActualLightPosition.getY(), mActualLightPosition.getZ(),
          					//upX, upY, upZ
          					//up vector in the direction of axisY
-         					-mActualLightPosition[0], 0, -mActualLightPosition[2]);
-        //Cube rotation with touch events
-        float[] cubeRotationX = new float[16];
-        float[] cubeRotationY = new float[16];
-        Matrix.setRotateM(cubeRotationX, 0, mRotationX, 0, 1.0f, 0);
-        Matrix.setRotateM(cubeRotationY, 0, mRotationY, 1.0f, 0, 0);
-        Matrix.multiplyMM(mCubeRotation, 0, cubeRotationX, 0, cubeRotationY, 0);
-
+         					-mActualLightPosition.getX(), 0, -mActualLightPosition.getZ());
+        mShadowCamera.setView(mLightViewMatrix);
+        mShadowLookupCamera.setView(mLightViewMatrix);
+        mSceneCamera.setView(mViewMatrix);
+        //Cube rotation with touch events, only touches the object node when it changed
+        float rotationX = mRotationX;
+        float rotationY = mRotationY;
+        if (rotationX != mObjectRotationX || rotationY != mObjectRotationY) {
+            mCubeRotationX.setRotate(rotationX, 0, 1.0f, 0);
+            mCubeRotationY.setRotate(rotationY, 1.0f, 0, 0);
+            mCubeRotation.multiply(mCubeRotationX, mCubeRotationY);
+            mObjectNode.setLocal(mCubeRotation);
+            mObjectRotationX = rotationX;
+            mObjectRotationY = rotationY;
+        }
+        mSceneRoot.updateWorld();
+        mSceneBvh.update();
+        if (mShadowCascades != null) {
+            updateCascades();
+        }
 
                  // Cull front faces for shadow generation to avoid self shadowing
-              	GLES20.glCullFace(GLES20.GL_FRONT);
+              	mGlState.cullFace(GLES20.GL_FRONT);
 
+              	mRenderStats.begin(RenderStats.PASS_SHADOW_MAP);
+              	if (mShadowTimer != null) {
+              	    mShadowTimer.begin();
+              	}
               	renderShadowMap();
+              	if (mShadowTimer != null) {
+              	    mShadowTimer.end();
+              	}
+              	mRenderStats.end(RenderStats.PASS_SHADOW_MAP);
+
+        // Cull back faces again for the camera view
+        mGlState.cullFace(GLES20.GL_BACK);
 
+        mRenderStats.begin(RenderStats.PASS_SCENE);
+        renderScene();
+        mRenderStats.end(RenderStats.PASS_SCENE);
+
+        mRenderStats.addStateCalls(mGlState.getIssuedCalls(), mGlState.getElidedCalls());
+        mGlState.resetCounters();
+        if (mShadowTimer != null) {
+            mShadowTimer.poll();
+        }
+        if (mRenderStats.endFrame()) {
+            String frames = "";
+            if (mFrameScheduler != null) {
+                frames = ", frames " + mFrameScheduler.getRenderedFrames() + " rendered, "
+                        + mFrameScheduler.getSkippedFrames() + " skipped";
+            }
+            Log.d(TAG, "onDrawFrame: " + mRenderStats + ", shadow map " + mShadowMapWidth + frames);
+            adaptShadowMap();
+        }
+        if (mFirstFrame) {
+            mFirstFrame = false;
+            Log.i(TAG, "onDrawFrame: first frame " + (System.nanoTime() - mSurfaceCreatedNanos) / 1000000L
+                    + " ms after the surface was created");
+        }
+        // assets that are still on their way show up in later frames
+        if (mAssetLoader.isBusy()) {
+            requestFrame();
+        }
 
 
         //////
@@ -441,147 +886,371 @@ public class Renderer implements GLSurfaceView.Renderer {
         */
     }
 
+    /**
+     * Fits the cascades to the camera and the scene, the light shines from its position
+     * towards the center of the scene.
+     */
+    private void updateCascades() {
+        mCascadeLightView.setLookAt(mActualLightPosition.getX(), mActualLightPosition.getY(),
+                mActualLightPosition.getZ(), 0f, 0f, 0f, 0f, 1f, 0f);
+        if (!mSceneBvh.getBounds(mSceneBox)) {
+            Arrays.fill(mSceneBox, 0f);
+        }
+        mShadowCascades.update(mViewMatrix, mCascadeLightView, mSceneBox, mShadowMapWidth);
+        for (int i = 0; i < mShadowCascades.getCount(); i++) {
+            mCascadeCameras[i].setView(mCascadeLightView);
+            mCascadeCameras[i].setProjection(mShadowCascades.getProjection(i), mShadowCascades.getTileSize());
+        }
+    }
+
+    /**
+     * Lets the adaptive shadow resolution judge the last interval, and applies size changes,
+     * also those of {@link #setShadowMapSize}.
+     */
+    private void adaptShadowMap() {
+        // GPU time where the driver can measure it, the CPU time of the pass otherwise
+        long passNanos = mShadowTimer != null ? mShadowTimer.takeAverageNanos() : -1;
+        if (passNanos < 0) {
+            passNanos = mRenderStats.getAveragePassNanos(RenderStats.PASS_SHADOW_MAP);
+        }
+        mShadowResolution.update(passNanos);
+        if (mShadowResolution.getSize() != mShadowMapWidth) {
+            Log.i(TAG, "adaptShadowMap: " + mShadowMapWidth + " -> " + mShadowResolution.getSize()
+                    + " after " + passNanos / 1000 + " us");
+            resizeShadowMap();
+        }
+    }
+
     private void renderShadowMap() {
+        // packed depth is cleared to the far plane
+        GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
+        // depth textures need no colors at all
+        int clearBits = GLES20.GL_DEPTH_BUFFER_BIT;
+        if (mDepthTextureShadows) {
+            mGlState.colorMask(false);
+        } else {
+            clearBits |= GLES20.GL_COLOR_BUFFER_BIT;
+        }
+
+        if (mCachedStaticShadows
+                && !mStaticShadowCache.isValid(mShadowPassCameras, mShadowPassCameraCount, mStaticNodes)) {
+            mGlState.bindFramebuffer(fboId[STATIC_SHADOW_MAP]);
+            GLES20.glClear(clearBits);
+            for (int i = 0; i < mShadowPassCameraCount; i++) {
+                renderShadowCasters(i, true);
+            }
+            mStaticShadowCache.validate(mShadowPassCameras, mShadowPassCameraCount, mStaticNodes);
+            mRenderStats.addShadowCacheUpdate();
+        }
+
         // bind the generated framebuffer
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fboId[0]);
-        GLES20.glViewport(0, 0, mShadowMapWidth,
-                mShadowMapHeight);
+        mGlState.bindFramebuffer(fboId[DYNAMIC_SHADOW_MAP]);
         // Clear color and buffers
-        GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glClear(clearBits);
+        for (int i = 0; i < mShadowPassCameraCount; i++) {
+            renderShadowCasters(i, false);
+        }
+    }
+
+    /**
+     * Draws the casters seen by one camera of the shadow pass into its part of the bound map.
+     *
+     * @param staticCasters draws the static casters for the cached map, otherwise the others
+     */
+    private void renderShadowCasters(int index, boolean staticCasters) {
+        SceneCamera camera = mShadowPassCameras[index];
+        if (mShadowCascades != null) {
+            int tileSize = mShadowCascades.getTileSize();
+            mGlState.viewport(mShadowCascades.getTileX(index), mShadowCascades.getTileY(index), tileSize, tileSize);
+        } else {
+            mGlState.viewport(0, 0, mShadowMapWidth, mShadowMapHeight);
+        }
         // Start using the shader
-        GLES20.glUseProgram(mDepthMapProgram);
-        float[] tempResultMatrix = new float[16];
-        // Calculate matrices for standing objects
-        // View matrix * Model matrix value is stored
-        Matrix.multiplyMM(mLightMvpMatrix_staticShapes, 0, mLightViewMatrix, 0, mModelMatrix, 0);
-        // Model * view * projection matrix stored and copied for use at rendering from camera point of view
-        Matrix.multiplyMM(tempResultMatrix, 0, mLightProjectionMatrix, 0, mLightMvpMatrix_staticShapes, 0);
-        System.arraycopy(tempResultMatrix, 0, mLightMvpMatrix_staticShapes, 0, 16);
-        // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandleShadow, 1, false, mLightMvpMatrix_staticShapes, 0);
-        // Render all stationary shapes on scene
+        mGlState.useProgram(mDepthMapProgram);
+        // casters outside the light frustum cannot shadow anything inside it
+        cullScene(RenderStats.PASS_SHADOW_MAP, camera);
+        for (int i = 0; i < mVisibleNodes.size(); i++) {
+            SceneNode node = mVisibleNodes.get(i);
+            // without the cache all casters go into the dynamic map
+            if (mCachedStaticShadows ? node.isStatic() == staticCasters : !staticCasters) {
+                renderShadowMapNode(node, camera);
+            }
+        }
+        if (!staticCasters && mObjectInstances != null) {
+            renderShadowMapInstances(mObjectInstances, camera);
+        }
+    }
 
-        mDrawPlane.setDraw(mPositionHandleShadow, 0, 0, 0, true);
-        mDrawPlane.draw();
+    private void renderShadowMapInstances(InstanceSet instances, SceneCamera camera) {
+        if (!cullInstances(RenderStats.PASS_SHADOW_MAP, instances, camera, mShadowLodSelector)) {
+            return;
+        }
+        ShaderProgram program = mInstancedDepthMapProgram;
+        mGlState.useProgram(program);
+        mGlState.uniformMatrix4fv(program.getUniformLocation("u_MVPMatrix"),
+                camera.getViewProjection().getValues(), 0);
+        drawInstances(RenderStats.PASS_SHADOW_MAP, instances, program, mPositionHandleShadow, -1, -1,
+                mInstanceAttributeShadow, true);
+    }
 
-        // Calculate matrices for moving objects
-        // Rotate the model matrix with current rotation matrix
-        Matrix.multiplyMM(tempResultMatrix, 0, mModelMatrix, 0, mCubeRotation, 0);
-        // View matrix * Model matrix value is stored
-        Matrix.multiplyMM(mLightMvpMatrix_dynamicShapes, 0, mLightViewMatrix, 0, tempResultMatrix, 0);
-        // Model * view * projection matrix stored and copied for use at rendering from camera point of view
-        Matrix.multiplyMM(tempResultMatrix, 0, mLightProjectionMatrix, 0, mLightMvpMatrix_dynamicShapes, 0);
-        System.arraycopy(tempResultMatrix, 0, mLightMvpMatrix_dynamicShapes, 0, 16);
-        // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandleShadow, 1, false, mLightMvpMatrix_dynamicShapes, 0);
-        // Render all moving shapes on scene
-        mDrawObj.setDraw(mPositionHandleShadow,0,0,0,true);
+    private void renderShadowMapNode(SceneNode node, SceneCamera camera) {
+        Renderable renderable = node.getRenderable();
+        int lod = selectLod(mShadowLodSelector, renderable, node, camera);
+        // light MVP matrix including the dequantization of compact positions
+        mGlState.uniformMatrix4fv(mMVPMatrixHandleShadow,
+                node.getPositionModelViewProjection(camera).getValues(), 0);
+        renderable.setDraw(mPositionHandleShadow, 0, 0, -1, true);
+        // front faces are culled for the shadow map
+        int triangles = drawRenderable(renderable, node, camera, lod, true);
+        mRenderStats.addTriangles(RenderStats.PASS_SHADOW_MAP, triangles);
     }
 
   private void renderScene() {
       // bind default framebuffer
-      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+      mGlState.bindFramebuffer(0);
+      mGlState.colorMask(true);
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-      GLES20.glUseProgram(mProgramHandle);
-      GLES20.glViewport(0, 0, mDisplayWidth, mDisplayHeight);
+      mGlState.useProgram(mProgram);
+      mGlState.viewport(0, 0, mDisplayWidth, mDisplayHeight);
       //pass stepsize to map nearby points properly to depth map texture - used in PCF algorithm
-      GLES20.glUniform1f(mMapStepXHandle, (float) (1.0 / mShadowMapWidth));
-      GLES20.glUniform1f(mMapStepYHandle, (float) (1.0 / mShadowMapHeight));
-      float[] tempResultMatrix = new float[16];
-      float bias[] = new float[]{
-              0.5f, 0.0f, 0.0f, 0.0f,
-              0.0f, 0.5f, 0.0f, 0.0f,
-              0.0f, 0.0f, 0.5f, 0.0f,
-              0.5f, 0.5f, 0.5f, 1.0f};
-      float[] depthBiasMVP = new float[16];
-      //calculate MV matrix
-      Matrix.multiplyMM(tempResultMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
-      System.arraycopy(tempResultMatrix, 0, mMVMatrix, 0, 16);
-      //pass in MV Matrix as uniform
-      GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVMatrix, 0);
-      //calculate Normal Matrix as uniform (invert transpose MV)
-      Matrix.invertM(tempResultMatrix, 0, mMVMatrix, 0);
-      Matrix.transposeM(mNormalMatrix, 0, tempResultMatrix, 0);
-      //pass in Normal Matrix as uniform
-      GLES20.glUniformMatrix4fv(mNormalMatrixHandle, 1, false, mNormalMatrix, 0);
-      //calculate MVP matrix
-      Matrix.multiplyMM(tempResultMatrix, 0, mProjectionMatrix, 0, mMVMatrix, 0);
-      System.arraycopy(tempResultMatrix, 0, mMVPMatrix, 0, 16);
-      //pass in MVP Matrix as uniform
-      GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-      Matrix.multiplyMV(mLightPosInEyeSpace, 0, mViewMatrix, 0, mActualLightPosition, 0);
+      mGlState.uniform1f(mMapStepXHandle, (float) (1.0 / mShadowMapWidth));
+      mGlState.uniform1f(mMapStepYHandle, (float) (1.0 / mShadowMapHeight));
+      mLightPosInEyeSpace.transform(mViewMatrix, mActualLightPosition);
       //pass in light source position
-      GLES20.glUniform3f(mLightPosHandle, mLightPosInEyeSpace[0], mLightPosInEyeSpace[1], mLightPosInEyeSpace[2]);
-      if (mHasDepthTextureExtension) {
-          Matrix.multiplyMM(depthBiasMVP, 0, bias, 0, mLightMvpMatrix_staticShapes, 0);
-          System.arraycopy(depthBiasMVP, 0, mLightMvpMatrix_staticShapes, 0, 16);
-      }
-      //MVP matrix that was used during depth map render
-      GLES20.glUniformMatrix4fv(mShadowProjHandle, 1, false, mLightMvpMatrix_staticShapes, 0);
+      mGlState.uniform3f(mLightPosHandle, mLightPosInEyeSpace.getX(), mLightPosInEyeSpace.getY(), mLightPosInEyeSpace.getZ());
       //pass in texture where depth map is stored
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, colorTextureId[0]);
-      GLES20.glUniform1i(mShadowTextureUniformHandle, 0);
-    if(mDrawPlane.getInitialised()) {
-        mDrawPlane.setDraw(mPositionHandle, mNormalHandle, mTextureCoordinateHandle, mShadowTextureUniformHandle, false);
-        mDrawPlane.draw();
-    }
-      // Pass uniforms for moving objects (center cube) which are different from previously used uniforms
-      // - MV matrix
-      // - MVP matrix
-      // - Normal matrix
-      // - Light MVP matrix for dynamic objects
-      // Rotate the model matrix with current rotation matrix
-      Matrix.multiplyMM(tempResultMatrix, 0, mModelMatrix, 0, mCubeRotation, 0);
-      //calculate MV matrix
-      Matrix.multiplyMM(tempResultMatrix, 0, mViewMatrix, 0, tempResultMatrix, 0);
-      System.arraycopy(tempResultMatrix, 0, mMVMatrix, 0, 16);
-      //pass in MV Matrix as uniform
-      GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVMatrix, 0);
-      //calculate Normal Matrix as uniform (invert transpose MV)
-      Matrix.invertM(tempResultMatrix, 0, mMVMatrix, 0);
-      Matrix.transposeM(mNormalMatrix, 0, tempResultMatrix, 0);
-      //pass in Normal Matrix as uniform
-      GLES20.glUniformMatrix4fv(mNormalMatrixHandle, 1, false, mNormalMatrix, 0);
-      //calculate MVP matrix
-      Matrix.multiplyMM(tempResultMatrix, 0, mProjectionMatrix, 0, mMVMatrix, 0);
-      System.arraycopy(tempResultMatrix, 0, mMVPMatrix, 0, 16);
-      //pass in MVP Matrix as uniform
-      GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-      if (mHasDepthTextureExtension) {
-          Matrix.multiplyMM(depthBiasMVP, 0, bias, 0, mLightMvpMatrix_dynamicShapes, 0);
-          System.arraycopy(depthBiasMVP, 0, mLightMvpMatrix_dynamicShapes, 0, 16);
+      mGlState.bindTexture(0, shadowTextureId[DYNAMIC_SHADOW_MAP]);
+      mGlState.uniform1i(mShadowTextureUniformHandle, 0);
+      if (mCachedStaticShadows) {
+          mGlState.bindTexture(STATIC_SHADOW_TEXTURE_UNIT, shadowTextureId[STATIC_SHADOW_MAP]);
+          mGlState.uniform1i(mStaticShadowTextureUniformHandle, STATIC_SHADOW_TEXTURE_UNIT);
+      }
+      if (mShadowCascades != null) {
+          GLES20.glUniform1fv(mCascadeSplitsHandle, mShadowCascades.getCount(), mShadowCascades.getSplits(), 0);
       }
-      //MVP matrix that was used during depth map render
-      GLES20.glUniformMatrix4fv(mShadowProjHandle, 1, false, mLightMvpMatrix_dynamicShapes, 0);
-      if(mDrawObj.getInitialised()){
-          mDrawObj.setDraw(mPositionHandle,mNormalHandle,mTextureCoordinateHandle,mShadowTextureUniformHandle,false);
-          mDrawObj.draw();
+      cullScene(RenderStats.PASS_SCENE, mSceneCamera);
+      for (int i = 0; i < mVisibleNodes.size(); i++) {
+          renderSceneNode(mVisibleNodes.get(i));
       }
+      if (mObjectInstances != null) {
+          renderSceneInstances(mObjectInstances);
+      }
+  }
 
+    private void renderSceneInstances(InstanceSet instances) {
+        if (!cullInstances(RenderStats.PASS_SCENE, instances, mSceneCamera, mSceneLodSelector)) {
+            return;
+        }
+        ShaderProgram program = mInstancedProgram;
+        mGlState.useProgram(program);
+        // the uniforms of the scene program, locations differ between the programs
+        mGlState.uniform1f(program.getUniformLocation("u_xPixelOffset"), (float) (1.0 / mShadowMapWidth));
+        mGlState.uniform1f(program.getUniformLocation("u_yPixelOffset"), (float) (1.0 / mShadowMapHeight));
+        mGlState.uniform3f(program.getUniformLocation("u_LightPos"), mLightPosInEyeSpace.getX(),
+                mLightPosInEyeSpace.getY(), mLightPosInEyeSpace.getZ());
+        mGlState.uniform1i(program.getUniformLocation("u_ShadowTexture"), 0);
+        mGlState.uniform1i(program.getUniformLocation("u_StaticShadowTexture"), STATIC_SHADOW_TEXTURE_UNIT);
+        mGlState.uniformMatrix4fv(program.getUniformLocation("u_ViewMatrix"), mSceneCamera.getView().getValues(), 0);
+        mGlState.uniformMatrix4fv(program.getUniformLocation("u_ProjectionMatrix"),
+                mSceneCamera.getProjection().getValues(), 0);
+        if (mShadowCascades != null) {
+            GLES20.glUniform1fv(program.getUniformLocation("u_CascadeSplits"), mShadowCascades.getCount(),
+                    mShadowCascades.getSplits(), 0);
+            for (int i = 0; i < mShadowCascades.getCount(); i++) {
+                setCascadeLookup(i, mCascadeCameras[i].getViewProjection());
+            }
+            GLES20.glUniformMatrix4fv(program.getUniformLocation("u_ShadowProjMatrices"), mShadowCascades.getCount(),
+                    false, mCascadeLookupMatrices, 0);
+        } else {
+            mGlState.uniformMatrix4fv(program.getUniformLocation("u_ShadowProjMatrix"),
+                    mShadowLookupCamera.getViewProjection().getValues(), 0);
+        }
+        drawInstances(RenderStats.PASS_SCENE, instances, program, mPositionHandle, mNormalHandle,
+                mTextureCoordinateHandle, mInstanceAttribute, false);
+    }
+
+    /**
+     * Collects the copies inside the frustum of the camera.
+     *
+     * @return false if there is nothing to draw
+     */
+    private boolean cullInstances(int pass, InstanceSet instances, SceneCamera camera, LodSelector selector) {
+        mRenderStats.beginCulling(pass);
+        mCullFrustum.set(camera.getViewProjection().getValues());
+        instances.collect(mCullFrustum, camera, selector);
+        mRenderStats.endCulling(pass, instances.getVisibleCount(), instances.getCulledCount());
+        return instances.getVisibleCount() > 0;
+    }
+
+    /**
+     * Draws the collected copies, one instanced draw call per level of detail.
+     */
+    private void drawInstances(int pass, InstanceSet instances, ShaderProgram program, int positionAttribute,
+                               int normalAttribute, int texelAttribute, int instanceAttribute, boolean onlyPosition) {
+        DrawObj renderable = (DrawObj) instances.getRenderable();
+        InstancedMesh mesh = renderable.getInstancedMesh(onlyPosition);
+        float[] positionTransform = renderable.getPositionTransform();
+        mGlState.uniformMatrix4fv(program.getUniformLocation("u_PositionTransform"),
+                positionTransform != null ? positionTransform : mIdentity, 0);
+        int matricesUniform = program.getUniformLocation("u_ModelMatrices");
+        mesh.bind(positionAttribute, normalAttribute, texelAttribute, instanceAttribute);
+        for (int lod = 0; lod < instances.getLodCount(); lod++) {
+            int count = instances.getInstanceCount(lod);
+            mesh.draw(lod, instances.getMatrices(lod), count, matricesUniform);
+            mRenderStats.addTriangles(pass, count * mesh.getTriangleCount(lod));
+        }
+        mesh.unbind();
+    }
+
+    /**
+     * Adds the plane and the static scenery to the scene graph, merged by material if static
+     * batching is enabled, otherwise one node per mesh.
+     */
+    private void createStaticNodes() {
+        ArrayList<StaticBatcher.Batch> batches = new ArrayList<>();
+        if (mStaticBatching) {
+            StaticBatcher batcher = new StaticBatcher();
+            batcher.add(MATERIAL_SHADOWED, Plane.createMeshData(), new Mat4().setIdentity());
+            for (int i = 0; i < mStaticMeshes.size(); i++) {
+                batcher.add(MATERIAL_SHADOWED, mStaticMeshes.get(i), mStaticTransforms.get(i));
+            }
+            batches.addAll(batcher.build());
+            Log.i(TAG, "createStaticNodes: " + (mStaticMeshes.size() + 1) + " static meshes in "
+                    + batches.size() + " batches");
+        } else {
+            mDrawPlane = new DrawPlane(mActivityContext, mAssetLoader, mCapabilities, mCompactVertices);
+            mStaticNodes.add(new SceneNode(mDrawPlane));
+            for (int i = 0; i < mStaticMeshes.size(); i++) {
+                StaticBatcher batcher = new StaticBatcher();
+                batcher.add(MATERIAL_SHADOWED, mStaticMeshes.get(i), mStaticTransforms.get(i));
+                batches.addAll(batcher.build());
+            }
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            mStaticNodes.add(new SceneNode(new DrawBatch(batches.get(i), mAssetLoader, mCapabilities,
+                    mCompactVertices)));
+        }
+        for (int i = 0; i < mStaticNodes.size(); i++) {
+            mStaticNodes.get(i).setStatic(true);
+            mSceneRoot.addChild(mStaticNodes.get(i));
+        }
+    }
+
+    /**
+     * Copies of the renderable on a square grid in the xz plane, centered on the origin.
+     */
+    private InstanceSet createGrid(Renderable renderable, int count, float spacing) {
+        InstanceSet instances = new InstanceSet(renderable);
+        int columns = (int) Math.ceil(Math.sqrt(count));
+        float offset = (columns - 1) * spacing * 0.5f;
+        for (int i = 0; i < count; i++) {
+            mInstanceMatrix.setRows(
+                    1f, 0f, 0f, (i % columns) * spacing - offset,
+                    0f, 1f, 0f, 0f,
+                    0f, 0f, 1f, (i / columns) * spacing - offset,
+                    0f, 0f, 0f, 1f);
+            instances.add(mInstanceMatrix);
+        }
+        return instances;
+    }
+
+    private void renderSceneNode(SceneNode node) {
+        Renderable renderable = node.getRenderable();
+        int lod = selectLod(mSceneLodSelector, renderable, node, mSceneCamera);
+        // the normal matrix is calculated before the position transform is applied, it only maps positions
+        mGlState.uniformMatrix4fv(mNormalMatrixHandle, node.getNormalMatrix(mSceneCamera).getValues(), 0);
+        mGlState.uniformMatrix4fv(mMVMatrixHandle, node.getPositionModelView(mSceneCamera).getValues(), 0);
+        mGlState.uniformMatrix4fv(mMVPMatrixHandle,
+                node.getPositionModelViewProjection(mSceneCamera).getValues(), 0);
+        //MVP matrix that was used during depth map render
+        if (mShadowCascades != null) {
+            for (int i = 0; i < mShadowCascades.getCount(); i++) {
+                setCascadeLookup(i, node.getPositionModelViewProjection(mCascadeCameras[i]));
+            }
+            GLES20.glUniformMatrix4fv(mShadowProjMatricesHandle, mShadowCascades.getCount(), false,
+                    mCascadeLookupMatrices, 0);
+        } else {
+            mGlState.uniformMatrix4fv(mShadowProjHandle,
+                    node.getPositionModelViewProjection(mShadowLookupCamera).getValues(), 0);
+        }
+        // the shadow shader samples no object texture, keep the depth map on unit 0
+        renderable.setDraw(mPositionHandle, mNormalHandle, mTextureCoordinateHandle, -1, false);
+        int triangles = drawRenderable(renderable, node, mSceneCamera, lod, false);
+        mRenderStats.addTriangles(RenderStats.PASS_SCENE, triangles);
+    }
+
+    /**
+     * Stores the lookup matrix of a cascade for the next upload: the matrix the cascade was
+     * drawn with, moved into its tile of the map.
+     */
+    private void setCascadeLookup(int cascade, Mat4 modelViewProjection) {
+        mCascadeLookup.multiply(mShadowCascades.getLookupBias(cascade), modelViewProjection);
+        System.arraycopy(mCascadeLookup.getValues(), 0, mCascadeLookupMatrices, cascade * 16, 16);
+    }
+
+    /**
+     * Collects the nodes inside the frustum of the camera in {@link #mVisibleNodes}.
+     */
+    private void cullScene(int pass, SceneCamera camera) {
+        mRenderStats.beginCulling(pass);
+        mCullFrustum.set(camera.getViewProjection().getValues());
+        mSceneBvh.cull(mCullFrustum, mVisibleNodes);
+        mRenderStats.endCulling(pass, mSceneBvh.getVisibleCount(), mSceneBvh.getCulledCount());
+    }
+
+    /**
+     * Level of detail of a node, seen through the given camera.
+     */
+    private static int selectLod(LodSelector selector, Renderable renderable, SceneNode node, SceneCamera camera) {
+        return selector.select(renderable.getLodErrors(), renderable.getBounds(),
+                node.getModelView(camera).getValues(), camera.getPixelsPerUnit(), camera.isOrthographic());
+    }
+
+    /**
+     * Draws the bound renderable. Level 0 of a clustered mesh is culled per cluster first.
+     *
+     * @return the number of submitted triangles
+     */
+    private int drawRenderable(Renderable renderable, SceneNode node, SceneCamera camera, int lod,
+                               boolean cullFront) {
+        Meshlets meshlets = renderable.getMeshlets();
+        if (lod > 0 || meshlets == null) {
+            renderable.draw(lod);
+            return renderable.getTriangleCount(lod);
+        }
+        // cull in object space, the clusters are not quantized
+        if (camera.isOrthographic()) {
+            Vec4 direction = node.getViewDirection(camera);
+            mClusterCuller.cullOrthographic(meshlets, node.getModelViewProjection(camera).getValues(),
+                    direction.getX(), direction.getY(), direction.getZ(), cullFront);
+        } else {
+            Vec4 eye = node.getEye(camera);
+            mClusterCuller.cull(meshlets, node.getModelViewProjection(camera).getValues(), eye.getX(), eye.getY(),
+                    eye.getZ(), cullFront);
+        }
+        renderable.draw(mClusterCuller);
+        return mClusterCuller.getVisibleTriangles();
+    }
 
-  }
     private void drawStatic() {
         //GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fboId[0]);
 
         // This multiplies the view matrix by the model matrix, and stores the result in the MVP matrix
         // (which currently contains model * view).
-        Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
+        mMVPMatrix.multiply(mViewMatrix, mModelMatrix);
 
         // Pass in the modelview matrix.
-        GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGlState.uniformMatrix4fv(mMVMatrixHandle, mMVPMatrix.getValues(), 0);
 
         // This multiplies the modelview matrix by the projection matrix, and stores the result in the MVP matrix
         // (which now contains model * view * projection).
-        Matrix.multiplyMM(mTemporaryMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
-        System.arraycopy(mTemporaryMatrix, 0, mMVPMatrix, 0, 16);
+        mMVPMatrix.multiply(mProjectionMatrix, mMVPMatrix);
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGlState.uniformMatrix4fv(mMVPMatrixHandle, mMVPMatrix.getValues(), 0);
 
         // Pass in the light position in eye space.
-        GLES20.glUniform3f(mLightPosHandle, mLightPosInEyeSpace[0], mLightPosInEyeSpace[1], mLightPosInEyeSpace[2]);
+        mGlState.uniform3f(mLightPosHandle, mLightPosInEyeSpace.getX(), mLightPosInEyeSpace.getY(), mLightPosInEyeSpace.getZ());
     }
 
     private void drawDynamic() {
@@ -592,18 +1261,17 @@ public class Renderer implements GLSurfaceView.Renderer {
         //Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
 
         // Pass in the modelview matrix.
-        GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGlState.uniformMatrix4fv(mMVMatrixHandle, mMVPMatrix.getValues(), 0);
 
         // This multiplies the modelview matrix by the projection matrix, and stores the result in the MVP matrix
         // (which now contains model * view * projection).
-        Matrix.multiplyMM(mTemporaryMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
-        System.arraycopy(mTemporaryMatrix, 0, mMVPMatrix, 0, 16);
+        mMVPMatrix.multiply(mProjectionMatrix, mMVPMatrix);
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mGlState.uniformMatrix4fv(mMVPMatrixHandle, mMVPMatrix.getValues(), 0);
 
         // Pass in the light position in eye space.
-        GLES20.glUniform3f(mLightPosHandle, mLightPosInEyeSpace[0], mLightPosInEyeSpace[1], mLightPosInEyeSpace[2]);
+        mGlState.uniform3f(mLightPosHandle, mLightPosInEyeSpace.getX(), mLightPosInEyeSpace.getY(), mLightPosInEyeSpace.getZ());
     }
 
 
@@ -611,25 +1279,165 @@ public class Renderer implements GLSurfaceView.Renderer {
      * Draws a point representing the position of the light.
      */
     private void drawLight() {
-        final int pointMVPMatrixHandle = GLES20.glGetUniformLocation(mPointProgramHandle, "u_MVPMatrix");
-        final int pointPositionHandle = GLES20.glGetAttribLocation(mPointProgramHandle, "a_Position");
+        mGlState.useProgram(mPointProgram);
 
         // Pass in the position.
-        GLES20.glVertexAttrib3f(pointPositionHandle, mLightPosInModelSpace[0], mLightPosInModelSpace[1], mLightPosInModelSpace[2]);
+        GLES20.glVertexAttrib3f(mPointPositionHandle, mLightPosInModelSpace.getX(), mLightPosInModelSpace.getY(), mLightPosInModelSpace.getZ());
 
         // Since we are not using a buffer object, disable vertex arrays for this attribute.
-        GLES20.glDisableVertexAttribArray(pointPositionHandle);
+        GLES20.glDisableVertexAttribArray(mPointPositionHandle);
 
         // Pass in the transformation matrix.
-        Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mLightModelMatrix, 0);
-        Matrix.multiplyMM(mTemporaryMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
-        System.arraycopy(mTemporaryMatrix, 0, mMVPMatrix, 0, 16);
-        GLES20.glUniformMatrix4fv(pointMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        mMVPMatrix.multiply(mViewMatrix, mLightModelMatrix);
+        mMVPMatrix.multiply(mProjectionMatrix, mMVPMatrix);
+        mGlState.uniformMatrix4fv(mPointMVPMatrixHandle, mMVPMatrix.getValues(), 0);
 
         // Draw the point.
         GLES20.glDrawArrays(GLES20.GL_POINTS, 0, 1);
     }
 
+    /**
+     * Renders only when something changed, see {@link #requestFrame()}. Set before the view
+     * starts rendering.
+     */
+    public void setFrameScheduler(FrameScheduler frameScheduler) {
+        mFrameScheduler = frameScheduler;
+        frameScheduler.setAnimating(mLightAnimated);
+    }
+
+    /**
+     * Asks for a frame after a change the renderer does not know about, e.g. of scene nodes.
+     */
+    public void requestFrame() {
+        if (mFrameScheduler != null) {
+            mFrameScheduler.invalidate();
+        }
+    }
+
+    /**
+     * Root of the drawn scene, nodes may only be changed on the render thread. Changes need a
+     * {@link #requestFrame()}.
+     */
+    public SceneNode getSceneRoot() {
+        return mSceneRoot;
+    }
+
+    /**
+     * Selects the compact vertex layout for meshes, takes effect when the next surface is created.
+     */
+    public void setCompactVertices(boolean compactVertices) {
+        mCompactVertices = compactVertices;
+    }
+
+    /**
+     * Adds a mesh that never moves, takes effect when the next surface is created.
+     *
+     * @param world the transform of the mesh, copied
+     */
+    public void addStaticMesh(MeshData mesh, Mat4 world) {
+        mStaticMeshes.add(mesh);
+        mStaticTransforms.add(new Mat4().set(world));
+    }
+
+    /**
+     * Uses a fixed shadow map size, rounded to a power of two. Applied after the current stats
+     * interval.
+     */
+    public void setShadowMapSize(int size) {
+        mShadowResolution.setSize(size);
+        requestFrame();
+    }
+
+    /**
+     * Halves or doubles the shadow map size to keep the shadow pass within the budget, between
+     * the given power of two sizes.
+     */
+    public void setAdaptiveShadowMapSize(long budgetNanos, int minSize, int maxSize) {
+        mShadowResolution.setAdaptive(budgetNanos, minSize, maxSize);
+        requestFrame();
+    }
+
+    /**
+     * Caches the shadow map of the static casters, takes effect when the next surface is created.
+     */
+    public void setStaticShadowCaching(boolean staticShadowCaching) {
+        mStaticShadowCaching = staticShadowCaching;
+    }
+
+    /**
+     * Selects the shadow filter, one of the {@link ShadowQuality} tiers. Takes effect with the
+     * next frame, every variant is compiled once per surface.
+     */
+    public void setShadowQuality(int quality) {
+        if (quality < 0 || quality >= ShadowQuality.COUNT) {
+            throw new IllegalArgumentException("shadow quality " + quality);
+        }
+        mShadowQuality = quality;
+        requestFrame();
+    }
+
+    /**
+     * Splits the shadow map into cascades, 1 to {@link ShadowCascades#MAX_CASCADES}, or uses the
+     * perspective light frustum for 0. Takes effect when the next surface is created.
+     */
+    public void setShadowCascades(int count) {
+        if (count < 0 || count > ShadowCascades.MAX_CASCADES) {
+            throw new IllegalArgumentException("cascades " + count);
+        }
+        mShadowCascadeCount = count;
+    }
+
+    /**
+     * Stops the light where it is, a resting light lets the static shadow map stay cached.
+     */
+    public void setLightAnimated(boolean lightAnimated) {
+        mLightAnimated = lightAnimated;
+        if (mFrameScheduler != null) {
+            mFrameScheduler.setAnimating(lightAnimated);
+        }
+        requestFrame();
+    }
+
+    /**
+     * Merges the static meshes into few draw calls, takes effect when the next surface is created.
+     */
+    public void setStaticBatching(boolean staticBatching) {
+        mStaticBatching = staticBatching;
+    }
+
+    /**
+     * Draws copies of the object with instancing, takes effect when the next surface is created.
+     *
+     * @param count   number of copies, 0 for none
+     * @param spacing distance of the copies on their grid
+     */
+    public void setObjectInstances(int count, float spacing) {
+        mObjectInstanceCount = count;
+        mObjectInstanceSpacing = spacing;
+    }
+
+    /**
+     * Sets the largest projected simplification error of the drawn levels of detail and how
+     * many levels coarser the shadow map is drawn.
+     */
+    public void setLodSelection(float maxErrorPixels, int shadowLodBias) {
+        mSceneLodSelector.setMaxErrorPixels(maxErrorPixels);
+        mShadowLodSelector.setMaxErrorPixels(maxErrorPixels);
+        mShadowLodSelector.setLodBias(shadowLodBias);
+        requestFrame();
+    }
+
+    /**
+     * Sets how much time and how many bytes of asset uploads a single frame may spend.
+     */
+    public void setUploadBudget(long timeBudgetNanos, long byteBudget) {
+        mUploadTimeBudgetNanos = timeBudgetNanos;
+        mUploadByteBudget = byteBudget;
+        if (mAssetLoader != null) {
+            mAssetLoader.setBudget(timeBudgetNanos, byteBudget);
+        }
+    }
+
     /**
      * Returns the X rotation angle of the cube.
      *
@@ -644,6 +1452,7 @@ public class Renderer implements GLSurfaceView.Renderer {
      */
     public void setRotationX(float rotationX) {
         mRotationX = rotationX;
+        requestFrame();
     }
 
     /**
@@ -660,12 +1469,18 @@ public class Renderer implements GLSurfaceView.Renderer {
      */
     public void setRotationY(float rotationY) {
         mRotationY = rotationY;
+        requestFrame();
     }
 
     private int[] fboId;
-    private int[] depthTextureId;
-    private int[] renderTextureId;
-    private int[] colorTextureId;
+    /**
+     * The textures the scene samples, depth textures or colors with packed depth.
+     */
+    private int[] shadowTextureId;
+    /**
+     * Depth buffers of the packed maps, depth textures need none.
+     */
+    private int[] depthRenderbufferId;
 
     private int mDisplayWidth;
     private int mDisplayHeight;
@@ -674,65 +1489,68 @@ public class Renderer implements GLSurfaceView.Renderer {
     private int mShadowMapWidth;
     private int mShadowMapHeight;
 
-    private boolean mHasDepthTextureExtension = false;
+    private boolean mDepthTextureShadows;
     private void generateFrameBuffer() {
-        mShadowMapWidth = Math.round(mDisplayWidth);
-        mShadowMapHeight = Math.round(mDisplayHeight);
-
-        fboId = new int[1];
-        depthTextureId = new int[1];
-        renderTextureId = new int[1];
-        colorTextureId = new int[1];
-
-        // Create a frame buffer
-        GLES20.glGenFramebuffers( 1, fboId, 0 );
+        if (fboId != null) {
+            deleteFrameBuffer();
+        }
+        mShadowMapWidth = mShadowResolution.getSize();
+        mShadowMapHeight = mShadowResolution.getSize();
 
-        // Generate a texture to hold the colour buffer
-        GLES20.glGenTextures(1, colorTextureId, 0 );
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, colorTextureId[0]);
-        // Width and height do not have to be a power of two
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
-                mShadowMapWidth, mShadowMapHeight,
-                0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        // the second map caches the static casters
+        int mapCount = mCachedStaticShadows ? 2 : 1;
+        fboId = new int[mapCount];
+        shadowTextureId = new int[mapCount];
+        depthRenderbufferId = new int[mapCount];
 
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        for (int map = 0; map < mapCount; map++) {
+            generateShadowMap(map);
+        }
+        mStaticShadowCache.invalidate();
+    }
 
-        // create render buffer and bind 16-bit depth buffer
-        GLES20.glGenRenderbuffers(1, depthTextureId, 0);
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthTextureId[0]);
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, mShadowMapWidth, mShadowMapHeight);
+    private void deleteFrameBuffer() {
+        GLES20.glDeleteFramebuffers(fboId.length, fboId, 0);
+        GLES20.glDeleteTextures(shadowTextureId.length, shadowTextureId, 0);
+        // unused names are 0, which is ignored
+        GLES20.glDeleteRenderbuffers(depthRenderbufferId.length, depthRenderbufferId, 0);
+        fboId = null;
+    }
 
-        // Try to use a texture depth component
-        GLES20.glGenTextures(1, renderTextureId, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTextureId[0]);
+    private void generateShadowMap(int map) {
+        // Create a frame buffer
+        GLES20.glGenFramebuffers( 1, fboId, map );
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fboId[map]);
 
-        // GL_LINEAR does not make sense for depth texture. However, next tutorial shows usage of GL_LINEAR and PCF. Using GL_NEAREST
+        GLES20.glGenTextures(1, shadowTextureId, map);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, shadowTextureId[map]);
+        // GL_LINEAR does not make sense for depth. Using GL_NEAREST
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-
         // Remove artifact on the edges of the shadowmap
-        GLES20.glTexParameteri( GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE );
-        GLES20.glTexParameteri( GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE );
-
-
-        //GLES20. glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fboId[0]);
-
-        // Associate the textures with the FBO.
-
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, colorTextureId[0], 0);
-
-// Use a depth texture
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_DEPTH_COMPONENT, mShadowMapWidth, mShadowMapHeight, 0, GLES20.GL_DEPTH_COMPONENT, GLES20.GL_UNSIGNED_INT, null);
-        // Attach the depth texture to FBO depth attachment point
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_TEXTURE_2D, renderTextureId[0], 0);
-
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
+        if (mDepthTextureShadows) {
+            // a depth only frame buffer, the scene samples the 16-bit depth texture
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_DEPTH_COMPONENT, mShadowMapWidth, mShadowMapHeight,
+                    0, GLES20.GL_DEPTH_COMPONENT, GLES20.GL_UNSIGNED_SHORT, null);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                    GLES20.GL_TEXTURE_2D, shadowTextureId[map], 0);
+        } else {
+            // the depth is packed into the colour, the 16-bit depth buffer is only tested against
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mShadowMapWidth, mShadowMapHeight,
+                    0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, shadowTextureId[map], 0);
+
+            GLES20.glGenRenderbuffers(1, depthRenderbufferId, map);
+            GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthRenderbufferId[map]);
+            GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
+                    mShadowMapWidth, mShadowMapHeight);
+            GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                    GLES20.GL_RENDERBUFFER, depthRenderbufferId[map]);
+        }
 
         // check FBO status
         int FBOstatus = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
@@ -809,21 +1627,18 @@ public class Renderer implements GLSurfaceView.Renderer {
         }
 
 
-        Matrix.setIdentityM(mModelMatrix, 0);
+        mModelMatrix.setIdentity();
         //Cube rotation with touch events
-         float[] cubeRotationX = new float[16];
-         float[] cubeRotationY = new float[16];
-
-         Matrix.setRotateM(cubeRotationX, 0, mRotationX, 0, 1.0f, 0);
-         Matrix.setRotateM(cubeRotationY, 0, mRotationY, 1.0f, 0, 0);
+         mCubeRotationX.setRotate(mRotationX, 0, 1.0f, 0);
+         mCubeRotationY.setRotate(mRotationY, 1.0f, 0, 0);
 
-         Matrix.multiplyMM(mCurrentRotation, 0, cubeRotationX, 0, cubeRotationY, 0);
+         mCurrentRotation.multiply(mCubeRotationX, mCubeRotationY);
 
         // Rotate the model matrix with current rotation matrix
-        Matrix.multiplyMM(mTemporaryMatrix, 0, mModelMatrix, 0, mCurrentRotation, 0);
+        mTemporaryMatrix.multiply(mModelMatrix, mCurrentRotation);
 
         //calculate MV matrix
-        Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mTemporaryMatrix, 0);
+        mMVPMatrix.multiply(mViewMatrix, mTemporaryMatrix);
         //System.arraycopy(mMVPMatrix, 0, mMVMatrix, 0, 16);
 
         // Draw a cube.
@@ -1,15 +1,16 @@
 package bertrandt.shadows.openGL.basicObjects;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import bertrandt.shadows.R;
 import bertrandt.shadows.openGL.common.TextureHelper;
+import bertrandt.shadows.openGL.importer.MeshBuffers;
+import bertrandt.shadows.openGL.importer.MeshData;
+import bertrandt.shadows.openGL.importer.PositionWelder;
+import bertrandt.shadows.openGL.importer.VertexQuantizer;
 
 /**
  * Created by buhrmanc on 05.02.2018.
@@ -17,15 +18,13 @@ import bertrandt.shadows.openGL.common.TextureHelper;
 
 public class Plane {
 
-    private FloatBuffer mPlanePosition;
-    private FloatBuffer mPlaneNormal;
-    private FloatBuffer mTexelsBuffer;
-
-    private int mBytesPerFloat = 4;
+    private MeshBuffers mMeshBuffers;
+    private MeshBuffers mDepthBuffers;
 
+    private Bitmap mTextureBitmap;
     private int mPlaneTextureHandle;
 
-    float[] planePositionData = {
+    private static final float[] planePositionData = {
             // X, Y, Z,
             -30.0f, -1.5f, -20.0f,
             -30.0f, -1.5f, 7.0f,
@@ -35,7 +34,7 @@ public class Plane {
             30.0f, -1.5f, -20.0f
     };
 
-    float[] planeNormalData = {
+    private static final float[] planeNormalData = {
             // nX, nY, nZ
             0.0f, 1.0f, 0.0f,
             0.0f, 1.0f, 0.0f,
@@ -45,7 +44,7 @@ public class Plane {
             0.0f, 1.0f, 0.0f
     };
 
-    float[] planeTexelData = {
+    private static final float[] planeTexelData = {
             // U, V
             0.0f, 0.0f,
             0.0f, 1.0f,
@@ -55,34 +54,72 @@ public class Plane {
             1.0f, 0.0f
     };
 
-    public Plane(Context context) {
-        // Buffer initialization
-        mPlanePosition = ByteBuffer.allocateDirect(planePositionData.length * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mPlanePosition.put(planePositionData).position(0);
-
-        mPlaneNormal = ByteBuffer.allocateDirect(planeNormalData.length * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mPlaneNormal.put(planeNormalData).position(0);
+    /**
+     * Builds the buffers and decodes the texture. Does not use GL, so it can run on a background
+     * thread; call {@link #upload()} on the GL thread afterwards.
+     *
+     * @param compactVertices store the mesh in the {@link VertexQuantizer} layout
+     */
+    public Plane(Context context, boolean compactVertices) {
+        MeshData meshData = createMeshData();
+        mMeshBuffers = compactVertices ? VertexQuantizer.quantize(meshData) : MeshBuffers.fromMeshData(meshData);
+        MeshData positions = PositionWelder.weld(meshData);
+        mDepthBuffers = compactVertices ? VertexQuantizer.quantizePositions(positions, mMeshBuffers.getBounds())
+                : MeshBuffers.fromPositions(positions, mMeshBuffers.getBounds());
+
+        mTextureBitmap = TextureHelper.decodeBitmap(context, R.drawable.ground);
+    }
 
-        mTexelsBuffer = ByteBuffer.allocateDirect(planeTexelData.length * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mTexelsBuffer.put(planeTexelData).position(0);
+    /**
+     * The geometry of the plane, e.g. to merge it with other static meshes.
+     */
+    public static MeshData createMeshData() {
+        // the two triangles share no vertices
+        return new MeshData(planePositionData.clone(), planeNormalData.clone(), planeTexelData.clone(),
+                new int[]{0, 1, 2, 3, 4, 5});
+    }
 
-        mPlaneTextureHandle = TextureHelper.loadTexture(context, R.drawable.ground);
+    /**
+     * Creates the GL resources, needs the GL thread.
+     */
+    public void upload() {
+        mPlaneTextureHandle = TextureHelper.loadTexture(mTextureBitmap);
         GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        mTextureBitmap = null;
+    }
+
+    /**
+     * Approximate number of bytes {@link #upload()} and the following draws hand to GL. The mesh no longer counts
+     * after {@link #releaseMeshBuffers()}.
+     */
+    public long getByteSize() {
+        long bytes = 0;
+        if (mMeshBuffers != null) {
+            bytes += mMeshBuffers.getByteSize() + mDepthBuffers.getByteSize();
+        }
+        if (mTextureBitmap != null) {
+            bytes += mTextureBitmap.getByteCount();
+        }
+        return bytes;
     }
 
-    public FloatBuffer getPlanePosition() {
-        return mPlanePosition;
+    public MeshBuffers getMeshBuffers() {
+        return mMeshBuffers;
     }
 
-    public FloatBuffer getPlaneNormal() {
-        return mPlaneNormal;
+    /**
+     * Position only copy of the mesh for the depth passes.
+     */
+    public MeshBuffers getDepthBuffers() {
+        return mDepthBuffers;
     }
 
-    public FloatBuffer getTexelsBuffer() {
-        return mTexelsBuffer;
+    /**
+     * Drops the CPU side copy of the mesh once it lives in GL buffers.
+     */
+    public void releaseMeshBuffers() {
+        mMeshBuffers = null;
+        mDepthBuffers = null;
     }
 
     public int getPlaneTextureHandle() {
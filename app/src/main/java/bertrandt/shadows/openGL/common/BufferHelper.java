@@ -0,0 +1,72 @@
+package bertrandt.shadows.openGL.common;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Helper functions to move heap arrays into direct buffers GL can read from.
+ */
+
+public class BufferHelper {
+
+    /**
+     * Largest vertex count that can still be addressed with 16 bit indices.
+     */
+    public static final int MAX_SHORT_INDEXED_VERTICES = 65536;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_SHORT = 2;
+    private static final int BYTES_PER_INT = 4;
+
+    public static FloatBuffer createFloatBuffer(float[] data) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(data.length * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(data).position(0);
+        return buffer;
+    }
+
+    /**
+     * Index type needed to address the given number of vertices. GL_UNSIGNED_INT needs
+     * OES_element_index_uint on OpenGL ES 2.0.
+     */
+    public static int getIndexType(int vertexCount) {
+        return vertexCount <= MAX_SHORT_INDEXED_VERTICES ? GLES20.GL_UNSIGNED_SHORT : GLES20.GL_UNSIGNED_INT;
+    }
+
+    /**
+     * Whether the context can draw indices of the given type, see {@link #getIndexType(int)}.
+     */
+    public static boolean isIndexTypeSupported(int indexType, GlCapabilities capabilities) {
+        return indexType != GLES20.GL_UNSIGNED_INT || capabilities.hasUintIndices();
+    }
+
+    public static int getIndexSize(int indexType) {
+        return indexType == GLES20.GL_UNSIGNED_SHORT ? BYTES_PER_SHORT : BYTES_PER_INT;
+    }
+
+    /**
+     * Creates a {@link ShortBuffer} or an {@link IntBuffer} depending on {@link #getIndexType(int)}.
+     */
+    public static Buffer createIndexBuffer(int[] indices, int vertexCount) {
+        if (getIndexType(vertexCount) == GLES20.GL_UNSIGNED_SHORT) {
+            ShortBuffer buffer = ByteBuffer.allocateDirect(indices.length * BYTES_PER_SHORT)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+            short[] shortIndices = new short[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                shortIndices[i] = (short) indices[i];
+            }
+            buffer.put(shortIndices).position(0);
+            return buffer;
+        }
+        IntBuffer buffer = ByteBuffer.allocateDirect(indices.length * BYTES_PER_INT)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        buffer.put(indices).position(0);
+        return buffer;
+    }
+}
@@ -0,0 +1,17 @@
+package bertrandt.shadows.openGL.common;
+
+/**
+ * Monotonic time source, replaceable in tests.
+ */
+
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
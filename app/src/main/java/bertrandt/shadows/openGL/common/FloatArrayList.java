@@ -0,0 +1,76 @@
+package bertrandt.shadows.openGL.common;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive floats. Used while parsing geometry so that no boxed values
+ * or intermediate strings are created per token.
+ */
+
+public class FloatArrayList {
+
+    private float[] mData;
+    private int mSize;
+
+    public FloatArrayList() {
+        this(64);
+    }
+
+    public FloatArrayList(int initialCapacity) {
+        mData = new float[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * Wraps the given array without copying, all elements are part of the list.
+     */
+    public FloatArrayList(float[] data) {
+        mData = data;
+        mSize = data.length;
+    }
+
+    public void add(float value) {
+        if (mSize == mData.length) {
+            mData = Arrays.copyOf(mData, mData.length << 1);
+        }
+        mData[mSize++] = value;
+    }
+
+    public void addAll(float[] values, int offset, int count) {
+        ensureCapacity(mSize + count);
+        System.arraycopy(values, offset, mData, mSize, count);
+        mSize += count;
+    }
+
+    public float get(int index) {
+        return mData[index];
+    }
+
+    public void set(int index, float value) {
+        mData[index] = value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length << 1));
+        }
+    }
+
+    /**
+     * Returns the backing array. Only the first {@link #size()} elements are valid.
+     */
+    public float[] array() {
+        return mData;
+    }
+
+    public float[] toArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+}
@@ -0,0 +1,173 @@
+package bertrandt.shadows.openGL.common;
+
+/**
+ * Decides on which vsyncs a frame is rendered, for a view that only renders on request.
+ *
+ * Anything that changes the picture calls {@link #invalidate()}, a running animation is
+ * announced with {@link #setAnimating(boolean)}. Only then the scheduler asks for vsync
+ * callbacks, e.g. from Choreographer, and requests a frame on the next one that the frame cap
+ * allows. A still scene therefore renders nothing and wakes nobody up.
+ *
+ * All methods may be called from any thread, {@link #onVsync(long)} from the thread the
+ * callbacks arrive on. The callback is never called with the lock held.
+ */
+
+public class FrameScheduler {
+
+    public interface Callback {
+        /**
+         * Asks for one call of {@link #onVsync(long)} on the next vsync.
+         */
+        void requestVsync();
+
+        /**
+         * Asks the render thread for a frame.
+         */
+        void requestRender();
+    }
+
+    public static final long DEFAULT_VSYNC_PERIOD_NANOS = 1000000000L / 60;
+
+    private final Clock mClock;
+    private final Callback mCallback;
+
+    private long mMinFrameIntervalNanos;
+    private boolean mRunning;
+    private boolean mDirty;
+    private boolean mAnimating;
+    private boolean mVsyncRequested;
+
+    private long mLastFrameNanos;
+    private long mLastVsyncNanos;
+    private long mVsyncPeriodNanos = DEFAULT_VSYNC_PERIOD_NANOS;
+    private long mStartNanos;
+    private long mRenderedFrames;
+
+    public FrameScheduler(Clock clock, Callback callback) {
+        mClock = clock;
+        mCallback = callback;
+    }
+
+    /**
+     * Limits the frame rate, e.g. to every second vsync, 0 for no limit.
+     */
+    public synchronized void setMaxFrameRate(float framesPerSecond) {
+        mMinFrameIntervalNanos = framesPerSecond > 0f ? (long) (1000000000L / framesPerSecond) : 0L;
+    }
+
+    /**
+     * Starts scheduling, e.g. when the view resumes. The first vsync renders a frame.
+     */
+    public void start() {
+        synchronized (this) {
+            mRunning = true;
+            mDirty = true;
+            mStartNanos = mClock.nanoTime();
+            mRenderedFrames = 0;
+            mLastFrameNanos = Long.MIN_VALUE / 2;
+            mLastVsyncNanos = 0L;
+        }
+        requestVsyncIfIdle();
+    }
+
+    /**
+     * Stops asking for vsyncs and frames, e.g. when the view pauses. A vsync that was asked
+     * for may be dropped.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        mVsyncRequested = false;
+    }
+
+    /**
+     * Something changed, the next vsync the frame cap allows renders a frame.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mDirty = true;
+        }
+        requestVsyncIfIdle();
+    }
+
+    /**
+     * While animating every vsync the frame cap allows renders a frame.
+     */
+    public void setAnimating(boolean animating) {
+        synchronized (this) {
+            mAnimating = animating;
+        }
+        if (animating) {
+            requestVsyncIfIdle();
+        }
+    }
+
+    public synchronized boolean isAnimating() {
+        return mAnimating;
+    }
+
+    /**
+     * Called on the vsync that was asked for.
+     *
+     * @param frameTimeNanos time of the vsync, in the time base of the clock
+     */
+    public void onVsync(long frameTimeNanos) {
+        boolean render = false;
+        boolean again;
+        synchronized (this) {
+            mVsyncRequested = false;
+            if (!mRunning) {
+                return;
+            }
+            // callbacks can miss vsyncs, the shortest distance is the period
+            long sinceVsync = frameTimeNanos - mLastVsyncNanos;
+            if (mLastVsyncNanos != 0L && sinceVsync > 0L && sinceVsync < mVsyncPeriodNanos) {
+                mVsyncPeriodNanos = sinceVsync;
+            }
+            mLastVsyncNanos = frameTimeNanos;
+
+            // vsyncs jitter, half a period early still counts as the vsync the cap allows
+            long earliest = mLastFrameNanos + mMinFrameIntervalNanos - mVsyncPeriodNanos / 2;
+            if ((mDirty || mAnimating) && frameTimeNanos >= earliest) {
+                render = true;
+                mDirty = false;
+                mLastFrameNanos = frameTimeNanos;
+                mRenderedFrames++;
+            }
+            // a frame held back by the cap, or the next one of an animation
+            again = mDirty || mAnimating;
+            mVsyncRequested = again;
+        }
+        if (render) {
+            mCallback.requestRender();
+        }
+        if (again) {
+            mCallback.requestVsync();
+        }
+    }
+
+    /**
+     * Frames rendered since {@link #start()}.
+     */
+    public synchronized long getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /**
+     * Vsyncs since {@link #start()} without a frame, the frames continuous rendering would
+     * have added.
+     */
+    public synchronized long getSkippedFrames() {
+        long vsyncs = (mClock.nanoTime() - mStartNanos) / mVsyncPeriodNanos;
+        return Math.max(0L, vsyncs - mRenderedFrames);
+    }
+
+    private void requestVsyncIfIdle() {
+        synchronized (this) {
+            if (!mRunning || mVsyncRequested) {
+                return;
+            }
+            mVsyncRequested = true;
+        }
+        mCallback.requestVsync();
+    }
+}
@@ -0,0 +1,91 @@
+package bertrandt.shadows.openGL.common;
+
+/**
+ * The six clip planes of a view projection, extracted from the combined matrix (Gribb and
+ * Hartmann). With a model view projection matrix the planes are in object space, so object
+ * space bounds can be tested without transforming them.
+ */
+
+public class Frustum {
+
+    private static final int PLANE_COUNT = 6;
+
+    /**
+     * Results of {@link #classifyBox}.
+     */
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECTING = 1;
+    public static final int INSIDE = 2;
+
+    /**
+     * a, b, c, d per plane, the normal points inside and has unit length.
+     */
+    private final float[] mPlanes = new float[PLANE_COUNT * 4];
+
+    /**
+     * @param matrix column major view projection or model view projection matrix
+     */
+    public void set(float[] matrix) {
+        for (int axis = 0; axis < 3; axis++) {
+            for (int side = 0; side < 2; side++) {
+                int plane = (axis * 2 + side) * 4;
+                float sign = side == 0 ? 1f : -1f;
+                for (int column = 0; column < 4; column++) {
+                    mPlanes[plane + column] = matrix[column * 4 + 3] + sign * matrix[column * 4 + axis];
+                }
+                float length = (float) Math.sqrt(mPlanes[plane] * mPlanes[plane]
+                        + mPlanes[plane + 1] * mPlanes[plane + 1] + mPlanes[plane + 2] * mPlanes[plane + 2]);
+                if (length > 0f) {
+                    for (int i = 0; i < 4; i++) {
+                        mPlanes[plane + i] /= length;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * False only if the sphere lies completely outside of one plane.
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+            if (mPlanes[plane] * x + mPlanes[plane + 1] * y + mPlanes[plane + 2] * z + mPlanes[plane + 3]
+                    < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests the corner farthest along and the one farthest against every plane normal.
+     * Boxes near the corners of the frustum may be reported as intersecting although they are
+     * outside, never the other way around.
+     *
+     * @param box    minX, minY, minZ, maxX, maxY, maxZ
+     * @param offset of the box in the array
+     * @return {@link #OUTSIDE}, {@link #INTERSECTING} or {@link #INSIDE}
+     */
+    public int classifyBox(float[] box, int offset) {
+        int result = INSIDE;
+        for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+            float a = mPlanes[plane];
+            float b = mPlanes[plane + 1];
+            float c = mPlanes[plane + 2];
+            float d = mPlanes[plane + 3];
+            float farthest = a * (a >= 0f ? box[offset + 3] : box[offset])
+                    + b * (b >= 0f ? box[offset + 4] : box[offset + 1])
+                    + c * (c >= 0f ? box[offset + 5] : box[offset + 2]) + d;
+            if (farthest < 0f) {
+                return OUTSIDE;
+            }
+            float nearest = a * (a >= 0f ? box[offset] : box[offset + 3])
+                    + b * (b >= 0f ? box[offset + 1] : box[offset + 4])
+                    + c * (c >= 0f ? box[offset + 2] : box[offset + 5]) + d;
+            if (nearest < 0f) {
+                result = INTERSECTING;
+            }
+        }
+        return result;
+    }
+}
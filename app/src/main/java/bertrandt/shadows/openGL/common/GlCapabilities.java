@@ -0,0 +1,165 @@
+package bertrandt.shadows.openGL.common;
+
+import android.opengl.GLES20;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Version and extensions of the current GL context, queried once after the surface was created.
+ */
+
+public class GlCapabilities {
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("OpenGL ES (\\d+)\\.(\\d+)");
+
+    /**
+     * Smallest GL_MAX_VERTEX_UNIFORM_VECTORS an OpenGL ES 2.0 implementation may report.
+     */
+    public static final int MIN_VERTEX_UNIFORM_VECTORS = 128;
+
+    /**
+     * First API level with the GLES30 bindings. Older platforms can only use an ES 3.0 context
+     * through GLES20.
+     */
+    public static final int ES3_API_LEVEL = Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private final int mMajorVersion;
+    private final int mMinorVersion;
+    private final Set<String> mExtensions;
+    private final String mVendor;
+    private final String mRenderer;
+    private final String mVersion;
+    private final int mMaxVertexUniformVectors;
+    private final int mApiLevel;
+
+    /**
+     * Describes a context on a platform that has the GLES30 bindings.
+     */
+    public GlCapabilities(String version, String extensions, String vendor, String renderer) {
+        this(version, extensions, vendor, renderer, MIN_VERTEX_UNIFORM_VECTORS);
+    }
+
+    public GlCapabilities(String version, String extensions, String vendor, String renderer,
+                          int maxVertexUniformVectors) {
+        this(version, extensions, vendor, renderer, maxVertexUniformVectors, ES3_API_LEVEL);
+    }
+
+    /**
+     * @param apiLevel API level of the platform, see {@link Build.VERSION#SDK_INT}
+     */
+    public GlCapabilities(String version, String extensions, String vendor, String renderer,
+                          int maxVertexUniformVectors, int apiLevel) {
+        mApiLevel = apiLevel;
+        mMaxVertexUniformVectors = Math.max(maxVertexUniformVectors, MIN_VERTEX_UNIFORM_VECTORS);
+        mVersion = version != null ? version : "";
+        mVendor = vendor != null ? vendor : "";
+        mRenderer = renderer != null ? renderer : "";
+
+        Matcher matcher = VERSION_PATTERN.matcher(mVersion);
+        if (matcher.find()) {
+            mMajorVersion = Integer.parseInt(matcher.group(1));
+            mMinorVersion = Integer.parseInt(matcher.group(2));
+        } else {
+            mMajorVersion = 2;
+            mMinorVersion = 0;
+        }
+
+        Set<String> extensionSet = new HashSet<>();
+        if (extensions != null) {
+            extensionSet.addAll(Arrays.asList(extensions.trim().split("\\s+")));
+        }
+        mExtensions = Collections.unmodifiableSet(extensionSet);
+    }
+
+    /**
+     * Queries the current context, needs the GL thread.
+     */
+    public static GlCapabilities query() {
+        int[] maxVertexUniformVectors = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS, maxVertexUniformVectors, 0);
+        return new GlCapabilities(
+                GLES20.glGetString(GLES20.GL_VERSION),
+                GLES20.glGetString(GLES20.GL_EXTENSIONS),
+                GLES20.glGetString(GLES20.GL_VENDOR),
+                GLES20.glGetString(GLES20.GL_RENDERER),
+                maxVertexUniformVectors[0],
+                Build.VERSION.SDK_INT);
+    }
+
+    public int getMajorVersion() {
+        return mMajorVersion;
+    }
+
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    /**
+     * True for OpenGL ES 3.0 and newer contexts on platforms with the GLES30 bindings, see
+     * {@link #ES3_API_LEVEL}.
+     */
+    public boolean isEs3() {
+        return mMajorVersion >= 3 && mApiLevel >= ES3_API_LEVEL;
+    }
+
+    public boolean hasExtension(String extension) {
+        return mExtensions.contains(extension) || mExtensions.contains("GL_" + extension);
+    }
+
+    /**
+     * Vertex array objects are core in ES 3.0. OES_vertex_array_object has no Java binding
+     * on Android, so ES 2.0 contexts fall back to binding the buffers per draw.
+     */
+    public boolean hasVertexArrayObjects() {
+        return isEs3();
+    }
+
+    /**
+     * 32 bit indices, core in ES 3.0 and OES_element_index_uint on ES 2.0.
+     */
+    public boolean hasUintIndices() {
+        return isEs3() || hasExtension("OES_element_index_uint");
+    }
+
+    /**
+     * Instanced draws and attribute divisors are core in ES 3.0. ANGLE_instanced_arrays and
+     * EXT_instanced_arrays have no Java binding on Android, ES 2.0 contexts batch instances
+     * through uniform arrays instead.
+     */
+    public boolean hasInstancing() {
+        return isEs3();
+    }
+
+    /**
+     * Depth textures a framebuffer can render into and shaders can sample, core in ES 3.0 and
+     * OES_depth_texture on ES 2.0. Without them depth has to be packed into a color texture.
+     */
+    public boolean hasDepthTexture() {
+        return isEs3() || hasExtension("OES_depth_texture");
+    }
+
+    /**
+     * Vec4 uniforms a vertex shader may use, at least {@link #MIN_VERTEX_UNIFORM_VECTORS}.
+     */
+    public int getMaxVertexUniformVectors() {
+        return mMaxVertexUniformVectors;
+    }
+
+    public String getVendor() {
+        return mVendor;
+    }
+
+    public String getRenderer() {
+        return mRenderer;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+}
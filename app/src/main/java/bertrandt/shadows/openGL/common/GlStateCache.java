@@ -0,0 +1,296 @@
+package bertrandt.shadows.openGL.common;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * Shadows the GL state the renderer changes every frame and skips calls that would set a value
+ * that is already current. Uniform uploads are compared by value against the last upload to the
+ * same location of the current program, see {@link ShaderProgram}.
+ *
+ * All state changes of the render thread have to go through the cache, or the cache has to be
+ * {@link #invalidate() invalidated} afterwards. Counts issued and elided calls until
+ * {@link #resetCounters()}.
+ */
+
+public class GlStateCache {
+
+    /**
+     * The GL calls the cache passes on, replaceable in tests.
+     */
+    public interface Gl {
+
+        Gl DEFAULT = new Gl() {
+            @Override
+            public void glUseProgram(int program) {
+                GLES20.glUseProgram(program);
+            }
+
+            @Override
+            public void glBindFramebuffer(int target, int framebuffer) {
+                GLES20.glBindFramebuffer(target, framebuffer);
+            }
+
+            @Override
+            public void glViewport(int x, int y, int width, int height) {
+                GLES20.glViewport(x, y, width, height);
+            }
+
+            @Override
+            public void glActiveTexture(int texture) {
+                GLES20.glActiveTexture(texture);
+            }
+
+            @Override
+            public void glBindTexture(int target, int texture) {
+                GLES20.glBindTexture(target, texture);
+            }
+
+            @Override
+            public void glCullFace(int mode) {
+                GLES20.glCullFace(mode);
+            }
+
+            @Override
+            public void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+                GLES20.glColorMask(red, green, blue, alpha);
+            }
+
+            @Override
+            public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+                GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+            }
+
+            @Override
+            public void glUniform1f(int location, float x) {
+                GLES20.glUniform1f(location, x);
+            }
+
+            @Override
+            public void glUniform3f(int location, float x, float y, float z) {
+                GLES20.glUniform3f(location, x, y, z);
+            }
+
+            @Override
+            public void glUniform1i(int location, int x) {
+                GLES20.glUniform1i(location, x);
+            }
+        };
+
+        void glUseProgram(int program);
+
+        void glBindFramebuffer(int target, int framebuffer);
+
+        void glViewport(int x, int y, int width, int height);
+
+        void glActiveTexture(int texture);
+
+        void glBindTexture(int target, int texture);
+
+        void glCullFace(int mode);
+
+        void glColorMask(boolean red, boolean green, boolean blue, boolean alpha);
+
+        void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+
+        void glUniform1f(int location, float x);
+
+        void glUniform3f(int location, float x, float y, float z);
+
+        void glUniform1i(int location, int x);
+    }
+
+    private static final int UNKNOWN = -1;
+
+    /**
+     * Texture units with a tracked binding, ES 2.0 guarantees 8 in the fragment shader.
+     */
+    private static final int TEXTURE_UNITS = 8;
+
+    private ShaderProgram mProgram;
+    private int mFramebuffer;
+    private final int[] mViewport = new int[4];
+    private int mActiveTexture;
+    private final int[] mTextures = new int[TEXTURE_UNITS];
+    private int mCullFace;
+    private int mColorMask;
+
+    private final Gl mGl;
+    private int mIssuedCalls;
+    private int mElidedCalls;
+
+    public GlStateCache() {
+        this(Gl.DEFAULT);
+    }
+
+    public GlStateCache(Gl gl) {
+        mGl = gl;
+        invalidate();
+    }
+
+    /**
+     * Forgets all tracked state, e.g. for a new context or after GL calls that bypassed the cache.
+     * Uniform values are kept by their programs.
+     */
+    public void invalidate() {
+        mProgram = null;
+        mFramebuffer = UNKNOWN;
+        Arrays.fill(mViewport, UNKNOWN);
+        mActiveTexture = UNKNOWN;
+        Arrays.fill(mTextures, UNKNOWN);
+        mCullFace = UNKNOWN;
+        mColorMask = UNKNOWN;
+    }
+
+    public void useProgram(ShaderProgram program) {
+        if (program == mProgram) {
+            mElidedCalls++;
+            return;
+        }
+        mProgram = program;
+        mGl.glUseProgram(program.getHandle());
+        mIssuedCalls++;
+    }
+
+    /**
+     * @return the program of the last {@link #useProgram} call, null after {@link #invalidate()}
+     */
+    public ShaderProgram getProgram() {
+        return mProgram;
+    }
+
+    public void bindFramebuffer(int framebuffer) {
+        if (framebuffer == mFramebuffer) {
+            mElidedCalls++;
+            return;
+        }
+        mFramebuffer = framebuffer;
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        mIssuedCalls++;
+    }
+
+    public void viewport(int x, int y, int width, int height) {
+        if (mViewport[0] == x && mViewport[1] == y && mViewport[2] == width && mViewport[3] == height) {
+            mElidedCalls++;
+            return;
+        }
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+        mGl.glViewport(x, y, width, height);
+        mIssuedCalls++;
+    }
+
+    /**
+     * @param unit texture unit, 0 for GL_TEXTURE0
+     */
+    public void activeTexture(int unit) {
+        if (unit == mActiveTexture) {
+            mElidedCalls++;
+            return;
+        }
+        mActiveTexture = unit;
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        mIssuedCalls++;
+    }
+
+    /**
+     * Binds a 2D texture to a unit, the unit becomes the active one if the binding changes.
+     */
+    public void bindTexture(int unit, int texture) {
+        if (unit < TEXTURE_UNITS && mTextures[unit] == texture) {
+            mElidedCalls++;
+            return;
+        }
+        activeTexture(unit);
+        if (unit < TEXTURE_UNITS) {
+            mTextures[unit] = texture;
+        }
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        mIssuedCalls++;
+    }
+
+    public void cullFace(int mode) {
+        if (mode == mCullFace) {
+            mElidedCalls++;
+            return;
+        }
+        mCullFace = mode;
+        mGl.glCullFace(mode);
+        mIssuedCalls++;
+    }
+
+    /**
+     * Enables or disables writes to all color channels.
+     */
+    public void colorMask(boolean write) {
+        int mask = write ? 1 : 0;
+        if (mask == mColorMask) {
+            mElidedCalls++;
+            return;
+        }
+        mColorMask = mask;
+        mGl.glColorMask(write, write, write, write);
+        mIssuedCalls++;
+    }
+
+    /**
+     * Uploads a matrix to the current program unless the uniform holds it already.
+     */
+    public void uniformMatrix4fv(int location, float[] matrix, int offset) {
+        if (location < 0 || !mProgram.updateUniform(location, matrix, offset, 16)) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glUniformMatrix4fv(location, 1, false, matrix, offset);
+        mIssuedCalls++;
+    }
+
+    public void uniform1f(int location, float x) {
+        if (location < 0 || !mProgram.updateUniform(location, x, 0f, 0f, 1)) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glUniform1f(location, x);
+        mIssuedCalls++;
+    }
+
+    public void uniform3f(int location, float x, float y, float z) {
+        if (location < 0 || !mProgram.updateUniform(location, x, y, z, 3)) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glUniform3f(location, x, y, z);
+        mIssuedCalls++;
+    }
+
+    public void uniform1i(int location, int x) {
+        if (location < 0 || !mProgram.updateUniform(location, x)) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glUniform1i(location, x);
+        mIssuedCalls++;
+    }
+
+    /**
+     * State changes and uploads passed on to GL since the last {@link #resetCounters()}.
+     */
+    public int getIssuedCalls() {
+        return mIssuedCalls;
+    }
+
+    /**
+     * State changes and uploads skipped since the last {@link #resetCounters()}.
+     */
+    public int getElidedCalls() {
+        return mElidedCalls;
+    }
+
+    public void resetCounters() {
+        mIssuedCalls = 0;
+        mElidedCalls = 0;
+    }
+}
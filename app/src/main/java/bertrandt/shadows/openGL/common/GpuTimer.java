@@ -0,0 +1,102 @@
+package bertrandt.shadows.openGL.common;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * Measures the GPU time of a range of GL calls with GL_EXT_disjoint_timer_query.
+ *
+ * Results arrive frames later, a few queries are kept in flight so that reading them never
+ * waits for the GPU. The extension has no Java constants, the ES 3.0 query functions take its
+ * enums directly.
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GpuTimer {
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERY_COUNT = 4;
+
+    private final int[] mQueries = new int[QUERY_COUNT];
+    private final int[] mResult = new int[1];
+    /**
+     * Queries in flight are mFirstPending up to mFirstPending + mPendingCount, wrapped around.
+     */
+    private int mFirstPending;
+    private int mPendingCount;
+    private boolean mRunning;
+
+    private long mElapsedNanos;
+    private int mSamples;
+
+    /**
+     * Needs the GL thread.
+     */
+    public GpuTimer() {
+        GLES30.glGenQueries(QUERY_COUNT, mQueries, 0);
+    }
+
+    public static boolean isSupported(GlCapabilities capabilities) {
+        return capabilities.isEs3() && capabilities.hasExtension("GL_EXT_disjoint_timer_query");
+    }
+
+    /**
+     * Starts timing, skipped if all queries are still in flight.
+     */
+    public void begin() {
+        if (mPendingCount == QUERY_COUNT) {
+            return;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[(mFirstPending + mPendingCount) % QUERY_COUNT]);
+        mRunning = true;
+    }
+
+    public void end() {
+        if (!mRunning) {
+            return;
+        }
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mRunning = false;
+        mPendingCount++;
+    }
+
+    /**
+     * Collects the results that are available, call once per frame outside of a timed range.
+     */
+    public void poll() {
+        // a disjoint event, e.g. a frequency change, makes all results in flight meaningless
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+        boolean disjoint = mResult[0] != 0;
+        while (mPendingCount > 0) {
+            int query = mQueries[mFirstPending];
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mResult, 0);
+            if (mResult[0] == 0) {
+                break;
+            }
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mResult, 0);
+            if (!disjoint) {
+                mElapsedNanos += mResult[0] & 0xFFFFFFFFL;
+                mSamples++;
+            }
+            mFirstPending = (mFirstPending + 1) % QUERY_COUNT;
+            mPendingCount--;
+        }
+    }
+
+    /**
+     * Average of the results collected since the last call, -1 if there were none.
+     */
+    public long takeAverageNanos() {
+        long average = mSamples > 0 ? mElapsedNanos / mSamples : -1;
+        mElapsedNanos = 0;
+        mSamples = 0;
+        return average;
+    }
+
+    public void release() {
+        GLES30.glDeleteQueries(QUERY_COUNT, mQueries, 0);
+    }
+}
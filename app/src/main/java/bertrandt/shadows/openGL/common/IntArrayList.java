@@ -0,0 +1,83 @@
+package bertrandt.shadows.openGL.common;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints. Used while parsing geometry so that no boxed values
+ * or intermediate strings are created per token.
+ */
+
+public class IntArrayList {
+
+    private int[] mData;
+    private int mSize;
+
+    public IntArrayList() {
+        this(64);
+    }
+
+    public IntArrayList(int initialCapacity) {
+        mData = new int[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * Wraps the given array without copying, all elements are part of the list.
+     */
+    public IntArrayList(int[] data) {
+        mData = data;
+        mSize = data.length;
+    }
+
+    public void add(int value) {
+        if (mSize == mData.length) {
+            mData = Arrays.copyOf(mData, mData.length << 1);
+        }
+        mData[mSize++] = value;
+    }
+
+    public void addAll(int[] values, int offset, int count) {
+        ensureCapacity(mSize + count);
+        System.arraycopy(values, offset, mData, mSize, count);
+        mSize += count;
+    }
+
+    public int get(int index) {
+        return mData[index];
+    }
+
+    public void set(int index, int value) {
+        mData[index] = value;
+    }
+
+    /**
+     * Removes an element by moving the last element into its place, the order is not kept.
+     */
+    public void removeUnordered(int index) {
+        mData[index] = mData[--mSize];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length << 1));
+        }
+    }
+
+    /**
+     * Returns the backing array. Only the first {@link #size()} elements are valid.
+     */
+    public int[] array() {
+        return mData;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+}
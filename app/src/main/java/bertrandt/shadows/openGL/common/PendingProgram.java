@@ -0,0 +1,116 @@
+package bertrandt.shadows.openGL.common;
+
+import android.opengl.GLES20;
+
+/**
+ * A program whose shaders were submitted to the driver but whose result was not asked for yet.
+ *
+ * Asking for the compile or link status right after the call makes the driver finish that
+ * shader before the next one is even handed over. Submitting all programs first and checking
+ * them on first use lets the driver compile in the background, with
+ * KHR_parallel_shader_compile on several threads, while the application goes on with e.g.
+ * uploads. {@link #isComplete()} tells without waiting whether {@link #get()} would wait.
+ */
+
+public class PendingProgram {
+
+    /**
+     * KHR_parallel_shader_compile, queried with glGetProgramiv. The extension has no Java
+     * constants.
+     */
+    private static final int GL_COMPLETION_STATUS_KHR = 0x91B1;
+
+    private final boolean mParallel;
+    private final ProgramBinaryCache mBinaryCache;
+    private final String mBinaryKey;
+    private int mVertexShaderHandle;
+    private int mFragmentShaderHandle;
+    private int mProgramHandle;
+    private ShaderProgram mProgram;
+
+    /**
+     * A program that is already linked and reflected.
+     */
+    public PendingProgram(ShaderProgram program) {
+        this(false, null, null, 0, 0, 0);
+        mProgram = program;
+    }
+
+    private PendingProgram(boolean parallel, ProgramBinaryCache binaryCache, String binaryKey,
+                           int vertexShaderHandle, int fragmentShaderHandle, int programHandle) {
+        mParallel = parallel;
+        mBinaryCache = binaryCache;
+        mBinaryKey = binaryKey;
+        mVertexShaderHandle = vertexShaderHandle;
+        mFragmentShaderHandle = fragmentShaderHandle;
+        mProgramHandle = programHandle;
+    }
+
+    public static boolean isParallelSupported(GlCapabilities capabilities) {
+        return capabilities.hasExtension("GL_KHR_parallel_shader_compile");
+    }
+
+    /**
+     * Starts compiling and linking without waiting for either. With a binary cache the program
+     * is linked from its binary if there is one, and the binary of a compiled program is
+     * stored once it is linked. Needs the GL thread.
+     *
+     * @param parallel    whether the driver has KHR_parallel_shader_compile
+     * @param binaryCache null to always compile the sources
+     * @param attributes  attributes bound to the locations 0, 1, ...
+     */
+    public static PendingProgram submit(String vertexSource, String fragmentSource, String[] attributes,
+                                        boolean parallel, ProgramBinaryCache binaryCache) {
+        String binaryKey = null;
+        if (binaryCache != null) {
+            binaryKey = ProgramBinaryCache.getKey(vertexSource, fragmentSource, attributes);
+            int programHandle = binaryCache.loadProgram(binaryKey);
+            if (programHandle != 0) {
+                return new PendingProgram(ShaderProgram.reflect(programHandle));
+            }
+        }
+        int vertexShaderHandle = ShaderHelper.submitShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShaderHandle = ShaderHelper.submitShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int programHandle = ShaderHelper.submitProgram(vertexShaderHandle, fragmentShaderHandle, attributes,
+                binaryCache != null);
+        return new PendingProgram(parallel, binaryCache, binaryKey, vertexShaderHandle, fragmentShaderHandle,
+                programHandle);
+    }
+
+    /**
+     * Whether the program is done, {@link #get()} does not wait then. Without
+     * KHR_parallel_shader_compile there is no way to tell, a program counts as done.
+     */
+    public boolean isComplete() {
+        if (mProgram != null || !mParallel) {
+            return true;
+        }
+        final int[] status = new int[1];
+        GLES20.glGetProgramiv(mProgramHandle, GL_COMPLETION_STATUS_KHR, status, 0);
+        return status[0] != 0;
+    }
+
+    /**
+     * The linked program, waits for the driver on the first call. Needs the GL thread.
+     *
+     * @throws RuntimeException if a shader did not compile or the program did not link
+     */
+    public ShaderProgram get() {
+        if (mProgram == null) {
+            // the shader logs tell more than the link log of a program with a broken shader
+            ShaderHelper.checkShader(mVertexShaderHandle);
+            ShaderHelper.checkShader(mFragmentShaderHandle);
+            ShaderHelper.checkProgram(mProgramHandle);
+            // the linked program keeps the code, the shaders are deleted when it is
+            GLES20.glDeleteShader(mVertexShaderHandle);
+            GLES20.glDeleteShader(mFragmentShaderHandle);
+            mVertexShaderHandle = 0;
+            mFragmentShaderHandle = 0;
+            if (mBinaryCache != null) {
+                mBinaryCache.storeProgram(mBinaryKey, mProgramHandle);
+            }
+            mProgram = ShaderProgram.reflect(mProgramHandle);
+        }
+        return mProgram;
+    }
+}
@@ -0,0 +1,352 @@
+package bertrandt.shadows.openGL.common;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps linked programs on disk, so that later starts load the driver's binary instead of
+ * compiling the sources again.
+ *
+ * Binaries only fit the driver that produced them. Entries live in a directory per driver,
+ * named by a hash of the vendor, renderer and version strings, and within it a file per
+ * program, named by a hash of the sources and attribute bindings. A driver update therefore
+ * never meets an old binary, the directories of other drivers are deleted on the next store.
+ * A binary the driver still rejects, or a damaged file, is deleted and the program compiled
+ * from its sources.
+ *
+ * File layout: magic, version, binary format, binary length, CRC32 of the binary, binary.
+ */
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final int MAGIC = 0x4D475250; // "PRGM"
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".program";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes binaries off the GL thread, one at a time for all caches.
+     */
+    private static final Executor WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A program binary as returned by the driver.
+     */
+    public static class Binary {
+        private final int mFormat;
+        private final byte[] mData;
+
+        public Binary(int format, byte[] data) {
+            mFormat = format;
+            mData = data;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+    }
+
+    private final File mRootDirectory;
+    private final File mDirectory;
+
+    private int mLoaded;
+    private int mCompiled;
+    private int mRejected;
+
+    /**
+     * @param directory root of the cache, it may hold entries of other drivers
+     */
+    public ProgramBinaryCache(File directory, GlCapabilities capabilities) {
+        mRootDirectory = directory;
+        mDirectory = new File(directory, hash(capabilities.getVendor(), capabilities.getRenderer(),
+                capabilities.getVersion()).substring(0, 16));
+    }
+
+    /**
+     * OES_get_program_binary has no Java binding, only the OpenGL ES 3.0 functions are used.
+     */
+    public static boolean isSupported(GlCapabilities capabilities) {
+        return capabilities.isEs3();
+    }
+
+    /**
+     * Name of the entry of a program, see {@link PendingProgram#submit}.
+     */
+    public static String getKey(String vertexSource, String fragmentSource, String[] attributes) {
+        String[] parts = new String[2 + (attributes != null ? attributes.length : 0)];
+        parts[0] = vertexSource;
+        parts[1] = fragmentSource;
+        if (attributes != null) {
+            System.arraycopy(attributes, 0, parts, 2, attributes.length);
+        }
+        return hash(parts);
+    }
+
+    public File getFile(String key) {
+        return new File(mDirectory, key + EXTENSION);
+    }
+
+    /**
+     * @return the binary or null if there is no valid entry, an invalid one is deleted
+     */
+    public Binary load(String key) throws IOException {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        Binary binary = null;
+        try {
+            if (input.readInt() == MAGIC && input.readInt() == VERSION) {
+                int format = input.readInt();
+                int length = input.readInt();
+                long checksum = input.readInt() & 0xFFFFFFFFL;
+                if (length > 0 && length <= file.length()) {
+                    byte[] data = new byte[length];
+                    input.readFully(data);
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    if (crc.getValue() == checksum && input.read() < 0) {
+                        binary = new Binary(format, data);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // a truncated file, not different from any other invalid entry
+        } finally {
+            input.close();
+        }
+        if (binary == null) {
+            file.delete();
+        }
+        return binary;
+    }
+
+    /**
+     * Writes a binary under a temporary name and renames it when complete, an interrupted
+     * write never leaves a broken entry behind.
+     */
+    public void store(String key, Binary binary) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create program cache directory " + mDirectory);
+        }
+        byte[] data = binary.getData();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        File file = getFile(key);
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(temporary));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(binary.getFormat());
+            output.writeInt(data.length);
+            output.writeInt((int) crc.getValue());
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not move program cache file to " + file);
+        }
+        deleteOtherDrivers();
+    }
+
+    public void delete(String key) {
+        getFile(key).delete();
+    }
+
+    /**
+     * Links a program from its stored binary. Needs the GL thread.
+     *
+     * @return the linked program or 0 if there is no entry or the driver rejected it, the
+     * program has to be compiled from its sources then
+     */
+    public int loadProgram(String key) {
+        Binary binary = null;
+        try {
+            binary = load(key);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read program binary " + key, e);
+        }
+        if (binary == null) {
+            return 0;
+        }
+        int programHandle = linkBinary(binary);
+        if (programHandle == 0) {
+            // e.g. a driver update that kept its version string
+            Log.w(TAG, "Program binary " + key + " was rejected, compiling the sources");
+            mRejected++;
+            delete(key);
+            return 0;
+        }
+        mLoaded++;
+        return programHandle;
+    }
+
+    /**
+     * Stores the binary of a program that was compiled from its sources and linked with the
+     * retrievable hint, see {@link ShaderHelper#submitProgram}. Needs the GL thread to retrieve
+     * the binary, the file is written on a background thread.
+     */
+    public void storeProgram(final String key, int programHandle) {
+        mCompiled++;
+        final Binary binary = retrieveBinary(programHandle);
+        if (binary == null) {
+            return;
+        }
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(key, binary);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write program binary " + key, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Programs loaded from binaries since the cache was created.
+     */
+    public int getLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Programs compiled from their sources since the cache was created.
+     */
+    public int getCompiled() {
+        return mCompiled;
+    }
+
+    /**
+     * Binaries the driver did not accept since the cache was created.
+     */
+    public int getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * @return the linked program or 0 if the driver rejected the binary
+     */
+    private static int linkBinary(Binary binary) {
+        byte[] data = binary.getData();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+        buffer.put(data).position(0);
+
+        int programHandle = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(programHandle, binary.getFormat(), buffer, data.length);
+        // an unknown format raises GL_INVALID_ENUM, the link status tells the same
+        GLES20.glGetError();
+        final int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] == 0) {
+            GLES20.glDeleteProgram(programHandle);
+            return 0;
+        }
+        return programHandle;
+    }
+
+    /**
+     * @return the binary of a linked program or null if the driver has none
+     */
+    private static Binary retrieveBinary(int programHandle) {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(programHandle, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        final int[] format = new int[1];
+        GLES30.glGetProgramBinary(programHandle, length[0], length, 0, format, 0, buffer);
+        if (length[0] <= 0) {
+            return null;
+        }
+        byte[] data = new byte[length[0]];
+        buffer.position(0);
+        buffer.get(data);
+        return new Binary(format[0], data);
+    }
+
+    /**
+     * Removes the entries of all other drivers, their binaries would be rejected anyway.
+     */
+    private void deleteOtherDrivers() {
+        File[] directories = mRootDirectory.listFiles();
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            if (directory.isDirectory() && !directory.equals(mDirectory)) {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * SHA-1 of the parts as hex, the parts are separated so that moving text from one part to
+     * the next changes the hash.
+     */
+    private static String hash(String... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (String part : parts) {
+            digest.update(part.getBytes(UTF_8));
+            digest.update((byte) 0);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte value : digest.digest()) {
+            builder.append(Character.forDigit((value >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(value & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
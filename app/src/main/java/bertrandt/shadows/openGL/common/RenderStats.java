@@ -0,0 +1,177 @@
+package bertrandt.shadows.openGL.common;
+
+/**
+ * CPU time the render thread spends per pass, averaged over a fixed number of frames.
+ *
+ * Only the time to issue the GL calls is measured, the GPU works asynchronously. A pass is
+ * timed with {@link #begin(int)} and {@link #end(int)}, {@link #endFrame()} completes the frame.
+ * Draw calls report the triangles they submit with {@link #addTriangles(int, int)}, the
+ * {@link GlStateCache} reports issued and skipped state changes with {@link #addStateCalls(int, int)}.
+ * Culling of a pass is timed with {@link #beginCulling(int)} and {@link #endCulling(int, int, int)}.
+ */
+
+public class RenderStats {
+
+    public static final int PASS_SHADOW_MAP = 0;
+    public static final int PASS_SCENE = 1;
+    public static final int PASS_COUNT = 2;
+
+    private final Clock mClock;
+    private final int mInterval;
+
+    private final long[] mPassStart = new long[PASS_COUNT];
+    private final long[] mPassNanos = new long[PASS_COUNT];
+    private final long[] mAveragePassNanos = new long[PASS_COUNT];
+    private final long[] mPassTriangles = new long[PASS_COUNT];
+    private final long[] mAveragePassTriangles = new long[PASS_COUNT];
+    private final long[] mCullStart = new long[PASS_COUNT];
+    private final long[] mCullNanos = new long[PASS_COUNT];
+    private final long[] mAverageCullNanos = new long[PASS_COUNT];
+    private final long[] mVisibleObjects = new long[PASS_COUNT];
+    private final long[] mAverageVisibleObjects = new long[PASS_COUNT];
+    private final long[] mCulledObjects = new long[PASS_COUNT];
+    private final long[] mAverageCulledObjects = new long[PASS_COUNT];
+    private long mIssuedStateCalls;
+    private long mElidedStateCalls;
+    private long mAverageIssuedStateCalls;
+    private long mAverageElidedStateCalls;
+    private int mShadowCacheUpdates;
+    private int mLastShadowCacheUpdates;
+    private int mFrames;
+
+    public RenderStats(Clock clock, int interval) {
+        mClock = clock;
+        mInterval = interval;
+    }
+
+    public void begin(int pass) {
+        mPassStart[pass] = mClock.nanoTime();
+    }
+
+    public void end(int pass) {
+        mPassNanos[pass] += mClock.nanoTime() - mPassStart[pass];
+    }
+
+    public void addTriangles(int pass, int triangles) {
+        mPassTriangles[pass] += triangles;
+    }
+
+    public void beginCulling(int pass) {
+        mCullStart[pass] = mClock.nanoTime();
+    }
+
+    /**
+     * @param visible objects the pass draws
+     * @param culled  objects the pass skips
+     */
+    public void endCulling(int pass, int visible, int culled) {
+        mCullNanos[pass] += mClock.nanoTime() - mCullStart[pass];
+        mVisibleObjects[pass] += visible;
+        mCulledObjects[pass] += culled;
+    }
+
+    /**
+     * Counts a frame that had to render the cached shadow map of the static casters again.
+     */
+    public void addShadowCacheUpdate() {
+        mShadowCacheUpdates++;
+    }
+
+    public void addStateCalls(int issued, int elided) {
+        mIssuedStateCalls += issued;
+        mElidedStateCalls += elided;
+    }
+
+    /**
+     * @return true if this frame completed an interval and new averages are available
+     */
+    public boolean endFrame() {
+        mFrames++;
+        if (mFrames < mInterval) {
+            return false;
+        }
+        for (int pass = 0; pass < PASS_COUNT; pass++) {
+            mAveragePassNanos[pass] = mPassNanos[pass] / mFrames;
+            mPassNanos[pass] = 0;
+            mAveragePassTriangles[pass] = mPassTriangles[pass] / mFrames;
+            mPassTriangles[pass] = 0;
+            mAverageCullNanos[pass] = mCullNanos[pass] / mFrames;
+            mCullNanos[pass] = 0;
+            mAverageVisibleObjects[pass] = mVisibleObjects[pass] / mFrames;
+            mVisibleObjects[pass] = 0;
+            mAverageCulledObjects[pass] = mCulledObjects[pass] / mFrames;
+            mCulledObjects[pass] = 0;
+        }
+        mAverageIssuedStateCalls = mIssuedStateCalls / mFrames;
+        mIssuedStateCalls = 0;
+        mAverageElidedStateCalls = mElidedStateCalls / mFrames;
+        mElidedStateCalls = 0;
+        mLastShadowCacheUpdates = mShadowCacheUpdates;
+        mShadowCacheUpdates = 0;
+        mFrames = 0;
+        return true;
+    }
+
+    /**
+     * Average CPU time per frame of the pass over the last completed interval.
+     */
+    public long getAveragePassNanos(int pass) {
+        return mAveragePassNanos[pass];
+    }
+
+    /**
+     * Average triangles per frame the pass submitted over the last completed interval.
+     */
+    public long getAveragePassTriangles(int pass) {
+        return mAveragePassTriangles[pass];
+    }
+
+    /**
+     * Average CPU time per frame spent culling objects of the pass, part of the pass time.
+     */
+    public long getAverageCullNanos(int pass) {
+        return mAverageCullNanos[pass];
+    }
+
+    public long getAverageVisibleObjects(int pass) {
+        return mAverageVisibleObjects[pass];
+    }
+
+    public long getAverageCulledObjects(int pass) {
+        return mAverageCulledObjects[pass];
+    }
+
+    /**
+     * Average state changes and uniform uploads per frame that were passed on to GL.
+     */
+    public long getAverageIssuedStateCalls() {
+        return mAverageIssuedStateCalls;
+    }
+
+    /**
+     * Average state changes and uniform uploads per frame that were skipped as redundant.
+     */
+    public long getAverageElidedStateCalls() {
+        return mAverageElidedStateCalls;
+    }
+
+    /**
+     * Frames of the last completed interval that rendered the static shadow map.
+     */
+    public int getShadowCacheUpdates() {
+        return mLastShadowCacheUpdates;
+    }
+
+    @Override
+    public String toString() {
+        return "shadow map " + passToString(PASS_SHADOW_MAP) + ", scene " + passToString(PASS_SCENE) + ", "
+                + "state calls " + mAverageIssuedStateCalls + " issued " + mAverageElidedStateCalls + " elided, "
+                + "static shadows rendered in " + mLastShadowCacheUpdates + " of " + mInterval + " frames";
+    }
+
+    private String passToString(int pass) {
+        return mAveragePassNanos[pass] / 1000 + " us " + mAveragePassTriangles[pass] + " triangles "
+                + mAverageVisibleObjects[pass] + " objects " + mAverageCulledObjects[pass] + " culled in "
+                + mAverageCullNanos[pass] / 1000 + " us";
+    }
+}
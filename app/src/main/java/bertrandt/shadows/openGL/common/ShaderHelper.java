@@ -1,6 +1,9 @@
 package bertrandt.shadows.openGL.common;
 
+import android.annotation.TargetApi;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -18,6 +21,16 @@ public class ShaderHelper {
      * @return An OpenGL handle to the shader.
      */
     public static int compileShader(final int shaderType, final String shaderSource)
+    {
+        return checkShader(submitShader(shaderType, shaderSource));
+    }
+
+    /**
+     * Starts compiling a shader without waiting for the result, see {@link #checkShader}.
+     *
+     * @return An OpenGL handle to the shader, 0 if none could be created.
+     */
+    public static int submitShader(final int shaderType, final String shaderSource)
     {
         int shaderHandle = GLES20.glCreateShader(shaderType);
 
@@ -28,7 +41,20 @@ public class ShaderHelper {
 
             // Compile the shader.
             GLES20.glCompileShader(shaderHandle);
+        }
 
+        return shaderHandle;
+    }
+
+    /**
+     * Waits for a submitted shader and throws if it did not compile.
+     *
+     * @return The OpenGL handle to the shader.
+     */
+    public static int checkShader(int shaderHandle)
+    {
+        if (shaderHandle != 0)
+        {
             // Get the compilation status.
             final int[] compileStatus = new int[1];
             GLES20.glGetShaderiv(shaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
@@ -50,6 +76,38 @@ public class ShaderHelper {
         return shaderHandle;
     }
 
+    /**
+     * Adds a #define for every name to the shader source, after the #version line if there is one.
+     *
+     * @param shaderSource The shader source code.
+     * @param defines Names to define.
+     * @return The shader source code with the defines.
+     */
+    public static String addDefines(final String shaderSource, final String... defines)
+    {
+        if (defines.length == 0)
+        {
+            return shaderSource;
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        for (String define : defines)
+        {
+            builder.append("#define ").append(define).append('\n');
+        }
+
+        int insertAt = 0;
+        if (shaderSource.trim().startsWith("#version"))
+        {
+            insertAt = shaderSource.indexOf('\n', shaderSource.indexOf("#version")) + 1;
+            if (insertAt == 0)
+            {
+                return shaderSource + '\n' + builder;
+            }
+        }
+        return shaderSource.substring(0, insertAt) + builder + shaderSource.substring(insertAt);
+    }
+
     /**
      * Helper function to compile and link a program.
      *
@@ -59,6 +117,29 @@ public class ShaderHelper {
      * @return An OpenGL handle to the program.
      */
     public static int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle, final String[] attributes)
+    {
+        return createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes, false);
+    }
+
+    /**
+     * Same as {@link #createAndLinkProgram(int, int, String[])}, optionally telling the driver
+     * that the binary of the program will be read back. Retrieving binaries needs OpenGL ES 3.0.
+     */
+    public static int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle,
+                                           final String[] attributes, final boolean retrievableBinary)
+    {
+        return checkProgram(submitProgram(vertexShaderHandle, fragmentShaderHandle, attributes, retrievableBinary));
+    }
+
+    /**
+     * Starts linking a program without waiting for the result, see {@link #checkProgram}. The
+     * shaders may still be compiling.
+     *
+     * @return An OpenGL handle to the program, 0 if none could be created.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public static int submitProgram(final int vertexShaderHandle, final int fragmentShaderHandle,
+                                    final String[] attributes, final boolean retrievableBinary)
     {
         int programHandle = GLES20.glCreateProgram();
 
@@ -80,9 +161,27 @@ public class ShaderHelper {
                 }
             }
 
+            if (retrievableBinary)
+            {
+                GLES30.glProgramParameteri(programHandle, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+            }
+
             // Link the two shaders together into a program.
             GLES20.glLinkProgram(programHandle);
+        }
+
+        return programHandle;
+    }
 
+    /**
+     * Waits for a submitted program and throws if it did not link.
+     *
+     * @return The OpenGL handle to the program.
+     */
+    public static int checkProgram(int programHandle)
+    {
+        if (programHandle != 0)
+        {
             // Get the link status.
             final int[] linkStatus = new int[1];
             GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -0,0 +1,249 @@
+package bertrandt.shadows.openGL.common;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A linked program with the locations of its active uniforms and attributes, reflected once
+ * after linking instead of being looked up by name every frame.
+ *
+ * The program also keeps the last value uploaded to every uniform that is not an array, so
+ * that {@link GlStateCache} can skip uploads of unchanged values. Uniform values belong to the
+ * program in GL, they survive switching to another program and back.
+ */
+
+public class ShaderProgram {
+
+    private final int mHandle;
+    private final Map<String, Integer> mUniformLocations = new HashMap<>();
+    private final Map<String, Integer> mAttributeLocations = new HashMap<>();
+
+    /**
+     * Locations of the cached uniforms in ascending order, their first value in
+     * {@link #mValues} and whether a value was uploaded yet.
+     */
+    private final int[] mCachedLocations;
+    private final int[] mValueOffsets;
+    private final int[] mValues;
+    private final boolean[] mValueSet;
+
+    /**
+     * @param uniformNames      names of the active uniforms as reported by GL
+     * @param uniformLocations  location per uniform
+     * @param uniformTypes      GL type per uniform, e.g. GL_FLOAT_MAT4
+     * @param uniformSizes      array size per uniform, 1 for plain uniforms
+     */
+    public ShaderProgram(int handle, String[] uniformNames, int[] uniformLocations, int[] uniformTypes,
+                         int[] uniformSizes, String[] attributeNames, int[] attributeLocations) {
+        mHandle = handle;
+
+        int cached = 0;
+        for (int i = 0; i < uniformNames.length; i++) {
+            String name = uniformNames[i];
+            // arrays are reported as name[0], they can be looked up by either name
+            if (name.endsWith("[0]")) {
+                mUniformLocations.put(name.substring(0, name.length() - 3), uniformLocations[i]);
+            }
+            mUniformLocations.put(name, uniformLocations[i]);
+            if (uniformSizes[i] == 1 && getComponentCount(uniformTypes[i]) > 0 && uniformLocations[i] >= 0) {
+                cached++;
+            }
+        }
+        for (int i = 0; i < attributeNames.length; i++) {
+            mAttributeLocations.put(attributeNames[i], attributeLocations[i]);
+        }
+
+        long[] order = new long[cached];
+        cached = 0;
+        for (int i = 0; i < uniformNames.length; i++) {
+            if (uniformSizes[i] == 1 && getComponentCount(uniformTypes[i]) > 0 && uniformLocations[i] >= 0) {
+                order[cached++] = ((long) uniformLocations[i] << 32) | i;
+            }
+        }
+        Arrays.sort(order);
+
+        mCachedLocations = new int[cached];
+        mValueOffsets = new int[cached + 1];
+        for (int i = 0; i < cached; i++) {
+            int uniform = (int) order[i];
+            mCachedLocations[i] = uniformLocations[uniform];
+            mValueOffsets[i + 1] = mValueOffsets[i] + getComponentCount(uniformTypes[uniform]);
+        }
+        mValues = new int[mValueOffsets[cached]];
+        mValueSet = new boolean[cached];
+    }
+
+    /**
+     * Compiles both shaders and links them, see {@link ShaderHelper}. Needs the GL thread.
+     *
+     * @param attributes attributes bound to the locations 0, 1, ...
+     */
+    public static ShaderProgram create(String vertexShaderSource, String fragmentShaderSource, String[] attributes) {
+        final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShaderSource);
+        final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderSource);
+        return reflect(ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes));
+    }
+
+    /**
+     * Queries the active uniforms and attributes of a linked program. Needs the GL thread.
+     */
+    public static ShaderProgram reflect(int programHandle) {
+        final int[] count = new int[1];
+        final int[] size = new int[1];
+        final int[] type = new int[1];
+
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        String[] uniformNames = new String[count[0]];
+        int[] uniformLocations = new int[count[0]];
+        int[] uniformTypes = new int[count[0]];
+        int[] uniformSizes = new int[count[0]];
+        for (int i = 0; i < uniformNames.length; i++) {
+            uniformNames[i] = GLES20.glGetActiveUniform(programHandle, i, size, 0, type, 0);
+            uniformLocations[i] = GLES20.glGetUniformLocation(programHandle, uniformNames[i]);
+            uniformTypes[i] = type[0];
+            uniformSizes[i] = size[0];
+        }
+
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_ACTIVE_ATTRIBUTES, count, 0);
+        String[] attributeNames = new String[count[0]];
+        int[] attributeLocations = new int[count[0]];
+        for (int i = 0; i < attributeNames.length; i++) {
+            attributeNames[i] = GLES20.glGetActiveAttrib(programHandle, i, size, 0, type, 0);
+            attributeLocations[i] = GLES20.glGetAttribLocation(programHandle, attributeNames[i]);
+        }
+
+        return new ShaderProgram(programHandle, uniformNames, uniformLocations, uniformTypes, uniformSizes,
+                attributeNames, attributeLocations);
+    }
+
+    public int getHandle() {
+        return mHandle;
+    }
+
+    /**
+     * @return the location or -1 if the program has no such active uniform
+     */
+    public int getUniformLocation(String name) {
+        Integer location = mUniformLocations.get(name);
+        return location != null ? location : -1;
+    }
+
+    /**
+     * @return the location or -1 if the program has no such active attribute
+     */
+    public int getAttributeLocation(String name) {
+        Integer location = mAttributeLocations.get(name);
+        return location != null ? location : -1;
+    }
+
+    /**
+     * Stores the value if it differs from the last one of the uniform.
+     *
+     * @return false if the uniform is known to hold the value already
+     */
+    boolean updateUniform(int location, float[] values, int offset, int count) {
+        int uniform = findCachedUniform(location, count);
+        if (uniform < 0) {
+            return true;
+        }
+        int base = mValueOffsets[uniform];
+        boolean changed = !mValueSet[uniform];
+        for (int i = 0; i < count; i++) {
+            int bits = Float.floatToRawIntBits(values[offset + i]);
+            if (mValues[base + i] != bits) {
+                mValues[base + i] = bits;
+                changed = true;
+            }
+        }
+        mValueSet[uniform] = true;
+        return changed;
+    }
+
+    /**
+     * Same as {@link #updateUniform(int, float[], int, int)} for up to three floats.
+     */
+    boolean updateUniform(int location, float x, float y, float z, int count) {
+        int uniform = findCachedUniform(location, count);
+        if (uniform < 0) {
+            return true;
+        }
+        int base = mValueOffsets[uniform];
+        int bitsX = Float.floatToRawIntBits(x);
+        int bitsY = Float.floatToRawIntBits(y);
+        int bitsZ = Float.floatToRawIntBits(z);
+        boolean changed = !mValueSet[uniform] || mValues[base] != bitsX
+                || (count > 1 && mValues[base + 1] != bitsY) || (count > 2 && mValues[base + 2] != bitsZ);
+        mValues[base] = bitsX;
+        if (count > 1) {
+            mValues[base + 1] = bitsY;
+        }
+        if (count > 2) {
+            mValues[base + 2] = bitsZ;
+        }
+        mValueSet[uniform] = true;
+        return changed;
+    }
+
+    /**
+     * Same as {@link #updateUniform(int, float[], int, int)} for an int or sampler uniform.
+     */
+    boolean updateUniform(int location, int value) {
+        int uniform = findCachedUniform(location, 1);
+        if (uniform < 0) {
+            return true;
+        }
+        int base = mValueOffsets[uniform];
+        boolean changed = !mValueSet[uniform] || mValues[base] != value;
+        mValues[base] = value;
+        mValueSet[uniform] = true;
+        return changed;
+    }
+
+    /**
+     * @return the index of the cached uniform or -1 if the location is not cached or has a
+     * different number of components
+     */
+    private int findCachedUniform(int location, int count) {
+        int uniform = Arrays.binarySearch(mCachedLocations, location);
+        if (uniform < 0 || mValueOffsets[uniform + 1] - mValueOffsets[uniform] != count) {
+            return -1;
+        }
+        return uniform;
+    }
+
+    /**
+     * Scalars per uniform of the given type, 0 for types whose values are not cached.
+     */
+    private static int getComponentCount(int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT:
+            case GLES20.GL_INT:
+            case GLES20.GL_BOOL:
+            case GLES20.GL_SAMPLER_2D:
+            case GLES20.GL_SAMPLER_CUBE:
+                return 1;
+            case GLES20.GL_FLOAT_VEC2:
+            case GLES20.GL_INT_VEC2:
+            case GLES20.GL_BOOL_VEC2:
+                return 2;
+            case GLES20.GL_FLOAT_VEC3:
+            case GLES20.GL_INT_VEC3:
+            case GLES20.GL_BOOL_VEC3:
+                return 3;
+            case GLES20.GL_FLOAT_VEC4:
+            case GLES20.GL_INT_VEC4:
+            case GLES20.GL_BOOL_VEC4:
+            case GLES20.GL_FLOAT_MAT2:
+                return 4;
+            case GLES20.GL_FLOAT_MAT3:
+                return 9;
+            case GLES20.GL_FLOAT_MAT4:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package bertrandt.shadows.openGL.common;
+
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shader sources read from raw resources on a background thread.
+ *
+ * Reading starts when the sources are created, e.g. with the renderer before there is a GL
+ * context, so that the GL thread finds them ready when it compiles. The sources do not belong
+ * to a context and are read once, a new surface reuses them.
+ */
+
+public class ShaderSources {
+
+    private final Context mContext;
+    private final Map<Integer, FutureTask<String>> mSources = new HashMap<>();
+
+    public ShaderSources(final Context context, int... resourceIds) {
+        mContext = context;
+        final FutureTask<?>[] tasks = new FutureTask<?>[resourceIds.length];
+        for (int i = 0; i < resourceIds.length; i++) {
+            final int resourceId = resourceIds[i];
+            FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return RawResourceReader.readTextFileFromRawResource(context, resourceId);
+                }
+            });
+            mSources.put(resourceId, task);
+            tasks[i] = task;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (FutureTask<?> task : tasks) {
+                    task.run();
+                }
+            }
+        }, "ShaderSources");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The source of a resource, waits if it was not read yet. Resources that were not named
+     * when the sources were created are read on the calling thread.
+     *
+     * @return the source or null if the resource could not be read
+     */
+    public String get(int resourceId) {
+        FutureTask<String> task = mSources.get(resourceId);
+        if (task == null) {
+            return RawResourceReader.readTextFileFromRawResource(mContext, resourceId);
+        }
+        // a task that was not started yet runs here, one that is running is waited for
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
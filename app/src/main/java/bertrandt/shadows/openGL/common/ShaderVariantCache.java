@@ -0,0 +1,118 @@
+package bertrandt.shadows.openGL.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Programs compiled from the same sources with different #defines, compiled once per set of
+ * defines. Switching between variants, e.g. quality tiers, reuses the linked programs.
+ *
+ * The programs belong to the context they were compiled in, a new context needs a
+ * {@link #clear()}. With a {@link ProgramBinaryCache} set, variants compiled in an earlier
+ * run are loaded from their binaries. {@link #submit} hands a variant to the driver without
+ * waiting for it, submitting all programs before the first {@link #get} lets the driver
+ * compile them side by side.
+ */
+
+public class ShaderVariantCache {
+
+    private static class Key {
+        final String mVertexSource;
+        final String mFragmentSource;
+        final String[] mDefines;
+        final int mHash;
+
+        Key(String vertexSource, String fragmentSource, String[] defines) {
+            mVertexSource = vertexSource;
+            mFragmentSource = fragmentSource;
+            mDefines = defines;
+            mHash = 31 * (31 * vertexSource.hashCode() + fragmentSource.hashCode()) + Arrays.hashCode(defines);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return mHash == key.mHash && Arrays.equals(mDefines, key.mDefines)
+                    && mVertexSource.equals(key.mVertexSource) && mFragmentSource.equals(key.mFragmentSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    private final Map<Key, PendingProgram> mPrograms = new HashMap<>();
+    private int mCompiles;
+    private ProgramBinaryCache mBinaryCache;
+    private boolean mParallelCompile;
+
+    /**
+     * The variant of the sources with the defines added to both shaders, waits for its compile.
+     * Needs the GL thread.
+     *
+     * @param attributes attributes bound to the locations 0, 1, ...
+     * @param defines    in any order, see {@link ShaderHelper#addDefines}
+     */
+    public ShaderProgram get(String vertexSource, String fragmentSource, String[] attributes, String... defines) {
+        return submit(vertexSource, fragmentSource, attributes, defines).get();
+    }
+
+    /**
+     * Same as {@link #get}, but only starts the compile on the first request.
+     */
+    public PendingProgram submit(String vertexSource, String fragmentSource, String[] attributes,
+                                 String... defines) {
+        String[] sorted = defines.clone();
+        Arrays.sort(sorted);
+        Key key = new Key(vertexSource, fragmentSource, sorted);
+        PendingProgram program = mPrograms.get(key);
+        if (program == null) {
+            program = submitCompile(ShaderHelper.addDefines(vertexSource, sorted),
+                    ShaderHelper.addDefines(fragmentSource, sorted), attributes);
+            mPrograms.put(key, program);
+            mCompiles++;
+        }
+        return program;
+    }
+
+    /**
+     * Forgets all programs, e.g. because their context was lost.
+     */
+    public void clear() {
+        mPrograms.clear();
+    }
+
+    /**
+     * Where linked programs are kept across runs, null to always compile the sources.
+     */
+    public void setBinaryCache(ProgramBinaryCache binaryCache) {
+        mBinaryCache = binaryCache;
+    }
+
+    /**
+     * Whether the driver has KHR_parallel_shader_compile, see {@link PendingProgram#isComplete()}.
+     */
+    public void setParallelCompile(boolean parallelCompile) {
+        mParallelCompile = parallelCompile;
+    }
+
+    public ProgramBinaryCache getBinaryCache() {
+        return mBinaryCache;
+    }
+
+    /**
+     * Variants compiled since the cache was created.
+     */
+    public int getCompiles() {
+        return mCompiles;
+    }
+
+    protected PendingProgram submitCompile(String vertexSource, String fragmentSource, String[] attributes) {
+        return PendingProgram.submit(vertexSource, fragmentSource, attributes, mParallelCompile, mBinaryCache);
+    }
+}
@@ -0,0 +1,234 @@
+package bertrandt.shadows.openGL.common;
+
+import bertrandt.shadows.openGL.math.Mat4;
+
+/**
+ * Splits the camera frustum into slices along the view direction and fits an orthographic
+ * light projection to every slice. The slices share one shadow map, each is drawn into its
+ * own tile of the atlas.
+ *
+ * The split distances blend a logarithmic and a uniform distribution, near slices are short
+ * and get the same texels as the long far ones. A slice is enclosed in a sphere, so the size
+ * of its projection does not change when the camera turns, and the projection is moved in
+ * whole texels of its tile. Shadow edges then stay put while the camera moves. The depth
+ * range reaches towards the light up to the end of the scene, casters between the light and
+ * a slice are not clipped.
+ */
+
+public class ShadowCascades {
+
+    public static final int MAX_CASCADES = 4;
+
+    /**
+     * Texels around every tile that belong to no slice, filtering near the edge of a slice
+     * reads no texels of the neighbouring tile.
+     */
+    private static final int TILE_BORDER = 2;
+    /**
+     * Radii are rounded up to this fraction of a unit, small changes of the camera do not
+     * change the size of a projection.
+     */
+    private static final float RADIUS_STEP = 1f / 16f;
+    /**
+     * The depth range of the scene is rounded outwards to whole units, casters that move a
+     * little keep the projections and with them e.g. a cached map of the static casters.
+     */
+    private static final float DEPTH_STEP = 1f;
+
+    private final int mCount;
+    private final float mLambda;
+    private final float[] mSplits;
+    private final Mat4[] mProjections;
+    private final Mat4[] mLookupBiases;
+
+    private float mLeft = -1f;
+    private float mRight = 1f;
+    private float mBottom = -1f;
+    private float mTop = 1f;
+    private float mNear = 1f;
+    private float mFar = 100f;
+
+    private int mColumns;
+    private int mTileSize;
+    private int mAtlasSize;
+
+    private final Mat4 mCameraToLight = new Mat4();
+    private final float[] mCorners = new float[8 * 3];
+
+    /**
+     * @param count  number of slices, 1 to {@link #MAX_CASCADES}
+     * @param lambda 0 for uniform, 1 for logarithmic split distances
+     */
+    public ShadowCascades(int count, float lambda) {
+        if (count < 1 || count > MAX_CASCADES) {
+            throw new IllegalArgumentException("cascades " + count);
+        }
+        mCount = count;
+        mLambda = lambda;
+        mSplits = new float[count];
+        mProjections = new Mat4[count];
+        mLookupBiases = new Mat4[count];
+        for (int i = 0; i < count; i++) {
+            mProjections[i] = new Mat4();
+            mLookupBiases[i] = new Mat4();
+        }
+        updateSplits();
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * The perspective frustum of the camera, like {@link Mat4#setFrustum}, with far at the
+     * distance up to which shadows are drawn.
+     */
+    public void setCameraFrustum(float left, float right, float bottom, float top, float near, float far) {
+        mLeft = left;
+        mRight = right;
+        mBottom = bottom;
+        mTop = top;
+        mNear = near;
+        mFar = far;
+        updateSplits();
+    }
+
+    /**
+     * Fits the projections to the slices of the camera.
+     *
+     * @param cameraView world to camera space, a rigid transform
+     * @param lightView  world to light space of a directional light looking along -z
+     * @param sceneBox   world space bounds of all casters, min x, y, z then max x, y, z
+     * @param atlasSize  width and height of the shadow map that holds all tiles
+     */
+    public void update(Mat4 cameraView, Mat4 lightView, float[] sceneBox, int atlasSize) {
+        mColumns = mCount > 1 ? 2 : 1;
+        int rows = (mCount + mColumns - 1) / mColumns;
+        mTileSize = atlasSize / Math.max(mColumns, rows);
+        mAtlasSize = atlasSize;
+
+        // the scene along the light direction, z grows towards the light
+        float sceneNear = -Float.MAX_VALUE;
+        float sceneFar = Float.MAX_VALUE;
+        float[] l = lightView.getValues();
+        for (int corner = 0; corner < 8; corner++) {
+            float x = sceneBox[(corner & 1) != 0 ? 3 : 0];
+            float y = sceneBox[(corner & 2) != 0 ? 4 : 1];
+            float z = sceneBox[(corner & 4) != 0 ? 5 : 2];
+            float lightZ = l[2] * x + l[6] * y + l[10] * z + l[14];
+            sceneNear = Math.max(sceneNear, lightZ);
+            sceneFar = Math.min(sceneFar, lightZ);
+        }
+        sceneNear = (float) Math.ceil(sceneNear / DEPTH_STEP) * DEPTH_STEP;
+        sceneFar = (float) Math.floor(sceneFar / DEPTH_STEP) * DEPTH_STEP;
+
+        mCameraToLight.invertRigid(cameraView);
+        mCameraToLight.multiply(lightView, mCameraToLight);
+        float sliceNear = mNear;
+        for (int i = 0; i < mCount; i++) {
+            fit(i, sliceNear, mSplits[i], sceneNear, sceneFar);
+            sliceNear = mSplits[i];
+        }
+    }
+
+    /**
+     * Distance from the camera where each slice ends, for the shader to pick the slice of a
+     * fragment.
+     */
+    public float[] getSplits() {
+        return mSplits;
+    }
+
+    /**
+     * Light space to clip space of a slice.
+     */
+    public Mat4 getProjection(int cascade) {
+        return mProjections[cascade];
+    }
+
+    /**
+     * Clip space of a slice to texture coordinates and depth in its tile of the atlas.
+     */
+    public Mat4 getLookupBias(int cascade) {
+        return mLookupBiases[cascade];
+    }
+
+    public int getTileX(int cascade) {
+        return (cascade % mColumns) * mTileSize;
+    }
+
+    public int getTileY(int cascade) {
+        return (cascade / mColumns) * mTileSize;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    private void updateSplits() {
+        for (int i = 0; i < mCount; i++) {
+            float part = (i + 1) / (float) mCount;
+            float logarithmic = mNear * (float) Math.pow(mFar / mNear, part);
+            float uniform = mNear + (mFar - mNear) * part;
+            mSplits[i] = mLambda * logarithmic + (1f - mLambda) * uniform;
+        }
+        // rounding must not leave a gap behind the last slice
+        mSplits[mCount - 1] = mFar;
+    }
+
+    private void fit(int cascade, float sliceNear, float sliceFar, float sceneNear, float sceneFar) {
+        // the corners of the slice in light space
+        float[] m = mCameraToLight.getValues();
+        float centerX = 0f;
+        float centerY = 0f;
+        float centerZ = 0f;
+        for (int corner = 0; corner < 8; corner++) {
+            float distance = (corner & 4) != 0 ? sliceFar : sliceNear;
+            float scale = distance / mNear;
+            float x = ((corner & 1) != 0 ? mRight : mLeft) * scale;
+            float y = ((corner & 2) != 0 ? mTop : mBottom) * scale;
+            float z = -distance;
+            int offset = corner * 3;
+            mCorners[offset] = m[0] * x + m[4] * y + m[8] * z + m[12];
+            mCorners[offset + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+            mCorners[offset + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+            centerX += mCorners[offset];
+            centerY += mCorners[offset + 1];
+            centerZ += mCorners[offset + 2];
+        }
+        centerX /= 8f;
+        centerY /= 8f;
+        centerZ /= 8f;
+        float radiusSquared = 0f;
+        for (int offset = 0; offset < mCorners.length; offset += 3) {
+            float dx = mCorners[offset] - centerX;
+            float dy = mCorners[offset + 1] - centerY;
+            float dz = mCorners[offset + 2] - centerZ;
+            radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy + dz * dz);
+        }
+        float radius = (float) Math.ceil(Math.sqrt(radiusSquared) / RADIUS_STEP) * RADIUS_STEP;
+
+        // the sphere fills the tile inside its border, the center moves in whole texels
+        float texel = 2f * radius / (mTileSize - 2 * TILE_BORDER);
+        float extent = radius + TILE_BORDER * texel;
+        centerX = (float) Math.floor(centerX / texel) * texel;
+        centerY = (float) Math.floor(centerY / texel) * texel;
+
+        float front = Math.max(centerZ + radius, sceneNear);
+        float back = Math.max(centerZ - radius, sceneFar);
+        if (back >= front) {
+            // the slice lies outside of the scene, nothing there casts or receives
+            back = front - 1f;
+        }
+        mProjections[cascade].setOrtho(centerX - extent, centerX + extent, centerY - extent, centerY + extent,
+                -front, -back);
+
+        // [-1, 1] to [0, 1], then into the tile
+        float scale = 0.5f * mTileSize / mAtlasSize;
+        mLookupBiases[cascade].setRows(
+                scale, 0f, 0f, (getTileX(cascade) + 0.5f * mTileSize) / mAtlasSize,
+                0f, scale, 0f, (getTileY(cascade) + 0.5f * mTileSize) / mAtlasSize,
+                0f, 0f, 0.5f, 0.5f,
+                0f, 0f, 0f, 1f);
+    }
+}
@@ -0,0 +1,42 @@
+package bertrandt.shadows.openGL.common;
+
+/**
+ * Quality tiers of the shadow filter. Every tier is a variant of the scene shader, selected by
+ * the define of its kernel.
+ */
+
+public final class ShadowQuality {
+
+    /**
+     * A single comparison, hard edges.
+     */
+    public static final int PCF_1 = 0;
+    /**
+     * The four texels around the lookup, weighted like bilinear filtering.
+     */
+    public static final int PCF_4 = 1;
+    public static final int PCF_9 = 2;
+    public static final int PCF_16 = 3;
+    /**
+     * Eight taps of a Poisson disk, rotated per pixel, which turns banding into noise.
+     */
+    public static final int POISSON = 4;
+
+    public static final int COUNT = 5;
+
+    private static final String[] DEFINES = {"PCF_1", "PCF_4", "PCF_9", "PCF_16", "PCF_POISSON"};
+
+    private ShadowQuality() {
+    }
+
+    public static String getDefine(int quality) {
+        return DEFINES[quality];
+    }
+
+    /**
+     * Shadow map comparisons per fragment.
+     */
+    public static int getTaps(int quality) {
+        return quality == POISSON ? 8 : (quality + 1) * (quality + 1);
+    }
+}
@@ -0,0 +1,113 @@
+package bertrandt.shadows.openGL.common;
+
+/**
+ * Size of the square, power of two shadow map, either fixed or adapted to a time budget.
+ *
+ * In adaptive mode {@link #update(long)} gets the average shadow pass time of an interval.
+ * The size halves when the pass exceeds the budget, and doubles when four times the cost,
+ * the cost of four times the texels, still leaves headroom. Both need several intervals in
+ * a row with the same verdict, and measurements restart after every change, so the size
+ * does not oscillate around the budget.
+ */
+
+public class ShadowResolution {
+
+    public static final int MIN_SIZE = 128;
+    public static final int MAX_SIZE = 4096;
+
+    /**
+     * Share of the budget a doubled map may be expected to use.
+     */
+    private static final float GROW_HEADROOM = 0.8f;
+    /**
+     * Intervals in a row that have to agree before the size changes.
+     */
+    private static final int CONFIRMATIONS = 2;
+
+    private int mSize;
+    private boolean mAdaptive;
+    private long mBudgetNanos;
+    private int mMinSize = MIN_SIZE;
+    private int mMaxSize = MAX_SIZE;
+    private int mShrinkVotes;
+    private int mGrowVotes;
+
+    public ShadowResolution(int size) {
+        mSize = toPowerOfTwo(size);
+    }
+
+    /**
+     * The nearest power of two within {@link #MIN_SIZE} and {@link #MAX_SIZE}.
+     */
+    public static int toPowerOfTwo(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        if (size >= MAX_SIZE) {
+            return MAX_SIZE;
+        }
+        int lower = Integer.highestOneBit(size);
+        return size - lower < lower * 2 - size ? lower : lower * 2;
+    }
+
+    /**
+     * Uses a fixed size, rounded to a power of two.
+     */
+    public void setSize(int size) {
+        mAdaptive = false;
+        mSize = toPowerOfTwo(size);
+    }
+
+    /**
+     * Adapts the size to the time the shadow pass takes, starting from the current size.
+     */
+    public void setAdaptive(long budgetNanos, int minSize, int maxSize) {
+        mAdaptive = true;
+        mBudgetNanos = budgetNanos;
+        mMinSize = toPowerOfTwo(minSize);
+        mMaxSize = Math.max(mMinSize, toPowerOfTwo(maxSize));
+        mSize = Math.max(mMinSize, Math.min(mMaxSize, mSize));
+        resetVotes();
+    }
+
+    public boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @param passNanos average time of the shadow pass over the last interval
+     * @return true if the size changed
+     */
+    public boolean update(long passNanos) {
+        if (!mAdaptive) {
+            return false;
+        }
+        if (passNanos > mBudgetNanos && mSize > mMinSize) {
+            mGrowVotes = 0;
+            if (++mShrinkVotes >= CONFIRMATIONS) {
+                mSize /= 2;
+                resetVotes();
+                return true;
+            }
+        } else if (passNanos * 4 < mBudgetNanos * GROW_HEADROOM && mSize < mMaxSize) {
+            mShrinkVotes = 0;
+            if (++mGrowVotes >= CONFIRMATIONS) {
+                mSize *= 2;
+                resetVotes();
+                return true;
+            }
+        } else {
+            resetVotes();
+        }
+        return false;
+    }
+
+    private void resetVotes() {
+        mShrinkVotes = 0;
+        mGrowVotes = 0;
+    }
+}
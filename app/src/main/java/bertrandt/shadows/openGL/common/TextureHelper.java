@@ -12,6 +12,26 @@ import android.opengl.GLUtils;
 
 public class TextureHelper {
     public static int loadTexture(final Context context, final int resourceId)
+    {
+        return loadTexture(decodeBitmap(context, resourceId));
+    }
+
+    /**
+     * Decodes a bitmap resource without touching GL, so it can run on a background thread.
+     */
+    public static Bitmap decodeBitmap(final Context context, final int resourceId)
+    {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;	// No pre-scaling
+
+        // Read in the resource
+        return BitmapFactory.decodeResource(context.getResources(), resourceId, options);
+    }
+
+    /**
+     * Uploads a decoded bitmap into a new texture and recycles the bitmap. Needs the GL thread.
+     */
+    public static int loadTexture(final Bitmap bitmap)
     {
         final int[] textureHandle = new int[1];
 
@@ -22,12 +42,6 @@ public class TextureHelper {
             throw new RuntimeException("Error generating texture name.");
         }
 
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inScaled = false;	// No pre-scaling
-
-        // Read in the resource
-        final Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), resourceId, options);
-
         // Bind to the texture in OpenGL
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
 
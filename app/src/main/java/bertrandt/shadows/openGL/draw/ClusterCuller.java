@@ -0,0 +1,130 @@
+package bertrandt.shadows.openGL.draw;
+
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.common.Frustum;
+import bertrandt.shadows.openGL.importer.Meshlets;
+
+/**
+ * Culls the clusters of a mesh on the CPU and collects the index ranges of the rest.
+ *
+ * A cluster is dropped if its bounding sphere is outside the frustum or if its normal cone
+ * shows that all of its triangles face the culled side. The cone is tested against the
+ * viewpoint for perspective projections and against the view direction for orthographic ones.
+ * Clusters that survive and lie next to each other in the index buffer are merged into one
+ * range, so that runs of visible clusters cost a single draw call. Nothing is allocated per call
+ * once the range array has grown.
+ */
+
+public class ClusterCuller {
+
+    private final Frustum mFrustum = new Frustum();
+
+    /**
+     * First index and index count per range.
+     */
+    private int[] mRanges = new int[64];
+    private int mRangeCount;
+    private int mVisibleClusters;
+    private int mVisibleTriangles;
+
+    /**
+     * @param modelViewProjection column major matrix from object to clip space
+     * @param eyeX                viewpoint in object space
+     * @param cullFront           true if the pass culls front faces, e.g. a shadow map pass
+     * @return the number of index ranges to draw
+     */
+    public int cull(Meshlets meshlets, float[] modelViewProjection, float eyeX, float eyeY, float eyeZ,
+                    boolean cullFront) {
+        return cull(meshlets, modelViewProjection, eyeX, eyeY, eyeZ, false, cullFront);
+    }
+
+    /**
+     * Same as {@link #cull} for an orthographic projection, all clusters are seen from the same
+     * direction.
+     *
+     * @param directionX normalized view direction in object space, pointing away from the camera
+     */
+    public int cullOrthographic(Meshlets meshlets, float[] modelViewProjection, float directionX,
+                                float directionY, float directionZ, boolean cullFront) {
+        return cull(meshlets, modelViewProjection, directionX, directionY, directionZ, true, cullFront);
+    }
+
+    /**
+     * @param viewX the eye, or the view direction if orthographic
+     */
+    private int cull(Meshlets meshlets, float[] modelViewProjection, float viewX, float viewY, float viewZ,
+                     boolean orthographic, boolean cullFront) {
+        mFrustum.set(modelViewProjection);
+        mRangeCount = 0;
+        mVisibleClusters = 0;
+        mVisibleTriangles = 0;
+        float[] bounds = meshlets.getBounds();
+        float facing = cullFront ? -1f : 1f;
+
+        for (int meshlet = 0; meshlet < meshlets.getCount(); meshlet++) {
+            int base = meshlet * Meshlets.BOUNDS_SIZE;
+            float x = bounds[base];
+            float y = bounds[base + 1];
+            float z = bounds[base + 2];
+            float radius = bounds[base + 3];
+            if (!mFrustum.intersectsSphere(x, y, z, radius)) {
+                continue;
+            }
+            float cutoff = bounds[base + 7];
+            if (cutoff < 1f) {
+                float toX = viewX;
+                float toY = viewY;
+                float toZ = viewZ;
+                float limit = cutoff;
+                if (!orthographic) {
+                    toX = x - viewX;
+                    toY = y - viewY;
+                    toZ = z - viewZ;
+                    limit = cutoff * (float) Math.sqrt(toX * toX + toY * toY + toZ * toZ) + radius;
+                }
+                float dot = facing * (toX * bounds[base + 4] + toY * bounds[base + 5] + toZ * bounds[base + 6]);
+                if (dot >= limit) {
+                    // the whole sphere sees only the culled side of every triangle
+                    continue;
+                }
+            }
+
+            int offset = meshlets.getIndexOffset(meshlet);
+            int count = meshlets.getIndexCount(meshlet);
+            mVisibleClusters++;
+            mVisibleTriangles += count / 3;
+            if (mRangeCount > 0 && mRanges[mRangeCount * 2 - 2] + mRanges[mRangeCount * 2 - 1] == offset) {
+                mRanges[mRangeCount * 2 - 1] += count;
+            } else {
+                if (mRangeCount * 2 == mRanges.length) {
+                    mRanges = Arrays.copyOf(mRanges, mRanges.length * 2);
+                }
+                mRanges[mRangeCount * 2] = offset;
+                mRanges[mRangeCount * 2 + 1] = count;
+                mRangeCount++;
+            }
+        }
+        return mRangeCount;
+    }
+
+    /**
+     * First index and index count of every range of the last {@link #cull} call, only the first
+     * {@link #getRangeCount()} pairs are valid.
+     */
+    public int[] getRanges() {
+        return mRanges;
+    }
+
+    public int getRangeCount() {
+        return mRangeCount;
+    }
+
+    public int getVisibleClusters() {
+        return mVisibleClusters;
+    }
+
+    public int getVisibleTriangles() {
+        return mVisibleTriangles;
+    }
+}
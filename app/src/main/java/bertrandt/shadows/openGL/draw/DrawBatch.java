@@ -0,0 +1,130 @@
+package bertrandt.shadows.openGL.draw;
+
+import bertrandt.shadows.openGL.common.GlCapabilities;
+import bertrandt.shadows.openGL.importer.MeshBuffers;
+import bertrandt.shadows.openGL.importer.MeshData;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.importer.PositionWelder;
+import bertrandt.shadows.openGL.importer.StaticBatcher;
+import bertrandt.shadows.openGL.importer.VertexQuantizer;
+import bertrandt.shadows.openGL.loader.AssetLoader;
+import bertrandt.shadows.openGL.loader.LoadTask;
+import bertrandt.shadows.openGL.loader.Upload;
+
+/**
+ * Draws a batch of merged static meshes, see {@link StaticBatcher}. The vertices are in world
+ * space already, the node of a batch keeps the identity transform.
+ */
+
+public class DrawBatch implements Renderable {
+
+    private GpuMesh mGpuMesh;
+    /**
+     * Positions welded across normal and texel seams, drawn by the depth passes.
+     */
+    private GpuMesh mDepthMesh;
+    /**
+     * The mesh of the last {@link #setDraw} call, drawn by the following draw calls.
+     */
+    private GpuMesh mBoundMesh;
+    private final float[] mBounds;
+    private final float[] mBoundingSphere;
+
+    private volatile boolean initialised = false;
+
+    /**
+     * Packs the batch on the loader's background thread, the batch is drawn once its upload ran.
+     */
+    public DrawBatch(final StaticBatcher.Batch batch, AssetLoader assetLoader, final GlCapabilities capabilities,
+                     final boolean compactVertices) {
+        final MeshData meshData = batch.getMeshData();
+        mBounds = meshData.getBounds();
+        mBoundingSphere = meshData.getBoundingSphere();
+
+        assetLoader.submit(new LoadTask() {
+            @Override
+            public Upload load() {
+                final MeshBuffers meshBuffers = compactVertices ? VertexQuantizer.quantize(meshData)
+                        : MeshBuffers.fromMeshData(meshData);
+                MeshData positions = PositionWelder.weld(meshData);
+                final MeshBuffers depthBuffers = compactVertices
+                        ? VertexQuantizer.quantizePositions(positions, meshBuffers.getBounds())
+                        : MeshBuffers.fromPositions(positions, meshBuffers.getBounds());
+                GpuMesh.checkSupported(meshBuffers, capabilities);
+                GpuMesh.checkSupported(depthBuffers, capabilities);
+                return new Upload() {
+                    @Override
+                    public long getByteSize() {
+                        return meshBuffers.getByteSize() + depthBuffers.getByteSize();
+                    }
+
+                    @Override
+                    public void upload() {
+                        mGpuMesh = new GpuMesh(meshBuffers, capabilities);
+                        mDepthMesh = new GpuMesh(depthBuffers, capabilities);
+                        initialised = true;
+                    }
+                };
+            }
+        });
+    }
+
+    @Override
+    public void setDraw(int positionAttribute, int normalAttribute,
+                        int texelAttribute, int textureUniform, boolean onlyPosition) {
+        if (onlyPosition) {
+            mBoundMesh = mDepthMesh;
+            mDepthMesh.bind(positionAttribute, -1, -1);
+        } else {
+            mBoundMesh = mGpuMesh;
+            mGpuMesh.bind(positionAttribute, normalAttribute, texelAttribute);
+        }
+    }
+
+    @Override
+    public void draw(int lod) {
+        mBoundMesh.draw(lod);
+        mBoundMesh.unbind();
+    }
+
+    @Override
+    public void draw(ClusterCuller culler) {
+        mBoundMesh.drawRanges(culler.getRanges(), culler.getRangeCount());
+        mBoundMesh.unbind();
+    }
+
+    @Override
+    public boolean getInitialised() {
+        return initialised;
+    }
+
+    @Override
+    public int getTriangleCount(int lod) {
+        return mGpuMesh.getTriangleCount(lod);
+    }
+
+    @Override
+    public float[] getLodErrors() {
+        return mGpuMesh.getLodErrors();
+    }
+
+    @Override
+    public Meshlets getMeshlets() {
+        return null;
+    }
+
+    @Override
+    public float[] getBounds() {
+        return mBounds;
+    }
+
+    @Override
+    public float[] getBoundingSphere() {
+        return mBoundingSphere;
+    }
+
+    @Override
+    public float[] getPositionTransform() {
+        return mGpuMesh.getPositionTransform();
+    }
+}
@@ -3,51 +3,146 @@ package bertrandt.shadows.openGL.draw;
 import android.content.Context;
 import android.opengl.GLES20;
 
+import bertrandt.shadows.openGL.common.GlCapabilities;
 import bertrandt.shadows.openGL.importer.ImportObj;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.loader.AssetLoader;
+import bertrandt.shadows.openGL.loader.LoadTask;
+import bertrandt.shadows.openGL.loader.Upload;
 
 /**
  * Created by buhrmanc on 05.02.2018.
  */
 
-public class DrawObj {
+public class DrawObj implements Renderable {
 
     private ImportObj mImportObj;
+    private GpuMesh mGpuMesh;
+    /**
+     * Positions welded across normal and texel seams, drawn by the depth passes.
+     */
+    private GpuMesh mDepthMesh;
+    /**
+     * The mesh of the last {@link #setDraw} call, drawn by the following draw calls.
+     */
+    private GpuMesh mBoundMesh;
+    /**
+     * Copies of the shaded and the depth mesh, null unless instances were requested.
+     */
+    private InstancedMesh mInstancedMesh;
+    private InstancedMesh mInstancedDepthMesh;
+
+    private volatile boolean initialised = false;
+
+    /**
+     * Imports the object on the loader's background thread. The object is drawn once its
+     * upload ran, until then {@link #getInitialised()} returns false.
+     */
+    public DrawObj(final Context context, final String fileName, AssetLoader assetLoader,
+                   final GlCapabilities capabilities, final boolean compactVertices) {
+        this(context, fileName, assetLoader, capabilities, compactVertices, 0);
+    }
 
-    private boolean initialised;
-
-    public DrawObj(final Context context, final String fileName) {
+    /**
+     * @param instanceBatchSize if positive the object can also be drawn instanced, see
+     *                          {@link InstancedMesh#getBatchSize(GlCapabilities, int)}
+     */
+    public DrawObj(final Context context, final String fileName, AssetLoader assetLoader,
+                   final GlCapabilities capabilities, final boolean compactVertices, final int instanceBatchSize) {
+
+        assetLoader.submit(new LoadTask() {
+            @Override
+            public Upload load() {
+                final ImportObj importObj = new ImportObj(context, fileName, compactVertices);
+                GpuMesh.checkSupported(importObj.getMeshBuffers(), capabilities);
+                GpuMesh.checkSupported(importObj.getDepthBuffers(), capabilities);
+                return new Upload() {
+                    @Override
+                    public long getByteSize() {
+                        return importObj.getByteSize();
+                    }
+
+                    @Override
+                    public void upload() {
+                        importObj.upload();
+                        mGpuMesh = new GpuMesh(importObj.getMeshBuffers(), capabilities);
+                        mDepthMesh = new GpuMesh(importObj.getDepthBuffers(), capabilities);
+                        if (instanceBatchSize > 0) {
+                            // the uniform array fallback replicates the buffers, they are released below
+                            mInstancedMesh = new InstancedMesh(mGpuMesh, importObj.getMeshBuffers(), capabilities,
+                                    instanceBatchSize);
+                            mInstancedDepthMesh = new InstancedMesh(mDepthMesh, importObj.getDepthBuffers(),
+                                    capabilities, instanceBatchSize);
+                        }
+                        importObj.releaseMeshBuffers();
+                        mImportObj = importObj;
+                        initialised = true;
+                    }
+                };
+            }
+        });
 
-        mImportObj = new ImportObj(context, fileName);
-        initialised = true;
+    }
 
+    /**
+     * The mesh to draw the instances of the object with, null if no instances were requested.
+     *
+     * @param onlyPosition true for the welded positions of the depth passes
+     */
+    public InstancedMesh getInstancedMesh(boolean onlyPosition) {
+        return onlyPosition ? mInstancedDepthMesh : mInstancedMesh;
     }
 
+    @Override
     public boolean getInitialised() {
         return initialised;
     }
 
-    public void setDraw(int positionAttribute, int normalAttribute,
-                     int mTexelCoordinateHandle, int mTextureUniformHandle, boolean onlyPosition) {
-        // Pass position information to shader
-        mImportObj.getVerticesBuffer().rewind();
-        GLES20.glVertexAttribPointer(positionAttribute, 3, GLES20.GL_FLOAT, false,
-                0, mImportObj.getVerticesBuffer());
+    public int getTriangleCount() {
+        return mGpuMesh.getTriangleCount();
+    }
 
-        GLES20.glEnableVertexAttribArray(positionAttribute);
+    @Override
+    public int getTriangleCount(int lod) {
+        return mGpuMesh.getTriangleCount(lod);
+    }
 
-        if (!onlyPosition) {
-            // Pass normal information to shader
-            mImportObj.getNormalsBuffer().rewind();
-            GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false,
-                    0, mImportObj.getNormalsBuffer());
+    @Override
+    public float[] getLodErrors() {
+        return mGpuMesh.getLodErrors();
+    }
 
-            GLES20.glEnableVertexAttribArray(normalAttribute);
+    @Override
+    public Meshlets getMeshlets() {
+        return mGpuMesh.getMeshlets();
+    }
 
-            // Pass in the texel information
-            mImportObj.getTexelsBuffer().rewind();
-            GLES20.glVertexAttribPointer(mTexelCoordinateHandle, 2, GLES20.GL_FLOAT, false,
-                    0, mImportObj.getTexelsBuffer());
-            GLES20.glEnableVertexAttribArray(mTexelCoordinateHandle);
+    @Override
+    public float[] getBounds() {
+        return mImportObj.getBounds();
+    }
+
+    @Override
+    public float[] getBoundingSphere() {
+        return mImportObj.getBoundingSphere();
+    }
+
+    @Override
+    public float[] getPositionTransform() {
+        return mGpuMesh.getPositionTransform();
+    }
+
+    @Override
+    public void setDraw(int positionAttribute, int normalAttribute,
+                     int mTexelCoordinateHandle, int mTextureUniformHandle, boolean onlyPosition) {
+        // Attribute pointers into the vertex buffer, recorded once per attribute combination
+        if (onlyPosition) {
+            // depth passes read the welded position stream
+            mBoundMesh = mDepthMesh;
+            mDepthMesh.bind(positionAttribute, -1, -1);
+        } else {
+            mBoundMesh = mGpuMesh;
+            mGpuMesh.bind(positionAttribute, normalAttribute, mTexelCoordinateHandle);
 
             // Set the active texture unit to texture unit 0.
             //GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -62,8 +157,20 @@ public class DrawObj {
     }
 
     public void draw(){
-        // Draw the plane
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mImportObj.getPositionSize());
+        draw(0);
+    }
+
+    @Override
+    public void draw(int lod) {
+        // Draw the welded object with the index range of the level
+        mBoundMesh.draw(lod);
+        mBoundMesh.unbind();
+    }
+
+    @Override
+    public void draw(ClusterCuller culler) {
+        mBoundMesh.drawRanges(culler.getRanges(), culler.getRangeCount());
+        mBoundMesh.unbind();
     }
 }
 
@@ -4,71 +4,151 @@ import android.content.Context;
 import android.opengl.GLES20;
 
 import bertrandt.shadows.openGL.basicObjects.Plane;
-import bertrandt.shadows.openGL.importer.ImportObj;
+import bertrandt.shadows.openGL.common.GlCapabilities;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.loader.AssetLoader;
+import bertrandt.shadows.openGL.loader.LoadTask;
+import bertrandt.shadows.openGL.loader.Upload;
 
 /**
  * Created by buhrmanc on 05.02.2018.
  */
 
-public class DrawPlane {
+public class DrawPlane implements Renderable {
 
     private Context mContext;
 
     private Plane mPlane;
-
-    private boolean initialised=false;
-
-    public DrawPlane(Context context) {
+    private GpuMesh mGpuMesh;
+    /**
+     * Positions welded across normal and texel seams, drawn by the depth passes.
+     */
+    private GpuMesh mDepthMesh;
+    /**
+     * The mesh of the last {@link #setDraw} call, drawn by the following draw calls.
+     */
+    private GpuMesh mBoundMesh;
+    private float[] mBounds;
+    private float[] mBoundingSphere;
+
+    private volatile boolean initialised=false;
+
+    /**
+     * Builds the plane on the loader's background thread. The plane is drawn once its upload
+     * ran, until then {@link #getInitialised()} returns false.
+     */
+    public DrawPlane(Context context, AssetLoader assetLoader, final GlCapabilities capabilities,
+                     final boolean compactVertices) {
         this.mContext = context;
 
-        mPlane = new Plane(mContext);
-        initialised = true;
+        assetLoader.submit(new LoadTask() {
+            @Override
+            public Upload load() {
+                final Plane plane = new Plane(mContext, compactVertices);
+                return new Upload() {
+                    @Override
+                    public long getByteSize() {
+                        return plane.getByteSize();
+                    }
+
+                    @Override
+                    public void upload() {
+                        plane.upload();
+                        mGpuMesh = new GpuMesh(plane.getMeshBuffers(), capabilities);
+                        mDepthMesh = new GpuMesh(plane.getDepthBuffers(), capabilities);
+                        mBounds = plane.getMeshBuffers().getBounds();
+                        mBoundingSphere = plane.getMeshBuffers().getBoundingSphere();
+                        plane.releaseMeshBuffers();
+                        mPlane = plane;
+                        initialised = true;
+                    }
+                };
+            }
+        });
 
     }
 
+    @Override
     public void setDraw(int positionAttribute, int normalAttribute,
                           int mTexelCoordinateHandle, int mTextureUniformHandle, boolean onlyPosition) {
 
-        // Pass position information to shader
-        mPlane.getPlanePosition().rewind();
-        GLES20.glVertexAttribPointer(positionAttribute, 3, GLES20.GL_FLOAT, false,
-                0, mPlane.getPlanePosition());
-
-        GLES20.glEnableVertexAttribArray(positionAttribute);
-
-        if (!onlyPosition)
+        // Attribute pointers into the vertex buffer, recorded once per attribute combination
+        if (onlyPosition) {
+            // depth passes read the welded position stream
+            mBoundMesh = mDepthMesh;
+            mDepthMesh.bind(positionAttribute, -1, -1);
+        }
+        else
         {
-            // Pass normal information to shader
-            mPlane.getPlaneNormal().rewind();
-            GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false,
-                    0, mPlane.getPlaneNormal());
-
-            GLES20.glEnableVertexAttribArray(normalAttribute);
-
+            mBoundMesh = mGpuMesh;
+            mGpuMesh.bind(positionAttribute, normalAttribute, mTexelCoordinateHandle);
 
-            // Pass in the texel information
-            mPlane.getTexelsBuffer().rewind();
-            GLES20.glVertexAttribPointer(mTexelCoordinateHandle, 2, GLES20.GL_FLOAT, false,
-                    0, mPlane.getTexelsBuffer());
-            GLES20.glEnableVertexAttribArray(mTexelCoordinateHandle);
+            if (mTextureUniformHandle >= 0) {
+                // Set the active texture unit to texture unit 0.
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                // Bind the texture to this unit.
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPlane.getPlaneTextureHandle());
 
-            // Set the active texture unit to texture unit 0.
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            // Bind the texture to this unit.
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPlane.getPlaneTextureHandle());
-
-            GLES20.glUniform1i(mTextureUniformHandle, 0);
+                GLES20.glUniform1i(mTextureUniformHandle, 0);
+            }
 
         }
     }
 
     public void draw(){
+        draw(0);
+    }
+
+    @Override
+    public void draw(int lod) {
         // Draw the plane
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        mBoundMesh.draw(lod);
+        mBoundMesh.unbind();
     }
 
+    @Override
+    public void draw(ClusterCuller culler) {
+        mBoundMesh.drawRanges(culler.getRanges(), culler.getRangeCount());
+        mBoundMesh.unbind();
+    }
+
+    @Override
     public boolean getInitialised(){
         return initialised;
     }
+
+    public int getTriangleCount() {
+        return mGpuMesh.getTriangleCount();
+    }
+
+    @Override
+    public int getTriangleCount(int lod) {
+        return mGpuMesh.getTriangleCount(lod);
+    }
+
+    @Override
+    public float[] getLodErrors() {
+        return mGpuMesh.getLodErrors();
+    }
+
+    @Override
+    public Meshlets getMeshlets() {
+        return mGpuMesh.getMeshlets();
+    }
+
+    @Override
+    public float[] getBounds() {
+        return mBounds;
+    }
+
+    @Override
+    public float[] getBoundingSphere() {
+        return mBoundingSphere;
+    }
+
+    @Override
+    public float[] getPositionTransform() {
+        return mGpuMesh.getPositionTransform();
+    }
 }
 
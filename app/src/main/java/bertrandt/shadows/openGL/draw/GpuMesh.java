@@ -0,0 +1,317 @@
+package bertrandt.shadows.openGL.draw;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+import bertrandt.shadows.openGL.common.GlCapabilities;
+import bertrandt.shadows.openGL.importer.MeshBuffers;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.importer.VertexLayout;
+import bertrandt.shadows.openGL.importer.VertexQuantizer;
+
+/**
+ * An indexed mesh living in GL buffer objects.
+ *
+ * The interleaved vertex data and the indices are uploaded once, draws only pass offsets into
+ * the buffers. On ES 3.0 the attribute setup for every combination of attribute locations is
+ * recorded in a vertex array object, so binding the mesh for a pass is a single call. ES 2.0
+ * contexts set the pointers into the vertex buffer on every bind.
+ */
+
+public class GpuMesh {
+
+    /**
+     * Different attribute location combinations a mesh is bound with, one per program and pass.
+     */
+    private static final int MAX_VERTEX_ARRAYS = 4;
+
+    private final VertexLayout mLayout;
+    private final int mIndexType;
+    private final int mIndexCount;
+    private final int mVertexCount;
+    private final int[] mLodOffsets;
+    private final float[] mLodErrors;
+    private final Meshlets mMeshlets;
+
+    /**
+     * Maps the stored positions to object space, identity for float positions.
+     */
+    private final float[] mPositionTransform = new float[16];
+
+    private final int[] mBufferHandles = new int[2];
+
+    private final boolean mUseVertexArrays;
+    private final int[] mVertexArrayHandles = new int[MAX_VERTEX_ARRAYS];
+    private final int[][] mVertexArrayKeys = new int[MAX_VERTEX_ARRAYS][];
+    private int mVertexArrayCount;
+    private boolean mVertexArrayBound;
+
+    /**
+     * Refuses meshes the context cannot draw. Needs no GL thread, loaders check on their
+     * background thread so that the asset fails instead of the upload.
+     *
+     * @throws IllegalArgumentException if the mesh needs 32 bit indices and the context has
+     *                                  neither ES 3.0 nor OES_element_index_uint
+     */
+    public static void checkSupported(MeshBuffers mesh, GlCapabilities capabilities) {
+        if (!BufferHelper.isIndexTypeSupported(mesh.getIndexType(), capabilities)) {
+            throw new IllegalArgumentException("Mesh with " + mesh.getVertexCount()
+                    + " vertices needs 32 bit indices, OES_element_index_uint is not supported.");
+        }
+    }
+
+    /**
+     * Uploads the mesh, needs the GL thread. The buffers are not referenced afterwards.
+     *
+     * @throws IllegalArgumentException see {@link #checkSupported(MeshBuffers, GlCapabilities)}
+     */
+    public GpuMesh(MeshBuffers mesh, GlCapabilities capabilities) {
+        checkSupported(mesh, capabilities);
+        mLayout = mesh.getLayout();
+        mIndexType = mesh.getIndexType();
+        mIndexCount = mesh.getIndexCount();
+        mVertexCount = mesh.getVertexCount();
+        mLodOffsets = mesh.getLodOffsets().clone();
+        mLodErrors = mesh.getLodErrors().clone();
+        mMeshlets = mesh.getMeshlets();
+        mUseVertexArrays = capabilities.hasVertexArrayObjects();
+
+        if (VertexQuantizer.isQuantized(mLayout)) {
+            VertexQuantizer.getDequantization(mesh.getBounds(), mPositionTransform, 0);
+        } else {
+            mPositionTransform[0] = mPositionTransform[5] = mPositionTransform[10] = mPositionTransform[15] = 1f;
+        }
+
+        GLES20.glGenBuffers(2, mBufferHandles, 0);
+        if (mBufferHandles[0] == 0 || mBufferHandles[1] == 0) {
+            throw new RuntimeException("Error creating mesh buffers.");
+        }
+
+        ByteBuffer vertices = mesh.getVertices().duplicate();
+        vertices.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferHandles[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexCount * mLayout.getStride(), vertices,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        Buffer indices = mesh.getIndices();
+        indices.rewind();
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBufferHandles[1]);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexCount * BufferHelper.getIndexSize(mIndexType),
+                indices, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Binds the mesh for the following {@link #draw()} calls. Attributes the current program
+     * does not use are passed as -1.
+     */
+    public void bind(int positionAttribute, int normalAttribute, int texelAttribute) {
+        bind(positionAttribute, normalAttribute, texelAttribute, -1);
+    }
+
+    /**
+     * @param instanceAttribute location of the {@link VertexLayout#SEMANTIC_INSTANCE} attribute
+     *                          of a replicated mesh or of the per instance attributes an
+     *                          {@link InstancedMesh} sets up, -1 if not used
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void bind(int positionAttribute, int normalAttribute, int texelAttribute, int instanceAttribute) {
+        if (!mUseVertexArrays) {
+            setupAttributes(positionAttribute, normalAttribute, texelAttribute, instanceAttribute);
+            return;
+        }
+
+        int vertexArray = findVertexArray(positionAttribute, normalAttribute, texelAttribute, instanceAttribute);
+        if (vertexArray == 0) {
+            vertexArray = createVertexArray(positionAttribute, normalAttribute, texelAttribute, instanceAttribute);
+        }
+        GLES30.glBindVertexArray(vertexArray);
+        mVertexArrayBound = true;
+    }
+
+    public void draw() {
+        draw(0);
+    }
+
+    /**
+     * Draws a level of detail, all levels share the vertex buffer and lie one after another in
+     * the index buffer.
+     */
+    public void draw(int lod) {
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mLodOffsets[lod + 1] - mLodOffsets[lod], mIndexType,
+                mLodOffsets[lod] * BufferHelper.getIndexSize(mIndexType));
+    }
+
+    /**
+     * Draws a range of the index buffer, e.g. several copies of a level of a replicated mesh.
+     */
+    public void drawIndices(int firstIndex, int indexCount) {
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, mIndexType,
+                firstIndex * BufferHelper.getIndexSize(mIndexType));
+    }
+
+    /**
+     * Draws a level of detail once per instance, needs ES 3.0.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void drawInstanced(int lod, int instanceCount) {
+        GLES30.glDrawElementsInstanced(GLES20.GL_TRIANGLES, mLodOffsets[lod + 1] - mLodOffsets[lod], mIndexType,
+                mLodOffsets[lod] * BufferHelper.getIndexSize(mIndexType), instanceCount);
+    }
+
+    /**
+     * First index of every level of detail followed by the index count.
+     */
+    public int[] getLodOffsets() {
+        return mLodOffsets;
+    }
+
+    /**
+     * Draws index ranges given as pairs of first index and index count, see {@link ClusterCuller}.
+     */
+    public void drawRanges(int[] ranges, int rangeCount) {
+        int indexSize = BufferHelper.getIndexSize(mIndexType);
+        for (int range = 0; range < rangeCount; range++) {
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, ranges[range * 2 + 1], mIndexType, ranges[range * 2] * indexSize);
+        }
+    }
+
+    /**
+     * Restores the default vertex array, so that later client side attribute calls do not
+     * change the recorded state of this mesh.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void unbind() {
+        if (mVertexArrayBound) {
+            GLES30.glBindVertexArray(0);
+            mVertexArrayBound = false;
+        }
+    }
+
+    private int findVertexArray(int positionAttribute, int normalAttribute, int texelAttribute,
+                                int instanceAttribute) {
+        for (int i = 0; i < mVertexArrayCount; i++) {
+            int[] key = mVertexArrayKeys[i];
+            if (key[0] == positionAttribute && key[1] == normalAttribute && key[2] == texelAttribute
+                    && key[3] == instanceAttribute) {
+                return mVertexArrayHandles[i];
+            }
+        }
+        return 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private int createVertexArray(int positionAttribute, int normalAttribute, int texelAttribute,
+                                  int instanceAttribute) {
+        int[] handle = new int[1];
+        GLES30.glGenVertexArrays(1, handle, 0);
+        if (handle[0] == 0) {
+            throw new RuntimeException("Error creating vertex array.");
+        }
+        GLES30.glBindVertexArray(handle[0]);
+        setupAttributes(positionAttribute, normalAttribute, texelAttribute, instanceAttribute);
+        GLES30.glBindVertexArray(0);
+
+        if (mVertexArrayCount == MAX_VERTEX_ARRAYS) {
+            // more combinations than expected, replace the oldest
+            GLES30.glDeleteVertexArrays(1, mVertexArrayHandles, 0);
+            System.arraycopy(mVertexArrayHandles, 1, mVertexArrayHandles, 0, MAX_VERTEX_ARRAYS - 1);
+            System.arraycopy(mVertexArrayKeys, 1, mVertexArrayKeys, 0, MAX_VERTEX_ARRAYS - 1);
+            mVertexArrayCount--;
+        }
+        mVertexArrayHandles[mVertexArrayCount] = handle[0];
+        mVertexArrayKeys[mVertexArrayCount] = new int[]{positionAttribute, normalAttribute, texelAttribute,
+                instanceAttribute};
+        mVertexArrayCount++;
+        return handle[0];
+    }
+
+    private void setupAttributes(int positionAttribute, int normalAttribute, int texelAttribute,
+                                 int instanceAttribute) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferHandles[0]);
+        setupAttribute(positionAttribute, VertexLayout.SEMANTIC_POSITION);
+        setupAttribute(normalAttribute, VertexLayout.SEMANTIC_NORMAL);
+        setupAttribute(texelAttribute, VertexLayout.SEMANTIC_TEXEL);
+        setupAttribute(instanceAttribute, VertexLayout.SEMANTIC_INSTANCE);
+        // the element buffer binding is part of the vertex array state
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBufferHandles[1]);
+    }
+
+    private void setupAttribute(int location, int semantic) {
+        int attribute = mLayout.find(semantic);
+        if (location < 0 || attribute < 0) {
+            return;
+        }
+        GLES20.glVertexAttribPointer(location, mLayout.getSize(attribute), mLayout.getType(attribute),
+                mLayout.isNormalized(attribute), mLayout.getStride(), mLayout.getOffset(attribute));
+        GLES20.glEnableVertexAttribArray(location);
+    }
+
+    /**
+     * Deletes the GL objects, needs the GL thread that created them.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void release() {
+        if (mVertexArrayCount > 0) {
+            GLES30.glDeleteVertexArrays(mVertexArrayCount, mVertexArrayHandles, 0);
+            mVertexArrayCount = 0;
+        }
+        GLES20.glDeleteBuffers(2, mBufferHandles, 0);
+    }
+
+    /**
+     * Column major matrix to apply before the model matrix, see {@link VertexQuantizer}.
+     */
+    public float[] getPositionTransform() {
+        return mPositionTransform;
+    }
+
+    public VertexLayout getLayout() {
+        return mLayout;
+    }
+
+    public int getIndexCount() {
+        return mIndexCount;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * Triangles of the full detail level.
+     */
+    public int getTriangleCount() {
+        return getTriangleCount(0);
+    }
+
+    public int getTriangleCount(int lod) {
+        return (mLodOffsets[lod + 1] - mLodOffsets[lod]) / 3;
+    }
+
+    public int getLodCount() {
+        return mLodErrors.length;
+    }
+
+    /**
+     * Simplification error of every level relative to the bounding radius, see
+     * {@link bertrandt.shadows.openGL.importer.MeshSimplifier}.
+     */
+    public float[] getLodErrors() {
+        return mLodErrors;
+    }
+
+    /**
+     * Clusters of level 0, null if the mesh is drawn as a whole.
+     */
+    public Meshlets getMeshlets() {
+        return mMeshlets;
+    }
+}
@@ -0,0 +1,187 @@
+package bertrandt.shadows.openGL.draw;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import bertrandt.shadows.openGL.common.GlCapabilities;
+import bertrandt.shadows.openGL.importer.MeshBuffers;
+import bertrandt.shadows.openGL.importer.MeshReplicator;
+
+/**
+ * Draws many copies of a mesh, each with its own model matrix, in few draw calls.
+ *
+ * On ES 3.0 the model matrices are streamed into a vertex buffer and read as a mat4 attribute
+ * with a divisor of one, a level of detail is drawn with a single instanced call. ES 2.0
+ * contexts draw a {@link MeshReplicator replicated} mesh instead: the matrices of a batch go
+ * into a uniform array and every vertex picks its matrix with its copy index.
+ *
+ * Shaders compiled with the INSTANCED define read the a_ModelMatrix attribute, those compiled
+ * with INSTANCE_ARRAY read u_ModelMatrices[MAX_INSTANCES] indexed by a_InstanceIndex.
+ */
+
+public class InstancedMesh {
+
+    public static final String DEFINE_INSTANCED = "INSTANCED";
+    public static final String DEFINE_INSTANCE_ARRAY = "INSTANCE_ARRAY";
+
+    private static final int FLOATS_PER_MATRIX = 16;
+    private static final int BYTES_PER_MATRIX = FLOATS_PER_MATRIX * 4;
+    /**
+     * Upper limit of copies in a replicated mesh, more only cost memory.
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final GpuMesh mMesh;
+    private final boolean mHardware;
+    private final int mBatchSize;
+    private final boolean mOwnsMesh;
+
+    private final int[] mInstanceBuffer = new int[1];
+    private int mInstanceBufferCapacity;
+    private FloatBuffer mStaging;
+    private int mInstanceAttribute = -1;
+
+    /**
+     * Needs the GL thread.
+     *
+     * @param mesh         the uploaded mesh, drawn directly if the context supports instancing
+     * @param buffers      the same mesh on the CPU, replicated otherwise
+     * @param batchSize    instances per draw call without instancing, see {@link #getBatchSize(GlCapabilities, int)}
+     */
+    public InstancedMesh(GpuMesh mesh, MeshBuffers buffers, GlCapabilities capabilities, int batchSize) {
+        mHardware = capabilities.hasInstancing();
+        if (mHardware) {
+            mMesh = mesh;
+            mOwnsMesh = false;
+            mBatchSize = Integer.MAX_VALUE;
+            GLES20.glGenBuffers(1, mInstanceBuffer, 0);
+            if (mInstanceBuffer[0] == 0) {
+                throw new RuntimeException("Error creating instance buffer.");
+            }
+        } else {
+            mBatchSize = MeshReplicator.getMaxCopies(buffers.getVertexCount(), batchSize,
+                    capabilities.hasUintIndices());
+            mMesh = new GpuMesh(MeshReplicator.replicate(buffers, mBatchSize), capabilities);
+            mOwnsMesh = true;
+        }
+    }
+
+    /**
+     * Instances per uniform array batch that fit next to the other uniforms of a shader.
+     *
+     * @param reservedVectors vec4 uniforms the shader uses besides the model matrices
+     */
+    public static int getBatchSize(GlCapabilities capabilities, int reservedVectors) {
+        int vectors = capabilities.getMaxVertexUniformVectors() - reservedVectors;
+        return Math.max(1, Math.min(MAX_BATCH_SIZE, vectors / 4));
+    }
+
+    /**
+     * True if the shaders need {@link #DEFINE_INSTANCED}, otherwise {@link #DEFINE_INSTANCE_ARRAY}
+     * with MAX_INSTANCES set to {@link #getBatchSize()}.
+     */
+    public boolean isHardwareInstanced() {
+        return mHardware;
+    }
+
+    /**
+     * Instances per draw call of the uniform array path.
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Binds the mesh for the following draws.
+     *
+     * @param instanceAttribute location of a_ModelMatrix or a_InstanceIndex
+     */
+    public void bind(int positionAttribute, int normalAttribute, int texelAttribute, int instanceAttribute) {
+        // the instance attribute keys a vertex array of its own on ES 3.0 as well, the matrix
+        // columns and their divisors set in draw stay out of the one the mesh is drawn with alone
+        mMesh.bind(positionAttribute, normalAttribute, texelAttribute, instanceAttribute);
+        mInstanceAttribute = instanceAttribute;
+    }
+
+    /**
+     * Draws a level of detail once per model matrix.
+     *
+     * @param modelMatrices        column major matrices, 16 floats per instance
+     * @param modelMatricesUniform location of u_ModelMatrices, only used without instancing
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void draw(int lod, float[] modelMatrices, int instanceCount, int modelMatricesUniform) {
+        if (instanceCount == 0) {
+            return;
+        }
+        if (mHardware) {
+            uploadInstances(modelMatrices, instanceCount);
+            // the four columns of the matrix occupy consecutive locations
+            for (int column = 0; column < 4; column++) {
+                int location = mInstanceAttribute + column;
+                GLES20.glVertexAttribPointer(location, 4, GLES20.GL_FLOAT, false, BYTES_PER_MATRIX, column * 16);
+                GLES20.glEnableVertexAttribArray(location);
+                GLES30.glVertexAttribDivisor(location, 1);
+            }
+            mMesh.drawInstanced(lod, instanceCount);
+            return;
+        }
+
+        int[] lodOffsets = mMesh.getLodOffsets();
+        int indicesPerCopy = (lodOffsets[lod + 1] - lodOffsets[lod]) / mBatchSize;
+        for (int first = 0; first < instanceCount; first += mBatchSize) {
+            int count = Math.min(mBatchSize, instanceCount - first);
+            GLES20.glUniformMatrix4fv(modelMatricesUniform, count, false, modelMatrices, first * FLOATS_PER_MATRIX);
+            mMesh.drawIndices(lodOffsets[lod], count * indicesPerCopy);
+        }
+    }
+
+    /**
+     * Replaces the content of the instance buffer, orphaning the old storage so that the GPU
+     * can still read it for earlier draws.
+     */
+    private void uploadInstances(float[] modelMatrices, int instanceCount) {
+        int floats = instanceCount * FLOATS_PER_MATRIX;
+        if (mStaging == null || mStaging.capacity() < floats) {
+            mStaging = ByteBuffer.allocateDirect(Math.max(floats, FLOATS_PER_MATRIX * 256) * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        mStaging.clear();
+        mStaging.put(modelMatrices, 0, floats);
+        mStaging.flip();
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceBuffer[0]);
+        mInstanceBufferCapacity = Math.max(mInstanceBufferCapacity, floats * 4);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mInstanceBufferCapacity, null, GLES20.GL_STREAM_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, floats * 4, mStaging);
+    }
+
+    /**
+     * Number of triangles of one instance of the level.
+     */
+    public int getTriangleCount(int lod) {
+        int triangles = mMesh.getTriangleCount(lod);
+        return mHardware ? triangles : triangles / mBatchSize;
+    }
+
+    public void unbind() {
+        mMesh.unbind();
+    }
+
+    /**
+     * Deletes the GL objects of the instancing path, the shared mesh of the hardware path stays.
+     */
+    public void release() {
+        if (mOwnsMesh) {
+            mMesh.release();
+        } else {
+            GLES20.glDeleteBuffers(1, mInstanceBuffer, 0);
+        }
+    }
+}
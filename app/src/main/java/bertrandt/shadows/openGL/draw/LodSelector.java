@@ -0,0 +1,111 @@
+package bertrandt.shadows.openGL.draw;
+
+/**
+ * Picks the level of detail of a mesh from its projected size.
+ *
+ * The simplification error of every level is projected to the screen at the distance of the
+ * nearest point of the bounding sphere, the coarsest level whose error stays below a number of
+ * pixels is used. Orthographic projections have the same scale at every distance. A bias moves
+ * the choice further towards coarse levels, e.g. for the shadow pass where small errors are
+ * hidden by filtering.
+ */
+
+public class LodSelector {
+
+    private float mMaxErrorPixels;
+    private int mLodBias;
+
+    /**
+     * @param maxErrorPixels largest allowed projected simplification error
+     * @param lodBias        levels to add to the selected level
+     */
+    public LodSelector(float maxErrorPixels, int lodBias) {
+        mMaxErrorPixels = maxErrorPixels;
+        mLodBias = lodBias;
+    }
+
+    /**
+     * Pixels covered by one world unit at distance one for a perspective projection matrix, at
+     * every distance for an orthographic one.
+     */
+    public static float getPixelsPerUnit(float[] projectionMatrix, int viewportHeight) {
+        return projectionMatrix[5] * viewportHeight * 0.5f;
+    }
+
+    /**
+     * @param lodErrors     error of every level relative to the bounding radius, growing
+     * @param bounds        object space bounding box as minX, minY, minZ, maxX, maxY, maxZ
+     * @param modelView     column major matrix from object to view space
+     * @param pixelsPerUnit see {@link #getPixelsPerUnit(float[], int)}
+     */
+    public int select(float[] lodErrors, float[] bounds, float[] modelView, float pixelsPerUnit) {
+        return select(lodErrors, bounds, modelView, pixelsPerUnit, false);
+    }
+
+    /**
+     * @param orthographic true if pixelsPerUnit belongs to an orthographic projection
+     */
+    public int select(float[] lodErrors, float[] bounds, float[] modelView, float pixelsPerUnit,
+                      boolean orthographic) {
+        float centerX = (bounds[0] + bounds[3]) * 0.5f;
+        float centerY = (bounds[1] + bounds[4]) * 0.5f;
+        float centerZ = (bounds[2] + bounds[5]) * 0.5f;
+        float x = modelView[0] * centerX + modelView[4] * centerY + modelView[8] * centerZ + modelView[12];
+        float y = modelView[1] * centerX + modelView[5] * centerY + modelView[9] * centerZ + modelView[13];
+        float z = modelView[2] * centerX + modelView[6] * centerY + modelView[10] * centerZ + modelView[14];
+
+        float scale = 0f;
+        for (int column = 0; column < 3; column++) {
+            float a = modelView[column * 4];
+            float b = modelView[column * 4 + 1];
+            float c = modelView[column * 4 + 2];
+            scale = Math.max(scale, a * a + b * b + c * c);
+        }
+        float sizeX = bounds[3] - bounds[0];
+        float sizeY = bounds[4] - bounds[1];
+        float sizeZ = bounds[5] - bounds[2];
+        float radius = (float) Math.sqrt((sizeX * sizeX + sizeY * sizeY + sizeZ * sizeZ) * scale) * 0.5f;
+
+        return select(lodErrors, radius, (float) Math.sqrt(x * x + y * y + z * z), pixelsPerUnit, orthographic);
+    }
+
+    /**
+     * @param radius   world space radius of the bounding sphere
+     * @param distance from the eye to the center of the bounding sphere
+     */
+    public int select(float[] lodErrors, float radius, float distance, float pixelsPerUnit) {
+        return select(lodErrors, radius, distance, pixelsPerUnit, false);
+    }
+
+    /**
+     * @param distance     ignored for orthographic projections
+     * @param orthographic true if pixelsPerUnit belongs to an orthographic projection
+     */
+    public int select(float[] lodErrors, float radius, float distance, float pixelsPerUnit, boolean orthographic) {
+        int lod = 0;
+        if (orthographic || distance > radius) {
+            float pixelsPerError = orthographic ? radius * pixelsPerUnit
+                    : radius * pixelsPerUnit / (distance - radius);
+            while (lod + 1 < lodErrors.length && lodErrors[lod + 1] * pixelsPerError <= mMaxErrorPixels) {
+                lod++;
+            }
+        }
+        return Math.min(lod + mLodBias, lodErrors.length - 1);
+    }
+
+    public float getMaxErrorPixels() {
+        return mMaxErrorPixels;
+    }
+
+    public void setMaxErrorPixels(float maxErrorPixels) {
+        mMaxErrorPixels = maxErrorPixels;
+    }
+
+    public int getLodBias() {
+        return mLodBias;
+    }
+
+    public void setLodBias(int lodBias) {
+        mLodBias = lodBias;
+    }
+}
@@ -0,0 +1,60 @@
+package bertrandt.shadows.openGL.draw;
+
+import bertrandt.shadows.openGL.importer.Meshlets;
+
+/**
+ * A mesh the render passes can draw, e.g. the content of a
+ * {@link bertrandt.shadows.openGL.scene.SceneNode}.
+ *
+ * Everything except {@link #getInitialised()} may only be used once it returns true.
+ */
+
+public interface Renderable {
+
+    /**
+     * True once the mesh was uploaded and can be drawn.
+     */
+    boolean getInitialised();
+
+    /**
+     * Has to be multiplied into the model matrix of positions, but not of normals.
+     */
+    float[] getPositionTransform();
+
+    /**
+     * Object space bounding box as minX, minY, minZ, maxX, maxY, maxZ.
+     */
+    float[] getBounds();
+
+    /**
+     * Object space bounding sphere as center x, y, z and radius.
+     */
+    float[] getBoundingSphere();
+
+    /**
+     * Simplification error of every level of detail, see {@link LodSelector}.
+     */
+    float[] getLodErrors();
+
+    /**
+     * Clusters of level 0, null for meshes that are drawn as a whole.
+     */
+    Meshlets getMeshlets();
+
+    int getTriangleCount(int lod);
+
+    /**
+     * Binds the attributes for the following draw calls, the depth passes bind positions only.
+     *
+     * @param textureUniform sampler of the mesh texture, -1 to leave the texture units alone
+     */
+    void setDraw(int positionAttribute, int normalAttribute, int texelAttribute, int textureUniform,
+                 boolean onlyPosition);
+
+    void draw(int lod);
+
+    /**
+     * Draws the clusters of level 0 that passed the last {@link ClusterCuller#cull} call.
+     */
+    void draw(ClusterCuller culler);
+}
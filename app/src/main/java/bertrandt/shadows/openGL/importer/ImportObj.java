@@ -1,18 +1,17 @@
 package bertrandt.shadows.openGL.importer;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.util.Log;
-import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import bertrandt.shadows.R;
 import bertrandt.shadows.openGL.common.TextureHelper;
@@ -24,111 +23,307 @@ import bertrandt.shadows.openGL.common.TextureHelper;
 public class ImportObj {
 
     private static final String TAG = "ImportObj";
+    private static final String CACHE_DIRECTORY = "mesh-cache";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String DEPTH_SUFFIX = ".depth";
+
+    /**
+     * Triangle counts of the generated levels of detail relative to the full mesh.
+     */
+    public static final float[] DEFAULT_LOD_RATIOS = {0.5f, 0.25f, 0.125f};
+
+    /**
+     * Files of at least this size are parsed on all cores, if the device has more than one.
+     */
+    private static final int PARALLEL_IMPORT_SIZE = 1024 * 1024;
+
     private Context mContext;
 
     private String mFileName;
+    private boolean mCompactVertices;
+    private float[] mLodRatios;
 
-    private List<String> mFacesList;
-    private List<String> mVerticesList;
-    private List<String> mNormalsList;
-    private List<String> mTexelsList;
-
-    private FloatBuffer mVerticesBuffer;
-    private FloatBuffer mNormalsBuffer;
-    private FloatBuffer mTexelsBuffer;
+    private MeshCache mMeshCache;
+    private long mContentHash;
 
-    private int mBytesPerFloat = 4;
-    private int mFacesCount = 3;
-    private int mVertexSize = 3;
-    private int mNormalSize = 3;
-    private int mTexelSize = 2;
+    private ObjParser mParser;
+    private MeshData mMeshData;
+    private MeshBuffers mMeshBuffers;
+    private MeshBuffers mDepthBuffers;
+    private float[] mBounds;
+    private float[] mBoundingSphere;
 
+    private Bitmap mTextureBitmap;
     private int mObjectTextureHandle;
 
-    public ImportObj(Context context, String fileName) {
+    /**
+     * Imports the mesh and decodes its texture. Does not use GL, so it can run on a background
+     * thread; call {@link #upload()} on the GL thread afterwards.
+     *
+     * @param compactVertices store the mesh in the {@link VertexQuantizer} layout
+     */
+    public ImportObj(Context context, String fileName, boolean compactVertices) {
+        this(context, fileName, compactVertices, DEFAULT_LOD_RATIOS);
+    }
+
+    /**
+     * @param lodRatios triangle ratios of the levels of detail, see {@link MeshSimplifier}
+     */
+    public ImportObj(Context context, String fileName, boolean compactVertices, float[] lodRatios) {
         this.mContext = context;
         this.mFileName = fileName;
-        readRaw();
-        allocateBuffer();
-        populateBuffer();
+        this.mCompactVertices = compactVertices;
+        this.mLodRatios = lodRatios;
+        mMeshCache = new MeshCache(new File(context.getFilesDir(), CACHE_DIRECTORY));
+        if (!readCache()) {
+            readRaw();
+            weldVertices();
+            optimizeMesh();
+            generateLods();
+            buildMeshlets();
+            populateBuffer();
+            writeCache();
+        }
+        mTextureBitmap = TextureHelper.decodeBitmap(mContext, R.drawable.android);
     }
 
-    private void readRaw() {
+    /**
+     * Maps a previously imported version of the file, if there is one.
+     *
+     * @return true if the mesh was loaded from the cache
+     */
+    private boolean readCache() {
+        InputStream inputStream = null;
+        try {
+            inputStream = mContext.getAssets().open(mFileName);
+            mContentHash = MeshCache.hash(inputStream);
+            mMeshBuffers = mMeshCache.load(getCacheName(), mContentHash);
+            mDepthBuffers = mMeshCache.load(getCacheName() + DEPTH_SUFFIX, mContentHash);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "readCache: mesh cache could not be read");
+        } finally {
+            closeQuietly(inputStream);
+        }
+        return mMeshBuffers != null && mDepthBuffers != null;
+    }
 
-        mFacesList = new ArrayList<>();
-        mVerticesList = new ArrayList<>();
-        mNormalsList = new ArrayList<>();
-        mTexelsList = new ArrayList<>();
+    private void writeCache() {
+        if (mMeshBuffers.getIndexCount() == 0) {
+            // nothing was imported, do not cache the failure
+            return;
+        }
+        try {
+            mMeshCache.store(getCacheName(), mContentHash, mMeshBuffers);
+            mMeshCache.store(getCacheName() + DEPTH_SUFFIX, mContentHash, mDepthBuffers);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "writeCache: mesh cache could not be written");
+        }
+    }
+
+    /**
+     * Both layouts and every set of levels of a file are cached side by side.
+     */
+    private String getCacheName() {
+        String name = mFileName + "." + Integer.toHexString(Arrays.hashCode(mLodRatios));
+        return mCompactVertices ? name + COMPACT_SUFFIX : name;
+    }
+
+    private void readRaw() {
+        mParser = new ObjParser();
 
+        InputStream inputStream = null;
         try {
-            Scanner scanner = new Scanner(mContext.getAssets().open(mFileName));
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (line.startsWith("f ")) {
-                    mFacesList.add(line.substring(2));
-                } else if (line.startsWith("v ")) {
-                    mVerticesList.add(line.substring(2));
-                } else if (line.startsWith("vn ")) {
-                    mNormalsList.add(line.substring(3));
-                } else if (line.startsWith("vt ")) {
-                    mTexelsList.add(line.substring(3));
+            inputStream = mContext.getAssets().open(mFileName);
+            int processors = Runtime.getRuntime().availableProcessors();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && processors > 1) {
+                // the parallel parser needs the whole file in memory
+                int[] length = new int[1];
+                byte[] data = readFully(inputStream, length);
+                if (length[0] >= PARALLEL_IMPORT_SIZE) {
+                    parseParallel(data, length[0], processors);
+                } else {
+                    mParser.parse(data, 0, length[0]);
                 }
+            } else {
+                mParser.parse(inputStream);
             }
         } catch (IOException e) {
             e.printStackTrace();
             Log.e(TAG, "readRaw: object file could not be read");
+        } finally {
+            closeQuietly(inputStream);
         }
     }
 
-    private void allocateBuffer() {
-        mVerticesBuffer = ByteBuffer.allocateDirect(mFacesList.size() * mFacesCount * mVertexSize * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mNormalsBuffer = ByteBuffer.allocateDirect(mFacesList.size() * mFacesCount * mNormalSize * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mTexelsBuffer = ByteBuffer.allocateDirect(mFacesList.size() * mFacesCount * mTexelSize * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    /**
+     * Parses and welds on a fork join pool, the result is the same as from the sequential path.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void parseParallel(byte[] data, int length, int processors) {
+        ForkJoinPool pool = new ForkJoinPool(processors);
+        try {
+            ParallelObjParser parser = new ParallelObjParser(pool);
+            parser.parse(data, length);
+            mMeshData = parser.weld();
+            mParser = null;
+        } finally {
+            pool.shutdown();
+        }
     }
 
-    private void populateBuffer() {
-        for (String faces : mFacesList) {
-            String points[] = faces.split(" ");
-            for (String singlePoint : points) {
-                String element[] = singlePoint.split("/");
-                String vertice[] = mVerticesList.get(Integer.valueOf(element[0]) - 1).split(" ");
-                String normal[] = mNormalsList.get(Integer.valueOf(element[2]) - 1).split(" ");
-                String texel[] = mTexelsList.get(Integer.valueOf(element[1]) - 1).split(" ");
-                for (String value : vertice) {
-                    mVerticesBuffer.put(Float.parseFloat(value));
-                }
-                for (String value : normal) {
-                    mNormalsBuffer.put(Float.parseFloat(value));
-                }
-                for (String value : texel) {
-                    mTexelsBuffer.put(Float.parseFloat(value));
-                }
+    private static byte[] readFully(InputStream inputStream, int[] length) throws IOException {
+        byte[] data = new byte[Math.max(inputStream.available(), 64 * 1024)];
+        int size = 0;
+        while (true) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length << 1);
             }
+            int read = inputStream.read(data, size, data.length - size);
+            if (read == -1) {
+                break;
+            }
+            size += read;
+        }
+        length[0] = size;
+        return data;
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void weldVertices() {
+        if (mMeshData != null) {
+            // already welded by the parallel import
+            return;
+        }
+        mMeshData = VertexWelder.weld(mParser.getPositions(), mParser.getTexels(),
+                mParser.getNormals(), mParser.getFaces());
+        // the raw obj data is not needed any more
+        mParser = null;
+    }
+
+    /**
+     * Reorders the mesh for the vertex cache, overdraw and vertex fetch. Runs on import only,
+     * the cache stores the optimized mesh.
+     */
+    private void optimizeMesh() {
+        VertexCacheStatistics before = VertexCacheStatistics.analyze(mMeshData.getIndices(),
+                mMeshData.getVertexCount(), MeshOptimizer.DEFAULT_CACHE_SIZE);
+        mMeshData = MeshOptimizer.optimize(mMeshData);
+        VertexCacheStatistics after = VertexCacheStatistics.analyze(mMeshData.getIndices(),
+                mMeshData.getVertexCount(), MeshOptimizer.DEFAULT_CACHE_SIZE);
+        Log.d(TAG, "optimizeMesh: " + mFileName + " " + before + " -> " + after);
+    }
+
+    /**
+     * Appends the simplified levels to the index data, they share the vertices of the full mesh.
+     */
+    private void generateLods() {
+        if (mLodRatios.length == 0 || mMeshData.getIndexCount() == 0) {
+            return;
+        }
+        mMeshData = MeshSimplifier.buildLods(mMeshData, mLodRatios);
+        StringBuilder levels = new StringBuilder();
+        for (int lod = 0; lod < mMeshData.getLodCount(); lod++) {
+            levels.append(' ').append(mMeshData.getLodIndexCount(lod) / 3);
         }
-        mObjectTextureHandle = TextureHelper.loadTexture(mContext, R.drawable.android);
+        Log.d(TAG, "generateLods: " + mFileName + " triangles" + levels);
+    }
+
+    /**
+     * Clusters the full detail level of large meshes, so that hidden parts can be skipped.
+     */
+    private void buildMeshlets() {
+        if (mMeshData.getTriangleCount() < MeshletBuilder.MIN_MESH_TRIANGLES) {
+            return;
+        }
+        mMeshData = MeshletBuilder.build(mMeshData, MeshletBuilder.DEFAULT_MAX_TRIANGLES);
+        Log.d(TAG, "buildMeshlets: " + mFileName + " " + mMeshData.getMeshlets().getCount() + " clusters");
+    }
+
+    private void populateBuffer() {
+        mMeshBuffers = mCompactVertices ? VertexQuantizer.quantize(mMeshData) : MeshBuffers.fromMeshData(mMeshData);
+        // the depth passes need neither normals nor texels, so their seams are welded away
+        MeshData positions = PositionWelder.weld(mMeshData);
+        mDepthBuffers = mCompactVertices ? VertexQuantizer.quantizePositions(positions, mMeshBuffers.getBounds())
+                : MeshBuffers.fromPositions(positions, mMeshBuffers.getBounds());
+        Log.d(TAG, "populateBuffer: " + mFileName + " " + mMeshData.getVertexCount() + " vertices, "
+                + positions.getVertexCount() + " for depth");
+        mMeshData = null;
+    }
+
+    /**
+     * Creates the GL resources, needs the GL thread.
+     */
+    public void upload() {
+        mObjectTextureHandle = TextureHelper.loadTexture(mTextureBitmap);
         GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        mTextureBitmap = null;
     }
 
-    public FloatBuffer getVerticesBuffer() {
-        return mVerticesBuffer;
+    /**
+     * Approximate number of bytes {@link #upload()} and the following mesh upload hand to GL. The mesh no longer counts
+     * after {@link #releaseMeshBuffers()}.
+     */
+    public long getByteSize() {
+        long bytes = 0;
+        if (mMeshBuffers != null) {
+            bytes += mMeshBuffers.getByteSize() + mDepthBuffers.getByteSize();
+        }
+        if (mTextureBitmap != null) {
+            bytes += mTextureBitmap.getByteCount();
+        }
+        return bytes;
     }
 
-    public FloatBuffer getNormalsBuffer() {
-        return mNormalsBuffer;
+    /**
+     * Interleaved vertex data and indices, null after {@link #releaseMeshBuffers()}.
+     */
+    public MeshBuffers getMeshBuffers() {
+        return mMeshBuffers;
     }
 
-    public FloatBuffer getTexelsBuffer() {
-        return mTexelsBuffer;
+    /**
+     * Position only copy of the mesh for the depth passes, null after {@link #releaseMeshBuffers()}.
+     * It shares index ranges, clusters and position transform with {@link #getMeshBuffers()}.
+     */
+    public MeshBuffers getDepthBuffers() {
+        return mDepthBuffers;
+    }
+
+    /**
+     * Drops the CPU side copy of the mesh once it lives in GL buffers.
+     */
+    public void releaseMeshBuffers() {
+        mBounds = mMeshBuffers.getBounds();
+        mBoundingSphere = mMeshBuffers.getBoundingSphere();
+        mMeshBuffers = null;
+        mDepthBuffers = null;
     }
 
     public int getObjectTextureHandle() {
         return mObjectTextureHandle;
     }
 
-    public int getPositionSize(){
-        return mFacesList.size()*3;
+    /**
+     * Axis aligned bounding box as minX, minY, minZ, maxX, maxY, maxZ.
+     */
+    public float[] getBounds() {
+        return mMeshBuffers != null ? mMeshBuffers.getBounds() : mBounds;
+    }
+
+    /**
+     * Bounding sphere as center x, y, z and radius.
+     */
+    public float[] getBoundingSphere() {
+        return mMeshBuffers != null ? mMeshBuffers.getBoundingSphere() : mBoundingSphere;
     }
 }
@@ -0,0 +1,199 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+
+/**
+ * Direct buffers of an indexed mesh, ready to be handed to GL. All attributes of a vertex are
+ * interleaved as described by the {@link VertexLayout}. The buffers are either built from a
+ * {@link MeshData} or are views into a memory mapped {@link MeshCache} file.
+ */
+
+public class MeshBuffers {
+
+    private final ByteBuffer mVertices;
+    private final VertexLayout mLayout;
+    private final Buffer mIndices;
+    private final int mIndexType;
+    private final int mIndexCount;
+    private final int mVertexCount;
+    private final float[] mBounds;
+    private final float[] mBoundingSphere;
+    private final int[] mLodOffsets;
+    private final float[] mLodErrors;
+    private final Meshlets mMeshlets;
+
+    public MeshBuffers(ByteBuffer vertices, VertexLayout layout, Buffer indices, int indexType,
+                       int indexCount, int vertexCount, float[] bounds) {
+        this(vertices, layout, indices, indexType, indexCount, vertexCount, bounds,
+                new int[]{0, indexCount}, new float[]{0f});
+    }
+
+    /**
+     * @param lodOffsets first index of every level of detail followed by the index count
+     * @param lodErrors  simplification error of every level, see {@link MeshData#getLodErrors()}
+     */
+    public MeshBuffers(ByteBuffer vertices, VertexLayout layout, Buffer indices, int indexType,
+                       int indexCount, int vertexCount, float[] bounds, int[] lodOffsets, float[] lodErrors) {
+        this(vertices, layout, indices, indexType, indexCount, vertexCount, bounds, lodOffsets, lodErrors, null);
+    }
+
+    /**
+     * @param meshlets clusters of level 0, null if the mesh is drawn as a whole
+     */
+    public MeshBuffers(ByteBuffer vertices, VertexLayout layout, Buffer indices, int indexType,
+                       int indexCount, int vertexCount, float[] bounds, int[] lodOffsets, float[] lodErrors,
+                       Meshlets meshlets) {
+        this(vertices, layout, indices, indexType, indexCount, vertexCount, bounds,
+                MeshData.computeBoundingSphere(bounds), lodOffsets, lodErrors, meshlets);
+    }
+
+    /**
+     * @param boundingSphere center x, y, z and radius, see {@link MeshData#getBoundingSphere()}
+     */
+    public MeshBuffers(ByteBuffer vertices, VertexLayout layout, Buffer indices, int indexType,
+                       int indexCount, int vertexCount, float[] bounds, float[] boundingSphere, int[] lodOffsets,
+                       float[] lodErrors, Meshlets meshlets) {
+        mVertices = vertices;
+        mLayout = layout;
+        mIndices = indices;
+        mIndexType = indexType;
+        mIndexCount = indexCount;
+        mVertexCount = vertexCount;
+        mBounds = bounds;
+        mBoundingSphere = boundingSphere;
+        mLodOffsets = lodOffsets;
+        mLodErrors = lodErrors;
+        mMeshlets = meshlets;
+    }
+
+    /**
+     * Interleaves the mesh into the {@link VertexLayout#FLOAT} layout.
+     */
+    public static MeshBuffers fromMeshData(MeshData meshData) {
+        int vertexCount = meshData.getVertexCount();
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] texels = meshData.getTexels();
+        int floatsPerVertex = MeshData.POSITION_SIZE + MeshData.NORMAL_SIZE + MeshData.TEXEL_SIZE;
+
+        float[] interleaved = new float[vertexCount * floatsPerVertex];
+        for (int vertex = 0, offset = 0; vertex < vertexCount; vertex++, offset += floatsPerVertex) {
+            System.arraycopy(positions, vertex * MeshData.POSITION_SIZE, interleaved, offset, MeshData.POSITION_SIZE);
+            System.arraycopy(normals, vertex * MeshData.NORMAL_SIZE,
+                    interleaved, offset + MeshData.POSITION_SIZE, MeshData.NORMAL_SIZE);
+            System.arraycopy(texels, vertex * MeshData.TEXEL_SIZE,
+                    interleaved, offset + MeshData.POSITION_SIZE + MeshData.NORMAL_SIZE, MeshData.TEXEL_SIZE);
+        }
+        ByteBuffer vertices = ByteBuffer.allocateDirect(interleaved.length * 4).order(ByteOrder.nativeOrder());
+        vertices.asFloatBuffer().put(interleaved);
+
+        return new MeshBuffers(vertices, VertexLayout.FLOAT,
+                BufferHelper.createIndexBuffer(meshData.getIndices(), vertexCount),
+                BufferHelper.getIndexType(vertexCount),
+                meshData.getIndexCount(), vertexCount, meshData.getBounds(), meshData.getBoundingSphere(),
+                meshData.getLodOffsets(), meshData.getLodErrors(), meshData.getMeshlets());
+    }
+
+    /**
+     * Copies a position only mesh into the {@link VertexLayout#POSITION} layout.
+     *
+     * @param bounds those of the shaded mesh
+     */
+    public static MeshBuffers fromPositions(MeshData meshData, float[] bounds) {
+        int vertexCount = meshData.getVertexCount();
+        ByteBuffer vertices = ByteBuffer.allocateDirect(vertexCount * VertexLayout.POSITION.getStride())
+                .order(ByteOrder.nativeOrder());
+        vertices.asFloatBuffer().put(meshData.getPositions(), 0, vertexCount * MeshData.POSITION_SIZE);
+
+        return new MeshBuffers(vertices, VertexLayout.POSITION,
+                BufferHelper.createIndexBuffer(meshData.getIndices(), vertexCount),
+                BufferHelper.getIndexType(vertexCount),
+                meshData.getIndexCount(), vertexCount, bounds,
+                meshData.getLodOffsets(), meshData.getLodErrors(), meshData.getMeshlets());
+    }
+
+    /**
+     * Interleaved vertex data, {@link VertexLayout#getStride()} bytes per vertex.
+     */
+    public ByteBuffer getVertices() {
+        return mVertices;
+    }
+
+    public VertexLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * A float view of the vertex data, only valid for float layouts.
+     */
+    public FloatBuffer getVerticesAsFloats() {
+        ByteBuffer duplicate = mVertices.duplicate().order(ByteOrder.nativeOrder());
+        duplicate.position(0);
+        return duplicate.asFloatBuffer();
+    }
+
+    public Buffer getIndices() {
+        return mIndices;
+    }
+
+    public int getIndexType() {
+        return mIndexType;
+    }
+
+    public int getIndexCount() {
+        return mIndexCount;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getLodCount() {
+        return mLodErrors.length;
+    }
+
+    /**
+     * First index of every level of detail followed by the index count.
+     */
+    public int[] getLodOffsets() {
+        return mLodOffsets;
+    }
+
+    public float[] getLodErrors() {
+        return mLodErrors;
+    }
+
+    /**
+     * Clusters of level 0 or null.
+     */
+    public Meshlets getMeshlets() {
+        return mMeshlets;
+    }
+
+    /**
+     * Bytes of vertex and index data.
+     */
+    public long getByteSize() {
+        return (long) mVertexCount * mLayout.getStride()
+                + (long) mIndexCount * BufferHelper.getIndexSize(mIndexType);
+    }
+
+    /**
+     * Axis aligned bounding box as minX, minY, minZ, maxX, maxY, maxZ.
+     */
+    public float[] getBounds() {
+        return mBounds;
+    }
+
+    /**
+     * Bounding sphere as center x, y, z and radius.
+     */
+    public float[] getBoundingSphere() {
+        return mBoundingSphere;
+    }
+}
@@ -0,0 +1,329 @@
+package bertrandt.shadows.openGL.importer;
+
+import android.opengl.GLES20;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+
+/**
+ * Binary cache for imported meshes.
+ *
+ * A mesh is written once after its obj file was imported. Later loads memory map the file and
+ * hand out buffer views into the mapping, so neither parsing nor copying is needed before the
+ * data goes to GL. Files are keyed by asset name and a hash of the asset content, a changed
+ * asset therefore never hits an outdated entry.
+ *
+ * File layout, all values in native byte order:
+ * <pre>
+ * header     magic, version, byte order marker, vertex count, index count, index type,
+ *            attribute count, vertex stride, byte offset of the vertex data
+ * attributes per attribute: semantic, component count, component type, normalized, byte offset
+ *            within the vertex
+ * bounds     minX, minY, minZ, maxX, maxY, maxZ, bounding sphere center x, y, z and radius
+ * indices    byte offset of the index data
+ * lods       level count, first index of every level followed by the index count, error of
+ *            every level
+ * meshlets   cluster count, if not 0 followed by the first index of every cluster and the end
+ *            of the last one, then the bounds of every cluster, see {@link Meshlets}
+ * data       interleaved vertex data and index data, each aligned to {@link #ALIGNMENT} bytes
+ * </pre>
+ */
+
+public class MeshCache {
+
+    private static final int MAGIC = 0x4853454D; // "MESH"
+    /**
+     * Also changes when the import produces different meshes, e.g. a new optimization step.
+     */
+    private static final int VERSION = 6;
+    private static final int BYTE_ORDER_MARKER = 0x01020304;
+    private static final int ALIGNMENT = 16;
+    private static final String EXTENSION = ".mesh";
+
+    private static final int HEADER_INTS = 9;
+    private static final int ATTRIBUTE_INTS = 5;
+    private static final int MAX_ATTRIBUTES = 8;
+    private static final int BOUNDS_FLOATS = 6;
+    private static final int SPHERE_FLOATS = 4;
+    private static final int MAX_LODS = 8;
+
+    private final File mDirectory;
+
+    public MeshCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Hash of the complete stream content. The stream is read to its end but not closed.
+     */
+    public static long hash(InputStream inputStream) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            length += read;
+        }
+        // mix in the length, the crc alone is only 32 bit
+        return (length << 32) ^ crc.getValue();
+    }
+
+    public File getFile(String name, long contentHash) {
+        String safeName = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(mDirectory, safeName + "-" + Long.toHexString(contentHash) + EXTENSION);
+    }
+
+    /**
+     * Memory maps a cached mesh.
+     *
+     * @return the mapped mesh or null if there is no valid entry
+     */
+    public MeshBuffers load(String name, long contentHash) throws IOException {
+        File file = getFile(name, contentHash);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        FileInputStream inputStream = new FileInputStream(file);
+        MappedByteBuffer mapped;
+        try {
+            FileChannel channel = inputStream.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            inputStream.close();
+        }
+        mapped.order(ByteOrder.nativeOrder());
+
+        if (mapped.limit() < getHeaderSize(0, 0, 0) || mapped.getInt() != MAGIC || mapped.getInt() != VERSION
+                || mapped.getInt() != BYTE_ORDER_MARKER) {
+            return null;
+        }
+        int vertexCount = mapped.getInt();
+        int indexCount = mapped.getInt();
+        int indexType = mapped.getInt();
+        int attributeCount = mapped.getInt();
+        int stride = mapped.getInt();
+        int vertexOffset = mapped.getInt();
+        if (attributeCount <= 0 || attributeCount > MAX_ATTRIBUTES || mapped.limit() < getHeaderSize(attributeCount, 0, 0)) {
+            return null;
+        }
+
+        VertexLayout.Builder builder = new VertexLayout.Builder();
+        int[] offsets = new int[attributeCount];
+        for (int i = 0; i < attributeCount; i++) {
+            int semantic = mapped.getInt();
+            int size = mapped.getInt();
+            int type = mapped.getInt();
+            boolean normalized = mapped.getInt() != 0;
+            offsets[i] = mapped.getInt();
+            builder.add(semantic, size, type, normalized);
+        }
+        VertexLayout layout = builder.build();
+        if (layout.getStride() != stride) {
+            return null;
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            if (layout.getOffset(i) != offsets[i]) {
+                return null;
+            }
+        }
+        float[] bounds = new float[BOUNDS_FLOATS];
+        for (int i = 0; i < BOUNDS_FLOATS; i++) {
+            bounds[i] = mapped.getFloat();
+        }
+        float[] boundingSphere = new float[SPHERE_FLOATS];
+        for (int i = 0; i < SPHERE_FLOATS; i++) {
+            boundingSphere[i] = mapped.getFloat();
+        }
+        int indexOffset = mapped.getInt();
+        int lodCount = mapped.getInt();
+        if (lodCount <= 0 || lodCount > MAX_LODS || mapped.limit() < getHeaderSize(attributeCount, lodCount, 0)) {
+            return null;
+        }
+        int[] lodOffsets = new int[lodCount + 1];
+        for (int i = 0; i <= lodCount; i++) {
+            lodOffsets[i] = mapped.getInt();
+            if (i > 0 ? lodOffsets[i] < lodOffsets[i - 1] : lodOffsets[i] != 0) {
+                return null;
+            }
+        }
+        if (lodOffsets[lodCount] != indexCount) {
+            return null;
+        }
+        float[] lodErrors = new float[lodCount];
+        for (int i = 0; i < lodCount; i++) {
+            lodErrors[i] = mapped.getFloat();
+        }
+        Meshlets meshlets = null;
+        int meshletCount = mapped.getInt();
+        if (meshletCount < 0 || mapped.limit() < getHeaderSize(attributeCount, lodCount, meshletCount)) {
+            return null;
+        }
+        if (meshletCount > 0) {
+            int[] meshletOffsets = new int[meshletCount + 1];
+            for (int i = 0; i <= meshletCount; i++) {
+                meshletOffsets[i] = mapped.getInt();
+                if (i > 0 && meshletOffsets[i] < meshletOffsets[i - 1]) {
+                    return null;
+                }
+            }
+            if (meshletOffsets[0] != 0 || meshletOffsets[meshletCount] != lodOffsets[1]) {
+                return null;
+            }
+            float[] meshletBounds = new float[meshletCount * Meshlets.BOUNDS_SIZE];
+            mapped.asFloatBuffer().get(meshletBounds);
+            mapped.position(mapped.position() + meshletBounds.length * 4);
+            meshlets = new Meshlets(meshletOffsets, meshletBounds);
+        }
+        int indexBytes = indexCount * BufferHelper.getIndexSize(indexType);
+        if ((long) vertexOffset + (long) vertexCount * stride > mapped.limit()
+                || (long) indexOffset + indexBytes > mapped.limit()) {
+            return null;
+        }
+
+        ByteBuffer vertices = slice(mapped, vertexOffset, vertexCount * stride);
+        ByteBuffer indices = slice(mapped, indexOffset, indexBytes);
+        return new MeshBuffers(vertices, layout,
+                indexType == GLES20.GL_UNSIGNED_SHORT ? indices.asShortBuffer() : indices.asIntBuffer(),
+                indexType, indexCount, vertexCount, bounds, boundingSphere, lodOffsets, lodErrors, meshlets);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Writes a mesh to the cache. The file is written under a temporary name and renamed when
+     * complete, so an interrupted write never leaves a broken entry behind.
+     */
+    public void store(String name, long contentHash, MeshBuffers mesh) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create mesh cache directory " + mDirectory);
+        }
+
+        VertexLayout layout = mesh.getLayout();
+        int attributeCount = layout.getAttributeCount();
+        int vertexBytes = mesh.getVertexCount() * layout.getStride();
+        int indexType = mesh.getIndexType();
+        int lodCount = mesh.getLodCount();
+        Meshlets meshlets = mesh.getMeshlets();
+        int meshletCount = meshlets != null ? meshlets.getCount() : 0;
+        int vertexOffset = align(getHeaderSize(attributeCount, lodCount, meshletCount));
+        int indexOffset = align(vertexOffset + vertexBytes);
+        int fileSize = indexOffset + mesh.getIndexCount() * BufferHelper.getIndexSize(indexType);
+
+        ByteBuffer buffer = ByteBuffer.allocate(fileSize).order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(BYTE_ORDER_MARKER)
+                .putInt(mesh.getVertexCount()).putInt(mesh.getIndexCount()).putInt(indexType)
+                .putInt(attributeCount).putInt(layout.getStride()).putInt(vertexOffset);
+        for (int i = 0; i < attributeCount; i++) {
+            buffer.putInt(layout.getSemantic(i)).putInt(layout.getSize(i)).putInt(layout.getType(i))
+                    .putInt(layout.isNormalized(i) ? 1 : 0).putInt(layout.getOffset(i));
+        }
+        for (float bound : mesh.getBounds()) {
+            buffer.putFloat(bound);
+        }
+        for (float bound : mesh.getBoundingSphere()) {
+            buffer.putFloat(bound);
+        }
+        buffer.putInt(indexOffset);
+        buffer.putInt(lodCount);
+        for (int offset : mesh.getLodOffsets()) {
+            buffer.putInt(offset);
+        }
+        for (float error : mesh.getLodErrors()) {
+            buffer.putFloat(error);
+        }
+        buffer.putInt(meshletCount);
+        if (meshletCount > 0) {
+            for (int offset : meshlets.getIndexOffsets()) {
+                buffer.putInt(offset);
+            }
+            for (float bound : meshlets.getBounds()) {
+                buffer.putFloat(bound);
+            }
+        }
+
+        buffer.position(vertexOffset);
+        ByteBuffer vertices = mesh.getVertices().duplicate();
+        vertices.position(0);
+        vertices.limit(vertexBytes);
+        buffer.put(vertices);
+
+        buffer.position(indexOffset);
+        if (indexType == GLES20.GL_UNSIGNED_SHORT) {
+            ShortBuffer indices = ((ShortBuffer) mesh.getIndices()).duplicate();
+            indices.position(0);
+            buffer.asShortBuffer().put(indices);
+        } else {
+            IntBuffer indices = ((IntBuffer) mesh.getIndices()).duplicate();
+            indices.position(0);
+            buffer.asIntBuffer().put(indices);
+        }
+        buffer.position(0);
+
+        File file = getFile(name, contentHash);
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not move mesh cache file to " + file);
+        }
+        deleteOutdated(name, file);
+    }
+
+    /**
+     * Removes entries of the same asset with a different content hash.
+     */
+    private void deleteOutdated(String name, File current) {
+        String prefix = getFile(name, 0).getName();
+        prefix = prefix.substring(0, prefix.lastIndexOf('-') + 1);
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!file.equals(current) && fileName.startsWith(prefix) && fileName.endsWith(EXTENSION)
+                    && fileName.indexOf('-', prefix.length()) < 0) {
+                file.delete();
+            }
+        }
+    }
+
+    private static int getHeaderSize(int attributeCount, int lodCount, int meshletCount) {
+        int meshletInts = meshletCount > 0 ? 1 + meshletCount * (1 + Meshlets.BOUNDS_SIZE) + 1 : 1;
+        return (HEADER_INTS + attributeCount * ATTRIBUTE_INTS + BOUNDS_FLOATS + SPHERE_FLOATS + 1 + 2 + 2 * lodCount
+                + meshletInts) * 4;
+    }
+
+    private static int align(int offset) {
+        return (offset + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+}
@@ -0,0 +1,187 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+
+/**
+ * Indexed triangle mesh on the java heap. Every vertex owns one position, normal and texel,
+ * three indices form a triangle.
+ *
+ * The index array may hold several levels of detail of the same vertices one after another,
+ * see {@link MeshSimplifier}. Level 0 is the full mesh.
+ */
+
+public class MeshData {
+
+    public static final int POSITION_SIZE = 3;
+    public static final int NORMAL_SIZE = 3;
+    public static final int TEXEL_SIZE = 2;
+
+    private final float[] mPositions;
+    private final float[] mNormals;
+    private final float[] mTexels;
+    private final int[] mIndices;
+    private final int[] mLodOffsets;
+    private final float[] mLodErrors;
+    private final Meshlets mMeshlets;
+
+    private float[] mBounds;
+    private float[] mBoundingSphere;
+
+    /**
+     * A mesh with a single level of detail.
+     */
+    public MeshData(float[] positions, float[] normals, float[] texels, int[] indices) {
+        this(positions, normals, texels, indices, new int[]{0, indices.length}, new float[]{0f});
+    }
+
+    /**
+     * @param lodOffsets start of every level in the indices, followed by the index count
+     * @param lodErrors  simplification error of every level relative to the bounding radius
+     */
+    public MeshData(float[] positions, float[] normals, float[] texels, int[] indices,
+                    int[] lodOffsets, float[] lodErrors) {
+        this(positions, normals, texels, indices, lodOffsets, lodErrors, null);
+    }
+
+    /**
+     * @param meshlets clusters of level 0, null if the mesh is not clustered
+     */
+    public MeshData(float[] positions, float[] normals, float[] texels, int[] indices,
+                    int[] lodOffsets, float[] lodErrors, Meshlets meshlets) {
+        mPositions = positions;
+        mNormals = normals;
+        mTexels = texels;
+        mIndices = indices;
+        mLodOffsets = lodOffsets;
+        mLodErrors = lodErrors;
+        mMeshlets = meshlets;
+    }
+
+    public float[] getPositions() {
+        return mPositions;
+    }
+
+    public float[] getNormals() {
+        return mNormals;
+    }
+
+    public float[] getTexels() {
+        return mTexels;
+    }
+
+    public int[] getIndices() {
+        return mIndices;
+    }
+
+    /**
+     * Axis aligned bounding box of all positions as minX, minY, minZ, maxX, maxY, maxZ.
+     */
+    public float[] getBounds() {
+        if (mBounds == null) {
+            mBounds = computeBounds(mPositions, getVertexCount());
+        }
+        return mBounds;
+    }
+
+    public static float[] computeBounds(float[] positions, int vertexCount) {
+        float[] bounds = new float[]{
+                Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float value = positions[vertex * POSITION_SIZE + axis];
+                bounds[axis] = Math.min(bounds[axis], value);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], value);
+            }
+        }
+        if (vertexCount == 0) {
+            Arrays.fill(bounds, 0f);
+        }
+        return bounds;
+    }
+
+    /**
+     * Bounding sphere of all positions as center x, y, z and radius.
+     */
+    public float[] getBoundingSphere() {
+        if (mBoundingSphere == null) {
+            mBoundingSphere = computeBoundingSphere(mPositions, getVertexCount(), getBounds());
+        }
+        return mBoundingSphere;
+    }
+
+    /**
+     * The sphere around the center of the bounding box that touches the farthest position, at
+     * most as large as the sphere around the box.
+     */
+    public static float[] computeBoundingSphere(float[] positions, int vertexCount, float[] bounds) {
+        float centerX = (bounds[0] + bounds[3]) * 0.5f;
+        float centerY = (bounds[1] + bounds[4]) * 0.5f;
+        float centerZ = (bounds[2] + bounds[5]) * 0.5f;
+        float radiusSquared = 0f;
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            float x = positions[vertex * POSITION_SIZE] - centerX;
+            float y = positions[vertex * POSITION_SIZE + 1] - centerY;
+            float z = positions[vertex * POSITION_SIZE + 2] - centerZ;
+            radiusSquared = Math.max(radiusSquared, x * x + y * y + z * z);
+        }
+        return new float[]{centerX, centerY, centerZ, (float) Math.sqrt(radiusSquared)};
+    }
+
+    /**
+     * The sphere around a bounding box, for meshes without positions at hand.
+     */
+    public static float[] computeBoundingSphere(float[] bounds) {
+        float extentX = bounds[3] - bounds[0];
+        float extentY = bounds[4] - bounds[1];
+        float extentZ = bounds[5] - bounds[2];
+        return new float[]{(bounds[0] + bounds[3]) * 0.5f, (bounds[1] + bounds[4]) * 0.5f,
+                (bounds[2] + bounds[5]) * 0.5f,
+                0.5f * (float) Math.sqrt(extentX * extentX + extentY * extentY + extentZ * extentZ)};
+    }
+
+    public int getVertexCount() {
+        return mPositions.length / POSITION_SIZE;
+    }
+
+    /**
+     * Indices of all levels of detail.
+     */
+    public int getIndexCount() {
+        return mIndices.length;
+    }
+
+    /**
+     * Triangles of the full detail level.
+     */
+    public int getTriangleCount() {
+        return getLodIndexCount(0) / 3;
+    }
+
+    public int getLodCount() {
+        return mLodErrors.length;
+    }
+
+    public int getLodIndexOffset(int lod) {
+        return mLodOffsets[lod];
+    }
+
+    public int getLodIndexCount(int lod) {
+        return mLodOffsets[lod + 1] - mLodOffsets[lod];
+    }
+
+    public int[] getLodOffsets() {
+        return mLodOffsets;
+    }
+
+    public float[] getLodErrors() {
+        return mLodErrors;
+    }
+
+    /**
+     * Clusters of level 0 or null.
+     */
+    public Meshlets getMeshlets() {
+        return mMeshlets;
+    }
+}
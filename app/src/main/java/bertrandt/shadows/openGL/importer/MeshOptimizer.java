@@ -0,0 +1,343 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import bertrandt.shadows.openGL.common.IntArrayList;
+
+/**
+ * Reorders a welded mesh for the GPU, runs once at import before the mesh is cached.
+ *
+ * <ol>
+ * <li>Triangles are ordered for the post transform vertex cache with Tipsify (Sander, Nehab
+ * and Barczak, "Fast triangle reordering for vertex locality and reduced overdraw", 2007).</li>
+ * <li>The result is cut into clusters at points where the cache has to start over, and where
+ * the cluster ACMR is close to the whole cluster's. The clusters are sorted front to back for
+ * a view independent occlusion estimate, so outward facing parts of the mesh are drawn first
+ * and hide more of the fragments behind them.</li>
+ * <li>Vertices are renumbered in the order the index buffer references them first, so vertex
+ * fetch runs through the vertex buffer linearly. Unreferenced vertices are dropped.</li>
+ * </ol>
+ */
+
+public class MeshOptimizer {
+
+    /**
+     * Cache size to optimize for, mobile GPUs have between 16 and 32 entries.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+    /**
+     * How much worse than the original order the ACMR of the overdraw order may get.
+     */
+    public static final float DEFAULT_OVERDRAW_THRESHOLD = 1.05f;
+
+    public static MeshData optimize(MeshData mesh) {
+        int[] indices = optimizeVertexCache(mesh.getIndices(), mesh.getVertexCount(), DEFAULT_CACHE_SIZE);
+        indices = optimizeOverdraw(indices, mesh.getPositions(), mesh.getVertexCount(),
+                DEFAULT_CACHE_SIZE, DEFAULT_OVERDRAW_THRESHOLD);
+        return optimizeVertexFetch(new MeshData(mesh.getPositions(), mesh.getNormals(), mesh.getTexels(), indices));
+    }
+
+    /**
+     * Tipsify: fans around one vertex at a time and picks the next fanning vertex among the
+     * vertices just emitted, preferring one that is still in the cache and whose remaining
+     * triangles fit in.
+     */
+    public static int[] optimizeVertexCache(int[] indices, int vertexCount, int cacheSize) {
+        int triangleCount = indices.length / 3;
+        int[] adjacencyOffsets = new int[vertexCount + 1];
+        int[] adjacency = buildAdjacency(indices, vertexCount, adjacencyOffsets);
+
+        int[] liveTriangles = new int[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            liveTriangles[vertex] = adjacencyOffsets[vertex + 1] - adjacencyOffsets[vertex];
+        }
+        int[] cacheTime = new int[vertexCount];
+        boolean[] emitted = new boolean[triangleCount];
+        // every emitted corner is pushed once
+        int[] deadEnd = new int[indices.length];
+        int deadEndSize = 0;
+        IntArrayList candidates = new IntArrayList(64);
+
+        int[] result = new int[indices.length];
+        int output = 0;
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int fanning = 0;
+        while (fanning >= 0 && vertexCount > 0) {
+            candidates.clear();
+            for (int i = adjacencyOffsets[fanning]; i < adjacencyOffsets[fanning + 1]; i++) {
+                int triangle = adjacency[i];
+                if (emitted[triangle]) {
+                    continue;
+                }
+                for (int corner = 0; corner < 3; corner++) {
+                    int vertex = indices[triangle * 3 + corner];
+                    result[output++] = vertex;
+                    deadEnd[deadEndSize++] = vertex;
+                    candidates.add(vertex);
+                    liveTriangles[vertex]--;
+                    if (time - cacheTime[vertex] > cacheSize) {
+                        cacheTime[vertex] = time;
+                        time++;
+                    }
+                }
+                emitted[triangle] = true;
+            }
+
+            // next fanning vertex among the candidates
+            int best = -1;
+            int bestPriority = -1;
+            for (int i = 0; i < candidates.size(); i++) {
+                int vertex = candidates.get(i);
+                if (liveTriangles[vertex] <= 0) {
+                    continue;
+                }
+                int priority = 0;
+                if (time - cacheTime[vertex] + 2 * liveTriangles[vertex] <= cacheSize) {
+                    priority = time - cacheTime[vertex];
+                }
+                if (priority > bestPriority) {
+                    bestPriority = priority;
+                    best = vertex;
+                }
+            }
+
+            if (best < 0) {
+                // dead end, go back to a recently used vertex or continue in input order
+                while (deadEndSize > 0) {
+                    int vertex = deadEnd[--deadEndSize];
+                    if (liveTriangles[vertex] > 0) {
+                        best = vertex;
+                        break;
+                    }
+                }
+                while (best < 0 && cursor < vertexCount) {
+                    if (liveTriangles[cursor] > 0) {
+                        best = cursor;
+                    }
+                    cursor++;
+                }
+            }
+            fanning = best;
+        }
+        return result;
+    }
+
+    /**
+     * Sorts clusters of a cache optimized index buffer so that triangles likely in front are
+     * drawn first. Clusters never get a worse ACMR than {@code threshold} times their own.
+     */
+    public static int[] optimizeOverdraw(int[] indices, float[] positions, int vertexCount,
+                                         int cacheSize, float threshold) {
+        if (indices.length == 0) {
+            return indices;
+        }
+        final int[] clusters = findClusters(indices, vertexCount, cacheSize, threshold);
+        int clusterCount = clusters.length - 1;
+
+        // area weighted centroid and normal per cluster
+        float[] centroids = new float[clusterCount * 3];
+        float[] normals = new float[clusterCount * 3];
+        float[] meshCentroid = new float[3];
+        float meshArea = 0f;
+        float[] normal = new float[3];
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            float clusterArea = 0f;
+            for (int triangle = clusters[cluster]; triangle < clusters[cluster + 1]; triangle++) {
+                int a = indices[triangle * 3] * 3;
+                int b = indices[triangle * 3 + 1] * 3;
+                int c = indices[triangle * 3 + 2] * 3;
+                float area = triangleNormal(positions, a, b, c, normal);
+                for (int i = 0; i < 3; i++) {
+                    float centroid = (positions[a + i] + positions[b + i] + positions[c + i]) / 3f * area;
+                    centroids[cluster * 3 + i] += centroid;
+                    meshCentroid[i] += centroid;
+                    // the cross product is already weighted by the area
+                    normals[cluster * 3 + i] += normal[i];
+                }
+                clusterArea += area;
+            }
+            for (int i = 0; i < 3; i++) {
+                centroids[cluster * 3 + i] = clusterArea > 0f ? centroids[cluster * 3 + i] / clusterArea : 0f;
+            }
+            meshArea += clusterArea;
+        }
+        for (int i = 0; i < 3; i++) {
+            meshCentroid[i] = meshArea > 0f ? meshCentroid[i] / meshArea : 0f;
+        }
+
+        // clusters further out along their normal occlude more of the mesh
+        final float[] sortKeys = new float[clusterCount];
+        Integer[] order = new Integer[clusterCount];
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            float x = normals[cluster * 3];
+            float y = normals[cluster * 3 + 1];
+            float z = normals[cluster * 3 + 2];
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            if (length > 0f) {
+                sortKeys[cluster] = ((centroids[cluster * 3] - meshCentroid[0]) * x
+                        + (centroids[cluster * 3 + 1] - meshCentroid[1]) * y
+                        + (centroids[cluster * 3 + 2] - meshCentroid[2]) * z) / length;
+            }
+            order[cluster] = cluster;
+        }
+        // stable, clusters with the same key keep their cache friendly order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Float.compare(sortKeys[second], sortKeys[first]);
+            }
+        });
+
+        int[] result = new int[indices.length];
+        int output = 0;
+        for (Integer cluster : order) {
+            int start = clusters[cluster] * 3;
+            int length = clusters[cluster + 1] * 3 - start;
+            System.arraycopy(indices, start, result, output, length);
+            output += length;
+        }
+        return result;
+    }
+
+    /**
+     * Start triangles of the clusters, the last entry is the triangle count.
+     *
+     * A hard boundary is where all three vertices of a triangle miss the cache, the order does
+     * not depend on the previous triangles there. Hard clusters are split further as soon as
+     * the ACMR so far is within {@code threshold} of the ACMR of the whole hard cluster.
+     */
+    static int[] findClusters(int[] indices, int vertexCount, int cacheSize, float threshold) {
+        int triangleCount = indices.length / 3;
+        int[] insertedAt = new int[vertexCount];
+
+        IntArrayList hard = new IntArrayList(64);
+        Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+        int time = 0;
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            int misses = 0;
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = indices[triangle * 3 + corner];
+                if (time - insertedAt[vertex] >= cacheSize) {
+                    insertedAt[vertex] = time++;
+                    misses++;
+                }
+            }
+            if (triangle == 0 || misses == 3) {
+                hard.add(triangle);
+            }
+        }
+        hard.add(triangleCount);
+
+        IntArrayList clusters = new IntArrayList(hard.size() * 2);
+        for (int i = 0; i + 1 < hard.size(); i++) {
+            int start = hard.get(i);
+            int end = hard.get(i + 1);
+
+            Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+            time = 0;
+            int clusterMisses = 0;
+            for (int corner = start * 3; corner < end * 3; corner++) {
+                if (time - insertedAt[indices[corner]] >= cacheSize) {
+                    insertedAt[indices[corner]] = time++;
+                    clusterMisses++;
+                }
+            }
+            float clusterAcmr = (float) clusterMisses / (end - start);
+
+            Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+            time = 0;
+            int misses = 0;
+            int softStart = start;
+            clusters.add(start);
+            for (int triangle = start; triangle < end; triangle++) {
+                for (int corner = triangle * 3; corner < triangle * 3 + 3; corner++) {
+                    if (time - insertedAt[indices[corner]] >= cacheSize) {
+                        insertedAt[indices[corner]] = time++;
+                        misses++;
+                    }
+                }
+                if (triangle + 1 < end
+                        && (float) misses / (triangle + 1 - softStart) <= threshold * clusterAcmr) {
+                    // the cluster restarts with a cold cache
+                    clusters.add(triangle + 1);
+                    softStart = triangle + 1;
+                    misses = 0;
+                    Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+                    time = 0;
+                }
+            }
+        }
+        clusters.add(triangleCount);
+        return clusters.toArray();
+    }
+
+    /**
+     * Renumbers the vertices in the order of their first use and drops unused ones.
+     */
+    public static MeshData optimizeVertexFetch(MeshData mesh) {
+        int[] indices = mesh.getIndices();
+        int[] remap = new int[mesh.getVertexCount()];
+        Arrays.fill(remap, -1);
+        int[] result = new int[indices.length];
+        int vertexCount = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int vertex = indices[i];
+            if (remap[vertex] < 0) {
+                remap[vertex] = vertexCount++;
+            }
+            result[i] = remap[vertex];
+        }
+
+        float[] positions = new float[vertexCount * MeshData.POSITION_SIZE];
+        float[] normals = new float[vertexCount * MeshData.NORMAL_SIZE];
+        float[] texels = new float[vertexCount * MeshData.TEXEL_SIZE];
+        for (int vertex = 0; vertex < remap.length; vertex++) {
+            int target = remap[vertex];
+            if (target < 0) {
+                continue;
+            }
+            System.arraycopy(mesh.getPositions(), vertex * MeshData.POSITION_SIZE,
+                    positions, target * MeshData.POSITION_SIZE, MeshData.POSITION_SIZE);
+            System.arraycopy(mesh.getNormals(), vertex * MeshData.NORMAL_SIZE,
+                    normals, target * MeshData.NORMAL_SIZE, MeshData.NORMAL_SIZE);
+            System.arraycopy(mesh.getTexels(), vertex * MeshData.TEXEL_SIZE,
+                    texels, target * MeshData.TEXEL_SIZE, MeshData.TEXEL_SIZE);
+        }
+        return new MeshData(positions, normals, texels, result);
+    }
+
+    /**
+     * Triangles adjacent to every vertex, the triangles of vertex v are at
+     * [offsets[v], offsets[v + 1]).
+     */
+    private static int[] buildAdjacency(int[] indices, int vertexCount, int[] offsets) {
+        for (int index : indices) {
+            offsets[index + 1]++;
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            offsets[vertex + 1] += offsets[vertex];
+        }
+        int[] fill = Arrays.copyOf(offsets, vertexCount);
+        int[] adjacency = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            adjacency[fill[indices[i]]++] = i / 3;
+        }
+        return adjacency;
+    }
+
+    private static float triangleNormal(float[] positions, int a, int b, int c, float[] normal) {
+        float abX = positions[b] - positions[a];
+        float abY = positions[b + 1] - positions[a + 1];
+        float abZ = positions[b + 2] - positions[a + 2];
+        float acX = positions[c] - positions[a];
+        float acY = positions[c + 1] - positions[a + 1];
+        float acZ = positions[c + 2] - positions[a + 2];
+        normal[0] = abY * acZ - abZ * acY;
+        normal[1] = abZ * acX - abX * acZ;
+        normal[2] = abX * acY - abY * acX;
+        return (float) Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]) * 0.5f;
+    }
+}
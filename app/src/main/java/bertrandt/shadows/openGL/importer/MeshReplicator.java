@@ -0,0 +1,105 @@
+package bertrandt.shadows.openGL.importer;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+
+/**
+ * Repeats a mesh for instancing without hardware support: every copy gets its own vertices,
+ * tagged with the index of the copy, so a shader can pick the model matrix of the instance
+ * from a uniform array.
+ *
+ * The copies of a level of detail lie one after another in the index buffer, so the first n
+ * copies of a level are a single index range.
+ */
+
+public class MeshReplicator {
+
+    /**
+     * Copies that fit into the index type of the mesh, or 32 bit indices if they are supported.
+     */
+    public static int getMaxCopies(int vertexCount, int requestedCopies, boolean uintIndices) {
+        if (uintIndices || vertexCount == 0) {
+            return Math.max(1, requestedCopies);
+        }
+        return Math.max(1, Math.min(requestedCopies, BufferHelper.MAX_SHORT_INDEXED_VERTICES / vertexCount));
+    }
+
+    /**
+     * @param copies at most {@link #getMaxCopies} of the mesh
+     * @return the replicated mesh with a float {@link VertexLayout#SEMANTIC_INSTANCE} attribute,
+     * level offsets are those of all copies of a level, clusters are dropped
+     */
+    public static MeshBuffers replicate(MeshBuffers mesh, int copies) {
+        VertexLayout layout = mesh.getLayout();
+        VertexLayout.Builder builder = new VertexLayout.Builder();
+        for (int i = 0; i < layout.getAttributeCount(); i++) {
+            builder.add(layout.getSemantic(i), layout.getSize(i), layout.getType(i), layout.isNormalized(i));
+        }
+        VertexLayout replicatedLayout = builder.add(VertexLayout.SEMANTIC_INSTANCE, 1, GLES20.GL_FLOAT, false).build();
+        int instanceOffset = replicatedLayout.getOffset(replicatedLayout.find(VertexLayout.SEMANTIC_INSTANCE));
+
+        int vertexCount = mesh.getVertexCount();
+        int stride = layout.getStride();
+        int replicatedStride = replicatedLayout.getStride();
+        ByteBuffer source = mesh.getVertices().duplicate().order(ByteOrder.nativeOrder());
+        ByteBuffer vertices = ByteBuffer.allocateDirect(vertexCount * copies * replicatedStride)
+                .order(ByteOrder.nativeOrder());
+        byte[] vertex = new byte[stride];
+        for (int copy = 0; copy < copies; copy++) {
+            for (int i = 0; i < vertexCount; i++) {
+                source.position(i * stride);
+                source.get(vertex);
+                int base = (copy * vertexCount + i) * replicatedStride;
+                vertices.position(base);
+                vertices.put(vertex);
+                vertices.putFloat(base + instanceOffset, copy);
+            }
+        }
+        vertices.position(0);
+
+        int[] indices = readIndices(mesh.getIndices(), mesh.getIndexCount());
+        int[] lodOffsets = mesh.getLodOffsets();
+        int[] replicatedIndices = new int[indices.length * copies];
+        int[] replicatedLodOffsets = new int[lodOffsets.length];
+        int position = 0;
+        for (int lod = 0; lod + 1 < lodOffsets.length; lod++) {
+            replicatedLodOffsets[lod] = position;
+            for (int copy = 0; copy < copies; copy++) {
+                int base = copy * vertexCount;
+                for (int i = lodOffsets[lod]; i < lodOffsets[lod + 1]; i++) {
+                    replicatedIndices[position++] = indices[i] + base;
+                }
+            }
+        }
+        replicatedLodOffsets[lodOffsets.length - 1] = position;
+
+        int replicatedVertexCount = vertexCount * copies;
+        return new MeshBuffers(vertices, replicatedLayout,
+                BufferHelper.createIndexBuffer(replicatedIndices, replicatedVertexCount),
+                BufferHelper.getIndexType(replicatedVertexCount), replicatedIndices.length, replicatedVertexCount,
+                mesh.getBounds(), mesh.getBoundingSphere(), replicatedLodOffsets, mesh.getLodErrors(), null);
+    }
+
+    private static int[] readIndices(Buffer buffer, int indexCount) {
+        int[] indices = new int[indexCount];
+        if (buffer instanceof ShortBuffer) {
+            ShortBuffer shorts = ((ShortBuffer) buffer).duplicate();
+            shorts.position(0);
+            for (int i = 0; i < indexCount; i++) {
+                indices[i] = shorts.get() & 0xFFFF;
+            }
+        } else {
+            IntBuffer ints = ((IntBuffer) buffer).duplicate();
+            ints.position(0);
+            ints.get(indices);
+        }
+        return indices;
+    }
+}
@@ -0,0 +1,447 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import bertrandt.shadows.openGL.common.IntArrayList;
+
+/**
+ * Reduces the triangle count of a mesh by edge collapses ordered by the quadric error metric
+ * (Garland and Heckbert, "Surface simplification using quadric error metrics", 1997).
+ *
+ * A vertex is always collapsed onto the other end of the edge, so no new vertices are created
+ * and all levels of detail share the vertex buffer of the full mesh. Vertices on open borders
+ * and on attribute seams (several vertices with the same position) never move, which keeps the
+ * silhouette of open meshes and the texture mapping intact.
+ */
+
+public class MeshSimplifier {
+
+    /**
+     * Triangles around a collapsed vertex may turn by at most this much, given as the cosine.
+     */
+    private static final double MIN_NORMAL_COSINE = 0.2;
+
+    /**
+     * A level that keeps more than this ratio of the previous level's triangles is not worth it.
+     */
+    private static final float MIN_LOD_REDUCTION = 0.9f;
+
+    private static final int QUADRIC_SIZE = 11;
+
+    private final float[] mPositions;
+    private final int mVertexCount;
+
+    /**
+     * First vertex with the same position, the position groups are what the quadrics belong to.
+     */
+    private final int[] mRepresentatives;
+    private final boolean[] mLocked;
+    private final float mRadius;
+
+    private float mLastError;
+
+    /**
+     * @param indices the full mesh, borders and seams are detected on it
+     */
+    public MeshSimplifier(float[] positions, int[] indices) {
+        mPositions = positions;
+        mVertexCount = positions.length / MeshData.POSITION_SIZE;
+        mRepresentatives = PositionWelder.groupPositions(positions, mVertexCount);
+        mLocked = findLockedVertices(indices);
+
+        float[] bounds = MeshData.computeBounds(positions, mVertexCount);
+        float x = bounds[3] - bounds[0];
+        float y = bounds[4] - bounds[1];
+        float z = bounds[5] - bounds[2];
+        mRadius = Math.max(1e-6f, (float) Math.sqrt(x * x + y * y + z * z) * 0.5f);
+    }
+
+    /**
+     * Generates a level of detail for every ratio of the full triangle count and appends them to
+     * the indices of the returned mesh. Levels that can not be reduced any further are left out.
+     */
+    public static MeshData buildLods(MeshData mesh, float[] ratios) {
+        int[] full = mesh.getIndices();
+        MeshSimplifier simplifier = new MeshSimplifier(mesh.getPositions(), full);
+
+        IntArrayList indices = new IntArrayList(full.length * 2);
+        indices.addAll(full, 0, full.length);
+        IntArrayList offsets = new IntArrayList(ratios.length + 2);
+        offsets.add(0);
+        offsets.add(full.length);
+        float[] errors = new float[ratios.length + 1];
+        int lodCount = 1;
+
+        int[] previous = full;
+        float error = 0f;
+        for (float ratio : ratios) {
+            int target = (int) (full.length / 3 * ratio);
+            if (target >= previous.length / 3) {
+                continue;
+            }
+            int[] lod = simplifier.simplify(previous, target);
+            if (lod.length == 0 || lod.length > previous.length * MIN_LOD_REDUCTION) {
+                break;
+            }
+            // every level starts from the previous one, so the errors add up
+            error += simplifier.getLastError();
+            lod = MeshOptimizer.optimizeVertexCache(lod, mesh.getVertexCount(), MeshOptimizer.DEFAULT_CACHE_SIZE);
+            indices.addAll(lod, 0, lod.length);
+            offsets.add(indices.size());
+            errors[lodCount++] = error;
+            previous = lod;
+        }
+        return new MeshData(mesh.getPositions(), mesh.getNormals(), mesh.getTexels(), indices.toArray(),
+                offsets.toArray(), Arrays.copyOf(errors, lodCount));
+    }
+
+    /**
+     * Collapses edges of the given triangles until at most {@code targetTriangles} remain or no
+     * collapse is possible any more.
+     *
+     * @return the remaining triangles, indices into the same vertices
+     */
+    public int[] simplify(int[] indices, int targetTriangles) {
+        int[] current = indices.clone();
+        int triangleCount = current.length / 3;
+
+        double[] quadrics = computeQuadrics(current);
+        int[] adjacencyOffsets = new int[mVertexCount + 1];
+        int[] collapseTarget = new int[mVertexCount];
+        double[] collapseCost = new double[mVertexCount];
+        boolean[] touched = new boolean[mVertexCount];
+        int[] marks = new int[mVertexCount];
+        int[] stamp = new int[1];
+        double maxCost = 0;
+
+        while (triangleCount > targetTriangles) {
+            int[] adjacency = buildAdjacency(current, adjacencyOffsets);
+
+            // cheapest collapse of every vertex
+            Arrays.fill(collapseTarget, -1);
+            Arrays.fill(collapseCost, Double.MAX_VALUE);
+            for (int corner = 0; corner < current.length; corner++) {
+                int from = current[corner];
+                if (mLocked[from]) {
+                    continue;
+                }
+                int triangle = corner - corner % 3;
+                for (int other = triangle; other < triangle + 3; other++) {
+                    int to = current[other];
+                    if (mRepresentatives[to] == mRepresentatives[from]) {
+                        continue;
+                    }
+                    double cost = collapseCost(quadrics, from, to);
+                    if (cost < collapseCost[from]) {
+                        collapseCost[from] = cost;
+                        collapseTarget[from] = to;
+                    }
+                }
+            }
+
+            IntArrayList candidateList = new IntArrayList(1024);
+            for (int vertex = 0; vertex < mVertexCount; vertex++) {
+                if (collapseTarget[vertex] >= 0) {
+                    candidateList.add(vertex);
+                }
+            }
+            Integer[] candidates = new Integer[candidateList.size()];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = candidateList.get(i);
+            }
+            final double[] costs = collapseCost;
+            Arrays.sort(candidates, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    return Double.compare(costs[first], costs[second]);
+                }
+            });
+
+            // apply the cheapest collapses that do not touch each other
+            Arrays.fill(touched, false);
+            int[] remap = new int[mVertexCount];
+            for (int vertex = 0; vertex < mVertexCount; vertex++) {
+                remap[vertex] = vertex;
+            }
+            int removed = 0;
+            int applied = 0;
+            for (Integer candidate : candidates) {
+                if (removed >= triangleCount - targetTriangles) {
+                    break;
+                }
+                int from = candidate;
+                int to = collapseTarget[from];
+                if (touched[mRepresentatives[from]] || touched[mRepresentatives[to]]) {
+                    continue;
+                }
+                int shared = countSharedTriangles(current, adjacency, adjacencyOffsets, from, to);
+                if (!isLinkConditionMet(current, adjacency, adjacencyOffsets, from, to, shared, marks, stamp)
+                        || flipsTriangles(current, adjacency, adjacencyOffsets, from, to)) {
+                    continue;
+                }
+
+                remap[from] = to;
+                int fromQuadric = mRepresentatives[from] * QUADRIC_SIZE;
+                int toQuadric = mRepresentatives[to] * QUADRIC_SIZE;
+                for (int i = 0; i < QUADRIC_SIZE; i++) {
+                    quadrics[toQuadric + i] += quadrics[fromQuadric + i];
+                }
+                // the neighbourhood changed, its cost and flip checks are stale for this pass
+                for (int i = adjacencyOffsets[from]; i < adjacencyOffsets[from + 1]; i++) {
+                    int triangle = adjacency[i];
+                    for (int corner = 0; corner < 3; corner++) {
+                        touched[mRepresentatives[current[triangle * 3 + corner]]] = true;
+                    }
+                }
+                maxCost = Math.max(maxCost, collapseCost[from]);
+                removed += shared;
+                applied++;
+            }
+            if (applied == 0) {
+                break;
+            }
+
+            // rewrite the triangles and drop the collapsed ones
+            int output = 0;
+            for (int triangle = 0; triangle < triangleCount; triangle++) {
+                int a = remap[current[triangle * 3]];
+                int b = remap[current[triangle * 3 + 1]];
+                int c = remap[current[triangle * 3 + 2]];
+                int repA = mRepresentatives[a];
+                int repB = mRepresentatives[b];
+                int repC = mRepresentatives[c];
+                if (repA == repB || repB == repC || repA == repC) {
+                    continue;
+                }
+                current[output++] = a;
+                current[output++] = b;
+                current[output++] = c;
+            }
+            current = Arrays.copyOf(current, output);
+            triangleCount = output / 3;
+        }
+
+        mLastError = (float) Math.sqrt(Math.max(0, maxCost)) / mRadius;
+        return current;
+    }
+
+    /**
+     * Largest distance a vertex moved from the surface in the last {@link #simplify} call,
+     * relative to the radius of the bounding box.
+     */
+    public float getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Area weighted plane quadrics of the triangles around every position group. The last
+     * element is the weight, so that the error is a mean squared distance.
+     */
+    private double[] computeQuadrics(int[] indices) {
+        double[] quadrics = new double[mVertexCount * QUADRIC_SIZE];
+        for (int triangle = 0; triangle < indices.length / 3; triangle++) {
+            int a = indices[triangle * 3] * 3;
+            int b = indices[triangle * 3 + 1] * 3;
+            int c = indices[triangle * 3 + 2] * 3;
+            double abX = mPositions[b] - mPositions[a];
+            double abY = mPositions[b + 1] - mPositions[a + 1];
+            double abZ = mPositions[b + 2] - mPositions[a + 2];
+            double acX = mPositions[c] - mPositions[a];
+            double acY = mPositions[c + 1] - mPositions[a + 1];
+            double acZ = mPositions[c + 2] - mPositions[a + 2];
+            double nX = abY * acZ - abZ * acY;
+            double nY = abZ * acX - abX * acZ;
+            double nZ = abX * acY - abY * acX;
+            double length = Math.sqrt(nX * nX + nY * nY + nZ * nZ);
+            if (length == 0) {
+                continue;
+            }
+            double area = length * 0.5;
+            nX /= length;
+            nY /= length;
+            nZ /= length;
+            double d = -(nX * mPositions[a] + nY * mPositions[a + 1] + nZ * mPositions[a + 2]);
+            for (int corner = 0; corner < 3; corner++) {
+                int offset = mRepresentatives[indices[triangle * 3 + corner]] * QUADRIC_SIZE;
+                quadrics[offset] += area * nX * nX;
+                quadrics[offset + 1] += area * nX * nY;
+                quadrics[offset + 2] += area * nX * nZ;
+                quadrics[offset + 3] += area * nX * d;
+                quadrics[offset + 4] += area * nY * nY;
+                quadrics[offset + 5] += area * nY * nZ;
+                quadrics[offset + 6] += area * nY * d;
+                quadrics[offset + 7] += area * nZ * nZ;
+                quadrics[offset + 8] += area * nZ * d;
+                quadrics[offset + 9] += area * d * d;
+                quadrics[offset + 10] += area;
+            }
+        }
+        return quadrics;
+    }
+
+    /**
+     * Mean squared distance of the position of {@code to} from the planes of both vertices.
+     */
+    private double collapseCost(double[] quadrics, int from, int to) {
+        int q = mRepresentatives[from] * QUADRIC_SIZE;
+        int r = mRepresentatives[to] * QUADRIC_SIZE;
+        double x = mPositions[to * 3];
+        double y = mPositions[to * 3 + 1];
+        double z = mPositions[to * 3 + 2];
+        double error = evaluate(quadrics, q, x, y, z) + evaluate(quadrics, r, x, y, z);
+        double weight = quadrics[q + 10] + quadrics[r + 10];
+        return weight > 0 ? Math.max(0, error / weight) : 0;
+    }
+
+    private static double evaluate(double[] quadrics, int offset, double x, double y, double z) {
+        return quadrics[offset] * x * x + 2 * quadrics[offset + 1] * x * y + 2 * quadrics[offset + 2] * x * z
+                + 2 * quadrics[offset + 3] * x + quadrics[offset + 4] * y * y + 2 * quadrics[offset + 5] * y * z
+                + 2 * quadrics[offset + 6] * y + quadrics[offset + 7] * z * z + 2 * quadrics[offset + 8] * z
+                + quadrics[offset + 9];
+    }
+
+    private int countSharedTriangles(int[] indices, int[] adjacency, int[] offsets, int from, int to) {
+        int shared = 0;
+        int toRepresentative = mRepresentatives[to];
+        for (int i = offsets[from]; i < offsets[from + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            for (int corner = triangle; corner < triangle + 3; corner++) {
+                if (mRepresentatives[indices[corner]] == toRepresentative) {
+                    shared++;
+                    break;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * The collapse keeps the surface manifold only if the two vertices have no common neighbours
+     * besides the opposite corners of the triangles on the edge.
+     */
+    private boolean isLinkConditionMet(int[] indices, int[] adjacency, int[] offsets, int from, int to,
+                                       int sharedTriangles, int[] marks, int[] stamp) {
+        int fromMark = ++stamp[0];
+        for (int i = offsets[from]; i < offsets[from + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            for (int corner = triangle; corner < triangle + 3; corner++) {
+                marks[mRepresentatives[indices[corner]]] = fromMark;
+            }
+        }
+        int commonMark = ++stamp[0];
+        int common = 0;
+        int fromRepresentative = mRepresentatives[from];
+        int toRepresentative = mRepresentatives[to];
+        for (int i = offsets[to]; i < offsets[to + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            for (int corner = triangle; corner < triangle + 3; corner++) {
+                int representative = mRepresentatives[indices[corner]];
+                if (representative != fromRepresentative && representative != toRepresentative
+                        && marks[representative] == fromMark) {
+                    marks[representative] = commonMark;
+                    common++;
+                }
+            }
+        }
+        return common <= sharedTriangles;
+    }
+
+    /**
+     * True if moving {@code from} onto {@code to} turns a remaining triangle around too far.
+     */
+    private boolean flipsTriangles(int[] indices, int[] adjacency, int[] offsets, int from, int to) {
+        int toRepresentative = mRepresentatives[to];
+        for (int i = offsets[from]; i < offsets[from + 1]; i++) {
+            int triangle = adjacency[i] * 3;
+            int a = indices[triangle];
+            int b = indices[triangle + 1];
+            int c = indices[triangle + 2];
+            if (mRepresentatives[a] == toRepresentative || mRepresentatives[b] == toRepresentative
+                    || mRepresentatives[c] == toRepresentative) {
+                // collapses away
+                continue;
+            }
+            double[] before = normal(a, b, c, -1, -1);
+            double[] after = normal(a, b, c, from, to);
+            double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+            double lengths = Math.sqrt((before[0] * before[0] + before[1] * before[1] + before[2] * before[2])
+                    * (after[0] * after[0] + after[1] * after[1] + after[2] * after[2]));
+            if (lengths == 0 || dot < MIN_NORMAL_COSINE * lengths) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double[] normal(int a, int b, int c, int replaced, int replacement) {
+        a = (a == replaced ? replacement : a) * 3;
+        b = (b == replaced ? replacement : b) * 3;
+        c = (c == replaced ? replacement : c) * 3;
+        double abX = mPositions[b] - mPositions[a];
+        double abY = mPositions[b + 1] - mPositions[a + 1];
+        double abZ = mPositions[b + 2] - mPositions[a + 2];
+        double acX = mPositions[c] - mPositions[a];
+        double acY = mPositions[c + 1] - mPositions[a + 1];
+        double acZ = mPositions[c + 2] - mPositions[a + 2];
+        return new double[]{abY * acZ - abZ * acY, abZ * acX - abX * acZ, abX * acY - abY * acX};
+    }
+
+    private int[] buildAdjacency(int[] indices, int[] offsets) {
+        Arrays.fill(offsets, 0);
+        for (int index : indices) {
+            offsets[index + 1]++;
+        }
+        for (int vertex = 0; vertex < mVertexCount; vertex++) {
+            offsets[vertex + 1] += offsets[vertex];
+        }
+        int[] fill = Arrays.copyOf(offsets, mVertexCount);
+        int[] adjacency = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            adjacency[fill[indices[i]]++] = i / 3;
+        }
+        return adjacency;
+    }
+
+    /**
+     * Vertices on a border, on a non manifold edge or on a seam.
+     */
+    private boolean[] findLockedVertices(int[] indices) {
+        boolean[] lockedGroups = new boolean[mVertexCount];
+        int[] groupSizes = new int[mVertexCount];
+        for (int vertex = 0; vertex < mVertexCount; vertex++) {
+            groupSizes[mRepresentatives[vertex]]++;
+        }
+        for (int vertex = 0; vertex < mVertexCount; vertex++) {
+            if (groupSizes[mRepresentatives[vertex]] > 1) {
+                lockedGroups[mRepresentatives[vertex]] = true;
+            }
+        }
+
+        // every interior edge is used by exactly two triangles, once in each direction
+        Map<Long, Integer> edges = new HashMap<>();
+        for (int triangle = 0; triangle < indices.length / 3; triangle++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = mRepresentatives[indices[triangle * 3 + corner]];
+                int b = mRepresentatives[indices[triangle * 3 + (corner + 1) % 3]];
+                long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+                Integer count = edges.get(key);
+                edges.put(key, count == null ? 1 : count + 1);
+            }
+        }
+        for (Map.Entry<Long, Integer> edge : edges.entrySet()) {
+            if (edge.getValue() != 2) {
+                lockedGroups[(int) (edge.getKey() >>> 32)] = true;
+                lockedGroups[(int) (edge.getKey() & 0xFFFFFFFFL)] = true;
+            }
+        }
+
+        boolean[] locked = new boolean[mVertexCount];
+        for (int vertex = 0; vertex < mVertexCount; vertex++) {
+            locked[vertex] = lockedGroups[mRepresentatives[vertex]];
+        }
+        return locked;
+    }
+}
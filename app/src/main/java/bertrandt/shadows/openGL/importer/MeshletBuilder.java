@@ -0,0 +1,292 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.common.IntArrayList;
+
+/**
+ * Splits the full detail level of a mesh into small clusters of connected triangles, which
+ * can be culled against the frustum and by their facing one by one.
+ *
+ * Clusters are grown greedily from a seed triangle next to the previous cluster, always taking
+ * the neighbour that shares most vertices with the cluster and lies closest to its center. The triangles of a cluster
+ * keep their order from the vertex cache optimization and are moved next to each other, so a
+ * cluster is drawn as a single index range.
+ */
+
+public class MeshletBuilder {
+
+    public static final int DEFAULT_MAX_TRIANGLES = 128;
+
+    /**
+     * Meshes with fewer triangles are drawn as a whole, culling them would cost more than it saves.
+     */
+    public static final int MIN_MESH_TRIANGLES = DEFAULT_MAX_TRIANGLES * 8;
+
+    private MeshletBuilder() {
+    }
+
+    /**
+     * @return the mesh with the triangles of level 0 in cluster order and the clusters attached
+     */
+    public static MeshData build(MeshData mesh, int maxTriangles) {
+        int[] indices = mesh.getIndices();
+        float[] positions = mesh.getPositions();
+        int vertexCount = mesh.getVertexCount();
+        int triangleCount = mesh.getLodIndexCount(0) / 3;
+
+        int[] adjacencyOffsets = new int[vertexCount + 1];
+        int[] adjacency = buildAdjacency(indices, triangleCount, vertexCount, adjacencyOffsets);
+
+        boolean[] emitted = new boolean[triangleCount];
+        int[] vertexMarks = new int[vertexCount];
+        int[] candidateMarks = new int[triangleCount];
+        int[] cluster = new int[maxTriangles];
+        float[] center = new float[4];
+        IntArrayList candidates = new IntArrayList(256);
+
+        int[] output = indices.clone();
+        IntArrayList offsets = new IntArrayList(triangleCount / maxTriangles * 2 + 2);
+        float[] bounds = new float[(triangleCount / maxTriangles * 2 + 2) * Meshlets.BOUNDS_SIZE];
+        int outputIndex = 0;
+        int seed = 0;
+        int stamp = 0;
+
+        // triangles not in a cluster yet, per vertex
+        int[] liveTriangles = new int[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            liveTriangles[vertex] = adjacencyOffsets[vertex + 1] - adjacencyOffsets[vertex];
+        }
+
+        while (outputIndex < triangleCount * 3) {
+            int next = findSeed(candidates, emitted, indices, liveTriangles);
+            if (next < 0) {
+                while (emitted[seed]) {
+                    seed++;
+                }
+                next = seed;
+            }
+            stamp++;
+            candidates.clear();
+            Arrays.fill(center, 0f);
+            int size = 0;
+            while (next >= 0) {
+                cluster[size++] = next;
+                emitted[next] = true;
+                for (int corner = next * 3; corner < next * 3 + 3; corner++) {
+                    int vertex = indices[corner];
+                    liveTriangles[vertex]--;
+                    if (vertexMarks[vertex] != stamp) {
+                        vertexMarks[vertex] = stamp;
+                        center[0] += positions[vertex * 3];
+                        center[1] += positions[vertex * 3 + 1];
+                        center[2] += positions[vertex * 3 + 2];
+                        center[3]++;
+                    }
+                    for (int i = adjacencyOffsets[vertex]; i < adjacencyOffsets[vertex + 1]; i++) {
+                        int neighbour = adjacency[i];
+                        if (!emitted[neighbour] && candidateMarks[neighbour] != stamp) {
+                            candidateMarks[neighbour] = stamp;
+                            candidates.add(neighbour);
+                        }
+                    }
+                }
+                next = size < maxTriangles ? findBestCandidate(candidates, emitted, indices, positions,
+                        vertexMarks, liveTriangles, stamp, center) : -1;
+            }
+
+            // keep the vertex cache order within the cluster
+            Arrays.sort(cluster, 0, size);
+            int meshlet = offsets.size();
+            offsets.add(outputIndex);
+            for (int i = 0; i < size; i++) {
+                System.arraycopy(indices, cluster[i] * 3, output, outputIndex, 3);
+                outputIndex += 3;
+            }
+            if ((meshlet + 1) * Meshlets.BOUNDS_SIZE > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            computeBounds(output, outputIndex - size * 3, size, positions, bounds, meshlet * Meshlets.BOUNDS_SIZE);
+        }
+        offsets.add(outputIndex);
+
+        Meshlets meshlets = new Meshlets(offsets.toArray(),
+                Arrays.copyOf(bounds, (offsets.size() - 1) * Meshlets.BOUNDS_SIZE));
+        return new MeshData(positions, mesh.getNormals(), mesh.getTexels(), output,
+                mesh.getLodOffsets(), mesh.getLodErrors(), meshlets);
+    }
+
+    /**
+     * Starts the next cluster next to the previous one, at the triangle with the fewest free
+     * neighbours. Growing from such corners first avoids small islands of leftover triangles.
+     *
+     * @return the seed or -1 if the previous cluster has no free neighbours
+     */
+    private static int findSeed(IntArrayList candidates, boolean[] emitted, int[] indices, int[] liveTriangles) {
+        int best = -1;
+        int bestLive = Integer.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            int triangle = candidates.get(i);
+            if (emitted[triangle]) {
+                continue;
+            }
+            int live = liveTriangles[indices[triangle * 3]] + liveTriangles[indices[triangle * 3 + 1]]
+                    + liveTriangles[indices[triangle * 3 + 2]];
+            if (live < bestLive) {
+                best = triangle;
+                bestLive = live;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Candidate sharing most vertices with the cluster, the one closest to its center on ties.
+     * Taking the last free triangle of a vertex counts like a shared vertex. Emitted candidates
+     * are dropped from the list on the way.
+     */
+    private static int findBestCandidate(IntArrayList candidates, boolean[] emitted, int[] indices,
+                                         float[] positions, int[] vertexMarks, int[] liveTriangles, int stamp,
+                                         float[] center) {
+        float centerX = center[0] / center[3];
+        float centerY = center[1] / center[3];
+        float centerZ = center[2] / center[3];
+        int best = -1;
+        int bestShared = -1;
+        float bestDistance = Float.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            int triangle = candidates.get(i);
+            if (emitted[triangle]) {
+                candidates.removeUnordered(i);
+                i--;
+                continue;
+            }
+            int shared = 0;
+            float x = 0f;
+            float y = 0f;
+            float z = 0f;
+            for (int corner = triangle * 3; corner < triangle * 3 + 3; corner++) {
+                int vertex = indices[corner];
+                if (vertexMarks[vertex] == stamp) {
+                    shared++;
+                }
+                if (liveTriangles[vertex] == 1) {
+                    // the last free triangle of a vertex, leaving it would strand it
+                    shared++;
+                }
+                x += positions[vertex * 3];
+                y += positions[vertex * 3 + 1];
+                z += positions[vertex * 3 + 2];
+            }
+            x = x / 3f - centerX;
+            y = y / 3f - centerY;
+            z = z / 3f - centerZ;
+            float distance = x * x + y * y + z * z;
+            if (shared > bestShared || (shared == bestShared && distance < bestDistance)) {
+                best = triangle;
+                bestShared = shared;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Bounding sphere around the vertex centroid and the cone of the triangle normals.
+     */
+    static void computeBounds(int[] indices, int offset, int triangleCount, float[] positions,
+                              float[] bounds, int boundsOffset) {
+        float centerX = 0f;
+        float centerY = 0f;
+        float centerZ = 0f;
+        float axisX = 0f;
+        float axisY = 0f;
+        float axisZ = 0f;
+        for (int corner = offset; corner < offset + triangleCount * 3; corner++) {
+            int vertex = indices[corner] * 3;
+            centerX += positions[vertex];
+            centerY += positions[vertex + 1];
+            centerZ += positions[vertex + 2];
+        }
+        int cornerCount = Math.max(1, triangleCount * 3);
+        centerX /= cornerCount;
+        centerY /= cornerCount;
+        centerZ /= cornerCount;
+
+        float radius = 0f;
+        float[] normals = new float[triangleCount * 3];
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            int a = indices[offset + triangle * 3] * 3;
+            int b = indices[offset + triangle * 3 + 1] * 3;
+            int c = indices[offset + triangle * 3 + 2] * 3;
+            for (int vertex : new int[]{a, b, c}) {
+                float x = positions[vertex] - centerX;
+                float y = positions[vertex + 1] - centerY;
+                float z = positions[vertex + 2] - centerZ;
+                radius = Math.max(radius, x * x + y * y + z * z);
+            }
+            float abX = positions[b] - positions[a];
+            float abY = positions[b + 1] - positions[a + 1];
+            float abZ = positions[b + 2] - positions[a + 2];
+            float acX = positions[c] - positions[a];
+            float acY = positions[c + 1] - positions[a + 1];
+            float acZ = positions[c + 2] - positions[a + 2];
+            float nX = abY * acZ - abZ * acY;
+            float nY = abZ * acX - abX * acZ;
+            float nZ = abX * acY - abY * acX;
+            // area weighted for the axis, unit length for the spread
+            axisX += nX;
+            axisY += nY;
+            axisZ += nZ;
+            float length = (float) Math.sqrt(nX * nX + nY * nY + nZ * nZ);
+            if (length > 0f) {
+                normals[triangle * 3] = nX / length;
+                normals[triangle * 3 + 1] = nY / length;
+                normals[triangle * 3 + 2] = nZ / length;
+            }
+        }
+
+        float axisLength = (float) Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+        float cutoff = 1f;
+        if (axisLength > 0f) {
+            axisX /= axisLength;
+            axisY /= axisLength;
+            axisZ /= axisLength;
+            float minDot = 1f;
+            for (int triangle = 0; triangle < triangleCount; triangle++) {
+                float x = normals[triangle * 3];
+                float y = normals[triangle * 3 + 1];
+                float z = normals[triangle * 3 + 2];
+                if (x != 0f || y != 0f || z != 0f) {
+                    minDot = Math.min(minDot, x * axisX + y * axisY + z * axisZ);
+                }
+            }
+            // the sine of the cone angle, a cone of 90 degrees or more can not be culled
+            cutoff = minDot <= 0f ? 1f : (float) Math.sqrt(1f - minDot * minDot);
+        }
+
+        bounds[boundsOffset] = centerX;
+        bounds[boundsOffset + 1] = centerY;
+        bounds[boundsOffset + 2] = centerZ;
+        bounds[boundsOffset + 3] = (float) Math.sqrt(radius);
+        bounds[boundsOffset + 4] = axisX;
+        bounds[boundsOffset + 5] = axisY;
+        bounds[boundsOffset + 6] = axisZ;
+        bounds[boundsOffset + 7] = cutoff;
+    }
+
+    private static int[] buildAdjacency(int[] indices, int triangleCount, int vertexCount, int[] offsets) {
+        for (int i = 0; i < triangleCount * 3; i++) {
+            offsets[indices[i] + 1]++;
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            offsets[vertex + 1] += offsets[vertex];
+        }
+        int[] fill = Arrays.copyOf(offsets, vertexCount);
+        int[] adjacency = new int[triangleCount * 3];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            adjacency[fill[indices[i]]++] = i / 3;
+        }
+        return adjacency;
+    }
+}
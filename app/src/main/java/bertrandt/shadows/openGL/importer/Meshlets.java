@@ -0,0 +1,52 @@
+package bertrandt.shadows.openGL.importer;
+
+/**
+ * Clusters of the full detail level of a mesh, see {@link MeshletBuilder}.
+ *
+ * The triangles of a cluster lie next to each other in the index data, so every cluster is an
+ * index range. Bounding sphere and normal cone are in object space.
+ */
+
+public class Meshlets {
+
+    /**
+     * Floats per cluster: sphere center and radius, cone axis and cutoff.
+     */
+    public static final int BOUNDS_SIZE = 8;
+
+    private final int[] mIndexOffsets;
+    private final float[] mBounds;
+
+    /**
+     * @param indexOffsets first index of every cluster followed by the end of the last one
+     * @param bounds       {@link #BOUNDS_SIZE} floats per cluster
+     */
+    public Meshlets(int[] indexOffsets, float[] bounds) {
+        mIndexOffsets = indexOffsets;
+        mBounds = bounds;
+    }
+
+    public int getCount() {
+        return mIndexOffsets.length - 1;
+    }
+
+    public int getIndexOffset(int meshlet) {
+        return mIndexOffsets[meshlet];
+    }
+
+    public int getIndexCount(int meshlet) {
+        return mIndexOffsets[meshlet + 1] - mIndexOffsets[meshlet];
+    }
+
+    public int[] getIndexOffsets() {
+        return mIndexOffsets;
+    }
+
+    /**
+     * Per cluster center x, y, z, radius, cone axis x, y, z and cone cutoff. The cutoff is the
+     * sine of the cone angle; 1 or more means the normals spread too far for back face culling.
+     */
+    public float[] getBounds() {
+        return mBounds;
+    }
+}
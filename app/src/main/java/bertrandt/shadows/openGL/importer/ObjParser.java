@@ -0,0 +1,359 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.common.FloatArrayList;
+import bertrandt.shadows.openGL.common.IntArrayList;
+
+/**
+ * Byte level parser for wavefront obj files.
+ *
+ * The stream is read once in blocks and every number is parsed straight from the bytes into
+ * primitive arrays, so no Strings are created per line or per token. Faces are stored as
+ * triangles of (position, texel, normal) index triples, zero based. Missing texel or normal
+ * indices are stored as -1. Polygons with more than three corners are triangulated as a fan.
+ */
+
+public class ObjParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Exactly representable powers of ten, used to scale the parsed mantissa.
+     */
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final FloatArrayList mPositions = new FloatArrayList(4096);
+    private final FloatArrayList mNormals = new FloatArrayList(4096);
+    private final FloatArrayList mTexels = new FloatArrayList(4096);
+    private final IntArrayList mFaces = new IntArrayList(8192);
+
+    /**
+     * Offsets into {@link #mFaces} of indices that were given relative (negative) in the file.
+     * They were resolved against the counts of this parser, which is only the final result if
+     * the parser saw the file from its beginning.
+     */
+    private final IntArrayList mRelativeIndices = new IntArrayList(16);
+
+    /**
+     * Corners of the polygon currently parsed, three ints per corner.
+     */
+    private int[] mCorners = new int[3 * 8];
+    /**
+     * Per corner bit mask of relative indices, 1 = position, 2 = texel, 4 = normal.
+     */
+    private int[] mCornerRelative = new int[8];
+
+    private byte[] mData;
+    private int mPos;
+    private int mLimit;
+
+    /**
+     * Reads the whole stream and parses it. The stream is not closed.
+     */
+    public void parse(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                // a single line is longer than the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length << 1);
+            }
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+
+            int lastLineEnd = length - 1;
+            while (lastLineEnd >= 0 && buffer[lastLineEnd] != '\n') {
+                lastLineEnd--;
+            }
+            if (lastLineEnd < 0) {
+                continue;
+            }
+            parse(buffer, 0, lastLineEnd + 1);
+
+            // move the incomplete last line to the front
+            int remaining = length - lastLineEnd - 1;
+            System.arraycopy(buffer, lastLineEnd + 1, buffer, 0, remaining);
+            length = remaining;
+        }
+        if (length > 0) {
+            parse(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Parses all lines in the given range. A line that is cut off at {@code end} is parsed as
+     * if it was complete.
+     */
+    public void parse(byte[] data, int start, int end) {
+        mData = data;
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            parseLine(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+        }
+        mData = null;
+    }
+
+    private void parseLine(int start, int end) {
+        mPos = start;
+        mLimit = end;
+        skipSpaces();
+        if (mPos + 1 >= mLimit) {
+            return;
+        }
+        byte first = mData[mPos];
+        byte second = mData[mPos + 1];
+        if (first == 'v') {
+            if (isSpace(second)) {
+                mPos += 1;
+                parseFloats(mPositions, 3);
+            } else if (second == 'n' && mPos + 2 < mLimit && isSpace(mData[mPos + 2])) {
+                mPos += 2;
+                parseFloats(mNormals, 3);
+            } else if (second == 't' && mPos + 2 < mLimit && isSpace(mData[mPos + 2])) {
+                mPos += 2;
+                parseFloats(mTexels, 2);
+            }
+        } else if (first == 'f' && isSpace(second)) {
+            mPos += 1;
+            parseFace();
+        }
+    }
+
+    /**
+     * Parses exactly {@code count} floats, additional values on the line (e.g. w) are ignored.
+     */
+    private void parseFloats(FloatArrayList target, int count) {
+        for (int i = 0; i < count; i++) {
+            skipSpaces();
+            target.add(parseFloat());
+        }
+    }
+
+    private void parseFace() {
+        int positionCount = mPositions.size() / 3;
+        int texelCount = mTexels.size() / 2;
+        int normalCount = mNormals.size() / 3;
+
+        int corners = 0;
+        while (true) {
+            skipSpaces();
+            if (mPos >= mLimit || !isNumberStart(mData[mPos])) {
+                break;
+            }
+            int relative = 0;
+            int index = parseInt();
+            int position = resolveIndex(index, positionCount);
+            if (index < 0) {
+                relative |= 1;
+            }
+            int texel = -1;
+            int normal = -1;
+            if (mPos < mLimit && mData[mPos] == '/') {
+                mPos++;
+                if (mPos < mLimit && mData[mPos] != '/') {
+                    index = parseInt();
+                    texel = resolveIndex(index, texelCount);
+                    if (index < 0) {
+                        relative |= 2;
+                    }
+                }
+                if (mPos < mLimit && mData[mPos] == '/') {
+                    mPos++;
+                    index = parseInt();
+                    normal = resolveIndex(index, normalCount);
+                    if (index < 0) {
+                        relative |= 4;
+                    }
+                }
+            }
+            if (corners == mCornerRelative.length) {
+                mCorners = Arrays.copyOf(mCorners, mCorners.length << 1);
+                mCornerRelative = Arrays.copyOf(mCornerRelative, mCornerRelative.length << 1);
+            }
+            mCorners[3 * corners] = position;
+            mCorners[3 * corners + 1] = texel;
+            mCorners[3 * corners + 2] = normal;
+            mCornerRelative[corners] = relative;
+            corners++;
+        }
+
+        for (int i = 1; i + 1 < corners; i++) {
+            addCorner(0);
+            addCorner(i);
+            addCorner(i + 1);
+        }
+    }
+
+    private void addCorner(int corner) {
+        int relative = mCornerRelative[corner];
+        if (relative != 0) {
+            int offset = mFaces.size();
+            for (int component = 0; component < 3; component++) {
+                if ((relative & (1 << component)) != 0) {
+                    mRelativeIndices.add(offset + component);
+                }
+            }
+        }
+        mFaces.add(mCorners[3 * corner]);
+        mFaces.add(mCorners[3 * corner + 1]);
+        mFaces.add(mCorners[3 * corner + 2]);
+    }
+
+    /**
+     * Converts a one based, possibly negative (relative) obj index into a zero based index.
+     */
+    private static int resolveIndex(int index, int count) {
+        if (index > 0) {
+            return index - 1;
+        } else if (index < 0) {
+            return count + index;
+        }
+        return -1;
+    }
+
+    private int parseInt() {
+        boolean negative = false;
+        if (mPos < mLimit && mData[mPos] == '-') {
+            negative = true;
+            mPos++;
+        } else if (mPos < mLimit && mData[mPos] == '+') {
+            mPos++;
+        }
+        int value = 0;
+        while (mPos < mLimit) {
+            int digit = mData[mPos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            mPos++;
+        }
+        return negative ? -value : value;
+    }
+
+    private float parseFloat() {
+        boolean negative = false;
+        if (mPos < mLimit && mData[mPos] == '-') {
+            negative = true;
+            mPos++;
+        } else if (mPos < mLimit && mData[mPos] == '+') {
+            mPos++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        while (mPos < mLimit) {
+            int digit = mData[mPos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (significantDigits < 18) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+            } else {
+                exponent++;
+            }
+            mPos++;
+        }
+        if (mPos < mLimit && mData[mPos] == '.') {
+            mPos++;
+            while (mPos < mLimit) {
+                int digit = mData[mPos] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        significantDigits++;
+                    }
+                    exponent--;
+                }
+                mPos++;
+            }
+        }
+        if (mPos < mLimit && (mData[mPos] == 'e' || mData[mPos] == 'E')) {
+            mPos++;
+            exponent += parseInt();
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POW10.length ? value / POW10[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private void skipSpaces() {
+        while (mPos < mLimit && isSpace(mData[mPos])) {
+            mPos++;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static boolean isNumberStart(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+';
+    }
+
+    /**
+     * Positions, three floats per vertex.
+     */
+    public FloatArrayList getPositions() {
+        return mPositions;
+    }
+
+    /**
+     * Normals, three floats per normal.
+     */
+    public FloatArrayList getNormals() {
+        return mNormals;
+    }
+
+    /**
+     * Texture coordinates, two floats per texel.
+     */
+    public FloatArrayList getTexels() {
+        return mTexels;
+    }
+
+    /**
+     * Triangle corners as (position, texel, normal) index triples, nine ints per triangle.
+     */
+    public IntArrayList getFaces() {
+        return mFaces;
+    }
+
+    /**
+     * Offsets into {@link #getFaces()} of indices that were relative in the file. The component
+     * is the offset modulo three (0 = position, 1 = texel, 2 = normal).
+     */
+    public IntArrayList getRelativeIndices() {
+        return mRelativeIndices;
+    }
+
+    public int getTriangleCount() {
+        return mFaces.size() / 9;
+    }
+}
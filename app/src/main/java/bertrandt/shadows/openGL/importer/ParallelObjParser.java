@@ -0,0 +1,219 @@
+package bertrandt.shadows.openGL.importer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bertrandt.shadows.openGL.common.FloatArrayList;
+import bertrandt.shadows.openGL.common.IntArrayList;
+
+/**
+ * Parses an obj file that is completely in memory on all cores.
+ *
+ * The file is split into line aligned byte ranges that are parsed by independent
+ * {@link ObjParser}s on a {@link ForkJoinPool}. A prefix sum over the per chunk counts gives
+ * every chunk its offset in the merged arrays. Positive obj indices are absolute and need no
+ * change, relative indices are shifted by the number of elements in the preceding chunks.
+ * The chunks are then copied into the merged arrays in parallel. The result is bit identical
+ * to parsing the same bytes with a single {@link ObjParser}.
+ *
+ * ForkJoinPool is only available from API level 21 on, callers have to check the version.
+ */
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ParallelObjParser {
+
+    /**
+     * Files are not split into chunks smaller than this.
+     */
+    private static final int MIN_CHUNK_SIZE = 128 * 1024;
+    /**
+     * More chunks than threads, so that threads finishing early can take over work.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+    /**
+     * Vertices gathered per task when welding.
+     */
+    private static final int GATHER_BATCH = 16 * 1024;
+
+    private final ForkJoinPool mPool;
+
+    private FloatArrayList mPositions;
+    private FloatArrayList mNormals;
+    private FloatArrayList mTexels;
+    private IntArrayList mFaces;
+
+    public ParallelObjParser(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    public void parse(byte[] data, int length) {
+        int chunkCount = Math.max(1, Math.min(mPool.getParallelism() * CHUNKS_PER_THREAD, length / MIN_CHUNK_SIZE));
+        final int[] starts = split(data, length, chunkCount);
+        chunkCount = starts.length - 1;
+
+        // parse every chunk on its own
+        final ObjParser[] parsers = new ObjParser[chunkCount];
+        final byte[] bytes = data;
+        mPool.invoke(new ChunkTask(0, chunkCount) {
+            @Override
+            void compute(int chunk) {
+                parsers[chunk] = new ObjParser();
+                parsers[chunk].parse(bytes, starts[chunk], starts[chunk + 1]);
+            }
+        });
+
+        // prefix sums of the element counts
+        final int[] positionOffsets = new int[chunkCount + 1];
+        final int[] normalOffsets = new int[chunkCount + 1];
+        final int[] texelOffsets = new int[chunkCount + 1];
+        final int[] faceOffsets = new int[chunkCount + 1];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            positionOffsets[chunk + 1] = positionOffsets[chunk] + parsers[chunk].getPositions().size();
+            normalOffsets[chunk + 1] = normalOffsets[chunk] + parsers[chunk].getNormals().size();
+            texelOffsets[chunk + 1] = texelOffsets[chunk] + parsers[chunk].getTexels().size();
+            faceOffsets[chunk + 1] = faceOffsets[chunk] + parsers[chunk].getFaces().size();
+        }
+
+        final float[] positions = new float[positionOffsets[chunkCount]];
+        final float[] normals = new float[normalOffsets[chunkCount]];
+        final float[] texels = new float[texelOffsets[chunkCount]];
+        final int[] faces = new int[faceOffsets[chunkCount]];
+        mPool.invoke(new ChunkTask(0, chunkCount) {
+            @Override
+            void compute(int chunk) {
+                ObjParser parser = parsers[chunk];
+                System.arraycopy(parser.getPositions().array(), 0, positions, positionOffsets[chunk], parser.getPositions().size());
+                System.arraycopy(parser.getNormals().array(), 0, normals, normalOffsets[chunk], parser.getNormals().size());
+                System.arraycopy(parser.getTexels().array(), 0, texels, texelOffsets[chunk], parser.getTexels().size());
+                int faceOffset = faceOffsets[chunk];
+                System.arraycopy(parser.getFaces().array(), 0, faces, faceOffset, parser.getFaces().size());
+
+                // relative indices were resolved against the chunk local counts
+                int[] bases = {
+                        positionOffsets[chunk] / MeshData.POSITION_SIZE,
+                        texelOffsets[chunk] / MeshData.TEXEL_SIZE,
+                        normalOffsets[chunk] / MeshData.NORMAL_SIZE};
+                IntArrayList relative = parser.getRelativeIndices();
+                for (int i = 0; i < relative.size(); i++) {
+                    int offset = relative.get(i);
+                    faces[faceOffset + offset] += bases[offset % 3];
+                }
+                parsers[chunk] = null;
+            }
+        });
+
+        mPositions = new FloatArrayList(positions);
+        mNormals = new FloatArrayList(normals);
+        mTexels = new FloatArrayList(texels);
+        mFaces = new IntArrayList(faces);
+    }
+
+    /**
+     * Start offsets of the chunks, every chunk begins at the start of a line. The last entry
+     * is the end of the data.
+     */
+    private static int[] split(byte[] data, int length, int chunkCount) {
+        IntArrayList starts = new IntArrayList(chunkCount + 1);
+        starts.add(0);
+        for (int chunk = 1; chunk < chunkCount; chunk++) {
+            int start = (int) ((long) length * chunk / chunkCount);
+            start = Math.max(start, starts.get(starts.size() - 1));
+            while (start < length && data[start - 1] != '\n') {
+                start++;
+            }
+            if (start < length && start > starts.get(starts.size() - 1)) {
+                starts.add(start);
+            }
+        }
+        starts.add(length);
+        return starts.toArray();
+    }
+
+    /**
+     * Welds the parsed faces, see {@link VertexWelder#weld}. The hash lookups have to run in
+     * order, the attribute gathering is spread over the pool.
+     */
+    public MeshData weld() {
+        final VertexWelder welder = new VertexWelder(VertexWelder.getExpectedVertices(mPositions, mFaces));
+        int[] indices = welder.weldFaces(mFaces);
+
+        int vertexCount = welder.getVertexCount();
+        final float[] positionData = new float[vertexCount * MeshData.POSITION_SIZE];
+        final float[] normalData = new float[vertexCount * MeshData.NORMAL_SIZE];
+        final float[] texelData = new float[vertexCount * MeshData.TEXEL_SIZE];
+        final int count = vertexCount;
+        mPool.invoke(new ChunkTask(0, (vertexCount + GATHER_BATCH - 1) / GATHER_BATCH) {
+            @Override
+            void compute(int batch) {
+                welder.gather(mPositions, mTexels, mNormals, positionData, normalData, texelData,
+                        batch * GATHER_BATCH, Math.min(count, (batch + 1) * GATHER_BATCH));
+            }
+        });
+        return new MeshData(positionData, normalData, texelData, indices);
+    }
+
+    public FloatArrayList getPositions() {
+        return mPositions;
+    }
+
+    public FloatArrayList getNormals() {
+        return mNormals;
+    }
+
+    public FloatArrayList getTexels() {
+        return mTexels;
+    }
+
+    public IntArrayList getFaces() {
+        return mFaces;
+    }
+
+    public int getTriangleCount() {
+        return mFaces.size() / 9;
+    }
+
+    /**
+     * Runs {@link #compute(int)} for every index in [from, to), splitting the range in halves
+     * until single indices remain.
+     */
+    private abstract static class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrom;
+        private final int mTo;
+
+        ChunkTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        abstract void compute(int index);
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= 1) {
+                if (mTo > mFrom) {
+                    compute(mFrom);
+                }
+                return;
+            }
+            final ChunkTask outer = this;
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new ChunkTask(mFrom, middle) {
+                @Override
+                void compute(int index) {
+                    outer.compute(index);
+                }
+            }, new ChunkTask(middle, mTo) {
+                @Override
+                void compute(int index) {
+                    outer.compute(index);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Builds the geometry of the depth passes: one vertex per distinct position, normal and texel
+ * seams are collapsed.
+ *
+ * The triangles keep their order, so the level of detail ranges and the clusters of the
+ * shaded mesh stay valid for the welded indices. Vertices are numbered in order of first use,
+ * which keeps vertex fetch sequential.
+ */
+
+public class PositionWelder {
+
+    private PositionWelder() {
+    }
+
+    /**
+     * @return a mesh with positions only, normals and texels are empty
+     */
+    public static MeshData weld(MeshData mesh) {
+        float[] positions = mesh.getPositions();
+        int[] indices = mesh.getIndices();
+        int[] representatives = groupPositions(positions, mesh.getVertexCount());
+
+        int[] remap = new int[mesh.getVertexCount()];
+        Arrays.fill(remap, -1);
+        int[] welded = new int[indices.length];
+        float[] weldedPositions = new float[positions.length];
+        int vertexCount = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int representative = representatives[indices[i]];
+            if (remap[representative] < 0) {
+                remap[representative] = vertexCount;
+                System.arraycopy(positions, representative * MeshData.POSITION_SIZE,
+                        weldedPositions, vertexCount * MeshData.POSITION_SIZE, MeshData.POSITION_SIZE);
+                vertexCount++;
+            }
+            welded[i] = remap[representative];
+        }
+
+        return new MeshData(Arrays.copyOf(weldedPositions, vertexCount * MeshData.POSITION_SIZE),
+                new float[0], new float[0], welded, mesh.getLodOffsets(), mesh.getLodErrors(), mesh.getMeshlets());
+    }
+
+    /**
+     * The first vertex of every group of vertices with exactly the same position.
+     */
+    static int[] groupPositions(final float[] positions, int vertexCount) {
+        Integer[] order = new Integer[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            order[vertex] = vertex;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                for (int axis = 0; axis < 3; axis++) {
+                    int result = Float.compare(positions[first * 3 + axis], positions[second * 3 + axis]);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return first - second;
+            }
+        });
+        int[] representatives = new int[vertexCount];
+        int representative = -1;
+        for (int i = 0; i < vertexCount; i++) {
+            int vertex = order[i];
+            if (representative < 0 || positions[vertex * 3] != positions[representative * 3]
+                    || positions[vertex * 3 + 1] != positions[representative * 3 + 1]
+                    || positions[vertex * 3 + 2] != positions[representative * 3 + 2]) {
+                representative = vertex;
+            }
+            representatives[vertex] = representative;
+        }
+        return representatives;
+    }
+}
@@ -0,0 +1,262 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+import bertrandt.shadows.openGL.math.Mat4;
+
+/**
+ * Merges static meshes into few large ones that are drawn with one call each.
+ *
+ * Every mesh is transformed into world space once, meshes of the same material end up in
+ * the same batches. A batch is closed before it exceeds the vertices of 16 bit indices, the
+ * meshes are sorted along the longest axis of the scene first, so that a batch covers a
+ * compact region and culling its bounds still rejects something.
+ *
+ * Levels of detail are merged by number: level n of a batch holds level n of every mesh, or
+ * its coarsest level if it has fewer. Clusters are dropped.
+ */
+
+public class StaticBatcher {
+
+    /**
+     * A merged mesh in world space.
+     */
+    public static class Batch {
+        private final int mMaterial;
+        private final MeshData mMeshData;
+        private final int mMeshCount;
+
+        Batch(int material, MeshData meshData, int meshCount) {
+            mMaterial = material;
+            mMeshData = meshData;
+            mMeshCount = meshCount;
+        }
+
+        public int getMaterial() {
+            return mMaterial;
+        }
+
+        /**
+         * Bounds and bounding sphere of the mesh are those of the batch in world space.
+         */
+        public MeshData getMeshData() {
+            return mMeshData;
+        }
+
+        /**
+         * Number of meshes merged into the batch.
+         */
+        public int getMeshCount() {
+            return mMeshCount;
+        }
+    }
+
+    private static class Entry {
+        final int mMaterial;
+        final MeshData mMesh;
+        final float[] mWorld;
+        final float mCenterX;
+        final float mCenterY;
+        final float mCenterZ;
+        final float mRadius;
+
+        Entry(int material, MeshData mesh, float[] world) {
+            mMaterial = material;
+            mMesh = mesh;
+            mWorld = world;
+            float[] sphere = mesh.getBoundingSphere();
+            mCenterX = world[0] * sphere[0] + world[4] * sphere[1] + world[8] * sphere[2] + world[12];
+            mCenterY = world[1] * sphere[0] + world[5] * sphere[1] + world[9] * sphere[2] + world[13];
+            mCenterZ = world[2] * sphere[0] + world[6] * sphere[1] + world[10] * sphere[2] + world[14];
+            mRadius = sphere[3] * getMaxScale(world);
+        }
+
+        float getCenter(int axis) {
+            return axis == 0 ? mCenterX : axis == 1 ? mCenterY : mCenterZ;
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private final int mMaxVertices;
+
+    public StaticBatcher() {
+        this(BufferHelper.MAX_SHORT_INDEXED_VERTICES);
+    }
+
+    /**
+     * @param maxVertices most vertices of a batch, a larger single mesh gets a batch of its own
+     */
+    public StaticBatcher(int maxVertices) {
+        mMaxVertices = maxVertices;
+    }
+
+    /**
+     * @param material meshes are only merged with meshes of the same material, e.g. the program
+     *                 and textures they are drawn with
+     * @param world    the transform of the mesh, copied
+     */
+    public void add(int material, MeshData mesh, Mat4 world) {
+        mEntries.add(new Entry(material, mesh, world.getValues().clone()));
+    }
+
+    public int getMeshCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Merges the added meshes, ordered by material.
+     */
+    public ArrayList<Batch> build() {
+        ArrayList<Entry> entries = new ArrayList<>(mEntries);
+        final int axis = getLongestAxis(entries);
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.mMaterial != b.mMaterial) {
+                    return a.mMaterial < b.mMaterial ? -1 : 1;
+                }
+                return Float.compare(a.getCenter(axis), b.getCenter(axis));
+            }
+        });
+
+        ArrayList<Batch> batches = new ArrayList<>();
+        int first = 0;
+        while (first < entries.size()) {
+            int material = entries.get(first).mMaterial;
+            int vertexCount = entries.get(first).mMesh.getVertexCount();
+            int end = first + 1;
+            while (end < entries.size() && entries.get(end).mMaterial == material
+                    && vertexCount + entries.get(end).mMesh.getVertexCount() <= mMaxVertices) {
+                vertexCount += entries.get(end).mMesh.getVertexCount();
+                end++;
+            }
+            batches.add(new Batch(material, merge(entries.subList(first, end), vertexCount), end - first));
+            first = end;
+        }
+        return batches;
+    }
+
+    private static int getLongestAxis(ArrayList<Entry> entries) {
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (Entry entry : entries) {
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = Math.min(min[axis], entry.getCenter(axis));
+                max[axis] = Math.max(max[axis], entry.getCenter(axis));
+            }
+        }
+        int longest = 0;
+        for (int axis = 1; axis < 3; axis++) {
+            if (max[axis] - min[axis] > max[longest] - min[longest]) {
+                longest = axis;
+            }
+        }
+        return longest;
+    }
+
+    private static MeshData merge(List<Entry> entries, int vertexCount) {
+        float[] positions = new float[vertexCount * MeshData.POSITION_SIZE];
+        float[] normals = new float[vertexCount * MeshData.NORMAL_SIZE];
+        float[] texels = new float[vertexCount * MeshData.TEXEL_SIZE];
+        int lodCount = 0;
+        int indexCount = 0;
+        for (Entry entry : entries) {
+            lodCount = Math.max(lodCount, entry.mMesh.getLodCount());
+        }
+        for (int lod = 0; lod < lodCount; lod++) {
+            for (Entry entry : entries) {
+                indexCount += entry.mMesh.getLodIndexCount(Math.min(lod, entry.mMesh.getLodCount() - 1));
+            }
+        }
+
+        Mat4 normalMatrix = new Mat4();
+        Mat4 world = new Mat4();
+        int[] baseVertices = new int[entries.size()];
+        int vertex = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            baseVertices[i] = vertex;
+            world.set(entry.mWorld, 0);
+            normalMatrix.setNormalMatrix(world);
+            transform(entry.mMesh, world.getValues(), normalMatrix.getValues(), positions, normals, vertex);
+            System.arraycopy(entry.mMesh.getTexels(), 0, texels, vertex * MeshData.TEXEL_SIZE,
+                    entry.mMesh.getVertexCount() * MeshData.TEXEL_SIZE);
+            vertex += entry.mMesh.getVertexCount();
+        }
+
+        // the absolute error of a level is the largest of its meshes
+        float[] absoluteErrors = new float[lodCount];
+        int[] indices = new int[indexCount];
+        int[] lodOffsets = new int[lodCount + 1];
+        int position = 0;
+        for (int lod = 0; lod < lodCount; lod++) {
+            lodOffsets[lod] = position;
+            for (int i = 0; i < entries.size(); i++) {
+                MeshData mesh = entries.get(i).mMesh;
+                int meshLod = Math.min(lod, mesh.getLodCount() - 1);
+                int[] meshIndices = mesh.getIndices();
+                int end = mesh.getLodIndexOffset(meshLod) + mesh.getLodIndexCount(meshLod);
+                for (int index = mesh.getLodIndexOffset(meshLod); index < end; index++) {
+                    indices[position++] = meshIndices[index] + baseVertices[i];
+                }
+                absoluteErrors[lod] = Math.max(absoluteErrors[lod],
+                        mesh.getLodErrors()[meshLod] * entries.get(i).mRadius);
+            }
+        }
+        lodOffsets[lodCount] = position;
+
+        MeshData merged = new MeshData(positions, normals, texels, indices, lodOffsets, new float[lodCount]);
+        float radius = merged.getBoundingSphere()[3];
+        float[] lodErrors = merged.getLodErrors();
+        for (int lod = 0; lod < lodCount; lod++) {
+            lodErrors[lod] = radius > 0f ? absoluteErrors[lod] / radius : 0f;
+        }
+        return merged;
+    }
+
+    /**
+     * Moves the positions and turns the normals of a mesh into world space.
+     */
+    private static void transform(MeshData mesh, float[] world, float[] normalMatrix, float[] positions,
+                                  float[] normals, int firstVertex) {
+        float[] source = mesh.getPositions();
+        float[] sourceNormals = mesh.getNormals();
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            int from = vertex * 3;
+            int to = (firstVertex + vertex) * 3;
+            float x = source[from];
+            float y = source[from + 1];
+            float z = source[from + 2];
+            positions[to] = world[0] * x + world[4] * y + world[8] * z + world[12];
+            positions[to + 1] = world[1] * x + world[5] * y + world[9] * z + world[13];
+            positions[to + 2] = world[2] * x + world[6] * y + world[10] * z + world[14];
+
+            x = sourceNormals[from];
+            y = sourceNormals[from + 1];
+            z = sourceNormals[from + 2];
+            float nx = normalMatrix[0] * x + normalMatrix[4] * y + normalMatrix[8] * z;
+            float ny = normalMatrix[1] * x + normalMatrix[5] * y + normalMatrix[9] * z;
+            float nz = normalMatrix[2] * x + normalMatrix[6] * y + normalMatrix[10] * z;
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0f) {
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+            normals[to] = nx;
+            normals[to + 1] = ny;
+            normals[to + 2] = nz;
+        }
+    }
+
+    private static float getMaxScale(float[] world) {
+        float scaleX = world[0] * world[0] + world[1] * world[1] + world[2] * world[2];
+        float scaleY = world[4] * world[4] + world[5] * world[5] + world[6] * world[6];
+        float scaleZ = world[8] * world[8] + world[9] * world[9] + world[10] * world[10];
+        return (float) Math.sqrt(Math.max(scaleX, Math.max(scaleY, scaleZ)));
+    }
+}
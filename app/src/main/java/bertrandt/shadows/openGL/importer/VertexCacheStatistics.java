@@ -0,0 +1,67 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Transformed vertices of an index buffer on a simulated FIFO post transform cache.
+ *
+ * ACMR is the average cache miss ratio, vertex shader runs per triangle. It is 3 without any
+ * reuse and approaches 0.5 for large regular meshes. ATVR is the average transform to vertex
+ * ratio, vertex shader runs per vertex. 1 means every vertex is transformed exactly once.
+ */
+
+public class VertexCacheStatistics {
+
+    private final int mTransformedVertices;
+    private final int mTriangleCount;
+    private final int mVertexCount;
+
+    private VertexCacheStatistics(int transformedVertices, int triangleCount, int vertexCount) {
+        mTransformedVertices = transformedVertices;
+        mTriangleCount = triangleCount;
+        mVertexCount = vertexCount;
+    }
+
+    public static VertexCacheStatistics analyze(int[] indices, int vertexCount, int cacheSize) {
+        int[] insertedAt = new int[vertexCount];
+        Arrays.fill(insertedAt, Integer.MIN_VALUE / 2);
+        int time = 0;
+        for (int index : indices) {
+            if (time - insertedAt[index] >= cacheSize) {
+                insertedAt[index] = time;
+                time++;
+            }
+        }
+        int usedVertices = 0;
+        for (int inserted : insertedAt) {
+            if (inserted >= 0) {
+                usedVertices++;
+            }
+        }
+        return new VertexCacheStatistics(time, indices.length / 3, usedVertices);
+    }
+
+    public int getTransformedVertices() {
+        return mTransformedVertices;
+    }
+
+    /**
+     * Transformed vertices per triangle.
+     */
+    public float getAcmr() {
+        return mTriangleCount == 0 ? 0f : (float) mTransformedVertices / mTriangleCount;
+    }
+
+    /**
+     * Transformed vertices per referenced vertex.
+     */
+    public float getAtvr() {
+        return mVertexCount == 0 ? 0f : (float) mTransformedVertices / mVertexCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ACMR %.3f, ATVR %.3f", getAcmr(), getAtvr());
+    }
+}
@@ -0,0 +1,159 @@
+package bertrandt.shadows.openGL.importer;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * Describes how the attributes of one vertex are laid out in an interleaved vertex buffer.
+ */
+
+public class VertexLayout {
+
+    public static final int SEMANTIC_POSITION = 0;
+    public static final int SEMANTIC_NORMAL = 1;
+    public static final int SEMANTIC_TEXEL = 2;
+    /**
+     * Index of the copy a vertex belongs to in a {@link MeshReplicator replicated} mesh.
+     */
+    public static final int SEMANTIC_INSTANCE = 3;
+
+    /**
+     * Position, normal and texture coordinate as 32 bit floats, 32 bytes per vertex.
+     */
+    public static final VertexLayout FLOAT = new Builder()
+            .add(SEMANTIC_POSITION, MeshData.POSITION_SIZE, GLES20.GL_FLOAT, false)
+            .add(SEMANTIC_NORMAL, MeshData.NORMAL_SIZE, GLES20.GL_FLOAT, false)
+            .add(SEMANTIC_TEXEL, MeshData.TEXEL_SIZE, GLES20.GL_FLOAT, false)
+            .build();
+
+    /**
+     * Position only as 32 bit floats, 12 bytes per vertex. Used for depth passes.
+     */
+    public static final VertexLayout POSITION = new Builder()
+            .add(SEMANTIC_POSITION, MeshData.POSITION_SIZE, GLES20.GL_FLOAT, false)
+            .build();
+
+    private final int[] mSemantics;
+    private final int[] mSizes;
+    private final int[] mTypes;
+    private final boolean[] mNormalized;
+    private final int[] mOffsets;
+    private final int mStride;
+
+    private VertexLayout(int[] semantics, int[] sizes, int[] types, boolean[] normalized, int[] offsets, int stride) {
+        mSemantics = semantics;
+        mSizes = sizes;
+        mTypes = types;
+        mNormalized = normalized;
+        mOffsets = offsets;
+        mStride = stride;
+    }
+
+    public int getAttributeCount() {
+        return mSemantics.length;
+    }
+
+    public int getSemantic(int attribute) {
+        return mSemantics[attribute];
+    }
+
+    public int getSize(int attribute) {
+        return mSizes[attribute];
+    }
+
+    public int getType(int attribute) {
+        return mTypes[attribute];
+    }
+
+    public boolean isNormalized(int attribute) {
+        return mNormalized[attribute];
+    }
+
+    public int getOffset(int attribute) {
+        return mOffsets[attribute];
+    }
+
+    /**
+     * Bytes per vertex.
+     */
+    public int getStride() {
+        return mStride;
+    }
+
+    /**
+     * Index of the attribute with the given semantic, -1 if the layout has none.
+     */
+    public int find(int semantic) {
+        for (int attribute = 0; attribute < mSemantics.length; attribute++) {
+            if (mSemantics[attribute] == semantic) {
+                return attribute;
+            }
+        }
+        return -1;
+    }
+
+    public static int getTypeSize(int type) {
+        switch (type) {
+            case GLES20.GL_BYTE:
+            case GLES20.GL_UNSIGNED_BYTE:
+                return 1;
+            case GLES20.GL_SHORT:
+            case GLES20.GL_UNSIGNED_SHORT:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof VertexLayout)) {
+            return false;
+        }
+        VertexLayout layout = (VertexLayout) other;
+        return mStride == layout.mStride
+                && Arrays.equals(mSemantics, layout.mSemantics)
+                && Arrays.equals(mSizes, layout.mSizes)
+                && Arrays.equals(mTypes, layout.mTypes)
+                && Arrays.equals(mNormalized, layout.mNormalized)
+                && Arrays.equals(mOffsets, layout.mOffsets);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mSemantics) * 31 + Arrays.hashCode(mTypes) * 17 + mStride;
+    }
+
+    /**
+     * Adds attributes one after another. Every attribute starts at a four byte boundary, as
+     * some GPUs fetch unaligned attributes slowly.
+     */
+    public static class Builder {
+
+        private final int[] mSemantics = new int[8];
+        private final int[] mSizes = new int[8];
+        private final int[] mTypes = new int[8];
+        private final boolean[] mNormalized = new boolean[8];
+        private final int[] mOffsets = new int[8];
+        private int mCount;
+        private int mStride;
+
+        public Builder add(int semantic, int size, int type, boolean normalized) {
+            mSemantics[mCount] = semantic;
+            mSizes[mCount] = size;
+            mTypes[mCount] = type;
+            mNormalized[mCount] = normalized;
+            mOffsets[mCount] = mStride;
+            mStride += (size * getTypeSize(type) + 3) & ~3;
+            mCount++;
+            return this;
+        }
+
+        public VertexLayout build() {
+            return new VertexLayout(Arrays.copyOf(mSemantics, mCount), Arrays.copyOf(mSizes, mCount),
+                    Arrays.copyOf(mTypes, mCount), Arrays.copyOf(mNormalized, mCount),
+                    Arrays.copyOf(mOffsets, mCount), mStride);
+        }
+    }
+}
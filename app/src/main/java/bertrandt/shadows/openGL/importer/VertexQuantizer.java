@@ -0,0 +1,220 @@
+package bertrandt.shadows.openGL.importer;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+
+/**
+ * Packs a mesh into a compact vertex layout of 16 bytes instead of 32.
+ *
+ * Positions are stored as normalized unsigned shorts relative to the bounding box, the shader
+ * gets them back through {@link #getDequantization}, which is multiplied into the model matrix.
+ * Normals are octahedral encoded into two unsigned bytes and decoded in the vertex shader when
+ * OCT_NORMALS is defined. Texels in [0, 1] are stored as normalized unsigned shorts, meshes with
+ * repeating texels keep float texels.
+ */
+
+public class VertexQuantizer {
+
+    private static final int UNORM16_MAX = 0xFFFF;
+    private static final int UNORM8_MAX = 0xFF;
+
+    /**
+     * 16 bit positions, octahedral normals and 16 bit texels.
+     */
+    public static final VertexLayout COMPACT = new VertexLayout.Builder()
+            .add(VertexLayout.SEMANTIC_POSITION, MeshData.POSITION_SIZE, GLES20.GL_UNSIGNED_SHORT, true)
+            .add(VertexLayout.SEMANTIC_NORMAL, 2, GLES20.GL_UNSIGNED_BYTE, true)
+            .add(VertexLayout.SEMANTIC_TEXEL, MeshData.TEXEL_SIZE, GLES20.GL_UNSIGNED_SHORT, true)
+            .build();
+
+    /**
+     * Like {@link #COMPACT}, for meshes with texels outside of [0, 1].
+     */
+    public static final VertexLayout COMPACT_FLOAT_TEXELS = new VertexLayout.Builder()
+            .add(VertexLayout.SEMANTIC_POSITION, MeshData.POSITION_SIZE, GLES20.GL_UNSIGNED_SHORT, true)
+            .add(VertexLayout.SEMANTIC_NORMAL, 2, GLES20.GL_UNSIGNED_BYTE, true)
+            .add(VertexLayout.SEMANTIC_TEXEL, MeshData.TEXEL_SIZE, GLES20.GL_FLOAT, false)
+            .build();
+
+    /**
+     * 16 bit positions only, 8 bytes per vertex with padding. Used for depth passes.
+     */
+    public static final VertexLayout COMPACT_POSITION = new VertexLayout.Builder()
+            .add(VertexLayout.SEMANTIC_POSITION, MeshData.POSITION_SIZE, GLES20.GL_UNSIGNED_SHORT, true)
+            .build();
+
+    public static MeshBuffers quantize(MeshData meshData) {
+        int vertexCount = meshData.getVertexCount();
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] texels = meshData.getTexels();
+        float[] bounds = meshData.getBounds();
+
+        boolean unitTexels = true;
+        for (float texel : texels) {
+            if (!(texel >= 0f && texel <= 1f)) {
+                unitTexels = false;
+                break;
+            }
+        }
+        VertexLayout layout = unitTexels ? COMPACT : COMPACT_FLOAT_TEXELS;
+        int stride = layout.getStride();
+        int normalOffset = layout.getOffset(layout.find(VertexLayout.SEMANTIC_NORMAL));
+        int texelOffset = layout.getOffset(layout.find(VertexLayout.SEMANTIC_TEXEL));
+
+        ByteBuffer vertices = ByteBuffer.allocateDirect(vertexCount * stride).order(ByteOrder.nativeOrder());
+        byte[] octahedral = new byte[2];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            int base = vertex * stride;
+            for (int i = 0; i < MeshData.POSITION_SIZE; i++) {
+                vertices.putShort(base + 2 * i, (short) quantizeUnorm16(positions[vertex * MeshData.POSITION_SIZE + i],
+                        bounds[i], bounds[i + 3] - bounds[i]));
+            }
+
+            int normal = vertex * MeshData.NORMAL_SIZE;
+            encodeOctahedral(normals[normal], normals[normal + 1], normals[normal + 2], octahedral);
+            vertices.put(base + normalOffset, octahedral[0]);
+            vertices.put(base + normalOffset + 1, octahedral[1]);
+
+            int texel = vertex * MeshData.TEXEL_SIZE;
+            if (unitTexels) {
+                vertices.putShort(base + texelOffset, (short) quantizeUnorm16(texels[texel], 0f, 1f));
+                vertices.putShort(base + texelOffset + 2, (short) quantizeUnorm16(texels[texel + 1], 0f, 1f));
+            } else {
+                vertices.putFloat(base + texelOffset, texels[texel]);
+                vertices.putFloat(base + texelOffset + 4, texels[texel + 1]);
+            }
+        }
+
+        return new MeshBuffers(vertices, layout,
+                BufferHelper.createIndexBuffer(meshData.getIndices(), vertexCount),
+                BufferHelper.getIndexType(vertexCount),
+                meshData.getIndexCount(), vertexCount, bounds, meshData.getBoundingSphere(),
+                meshData.getLodOffsets(), meshData.getLodErrors(), meshData.getMeshlets());
+    }
+
+    /**
+     * Packs the positions of a position only mesh, see {@link PositionWelder}. The bounds are
+     * those of the shaded mesh, so both share the same {@link #getDequantization}.
+     */
+    public static MeshBuffers quantizePositions(MeshData meshData, float[] bounds) {
+        int vertexCount = meshData.getVertexCount();
+        float[] positions = meshData.getPositions();
+        int stride = COMPACT_POSITION.getStride();
+
+        ByteBuffer vertices = ByteBuffer.allocateDirect(vertexCount * stride).order(ByteOrder.nativeOrder());
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            for (int i = 0; i < MeshData.POSITION_SIZE; i++) {
+                vertices.putShort(vertex * stride + 2 * i, (short) quantizeUnorm16(
+                        positions[vertex * MeshData.POSITION_SIZE + i], bounds[i], bounds[i + 3] - bounds[i]));
+            }
+        }
+
+        return new MeshBuffers(vertices, COMPACT_POSITION,
+                BufferHelper.createIndexBuffer(meshData.getIndices(), vertexCount),
+                BufferHelper.getIndexType(vertexCount),
+                meshData.getIndexCount(), vertexCount, bounds, meshData.getLodOffsets(), meshData.getLodErrors(),
+                meshData.getMeshlets());
+    }
+
+    /**
+     * True if the positions of the layout have to be transformed by {@link #getDequantization}.
+     */
+    public static boolean isQuantized(VertexLayout layout) {
+        int position = layout.find(VertexLayout.SEMANTIC_POSITION);
+        return position >= 0 && layout.getType(position) != GLES20.GL_FLOAT;
+    }
+
+    /**
+     * Column major matrix that maps normalized positions in [0, 1] back into the bounding box.
+     */
+    public static void getDequantization(float[] bounds, float[] matrix, int offset) {
+        for (int i = 0; i < 16; i++) {
+            matrix[offset + i] = 0f;
+        }
+        matrix[offset] = bounds[3] - bounds[0];
+        matrix[offset + 5] = bounds[4] - bounds[1];
+        matrix[offset + 10] = bounds[5] - bounds[2];
+        matrix[offset + 12] = bounds[0];
+        matrix[offset + 13] = bounds[1];
+        matrix[offset + 14] = bounds[2];
+        matrix[offset + 15] = 1f;
+    }
+
+    static int quantizeUnorm16(float value, float min, float extent) {
+        if (extent <= 0f) {
+            return 0;
+        }
+        int quantized = Math.round((value - min) / extent * UNORM16_MAX);
+        return Math.max(0, Math.min(UNORM16_MAX, quantized));
+    }
+
+    /**
+     * Encodes a normal onto the octahedron, unfolded into the unit square. Of the four
+     * neighbouring grid points the one decoding closest to the normal is chosen.
+     */
+    static void encodeOctahedral(float x, float y, float z, byte[] out) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length == 0f) {
+            // missing normal, any valid direction will do
+            z = 1f;
+            length = 1f;
+        }
+        x /= length;
+        y /= length;
+        z /= length;
+
+        float sum = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        float u = x / sum;
+        float v = y / sum;
+        if (z < 0f) {
+            float foldedU = (1f - Math.abs(v)) * signNotZero(u);
+            v = (1f - Math.abs(u)) * signNotZero(v);
+            u = foldedU;
+        }
+
+        float scaledU = (u * 0.5f + 0.5f) * UNORM8_MAX;
+        float scaledV = (v * 0.5f + 0.5f) * UNORM8_MAX;
+        int baseU = (int) Math.floor(scaledU);
+        int baseV = (int) Math.floor(scaledV);
+        float[] decoded = new float[3];
+        float bestDot = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            int candidateU = Math.min(UNORM8_MAX, baseU + (i & 1));
+            int candidateV = Math.min(UNORM8_MAX, baseV + (i >> 1));
+            decodeOctahedral(candidateU, candidateV, decoded);
+            float dot = decoded[0] * x + decoded[1] * y + decoded[2] * z;
+            if (dot > bestDot) {
+                bestDot = dot;
+                out[0] = (byte) candidateU;
+                out[1] = (byte) candidateV;
+            }
+        }
+    }
+
+    /**
+     * Decodes two unsigned bytes into a unit normal, the same way the vertex shader does.
+     */
+    static void decodeOctahedral(int encodedU, int encodedV, float[] normal) {
+        float u = (encodedU & UNORM8_MAX) / (float) UNORM8_MAX * 2f - 1f;
+        float v = (encodedV & UNORM8_MAX) / (float) UNORM8_MAX * 2f - 1f;
+        float z = 1f - Math.abs(u) - Math.abs(v);
+        if (z < 0f) {
+            float foldedU = (1f - Math.abs(v)) * signNotZero(u);
+            v = (1f - Math.abs(u)) * signNotZero(v);
+            u = foldedU;
+        }
+        float length = (float) Math.sqrt(u * u + v * v + z * z);
+        normal[0] = u / length;
+        normal[1] = v / length;
+        normal[2] = z / length;
+    }
+
+    private static float signNotZero(float value) {
+        return value >= 0f ? 1f : -1f;
+    }
+}
@@ -0,0 +1,175 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.common.FloatArrayList;
+import bertrandt.shadows.openGL.common.IntArrayList;
+
+/**
+ * Merges face corners that reference the same (position, texel, normal) index triple into one
+ * vertex. The lookup is a primitive open addressing hash map with linear probing, so welding
+ * does not allocate per corner.
+ */
+
+public class VertexWelder {
+
+    private static final int EMPTY = -1;
+
+    /**
+     * Three ints per slot: position, texel and normal index of the stored vertex.
+     */
+    private int[] mKeys;
+    /**
+     * Vertex index per slot, {@link #EMPTY} for free slots.
+     */
+    private int[] mValues;
+    private int mMask;
+
+    /**
+     * Index triple of every unique vertex, in order of first appearance.
+     */
+    private final IntArrayList mVertices;
+
+    public VertexWelder(int expectedVertices) {
+        int capacity = Integer.highestOneBit(Math.max(expectedVertices, 8) * 2 - 1) << 1;
+        allocate(capacity);
+        mVertices = new IntArrayList(expectedVertices * 3);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity * 3];
+        mValues = new int[capacity];
+        Arrays.fill(mValues, EMPTY);
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Returns the vertex index of the given triple, adding a new vertex if it was not seen yet.
+     */
+    public int weld(int position, int texel, int normal) {
+        int slot = hash(position, texel, normal) & mMask;
+        while (true) {
+            int value = mValues[slot];
+            if (value == EMPTY) {
+                break;
+            }
+            int key = slot * 3;
+            if (mKeys[key] == position && mKeys[key + 1] == texel && mKeys[key + 2] == normal) {
+                return value;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        int vertex = mVertices.size() / 3;
+        mVertices.add(position);
+        mVertices.add(texel);
+        mVertices.add(normal);
+        insert(slot, position, texel, normal, vertex);
+
+        // keep the load factor at or below one half
+        if (vertex * 2 >= mMask) {
+            rehash();
+        }
+        return vertex;
+    }
+
+    private void insert(int slot, int position, int texel, int normal, int vertex) {
+        int key = slot * 3;
+        mKeys[key] = position;
+        mKeys[key + 1] = texel;
+        mKeys[key + 2] = normal;
+        mValues[slot] = vertex;
+    }
+
+    private void rehash() {
+        int[] vertices = mVertices.array();
+        int count = mVertices.size() / 3;
+        allocate((mMask + 1) << 1);
+        for (int vertex = 0; vertex < count; vertex++) {
+            int position = vertices[3 * vertex];
+            int texel = vertices[3 * vertex + 1];
+            int normal = vertices[3 * vertex + 2];
+            int slot = hash(position, texel, normal) & mMask;
+            while (mValues[slot] != EMPTY) {
+                slot = (slot + 1) & mMask;
+            }
+            insert(slot, position, texel, normal, vertex);
+        }
+    }
+
+    private static int hash(int position, int texel, int normal) {
+        int h = position * 0x9E3779B1;
+        h = (h ^ (h >>> 15) ^ texel) * 0x85EBCA77;
+        h = (h ^ (h >>> 13) ^ normal) * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+
+    public int getVertexCount() {
+        return mVertices.size() / 3;
+    }
+
+    /**
+     * Welds all corners of the given (position, texel, normal) triangle list.
+     *
+     * @return the vertex index of every corner
+     */
+    public int[] weldFaces(IntArrayList faces) {
+        int corners = faces.size() / 3;
+        int[] faceData = faces.array();
+        int[] indices = new int[corners];
+        for (int corner = 0; corner < corners; corner++) {
+            indices[corner] = weld(faceData[3 * corner], faceData[3 * corner + 1], faceData[3 * corner + 2]);
+        }
+        return indices;
+    }
+
+    /**
+     * Copies the attributes of the welded vertices {@code fromVertex} (inclusive) to
+     * {@code toVertex} (exclusive) into the target arrays. Disjoint ranges may be gathered
+     * concurrently.
+     */
+    public void gather(FloatArrayList positions, FloatArrayList texels, FloatArrayList normals,
+                       float[] positionData, float[] normalData, float[] texelData,
+                       int fromVertex, int toVertex) {
+        int[] vertices = mVertices.array();
+        float[] positionSource = positions.array();
+        float[] normalSource = normals.array();
+        float[] texelSource = texels.array();
+        for (int vertex = fromVertex; vertex < toVertex; vertex++) {
+            int position = vertices[3 * vertex];
+            int texel = vertices[3 * vertex + 1];
+            int normal = vertices[3 * vertex + 2];
+            System.arraycopy(positionSource, position * MeshData.POSITION_SIZE,
+                    positionData, vertex * MeshData.POSITION_SIZE, MeshData.POSITION_SIZE);
+            if (normal >= 0) {
+                System.arraycopy(normalSource, normal * MeshData.NORMAL_SIZE,
+                        normalData, vertex * MeshData.NORMAL_SIZE, MeshData.NORMAL_SIZE);
+            }
+            if (texel >= 0) {
+                System.arraycopy(texelSource, texel * MeshData.TEXEL_SIZE,
+                        texelData, vertex * MeshData.TEXEL_SIZE, MeshData.TEXEL_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Welds the triangles of a parsed obj file into a unique vertex buffer plus index buffer.
+     */
+    public static MeshData weld(FloatArrayList positions, FloatArrayList texels,
+                                FloatArrayList normals, IntArrayList faces) {
+        VertexWelder welder = new VertexWelder(getExpectedVertices(positions, faces));
+        int[] indices = welder.weldFaces(faces);
+
+        int vertexCount = welder.getVertexCount();
+        float[] positionData = new float[vertexCount * MeshData.POSITION_SIZE];
+        float[] normalData = new float[vertexCount * MeshData.NORMAL_SIZE];
+        float[] texelData = new float[vertexCount * MeshData.TEXEL_SIZE];
+        welder.gather(positions, texels, normals, positionData, normalData, texelData, 0, vertexCount);
+        return new MeshData(positionData, normalData, texelData, indices);
+    }
+
+    static int getExpectedVertices(FloatArrayList positions, IntArrayList faces) {
+        // closed meshes share every position between about six corners
+        return Math.max(positions.size() / MeshData.POSITION_SIZE, faces.size() / 3 / 6);
+    }
+}
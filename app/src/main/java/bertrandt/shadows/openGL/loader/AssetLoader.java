@@ -0,0 +1,106 @@
+package bertrandt.shadows.openGL.loader;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bertrandt.shadows.openGL.common.Clock;
+
+/**
+ * Loads assets on a background thread and hands the results to the GL thread.
+ *
+ * {@link LoadTask}s run on the executor, the {@link Upload}s they return are queued and
+ * done by {@link #processUploads()} at the start of the next frames within a time and byte
+ * budget. A loader belongs to one GL context, create a new one when the surface is recreated.
+ */
+
+public class AssetLoader {
+
+    private static final String TAG = "AssetLoader";
+
+    public static final long DEFAULT_TIME_BUDGET_NANOS = 4000000L;
+    public static final long DEFAULT_BYTE_BUDGET = 4 * 1024 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final UploadQueue mUploadQueue;
+
+    /**
+     * Submitted tasks whose upload has not been done yet.
+     */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private volatile boolean mShutdown;
+
+    public AssetLoader() {
+        this(DEFAULT_TIME_BUDGET_NANOS, DEFAULT_BYTE_BUDGET);
+    }
+
+    public AssetLoader(long timeBudgetNanos, long byteBudget) {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mUploadQueue = new UploadQueue(Clock.SYSTEM, timeBudgetNanos, byteBudget);
+    }
+
+    public void submit(final LoadTask task) {
+        mPending.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Upload upload = null;
+                try {
+                    upload = task.load();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Log.e(TAG, "submit: asset could not be loaded");
+                }
+                if (upload != null && !mShutdown) {
+                    mUploadQueue.add(upload);
+                } else {
+                    mPending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Uploads finished assets within the budget. Call on the GL thread at the start of a frame.
+     *
+     * @return the number of assets that became resident
+     */
+    public int processUploads() {
+        int count = mUploadQueue.process();
+        mPending.addAndGet(-count);
+        return count;
+    }
+
+    public void setBudget(long timeBudgetNanos, long byteBudget) {
+        mUploadQueue.setTimeBudgetNanos(timeBudgetNanos);
+        mUploadQueue.setByteBudget(byteBudget);
+    }
+
+    /**
+     * True while assets are still loading or waiting for their upload.
+     */
+    public boolean isBusy() {
+        return mPending.get() > 0;
+    }
+
+    /**
+     * Drops pending work, e.g. because the GL context the uploads were meant for is gone.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdownNow();
+        mUploadQueue.clear();
+    }
+}
@@ -0,0 +1,15 @@
+package bertrandt.shadows.openGL.loader;
+
+/**
+ * Loads the CPU side of an asset on a background thread, e.g. parses a mesh or decodes a bitmap.
+ */
+
+public interface LoadTask {
+
+    /**
+     * Runs on a background thread and must not call GL.
+     *
+     * @return the upload to run on the GL thread once a frame has budget for it
+     */
+    Upload load() throws Exception;
+}
@@ -0,0 +1,16 @@
+package bertrandt.shadows.openGL.loader;
+
+/**
+ * The GL part of loading an asset. Everything that does not need the GL context has already
+ * happened on a background thread, {@link #upload()} runs on the GL thread.
+ */
+
+public interface Upload {
+
+    /**
+     * Approximate number of bytes handed to GL, used for the per frame upload budget.
+     */
+    long getByteSize();
+
+    void upload();
+}
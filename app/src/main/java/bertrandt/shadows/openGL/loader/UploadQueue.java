@@ -0,0 +1,87 @@
+package bertrandt.shadows.openGL.loader;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import bertrandt.shadows.openGL.common.Clock;
+
+/**
+ * Uploads that are ready for the GL thread. Every frame drains the queue until either the time
+ * or the byte budget is used up. At least one upload is done per frame, so assets larger than
+ * the byte budget still arrive.
+ */
+
+public class UploadQueue {
+
+    private final ConcurrentLinkedQueue<Upload> mQueue = new ConcurrentLinkedQueue<>();
+    private final Clock mClock;
+
+    private volatile long mTimeBudgetNanos;
+    private volatile long mByteBudget;
+
+    private int mLastUploadCount;
+    private long mLastUploadBytes;
+
+    public UploadQueue(Clock clock, long timeBudgetNanos, long byteBudget) {
+        mClock = clock;
+        mTimeBudgetNanos = timeBudgetNanos;
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    public void add(Upload upload) {
+        mQueue.add(upload);
+    }
+
+    /**
+     * Runs queued uploads within the budget. Call on the GL thread at the start of a frame.
+     *
+     * @return the number of uploads done
+     */
+    public int process() {
+        long start = mClock.nanoTime();
+        int count = 0;
+        long bytes = 0;
+        Upload upload;
+        while ((upload = mQueue.peek()) != null) {
+            // the size is only known before the upload, uploads release their data
+            long size = upload.getByteSize();
+            if (count > 0 && (bytes + size > mByteBudget
+                    || mClock.nanoTime() - start >= mTimeBudgetNanos)) {
+                break;
+            }
+            mQueue.poll();
+            upload.upload();
+            bytes += size;
+            count++;
+        }
+        mLastUploadCount = count;
+        mLastUploadBytes = bytes;
+        return count;
+    }
+
+    public void clear() {
+        mQueue.clear();
+    }
+
+    public boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    public void setTimeBudgetNanos(long timeBudgetNanos) {
+        mTimeBudgetNanos = timeBudgetNanos;
+    }
+
+    public void setByteBudget(long byteBudget) {
+        mByteBudget = byteBudget;
+    }
+
+    public int getLastUploadCount() {
+        return mLastUploadCount;
+    }
+
+    public long getLastUploadBytes() {
+        return mLastUploadBytes;
+    }
+}
@@ -0,0 +1,269 @@
+package bertrandt.shadows.openGL.math;
+
+/**
+ * A column major 4x4 matrix in the layout of {@link android.opengl.Matrix} and GL uniforms.
+ *
+ * Operations write into this matrix and never allocate, so matrices can be kept in fields and
+ * reused every frame. Operands may be this matrix itself. Besides the general operations there
+ * are inverses for affine and rigid transforms, which are much cheaper than a full 4x4 inverse.
+ */
+
+public class Mat4 {
+
+    private final float[] mValues = new float[16];
+
+    /**
+     * Creates an identity matrix.
+     */
+    public Mat4() {
+        setIdentity();
+    }
+
+    /**
+     * The backing array, e.g. for uniform uploads. Column major, element (row, column) is at
+     * column * 4 + row.
+     */
+    public float[] getValues() {
+        return mValues;
+    }
+
+    public Mat4 set(Mat4 source) {
+        System.arraycopy(source.mValues, 0, mValues, 0, 16);
+        return this;
+    }
+
+    public Mat4 set(float[] source, int offset) {
+        System.arraycopy(source, offset, mValues, 0, 16);
+        return this;
+    }
+
+    /**
+     * Sets the values row by row, which reads like the matrix in source code.
+     */
+    public Mat4 setRows(float m00, float m01, float m02, float m03,
+                        float m10, float m11, float m12, float m13,
+                        float m20, float m21, float m22, float m23,
+                        float m30, float m31, float m32, float m33) {
+        float[] m = mValues;
+        m[0] = m00;
+        m[1] = m10;
+        m[2] = m20;
+        m[3] = m30;
+        m[4] = m01;
+        m[5] = m11;
+        m[6] = m21;
+        m[7] = m31;
+        m[8] = m02;
+        m[9] = m12;
+        m[10] = m22;
+        m[11] = m32;
+        m[12] = m03;
+        m[13] = m13;
+        m[14] = m23;
+        m[15] = m33;
+        return this;
+    }
+
+    public Mat4 setIdentity() {
+        return setRows(1f, 0f, 0f, 0f,
+                0f, 1f, 0f, 0f,
+                0f, 0f, 1f, 0f,
+                0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * Rotation around an axis through the origin, like {@link android.opengl.Matrix#setRotateM}.
+     */
+    public Mat4 setRotate(float angleDegrees, float x, float y, float z) {
+        double radians = Math.toRadians(angleDegrees);
+        float s = (float) Math.sin(radians);
+        float c = (float) Math.cos(radians);
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length != 1f && length > 0f) {
+            x /= length;
+            y /= length;
+            z /= length;
+        }
+        float nc = 1f - c;
+        float xy = x * y;
+        float yz = y * z;
+        float zx = z * x;
+        float xs = x * s;
+        float ys = y * s;
+        float zs = z * s;
+        return setRows(x * x * nc + c, xy * nc - zs, zx * nc + ys, 0f,
+                xy * nc + zs, y * y * nc + c, yz * nc - xs, 0f,
+                zx * nc - ys, yz * nc + xs, z * z * nc + c, 0f,
+                0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * View matrix of a camera, like {@link android.opengl.Matrix#setLookAtM}.
+     */
+    public Mat4 setLookAt(float eyeX, float eyeY, float eyeZ, float centerX, float centerY, float centerZ,
+                          float upX, float upY, float upZ) {
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+        float rlf = 1f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx *= rlf;
+        fy *= rlf;
+        fz *= rlf;
+
+        // side = forward x up
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+        float rls = 1f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx *= rls;
+        sy *= rls;
+        sz *= rls;
+
+        // up = side x forward
+        float ux = sy * fz - sz * fy;
+        float uy = sz * fx - sx * fz;
+        float uz = sx * fy - sy * fx;
+
+        return setRows(sx, sy, sz, -(sx * eyeX + sy * eyeY + sz * eyeZ),
+                ux, uy, uz, -(ux * eyeX + uy * eyeY + uz * eyeZ),
+                -fx, -fy, -fz, fx * eyeX + fy * eyeY + fz * eyeZ,
+                0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * Perspective projection, like {@link android.opengl.Matrix#frustumM}.
+     */
+    public Mat4 setFrustum(float left, float right, float bottom, float top, float near, float far) {
+        float width = 1f / (right - left);
+        float height = 1f / (top - bottom);
+        float depth = 1f / (near - far);
+        return setRows(2f * near * width, 0f, (right + left) * width, 0f,
+                0f, 2f * near * height, (top + bottom) * height, 0f,
+                0f, 0f, (far + near) * depth, 2f * far * near * depth,
+                0f, 0f, -1f, 0f);
+    }
+
+    /**
+     * Orthographic projection, like {@link android.opengl.Matrix#orthoM}.
+     */
+    public Mat4 setOrtho(float left, float right, float bottom, float top, float near, float far) {
+        float width = 1f / (right - left);
+        float height = 1f / (top - bottom);
+        float depth = 1f / (far - near);
+        return setRows(2f * width, 0f, 0f, -(right + left) * width,
+                0f, 2f * height, 0f, -(top + bottom) * height,
+                0f, 0f, -2f * depth, -(far + near) * depth,
+                0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * this = lhs * rhs
+     */
+    public Mat4 multiply(Mat4 lhs, Mat4 rhs) {
+        return multiply(lhs, rhs.mValues, 0);
+    }
+
+    /**
+     * this = lhs * rhs, with the right hand side read from an array.
+     */
+    public Mat4 multiply(Mat4 lhs, float[] rhs, int offset) {
+        float[] l = lhs.mValues;
+        float l00 = l[0], l10 = l[1], l20 = l[2], l30 = l[3];
+        float l01 = l[4], l11 = l[5], l21 = l[6], l31 = l[7];
+        float l02 = l[8], l12 = l[9], l22 = l[10], l32 = l[11];
+        float l03 = l[12], l13 = l[13], l23 = l[14], l33 = l[15];
+        float[] m = mValues;
+        for (int column = 0; column < 16; column += 4) {
+            // the column is read completely before it is written, rhs may be this matrix
+            float r0 = rhs[offset + column];
+            float r1 = rhs[offset + column + 1];
+            float r2 = rhs[offset + column + 2];
+            float r3 = rhs[offset + column + 3];
+            m[column] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+            m[column + 1] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+            m[column + 2] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+            m[column + 3] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+        }
+        return this;
+    }
+
+    public Mat4 transpose(Mat4 source) {
+        float[] s = source.mValues;
+        return setRows(s[0], s[1], s[2], s[3],
+                s[4], s[5], s[6], s[7],
+                s[8], s[9], s[10], s[11],
+                s[12], s[13], s[14], s[15]);
+    }
+
+    /**
+     * Inverse of a matrix whose last row is 0, 0, 0, 1, e.g. any combination of rotation,
+     * scale and translation. Only the upper 3x3 part is inverted.
+     *
+     * @return false if the matrix is singular, this matrix is unchanged then
+     */
+    public boolean invertAffine(Mat4 source) {
+        float[] s = source.mValues;
+        float a00 = s[0], a10 = s[1], a20 = s[2];
+        float a01 = s[4], a11 = s[5], a21 = s[6];
+        float a02 = s[8], a12 = s[9], a22 = s[10];
+        float tx = s[12], ty = s[13], tz = s[14];
+
+        float c00 = a11 * a22 - a12 * a21;
+        float c10 = a12 * a20 - a10 * a22;
+        float c20 = a10 * a21 - a11 * a20;
+        float det = a00 * c00 + a01 * c10 + a02 * c20;
+        if (det == 0f) {
+            return false;
+        }
+        float invDet = 1f / det;
+        float i00 = c00 * invDet;
+        float i01 = (a02 * a21 - a01 * a22) * invDet;
+        float i02 = (a01 * a12 - a02 * a11) * invDet;
+        float i10 = c10 * invDet;
+        float i11 = (a00 * a22 - a02 * a20) * invDet;
+        float i12 = (a02 * a10 - a00 * a12) * invDet;
+        float i20 = c20 * invDet;
+        float i21 = (a01 * a20 - a00 * a21) * invDet;
+        float i22 = (a00 * a11 - a01 * a10) * invDet;
+
+        setRows(i00, i01, i02, -(i00 * tx + i01 * ty + i02 * tz),
+                i10, i11, i12, -(i10 * tx + i11 * ty + i12 * tz),
+                i20, i21, i22, -(i20 * tx + i21 * ty + i22 * tz),
+                0f, 0f, 0f, 1f);
+        return true;
+    }
+
+    /**
+     * Inverse of a rotation followed by a translation, e.g. a view matrix: the transposed
+     * rotation and the translation rotated back. Wrong for matrices with scale.
+     */
+    public Mat4 invertRigid(Mat4 source) {
+        float[] s = source.mValues;
+        float r00 = s[0], r10 = s[1], r20 = s[2];
+        float r01 = s[4], r11 = s[5], r21 = s[6];
+        float r02 = s[8], r12 = s[9], r22 = s[10];
+        float tx = s[12], ty = s[13], tz = s[14];
+        return setRows(r00, r10, r20, -(r00 * tx + r10 * ty + r20 * tz),
+                r01, r11, r21, -(r01 * tx + r11 * ty + r21 * tz),
+                r02, r12, r22, -(r02 * tx + r12 * ty + r22 * tz),
+                0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * Inverse transpose of the upper 3x3 part of an affine model view matrix, which maps
+     * normals into eye space. The translation is zero.
+     *
+     * @return false if the matrix is singular, this matrix is unchanged then
+     */
+    public boolean setNormalMatrix(Mat4 modelView) {
+        if (!invertAffine(modelView)) {
+            return false;
+        }
+        float[] m = mValues;
+        m[12] = 0f;
+        m[13] = 0f;
+        m[14] = 0f;
+        transpose(this);
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+package bertrandt.shadows.openGL.math;
+
+/**
+ * A homogeneous vector, the companion of {@link Mat4}. Operations write into this vector and
+ * never allocate.
+ */
+
+public class Vec4 {
+
+    private final float[] mValues = new float[4];
+
+    public Vec4() {
+    }
+
+    public Vec4(float x, float y, float z, float w) {
+        set(x, y, z, w);
+    }
+
+    public float[] getValues() {
+        return mValues;
+    }
+
+    public float getX() {
+        return mValues[0];
+    }
+
+    public float getY() {
+        return mValues[1];
+    }
+
+    public float getZ() {
+        return mValues[2];
+    }
+
+    public float getW() {
+        return mValues[3];
+    }
+
+    public Vec4 set(float x, float y, float z, float w) {
+        mValues[0] = x;
+        mValues[1] = y;
+        mValues[2] = z;
+        mValues[3] = w;
+        return this;
+    }
+
+    public Vec4 set(Vec4 source) {
+        System.arraycopy(source.mValues, 0, mValues, 0, 4);
+        return this;
+    }
+
+    /**
+     * this = matrix * vector, the vector may be this one.
+     */
+    public Vec4 transform(Mat4 matrix, Vec4 vector) {
+        float[] m = matrix.getValues();
+        float x = vector.mValues[0];
+        float y = vector.mValues[1];
+        float z = vector.mValues[2];
+        float w = vector.mValues[3];
+        return set(m[0] * x + m[4] * y + m[8] * z + m[12] * w,
+                m[1] * x + m[5] * y + m[9] * z + m[13] * w,
+                m[2] * x + m[6] * y + m[10] * z + m[14] * w,
+                m[3] * x + m[7] * y + m[11] * z + m[15] * w);
+    }
+}
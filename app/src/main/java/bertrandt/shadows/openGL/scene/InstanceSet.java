@@ -0,0 +1,180 @@
+package bertrandt.shadows.openGL.scene;
+
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.common.Frustum;
+import bertrandt.shadows.openGL.draw.LodSelector;
+import bertrandt.shadows.openGL.draw.Renderable;
+import bertrandt.shadows.openGL.math.Mat4;
+
+/**
+ * Many copies of one renderable, drawn with instancing instead of a scene node per copy.
+ *
+ * Every frame {@link #collect} culls the copies against a camera and sorts the model matrices
+ * of the visible ones into one tightly packed array per level of detail, ready to be streamed
+ * to the GPU. The arrays are reused from frame to frame.
+ */
+
+public class InstanceSet {
+
+    private static final int FLOATS_PER_MATRIX = 16;
+
+    private final Renderable mRenderable;
+    private float[] mMatrices = new float[FLOATS_PER_MATRIX * 16];
+    /**
+     * World space bounding spheres, center and radius, valid once the renderable is loaded.
+     */
+    private float[] mSpheres = new float[4 * 16];
+    private boolean mSpheresValid;
+    private int mCount;
+
+    private float[][] mLodMatrices = new float[0][];
+    private int[] mLodCounts = new int[0];
+    private int mVisibleCount;
+    private int mCulledCount;
+
+    private final Mat4 mInverseView = new Mat4();
+
+    public InstanceSet(Renderable renderable) {
+        mRenderable = renderable;
+    }
+
+    public Renderable getRenderable() {
+        return mRenderable;
+    }
+
+    /**
+     * @return the index of the new copy
+     */
+    public int add(Mat4 world) {
+        if (mCount * FLOATS_PER_MATRIX == mMatrices.length) {
+            mMatrices = Arrays.copyOf(mMatrices, mMatrices.length * 2);
+            mSpheres = Arrays.copyOf(mSpheres, mSpheres.length * 2);
+        }
+        mCount++;
+        set(mCount - 1, world);
+        return mCount - 1;
+    }
+
+    public void set(int index, Mat4 world) {
+        System.arraycopy(world.getValues(), 0, mMatrices, index * FLOATS_PER_MATRIX, FLOATS_PER_MATRIX);
+        mSpheresValid = false;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Culls the copies against the frustum of the camera and selects their levels of detail.
+     *
+     * @param frustum the frustum of the camera
+     * @return the number of visible copies
+     */
+    public int collect(Frustum frustum, SceneCamera camera, LodSelector selector) {
+        mVisibleCount = 0;
+        mCulledCount = 0;
+        if (!mRenderable.getInitialised()) {
+            return 0;
+        }
+        if (!mSpheresValid) {
+            updateSpheres();
+        }
+
+        float[] lodErrors = mRenderable.getLodErrors();
+        if (mLodCounts.length != lodErrors.length) {
+            mLodMatrices = new float[lodErrors.length][FLOATS_PER_MATRIX * 16];
+            mLodCounts = new int[lodErrors.length];
+        }
+        Arrays.fill(mLodCounts, 0);
+
+        mInverseView.invertRigid(camera.getView());
+        float[] inverseView = mInverseView.getValues();
+        float eyeX = inverseView[12];
+        float eyeY = inverseView[13];
+        float eyeZ = inverseView[14];
+        float pixelsPerUnit = camera.getPixelsPerUnit();
+        boolean orthographic = camera.isOrthographic();
+
+        for (int i = 0; i < mCount; i++) {
+            float x = mSpheres[i * 4];
+            float y = mSpheres[i * 4 + 1];
+            float z = mSpheres[i * 4 + 2];
+            float radius = mSpheres[i * 4 + 3];
+            if (!frustum.intersectsSphere(x, y, z, radius)) {
+                mCulledCount++;
+                continue;
+            }
+            float dx = x - eyeX;
+            float dy = y - eyeY;
+            float dz = z - eyeZ;
+            int lod = selector.select(lodErrors, radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz),
+                    pixelsPerUnit, orthographic);
+
+            int count = mLodCounts[lod];
+            if (count * FLOATS_PER_MATRIX == mLodMatrices[lod].length) {
+                mLodMatrices[lod] = Arrays.copyOf(mLodMatrices[lod], mLodMatrices[lod].length * 2);
+            }
+            System.arraycopy(mMatrices, i * FLOATS_PER_MATRIX, mLodMatrices[lod], count * FLOATS_PER_MATRIX,
+                    FLOATS_PER_MATRIX);
+            mLodCounts[lod] = count + 1;
+            mVisibleCount++;
+        }
+        return mVisibleCount;
+    }
+
+    /**
+     * Moves the bounding sphere of the renderable to every copy, the radius grows with the
+     * largest scale of the copy.
+     */
+    private void updateSpheres() {
+        float[] sphere = mRenderable.getBoundingSphere();
+        for (int i = 0; i < mCount; i++) {
+            int m = i * FLOATS_PER_MATRIX;
+            float[] w = mMatrices;
+            float scaleX = w[m] * w[m] + w[m + 1] * w[m + 1] + w[m + 2] * w[m + 2];
+            float scaleY = w[m + 4] * w[m + 4] + w[m + 5] * w[m + 5] + w[m + 6] * w[m + 6];
+            float scaleZ = w[m + 8] * w[m + 8] + w[m + 9] * w[m + 9] + w[m + 10] * w[m + 10];
+            float scale = (float) Math.sqrt(Math.max(scaleX, Math.max(scaleY, scaleZ)));
+
+            mSpheres[i * 4] = w[m] * sphere[0] + w[m + 4] * sphere[1] + w[m + 8] * sphere[2] + w[m + 12];
+            mSpheres[i * 4 + 1] = w[m + 1] * sphere[0] + w[m + 5] * sphere[1] + w[m + 9] * sphere[2] + w[m + 13];
+            mSpheres[i * 4 + 2] = w[m + 2] * sphere[0] + w[m + 6] * sphere[1] + w[m + 10] * sphere[2] + w[m + 14];
+            mSpheres[i * 4 + 3] = sphere[3] * scale;
+        }
+        mSpheresValid = true;
+    }
+
+    /**
+     * Number of levels of detail of the last {@link #collect}.
+     */
+    public int getLodCount() {
+        return mLodCounts.length;
+    }
+
+    /**
+     * Visible copies drawn with the level.
+     */
+    public int getInstanceCount(int lod) {
+        return mLodCounts[lod];
+    }
+
+    /**
+     * Model matrices of the visible copies drawn with the level, 16 floats each.
+     */
+    public float[] getMatrices(int lod) {
+        return mLodMatrices[lod];
+    }
+
+    public int getVisibleCount() {
+        return mVisibleCount;
+    }
+
+    public int getCulledCount() {
+        return mCulledCount;
+    }
+}
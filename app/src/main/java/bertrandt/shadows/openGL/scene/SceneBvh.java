@@ -0,0 +1,445 @@
+package bertrandt.shadows.openGL.scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.common.Frustum;
+import bertrandt.shadows.openGL.draw.Renderable;
+
+/**
+ * Dynamic bounding volume hierarchy over the nodes of a scene graph that have a
+ * {@link Renderable}, used to cull whole groups of nodes against a frustum.
+ *
+ * Every node is a leaf with its world space bounding box and sphere. Leaves are inserted next
+ * to the sibling that grows the surface area of the tree the least. The box stored in the tree
+ * is enlarged by a margin, so a node that moves a little only updates its own bounds;
+ * {@link #update()} reinserts it when it leaves the enlarged box. Only nodes whose world
+ * transform changed are looked at, static nodes cost nothing per frame.
+ *
+ * Nodes are added while their mesh is still loading and enter the tree once it is initialised.
+ * Nothing is allocated per frame once the arrays have grown.
+ */
+
+public class SceneBvh {
+
+    private static final int NONE = -1;
+    private static final int BOX_SIZE = 6;
+    private static final int SPHERE_SIZE = 4;
+
+    /**
+     * Enlargement of the tree box relative to the largest extent of the node.
+     */
+    private static final float MARGIN = 0.05f;
+
+    private int mRoot = NONE;
+    private int mCapacity;
+    /**
+     * Enlarged boxes of leaves, enclosing boxes of inner nodes.
+     */
+    private float[] mBoxes;
+    private int[] mParents;
+    private int[] mFirstChildren;
+    private int[] mSecondChildren;
+    /**
+     * Scene node of a leaf, null for inner nodes.
+     */
+    private SceneNode[] mNodes;
+    /**
+     * Exact world space bounds of the leaves.
+     */
+    private float[] mLeafBoxes;
+    private float[] mLeafSpheres;
+    /**
+     * Unused entries are chained through the parent array.
+     */
+    private int mFreeList = NONE;
+    private int mLeafCount;
+
+    private final ArrayList<SceneNode> mPending = new ArrayList<>();
+    private final ArrayList<SceneNode> mMoved = new ArrayList<>();
+    private int[] mStack = new int[64];
+    private final float[] mBox = new float[BOX_SIZE];
+
+    private int mReinsertions;
+    private int mVisibleCount;
+    private int mCulledCount;
+
+    /**
+     * Keeps the renderable nodes below and including the root in the hierarchy.
+     */
+    public SceneBvh(SceneNode root) {
+        allocate(16);
+        root.setBvh(this);
+    }
+
+    private void allocate(int capacity) {
+        mBoxes = mBoxes == null ? new float[capacity * BOX_SIZE] : Arrays.copyOf(mBoxes, capacity * BOX_SIZE);
+        mParents = mParents == null ? new int[capacity] : Arrays.copyOf(mParents, capacity);
+        mFirstChildren = mFirstChildren == null ? new int[capacity] : Arrays.copyOf(mFirstChildren, capacity);
+        mSecondChildren = mSecondChildren == null ? new int[capacity] : Arrays.copyOf(mSecondChildren, capacity);
+        mNodes = mNodes == null ? new SceneNode[capacity] : Arrays.copyOf(mNodes, capacity);
+        mLeafBoxes = mLeafBoxes == null ? new float[capacity * BOX_SIZE]
+                : Arrays.copyOf(mLeafBoxes, capacity * BOX_SIZE);
+        mLeafSpheres = mLeafSpheres == null ? new float[capacity * SPHERE_SIZE]
+                : Arrays.copyOf(mLeafSpheres, capacity * SPHERE_SIZE);
+        for (int i = capacity - 1; i >= mCapacity; i--) {
+            mParents[i] = mFreeList;
+            mFreeList = i;
+        }
+        mCapacity = capacity;
+    }
+
+    private int allocateEntry() {
+        if (mFreeList == NONE) {
+            allocate(mCapacity * 2);
+        }
+        int entry = mFreeList;
+        mFreeList = mParents[entry];
+        mParents[entry] = NONE;
+        mFirstChildren[entry] = NONE;
+        mSecondChildren[entry] = NONE;
+        mNodes[entry] = null;
+        return entry;
+    }
+
+    private void freeEntry(int entry) {
+        mNodes[entry] = null;
+        mParents[entry] = mFreeList;
+        mFreeList = entry;
+    }
+
+    /**
+     * Called by the scene graph when a node enters the hierarchy or gets a new renderable.
+     */
+    void add(SceneNode node) {
+        if (node.getRenderable() == null || node.mBvhPending || node.mBvhLeaf != NONE) {
+            return;
+        }
+        node.mBvhPending = true;
+        mPending.add(node);
+    }
+
+    /**
+     * Called by the scene graph when a node leaves the hierarchy or loses its renderable.
+     */
+    void remove(SceneNode node) {
+        if (node.mBvhPending) {
+            mPending.remove(node);
+            node.mBvhPending = false;
+        }
+        if (node.mBvhMoved) {
+            mMoved.remove(node);
+            node.mBvhMoved = false;
+        }
+        if (node.mBvhLeaf != NONE) {
+            removeLeaf(node.mBvhLeaf);
+            freeEntry(node.mBvhLeaf);
+            node.mBvhLeaf = NONE;
+            mLeafCount--;
+        }
+    }
+
+    /**
+     * Called by the scene graph when the world transform of a node changed.
+     */
+    void onMoved(SceneNode node) {
+        if (node.mBvhLeaf != NONE && !node.mBvhMoved) {
+            node.mBvhMoved = true;
+            mMoved.add(node);
+        }
+    }
+
+    /**
+     * Inserts nodes whose mesh finished loading and refits moved nodes. Call it once per frame
+     * after {@link SceneNode#updateWorld()}.
+     */
+    public void update() {
+        mReinsertions = 0;
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            SceneNode node = mPending.get(i);
+            if (!node.getRenderable().getInitialised()) {
+                continue;
+            }
+            // swap remove, the order of pending nodes does not matter
+            mPending.set(i, mPending.get(mPending.size() - 1));
+            mPending.remove(mPending.size() - 1);
+            node.mBvhPending = false;
+
+            int leaf = allocateEntry();
+            mNodes[leaf] = node;
+            node.mBvhLeaf = leaf;
+            mLeafCount++;
+            computeLeafBounds(leaf);
+            insertLeaf(leaf);
+        }
+
+        for (int i = 0; i < mMoved.size(); i++) {
+            SceneNode node = mMoved.get(i);
+            node.mBvhMoved = false;
+            int leaf = node.mBvhLeaf;
+            computeLeafBounds(leaf);
+            if (!contains(mBoxes, leaf * BOX_SIZE, mLeafBoxes, leaf * BOX_SIZE)) {
+                removeLeaf(leaf);
+                insertLeaf(leaf);
+                mReinsertions++;
+            }
+        }
+        mMoved.clear();
+    }
+
+    /**
+     * Collects the nodes whose bounds intersect the frustum. Subtrees completely inside are
+     * taken without testing their leaves.
+     *
+     * @param frustum in world space, e.g. from {@link SceneCamera#getViewProjection()}
+     * @param visible cleared and filled with the nodes to draw
+     * @return the number of visible nodes
+     */
+    public int cull(Frustum frustum, ArrayList<SceneNode> visible) {
+        visible.clear();
+        if (mRoot != NONE) {
+            // entries are tree indices shifted left by one, the low bit marks subtrees known to be inside
+            int stackSize = 0;
+            mStack[stackSize++] = mRoot << 1;
+            while (stackSize > 0) {
+                int entry = mStack[--stackSize];
+                int index = entry >> 1;
+                boolean inside = (entry & 1) != 0;
+                if (!inside) {
+                    int result = frustum.classifyBox(mBoxes, index * BOX_SIZE);
+                    if (result == Frustum.OUTSIDE) {
+                        continue;
+                    }
+                    inside = result == Frustum.INSIDE;
+                }
+                SceneNode node = mNodes[index];
+                if (node != null) {
+                    if (inside || frustum.classifyBox(mLeafBoxes, index * BOX_SIZE) != Frustum.OUTSIDE
+                            && frustum.intersectsSphere(mLeafSpheres[index * SPHERE_SIZE],
+                            mLeafSpheres[index * SPHERE_SIZE + 1], mLeafSpheres[index * SPHERE_SIZE + 2],
+                            mLeafSpheres[index * SPHERE_SIZE + 3])) {
+                        visible.add(node);
+                    }
+                    continue;
+                }
+                if (stackSize + 2 > mStack.length) {
+                    mStack = Arrays.copyOf(mStack, mStack.length * 2);
+                }
+                int flag = inside ? 1 : 0;
+                mStack[stackSize++] = mFirstChildren[index] << 1 | flag;
+                mStack[stackSize++] = mSecondChildren[index] << 1 | flag;
+            }
+        }
+        mVisibleCount = visible.size();
+        mCulledCount = mLeafCount - mVisibleCount;
+        return mVisibleCount;
+    }
+
+    /**
+     * Number of nodes in the tree, without those still loading.
+     */
+    public int getLeafCount() {
+        return mLeafCount;
+    }
+
+    public int getVisibleCount() {
+        return mVisibleCount;
+    }
+
+    /**
+     * Nodes of the tree the last {@link #cull} call dropped.
+     */
+    public int getCulledCount() {
+        return mCulledCount;
+    }
+
+    /**
+     * Moved nodes the last {@link #update()} had to reinsert, the rest only updated their bounds.
+     */
+    public int getReinsertions() {
+        return mReinsertions;
+    }
+
+    /**
+     * Bounds of the whole tree, false if it is empty.
+     */
+    public boolean getBounds(float[] box) {
+        if (mRoot == NONE) {
+            return false;
+        }
+        System.arraycopy(mBoxes, mRoot * BOX_SIZE, box, 0, BOX_SIZE);
+        return true;
+    }
+
+    /**
+     * Transforms the object space bounds of the leaf's renderable into world space: the box
+     * around the transformed box and the sphere scaled by the largest axis scale. The enlarged
+     * box in the tree is only replaced when the leaf is inserted.
+     */
+    private void computeLeafBounds(int leaf) {
+        SceneNode node = mNodes[leaf];
+        Renderable renderable = node.getRenderable();
+        float[] world = node.getWorld().getValues();
+        float[] bounds = renderable.getBounds();
+        float centerX = (bounds[0] + bounds[3]) * 0.5f;
+        float centerY = (bounds[1] + bounds[4]) * 0.5f;
+        float centerZ = (bounds[2] + bounds[5]) * 0.5f;
+        float extentX = (bounds[3] - bounds[0]) * 0.5f;
+        float extentY = (bounds[4] - bounds[1]) * 0.5f;
+        float extentZ = (bounds[5] - bounds[2]) * 0.5f;
+        int box = leaf * BOX_SIZE;
+        for (int axis = 0; axis < 3; axis++) {
+            float center = world[axis] * centerX + world[4 + axis] * centerY + world[8 + axis] * centerZ
+                    + world[12 + axis];
+            float extent = Math.abs(world[axis]) * extentX + Math.abs(world[4 + axis]) * extentY
+                    + Math.abs(world[8 + axis]) * extentZ;
+            mLeafBoxes[box + axis] = center - extent;
+            mLeafBoxes[box + axis + 3] = center + extent;
+        }
+
+        float[] sphere = renderable.getBoundingSphere();
+        int sphereOffset = leaf * SPHERE_SIZE;
+        float scale = 0f;
+        for (int column = 0; column < 3; column++) {
+            float x = world[column * 4];
+            float y = world[column * 4 + 1];
+            float z = world[column * 4 + 2];
+            scale = Math.max(scale, x * x + y * y + z * z);
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            mLeafSpheres[sphereOffset + axis] = world[axis] * sphere[0] + world[4 + axis] * sphere[1]
+                    + world[8 + axis] * sphere[2] + world[12 + axis];
+        }
+        mLeafSpheres[sphereOffset + 3] = sphere[3] * (float) Math.sqrt(scale);
+    }
+
+    /**
+     * Inserts a leaf whose exact bounds are computed, its enlarged box is set here.
+     */
+    private void insertLeaf(int leaf) {
+        int box = leaf * BOX_SIZE;
+        float margin = 0f;
+        for (int axis = 0; axis < 3; axis++) {
+            margin = Math.max(margin, mLeafBoxes[box + axis + 3] - mLeafBoxes[box + axis]);
+        }
+        margin *= MARGIN;
+        for (int axis = 0; axis < 3; axis++) {
+            mBoxes[box + axis] = mLeafBoxes[box + axis] - margin;
+            mBoxes[box + axis + 3] = mLeafBoxes[box + axis + 3] + margin;
+        }
+
+        if (mRoot == NONE) {
+            mRoot = leaf;
+            mParents[leaf] = NONE;
+            return;
+        }
+
+        // descend to the sibling with the lowest cost, the cost of a node is its surface area
+        int index = mRoot;
+        while (mNodes[index] == null) {
+            float area = getArea(mBoxes, index * BOX_SIZE);
+            float combinedArea = getCombinedArea(index, leaf);
+            // a new parent above this node
+            float cost = 2f * combinedArea;
+            // growing this node to the leaf is paid for by every child
+            float inheritance = 2f * (combinedArea - area);
+            float firstCost = getDescentCost(mFirstChildren[index], leaf) + inheritance;
+            float secondCost = getDescentCost(mSecondChildren[index], leaf) + inheritance;
+            if (cost < firstCost && cost < secondCost) {
+                break;
+            }
+            index = firstCost < secondCost ? mFirstChildren[index] : mSecondChildren[index];
+        }
+
+        int sibling = index;
+        int oldParent = mParents[sibling];
+        int newParent = allocateEntry();
+        mParents[newParent] = oldParent;
+        mFirstChildren[newParent] = sibling;
+        mSecondChildren[newParent] = leaf;
+        mParents[sibling] = newParent;
+        mParents[leaf] = newParent;
+        if (oldParent == NONE) {
+            mRoot = newParent;
+        } else if (mFirstChildren[oldParent] == sibling) {
+            mFirstChildren[oldParent] = newParent;
+        } else {
+            mSecondChildren[oldParent] = newParent;
+        }
+        refit(newParent);
+    }
+
+    private float getDescentCost(int child, int leaf) {
+        float combinedArea = getCombinedArea(child, leaf);
+        if (mNodes[child] != null) {
+            return combinedArea;
+        }
+        return combinedArea - getArea(mBoxes, child * BOX_SIZE);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == mRoot) {
+            mRoot = NONE;
+            return;
+        }
+        int parent = mParents[leaf];
+        int grandParent = mParents[parent];
+        int sibling = mFirstChildren[parent] == leaf ? mSecondChildren[parent] : mFirstChildren[parent];
+        mParents[sibling] = grandParent;
+        if (grandParent == NONE) {
+            mRoot = sibling;
+        } else {
+            if (mFirstChildren[grandParent] == parent) {
+                mFirstChildren[grandParent] = sibling;
+            } else {
+                mSecondChildren[grandParent] = sibling;
+            }
+            refit(grandParent);
+        }
+        freeEntry(parent);
+        mParents[leaf] = NONE;
+    }
+
+    /**
+     * Recomputes the boxes from the node up to the root.
+     */
+    private void refit(int index) {
+        while (index != NONE) {
+            int box = index * BOX_SIZE;
+            int first = mFirstChildren[index] * BOX_SIZE;
+            int second = mSecondChildren[index] * BOX_SIZE;
+            for (int axis = 0; axis < 3; axis++) {
+                mBoxes[box + axis] = Math.min(mBoxes[first + axis], mBoxes[second + axis]);
+                mBoxes[box + axis + 3] = Math.max(mBoxes[first + axis + 3], mBoxes[second + axis + 3]);
+            }
+            index = mParents[index];
+        }
+    }
+
+    private float getCombinedArea(int index, int leaf) {
+        int box = index * BOX_SIZE;
+        int leafBox = leaf * BOX_SIZE;
+        for (int axis = 0; axis < 3; axis++) {
+            mBox[axis] = Math.min(mBoxes[box + axis], mBoxes[leafBox + axis]);
+            mBox[axis + 3] = Math.max(mBoxes[box + axis + 3], mBoxes[leafBox + axis + 3]);
+        }
+        return getArea(mBox, 0);
+    }
+
+    private static float getArea(float[] boxes, int offset) {
+        float x = boxes[offset + 3] - boxes[offset];
+        float y = boxes[offset + 4] - boxes[offset + 1];
+        float z = boxes[offset + 5] - boxes[offset + 2];
+        return 2f * (x * y + y * z + z * x);
+    }
+
+    private static boolean contains(float[] outer, int outerOffset, float[] inner, int innerOffset) {
+        for (int axis = 0; axis < 3; axis++) {
+            if (inner[innerOffset + axis] < outer[outerOffset + axis]
+                    || inner[innerOffset + axis + 3] > outer[outerOffset + axis + 3]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
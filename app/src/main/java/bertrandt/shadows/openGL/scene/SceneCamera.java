@@ -0,0 +1,97 @@
+package bertrandt.shadows.openGL.scene;
+
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.draw.LodSelector;
+import bertrandt.shadows.openGL.math.Mat4;
+
+/**
+ * View and projection a pass draws the scene graph with.
+ *
+ * Every camera owns a slot in the matrix caches of the {@link SceneNode nodes}. The version
+ * changes whenever view or projection change, which tells the nodes to recompute their
+ * matrices for this camera.
+ */
+
+public class SceneCamera {
+
+    private final int mSlot;
+    private final Mat4 mView = new Mat4();
+    private final Mat4 mProjection = new Mat4();
+    private final Mat4 mViewProjection = new Mat4();
+    private int mViewProjectionVersion = -1;
+    private int mViewportHeight = 1;
+    private int mVersion;
+
+    /**
+     * @param slot index of the camera's cache in the nodes, small and unique per camera
+     */
+    public SceneCamera(int slot) {
+        mSlot = slot;
+    }
+
+    /**
+     * Keeps the version if the view did not change.
+     */
+    public void setView(Mat4 view) {
+        if (Arrays.equals(mView.getValues(), view.getValues())) {
+            return;
+        }
+        mView.set(view);
+        mVersion++;
+    }
+
+    /**
+     * @param viewportHeight height of the render target in pixels, for level of detail selection
+     */
+    public void setProjection(Mat4 projection, int viewportHeight) {
+        if (viewportHeight == mViewportHeight && Arrays.equals(mProjection.getValues(), projection.getValues())) {
+            return;
+        }
+        mProjection.set(projection);
+        mViewportHeight = viewportHeight;
+        mVersion++;
+    }
+
+    public Mat4 getView() {
+        return mView;
+    }
+
+    public Mat4 getProjection() {
+        return mProjection;
+    }
+
+    /**
+     * World space to clip space, e.g. for the frustum of the camera.
+     */
+    public Mat4 getViewProjection() {
+        if (mViewProjectionVersion != mVersion) {
+            mViewProjection.multiply(mProjection, mView);
+            mViewProjectionVersion = mVersion;
+        }
+        return mViewProjection;
+    }
+
+    /**
+     * True for a parallel projection, e.g. of a shadow cascade. Its view direction is the same
+     * everywhere and the projected size does not shrink with distance.
+     */
+    public boolean isOrthographic() {
+        return mProjection.getValues()[15] == 1f;
+    }
+
+    /**
+     * See {@link LodSelector#getPixelsPerUnit(float[], int)}.
+     */
+    public float getPixelsPerUnit() {
+        return LodSelector.getPixelsPerUnit(mProjection.getValues(), mViewportHeight);
+    }
+
+    int getSlot() {
+        return mSlot;
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+}
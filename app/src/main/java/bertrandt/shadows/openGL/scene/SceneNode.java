@@ -0,0 +1,372 @@
+package bertrandt.shadows.openGL.scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import bertrandt.shadows.openGL.draw.Renderable;
+import bertrandt.shadows.openGL.math.Mat4;
+import bertrandt.shadows.openGL.math.Vec4;
+
+/**
+ * A node of the scene graph: a transform relative to the parent, the resulting world transform
+ * and optionally a {@link Renderable}.
+ *
+ * Changing the local transform marks the node dirty and its ancestors as having a dirty
+ * descendant, so {@link #updateWorld()} on the root only walks the branches that changed. The
+ * matrices a pass needs are cached per {@link SceneCamera} and only recomputed when the world
+ * transform, the camera or the position transform of the renderable changed. Static nodes seen
+ * by a static camera cost nothing per frame.
+ *
+ * Nodes with a renderable below a root given to a {@link SceneBvh} are kept in the hierarchy
+ * automatically, also when they are added, moved or removed later.
+ *
+ * Nodes belong to the render thread.
+ */
+
+public class SceneNode {
+
+    private final Mat4 mLocal = new Mat4();
+    private final Mat4 mWorld = new Mat4();
+    private SceneNode mParent;
+    private final ArrayList<SceneNode> mChildren = new ArrayList<>();
+    private Renderable mRenderable;
+
+    /**
+     * The world transform has to be recomputed, or one of a descendant.
+     */
+    private boolean mDirty = true;
+    private boolean mChildDirty;
+    private int mWorldVersion;
+
+    private CameraCache[] mCameraCaches = new CameraCache[0];
+    private boolean mStatic;
+
+    /**
+     * State owned by the hierarchy the node belongs to.
+     */
+    SceneBvh mBvh;
+    int mBvhLeaf = -1;
+    boolean mBvhPending;
+    boolean mBvhMoved;
+
+    public SceneNode() {
+    }
+
+    public SceneNode(Renderable renderable) {
+        mRenderable = renderable;
+    }
+
+    public Renderable getRenderable() {
+        return mRenderable;
+    }
+
+    /**
+     * Marks the node as never moving, e.g. so that its shadow can be cached.
+     */
+    public void setStatic(boolean isStatic) {
+        mStatic = isStatic;
+    }
+
+    public boolean isStatic() {
+        return mStatic;
+    }
+
+    public void setRenderable(Renderable renderable) {
+        if (mBvh != null) {
+            mBvh.remove(this);
+        }
+        mRenderable = renderable;
+        if (mBvh != null) {
+            mBvh.add(this);
+        }
+    }
+
+    /**
+     * Transform relative to the parent. Call {@link #markDirty()} after changing it in place.
+     */
+    public Mat4 getLocal() {
+        return mLocal;
+    }
+
+    public void setLocal(Mat4 local) {
+        mLocal.set(local);
+        markDirty();
+    }
+
+    /**
+     * Schedules the world transform of this node and its descendants for the next
+     * {@link #updateWorld()}.
+     */
+    public void markDirty() {
+        mDirty = true;
+        for (SceneNode ancestor = mParent; ancestor != null && !ancestor.mChildDirty; ancestor = ancestor.mParent) {
+            ancestor.mChildDirty = true;
+        }
+    }
+
+    /**
+     * Transform from object to world space, valid after {@link #updateWorld()}.
+     */
+    public Mat4 getWorld() {
+        return mWorld;
+    }
+
+    /**
+     * Recomputes the world transforms of dirty nodes below and including this one, call it on
+     * the root once per frame before the matrices are used.
+     */
+    public void updateWorld() {
+        updateWorld(false);
+    }
+
+    private void updateWorld(boolean parentChanged) {
+        boolean changed = mDirty || parentChanged;
+        if (changed) {
+            if (mParent == null) {
+                mWorld.set(mLocal);
+            } else {
+                mWorld.multiply(mParent.mWorld, mLocal);
+            }
+            mWorldVersion++;
+            mDirty = false;
+            if (mBvh != null) {
+                mBvh.onMoved(this);
+            }
+        }
+        if (changed || mChildDirty) {
+            for (int i = 0; i < mChildren.size(); i++) {
+                mChildren.get(i).updateWorld(changed);
+            }
+        }
+        mChildDirty = false;
+    }
+
+    /**
+     * Changes every time {@link #updateWorld()} recomputes the world transform.
+     */
+    public int getWorldVersion() {
+        return mWorldVersion;
+    }
+
+    public void addChild(SceneNode child) {
+        if (child.mParent != null) {
+            child.mParent.removeChild(child);
+        }
+        child.mParent = this;
+        mChildren.add(child);
+        child.markDirty();
+        child.setBvh(mBvh);
+    }
+
+    public void removeChild(SceneNode child) {
+        if (mChildren.remove(child)) {
+            child.mParent = null;
+            child.markDirty();
+            child.setBvh(null);
+        }
+    }
+
+    /**
+     * Moves this node and its descendants into another hierarchy.
+     */
+    void setBvh(SceneBvh bvh) {
+        if (mBvh == bvh) {
+            return;
+        }
+        if (mBvh != null) {
+            mBvh.remove(this);
+        }
+        mBvh = bvh;
+        if (bvh != null) {
+            bvh.add(this);
+        }
+        for (int i = 0; i < mChildren.size(); i++) {
+            mChildren.get(i).setBvh(bvh);
+        }
+    }
+
+    public SceneNode getParent() {
+        return mParent;
+    }
+
+    public int getChildCount() {
+        return mChildren.size();
+    }
+
+    public SceneNode getChild(int index) {
+        return mChildren.get(index);
+    }
+
+    /**
+     * Object space to view space, for level of detail selection.
+     */
+    public Mat4 getModelView(SceneCamera camera) {
+        CameraCache cache = getCache(camera);
+        if (!cache.mModelViewValid) {
+            if (cache.mModelView == null) {
+                cache.mModelView = new Mat4();
+            }
+            cache.mModelView.multiply(camera.getView(), mWorld);
+            cache.mModelViewValid = true;
+        }
+        return cache.mModelView;
+    }
+
+    /**
+     * Object space to clip space, for culling.
+     */
+    public Mat4 getModelViewProjection(SceneCamera camera) {
+        CameraCache cache = getCache(camera);
+        if (!cache.mModelViewProjectionValid) {
+            if (cache.mModelViewProjection == null) {
+                cache.mModelViewProjection = new Mat4();
+            }
+            cache.mModelViewProjection.multiply(camera.getProjection(), getModelView(camera));
+            cache.mModelViewProjectionValid = true;
+        }
+        return cache.mModelViewProjection;
+    }
+
+    /**
+     * Position of the camera in object space, w is 1.
+     */
+    public Vec4 getEye(SceneCamera camera) {
+        CameraCache cache = getCache(camera);
+        if (!cache.mEyeValid) {
+            if (cache.mEye == null) {
+                cache.mEye = new Vec4();
+                cache.mViewDirection = new Vec4();
+                cache.mInverse = new Mat4();
+            }
+            // the world transform may scale, the view is rigid
+            cache.mInverse.invertAffine(getModelView(camera));
+            float[] inverse = cache.mInverse.getValues();
+            cache.mEye.set(inverse[12], inverse[13], inverse[14], 1f);
+            // the camera looks along -z of view space
+            float length = (float) Math.sqrt(inverse[8] * inverse[8] + inverse[9] * inverse[9]
+                    + inverse[10] * inverse[10]);
+            cache.mViewDirection.set(-inverse[8] / length, -inverse[9] / length, -inverse[10] / length, 0f);
+            cache.mEyeValid = true;
+        }
+        return cache.mEye;
+    }
+
+    /**
+     * Direction the camera looks in, in object space and normalized, w is 0. The same for every
+     * point seen through an orthographic camera.
+     */
+    public Vec4 getViewDirection(SceneCamera camera) {
+        getEye(camera);
+        return getCache(camera).mViewDirection;
+    }
+
+    /**
+     * Inverse transpose of the model view matrix, maps normals to view space.
+     */
+    public Mat4 getNormalMatrix(SceneCamera camera) {
+        CameraCache cache = getCache(camera);
+        if (!cache.mNormalValid) {
+            if (cache.mNormal == null) {
+                cache.mNormal = new Mat4();
+            }
+            cache.mNormal.setNormalMatrix(getModelView(camera));
+            cache.mNormalValid = true;
+        }
+        return cache.mNormal;
+    }
+
+    /**
+     * Model view matrix including the position transform of the renderable, for shaders.
+     */
+    public Mat4 getPositionModelView(SceneCamera camera) {
+        CameraCache cache = getCache(camera);
+        if (!cache.mPositionModelViewValid) {
+            if (cache.mPositionModelView == null) {
+                cache.mPositionModelView = new Mat4();
+            }
+            setPositionTransformed(cache.mPositionModelView, getModelView(camera), cache.mPositionTransform);
+            cache.mPositionModelViewValid = true;
+        }
+        return cache.mPositionModelView;
+    }
+
+    /**
+     * Model view projection matrix including the position transform of the renderable, for
+     * shaders.
+     */
+    public Mat4 getPositionModelViewProjection(SceneCamera camera) {
+        CameraCache cache = getCache(camera);
+        if (!cache.mPositionModelViewProjectionValid) {
+            if (cache.mPositionModelViewProjection == null) {
+                cache.mPositionModelViewProjection = new Mat4();
+            }
+            setPositionTransformed(cache.mPositionModelViewProjection, getModelViewProjection(camera),
+                    cache.mPositionTransform);
+            cache.mPositionModelViewProjectionValid = true;
+        }
+        return cache.mPositionModelViewProjection;
+    }
+
+    private static void setPositionTransformed(Mat4 result, Mat4 matrix, float[] positionTransform) {
+        if (positionTransform == null) {
+            result.set(matrix);
+        } else {
+            result.multiply(matrix, positionTransform, 0);
+        }
+    }
+
+    /**
+     * The cache of the camera, emptied if one of its inputs changed.
+     */
+    private CameraCache getCache(SceneCamera camera) {
+        int slot = camera.getSlot();
+        if (slot >= mCameraCaches.length) {
+            mCameraCaches = Arrays.copyOf(mCameraCaches, slot + 1);
+        }
+        CameraCache cache = mCameraCaches[slot];
+        if (cache == null) {
+            cache = new CameraCache();
+            mCameraCaches[slot] = cache;
+        }
+        float[] positionTransform = mRenderable != null && mRenderable.getInitialised()
+                ? mRenderable.getPositionTransform() : null;
+        if (cache.mWorldVersion != mWorldVersion || cache.mCameraVersion != camera.getVersion()
+                || cache.mPositionTransform != positionTransform) {
+            cache.mWorldVersion = mWorldVersion;
+            cache.mCameraVersion = camera.getVersion();
+            cache.mPositionTransform = positionTransform;
+            cache.mModelViewValid = false;
+            cache.mModelViewProjectionValid = false;
+            cache.mEyeValid = false;
+            cache.mNormalValid = false;
+            cache.mPositionModelViewValid = false;
+            cache.mPositionModelViewProjectionValid = false;
+        }
+        return cache;
+    }
+
+    /**
+     * Matrices of the node for one camera, allocated on first use.
+     */
+    private static class CameraCache {
+        int mWorldVersion = -1;
+        int mCameraVersion = -1;
+        float[] mPositionTransform;
+
+        Mat4 mModelView;
+        Mat4 mModelViewProjection;
+        Mat4 mInverse;
+        Vec4 mEye;
+        Vec4 mViewDirection;
+        Mat4 mNormal;
+        Mat4 mPositionModelView;
+        Mat4 mPositionModelViewProjection;
+
+        boolean mModelViewValid;
+        boolean mModelViewProjectionValid;
+        boolean mEyeValid;
+        boolean mNormalValid;
+        boolean mPositionModelViewValid;
+        boolean mPositionModelViewProjectionValid;
+    }
+}
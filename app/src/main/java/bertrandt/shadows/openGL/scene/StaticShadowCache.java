@@ -0,0 +1,112 @@
+package bertrandt.shadows.openGL.scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Decides when a shadow map of the static casters has to be rendered again.
+ *
+ * The map stays valid as long as the light cameras, e.g. one per shadow cascade, keep their
+ * versions and the static casters are the same nodes with the same world transforms and loading
+ * state as when it was last rendered. Dynamic casters are drawn into a separate map every frame.
+ */
+
+public class StaticShadowCache {
+
+    private SceneCamera[] mCameras = new SceneCamera[0];
+    private int[] mCameraVersions = new int[0];
+    private int mCameraCount;
+    private final SceneCamera[] mSingleCamera = new SceneCamera[1];
+    private SceneNode[] mNodes = new SceneNode[0];
+    private int[] mWorldVersions = new int[0];
+    private boolean[] mInitialised = new boolean[0];
+    private int mNodeCount;
+    private boolean mValid;
+    private int mUpdates;
+
+    /**
+     * Forces the next {@link #isValid} to fail, e.g. after the map was recreated.
+     */
+    public void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * @param casters the static nodes that cast into the cached map
+     * @return true if the cached map still shows the casters seen from the camera
+     */
+    public boolean isValid(SceneCamera light, ArrayList<SceneNode> casters) {
+        mSingleCamera[0] = light;
+        return isValid(mSingleCamera, 1, casters);
+    }
+
+    /**
+     * @param lights  the cameras the map was rendered with, the first lightCount are used
+     * @param casters the static nodes that cast into the cached map
+     */
+    public boolean isValid(SceneCamera[] lights, int lightCount, ArrayList<SceneNode> casters) {
+        if (!mValid || lightCount != mCameraCount || casters.size() != mNodeCount) {
+            return false;
+        }
+        for (int i = 0; i < lightCount; i++) {
+            if (lights[i] != mCameras[i] || lights[i].getVersion() != mCameraVersions[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < mNodeCount; i++) {
+            SceneNode node = casters.get(i);
+            if (node != mNodes[i] || node.getWorldVersion() != mWorldVersions[i]
+                    || isInitialised(node) != mInitialised[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the state the map was just rendered with.
+     */
+    public void validate(SceneCamera light, ArrayList<SceneNode> casters) {
+        mSingleCamera[0] = light;
+        validate(mSingleCamera, 1, casters);
+    }
+
+    public void validate(SceneCamera[] lights, int lightCount, ArrayList<SceneNode> casters) {
+        if (mCameras.length < lightCount) {
+            mCameras = new SceneCamera[lightCount];
+            mCameraVersions = new int[lightCount];
+        }
+        for (int i = 0; i < lightCount; i++) {
+            mCameras[i] = lights[i];
+            mCameraVersions[i] = lights[i].getVersion();
+        }
+        mCameraCount = lightCount;
+        mNodeCount = casters.size();
+        if (mNodes.length < mNodeCount) {
+            mNodes = new SceneNode[mNodeCount];
+            mWorldVersions = new int[mNodeCount];
+            mInitialised = new boolean[mNodeCount];
+        }
+        for (int i = 0; i < mNodeCount; i++) {
+            SceneNode node = casters.get(i);
+            mNodes[i] = node;
+            mWorldVersions[i] = node.getWorldVersion();
+            mInitialised[i] = isInitialised(node);
+        }
+        // no references to nodes that were dropped
+        Arrays.fill(mNodes, mNodeCount, mNodes.length, null);
+        mValid = true;
+        mUpdates++;
+    }
+
+    /**
+     * Number of times the map was rendered since the cache was created.
+     */
+    public int getUpdates() {
+        return mUpdates;
+    }
+
+    private static boolean isInitialised(SceneNode node) {
+        return node.getRenderable() != null && node.getRenderable().getInitialised();
+    }
+}
@@ -2,23 +2,47 @@ package bertrandt.shadows.openGL.view;
 
 import android.content.Context;
 import android.opengl.GLSurfaceView;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 
 import bertrandt.shadows.R;
 import bertrandt.shadows.openGL.Renderer;
+import bertrandt.shadows.openGL.common.Clock;
+import bertrandt.shadows.openGL.common.FrameScheduler;
 
 /**
  * Created by buhrmanc on 05.02.2018.
+ *
+ * Renders only when the renderer or input changed something, see {@link FrameScheduler}.
+ * Frames are requested from Choreographer callbacks, so they start right after a vsync.
  */
 
-public class AdaptedGLSurfaceView extends GLSurfaceView {
+public class AdaptedGLSurfaceView extends GLSurfaceView implements Choreographer.FrameCallback {
     private bertrandt.shadows.openGL.Renderer mRenderer;
     private final float TOUCH_SCALE_FACTOR = 180.0f / 320;
     private float mPreviousX;
     private float mPreviousY;
 
+    /**
+     * The Choreographer of the UI thread, callbacks may be posted to it from any thread.
+     */
+    private final Choreographer mChoreographer;
+    private final FrameScheduler mFrameScheduler;
+
     public AdaptedGLSurfaceView(Context context) {
         super(context);
+        mChoreographer = Choreographer.getInstance();
+        mFrameScheduler = new FrameScheduler(Clock.SYSTEM, new FrameScheduler.Callback() {
+            @Override
+            public void requestVsync() {
+                mChoreographer.postFrameCallback(AdaptedGLSurfaceView.this);
+            }
+
+            @Override
+            public void requestRender() {
+                AdaptedGLSurfaceView.this.requestRender();
+            }
+        });
     }
 
     @Override
@@ -32,6 +56,7 @@ public class AdaptedGLSurfaceView extends GLSurfaceView {
                 float dx = x - mPreviousX;
                 float dy = y - mPreviousY;
 
+                // the renderer asks for a frame when the rotation changes
                 mRenderer.setRotationX(
                         mRenderer.getRotationX() +
                                 (dx * TOUCH_SCALE_FACTOR));  // = 180.0f / 320
@@ -39,8 +64,6 @@ public class AdaptedGLSurfaceView extends GLSurfaceView {
                 mRenderer.setRotationY(
                         mRenderer.getRotationY() +
                                 (dy * TOUCH_SCALE_FACTOR));  // = 180.0f / 320
-
-                requestRender();
         }
 
         mPreviousX = x;
@@ -49,9 +72,36 @@ public class AdaptedGLSurfaceView extends GLSurfaceView {
 
     }
 
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduler.onVsync(frameTimeNanos);
+    }
+
     // Hides superclass method.
     public void setRenderer(bertrandt.shadows.openGL.Renderer renderer) {
         mRenderer = renderer;
+        renderer.setFrameScheduler(mFrameScheduler);
         super.setRenderer(renderer);
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+    }
+
+    /**
+     * Limits the frame rate of animations, 0 for one frame every vsync.
+     */
+    public void setMaxFrameRate(float framesPerSecond) {
+        mFrameScheduler.setMaxFrameRate(framesPerSecond);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mFrameScheduler.start();
+    }
+
+    @Override
+    public void onPause() {
+        mFrameScheduler.stop();
+        mChoreographer.removeFrameCallback(this);
+        super.onPause();
     }
-}
\ No newline at end of file
+}
@@ -2,5 +2,19 @@
 // Used for shadow mapping - generates depth map from the light's viewpoint
 precision highp float;
 
+#ifdef PACK_DEPTH
+// without depth textures the depth is spread over the 8 bit channels of the color, the
+// first channel holds the most significant bits
+vec4 packDepth(float depth) {
+	vec4 packed = fract(depth * vec4(1.0, 255.0, 65025.0, 16581375.0));
+	// every channel keeps only the bits the next one does not hold
+	packed -= packed.yzww * vec4(1.0 / 255.0, 1.0 / 255.0, 1.0 / 255.0, 0.0);
+	return packed;
+}
+#endif
+
 void main() {
+#ifdef PACK_DEPTH
+	gl_FragColor = packDepth(gl_FragCoord.z);
+#endif
 }
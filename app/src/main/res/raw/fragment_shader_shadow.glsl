@@ -7,8 +7,12 @@ precision mediump float;
 // The position of the light in eye space.
 uniform vec3 u_LightPos;
   
-// Texture variables: depth texture
+// Texture variables: depth texture, or depth packed into a color texture with PACKED_DEPTH
 uniform sampler2D u_ShadowTexture;
+#ifdef STATIC_SHADOW_MAP
+// the cached depth of the static casters
+uniform sampler2D u_StaticShadowTexture;
+#endif
 //uniform sampler2D u_Texture;
 
 // This define the value to move one pixel left or right
@@ -22,9 +26,26 @@ varying vec2 v_TextureCoordinate;
 varying vec3 v_Normal;
   
 // shadow coordinates
+#ifdef CASCADES
+varying vec4 v_ShadowCoords[CASCADES];
+// distance from the camera where each cascade ends
+uniform float u_CascadeSplits[CASCADES];
+#else
 varying vec4 v_ShadowCoord;
+#endif
   
+// depth of the nearest caster stored in a shadow map
+float readDepth(sampler2D map, vec2 coordinate)
+{
+#ifdef PACKED_DEPTH
+	return dot(texture2D(map, coordinate), vec4(1.0, 1.0 / 255.0, 1.0 / 65025.0, 1.0 / 16581375.0));
+#else
+	return texture2D(map, coordinate).r;
+#endif
+}
+
 //Calculate variable bias - from http://www.opengl-tutorial.org/intermediate-tutorials/tutorial-16-shadow-mapping
+//Calculated once per fragment, not per tap
 float calcBias()
 {
 	float bias;
@@ -40,39 +61,81 @@ float calcBias()
 	//  - light is behind the triangle -> 0
 	float cosTheta = clamp( dot( n,l ), 0.0, 1.0 );
  		
- 	bias = 0.0001*tan(acos(cosTheta));
+ 	// tan(acos(x)) = sqrt(1 - x^2) / x, without the trigonometric functions
+ 	bias = 0.0001 * sqrt(1.0 - cosTheta * cosTheta) / max(cosTheta, 0.0001);
 	bias = clamp(bias, 0.0, 0.01);
  	
  	return bias;
 }
 
-float lookup( vec2 offSet) 
+// 1.0 if the texel at the coordinate lets the light reach the depth
+float lookup(vec2 coordinate, float depth)
 { 
-	vec4 shadowMapPosition = v_ShadowCoord / v_ShadowCoord.w;
-
-	float distanceFromLight = texture2D(u_ShadowTexture, (shadowMapPosition +
-	                               vec4(offSet.x * u_xPixelOffset, offSet.y * u_yPixelOffset, 0.05, 0.0)).st ).z;
-			
-	//add bias to reduce shadow acne (error margin)
-	float bias = calcBias();
+	float distanceFromLight = readDepth(u_ShadowTexture, coordinate);
+#ifdef STATIC_SHADOW_MAP
+	// the nearest caster of both maps
+	distanceFromLight = min(distanceFromLight, readDepth(u_StaticShadowTexture, coordinate));
+#endif
+	return float(distanceFromLight > depth);
+}
 
-	return float(distanceFromLight > shadowMapPosition.z - bias);
+#ifdef PCF_POISSON
+vec2 rotate(vec2 offset, vec2 rotation)
+{
+	return vec2(offset.x * rotation.x - offset.y * rotation.y, offset.x * rotation.y + offset.y * rotation.x);
 }
+#endif
 
-float shadowPCF()
+// share of the light that reaches the fragment, the kernel is selected by a define
+float shadowFilter(vec4 shadowCoord, float bias)
 {
-	float shadow = 1.0;
+	vec3 position = shadowCoord.xyz / shadowCoord.w;
+	//add bias to reduce shadow acne (error margin)
+	float depth = position.z - bias;
+	vec2 texel = vec2(u_xPixelOffset, u_yPixelOffset);
 
+#if defined(PCF_1)
+	return lookup(position.xy, depth);
+#elif defined(PCF_4)
+	// the four texels around the position, weighted like bilinear filtering would
+	vec2 texelPosition = position.xy / texel - 0.5;
+	vec2 weight = fract(texelPosition);
+	vec2 corner = (floor(texelPosition) + 0.5) * texel;
+	float bottom = mix(lookup(corner, depth), lookup(corner + vec2(texel.x, 0.0), depth), weight.x);
+	float top = mix(lookup(corner + vec2(0.0, texel.y), depth), lookup(corner + texel, depth), weight.x);
+	return mix(bottom, top, weight.y);
+#elif defined(PCF_9)
+	float shadow = 0.0;
+	for (float y = -1.0; y <= 1.0; y = y + 1.0) {
+		for (float x = -1.0; x <= 1.0; x = x + 1.0) {
+			shadow += lookup(position.xy + vec2(x, y) * texel, depth);
+		}
+	}
+	return shadow / 9.0;
+#elif defined(PCF_POISSON)
+	// a different rotation per pixel, interleaved gradient noise
+	float angle = 6.2831853 * fract(52.9829189 * fract(dot(gl_FragCoord.xy, vec2(0.06711056, 0.00583715))));
+	vec2 rotation = vec2(cos(angle), sin(angle));
+	vec2 radius = 2.0 * texel;
+	float shadow = lookup(position.xy + rotate(vec2(-0.94201624, -0.39906216), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(0.94558609, -0.76890725), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(-0.09418410, -0.92938870), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(0.34495938, 0.29387760), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(-0.91588581, 0.45771432), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(-0.81544232, -0.87912464), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(-0.38277543, 0.27676845), rotation) * radius, depth);
+	shadow += lookup(position.xy + rotate(vec2(0.97484398, 0.75648379), rotation) * radius, depth);
+	return shadow / 8.0;
+#else
+	// PCF_16
+	float shadow = 0.0;
 	for (float y = -1.5; y <= 1.5; y = y + 1.0) {
 		for (float x = -1.5; x <= 1.5; x = x + 1.0) {
-			shadow += lookup(vec2(x,y));
+			shadow += lookup(position.xy + vec2(x, y) * texel, depth);
 		}
 	}
-		
-	shadow /= 16.0;
-	shadow += 0.2;
-	
-	return shadow;
+	return shadow / 16.0;
+#endif
 }
   
 void main()                    		
@@ -86,16 +149,30 @@ void main()
  		
  	// Shadow
    	float shadow = 1.0;
-	
+
+#ifdef CASCADES
+	// the cascade of the fragment, the nearest one ending behind it
+	float depth = -v_Position.z;
+	vec4 shadowCoord = v_ShadowCoords[0];
+	for (int i = 1; i < CASCADES; i++) {
+		if (depth > u_CascadeSplits[i - 1]) {
+			shadowCoord = v_ShadowCoords[i];
+		}
+	}
+	// nothing is shadowed beyond the last cascade
+	if (depth < u_CascadeSplits[CASCADES - 1]) {
+#else
+	vec4 shadowCoord = v_ShadowCoord;
 	//if the fragment is not behind light view frustum
-	if (v_ShadowCoord.w > 0.0) {
+	if (shadowCoord.w > 0.0) {
+#endif
 			
-		shadow = shadowPCF();
+		shadow = shadowFilter(shadowCoord, calcBias());
 		//scale 0.0-1.0 to 0.2-1.0
 		//otherways everything in shadow would be black
 		shadow = (shadow * 0.8) + 0.2;
 	}
 
 	// Final output color with shadow and lighting
-    gl_FragColor = vec4(0.5f,0.5f,0.5f,1.0f) * (diffuseComponent + ambientComponent) * shadow;
+    gl_FragColor = vec4(0.5,0.5,0.5,1.0) * (diffuseComponent + ambientComponent) * shadow;
 }  
\ No newline at end of file
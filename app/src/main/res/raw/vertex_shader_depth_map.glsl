@@ -2,12 +2,29 @@
 // Used for shadow mapping - generates depth map from the light's viewpoint
 precision highp float;
 
-// model-view projection matrix
+// model-view projection matrix, the view projection matrix for instances
 uniform mat4 u_MVPMatrix;
 
 // position of the vertices
 attribute vec4 a_ShadowPosition;
 
+#if defined(INSTANCED) || defined(INSTANCE_ARRAY)
+// dequantization of compact positions
+uniform mat4 u_PositionTransform;
+#ifdef INSTANCED
+attribute mat4 a_ModelMatrix;
+#else
+uniform mat4 u_ModelMatrices[MAX_INSTANCES];
+attribute float a_InstanceIndex;
+#endif
+#endif
+
 void main() {
+#ifdef INSTANCED
+	gl_Position = u_MVPMatrix * (a_ModelMatrix * (u_PositionTransform * a_ShadowPosition));
+#elif defined(INSTANCE_ARRAY)
+	gl_Position = u_MVPMatrix * (u_ModelMatrices[int(a_InstanceIndex)] * (u_PositionTransform * a_ShadowPosition));
+#else
 	gl_Position = u_MVPMatrix * a_ShadowPosition;
+#endif
 }
@@ -1,36 +1,103 @@
 // Based on http://blog.shayanjaved.com/2011/03/13/shaders-android/
 // from Shayan Javed
 
+#if defined(INSTANCED) || defined(INSTANCE_ARRAY)
+// the model matrix comes per instance, the rest is shared by all instances
+uniform mat4 u_ViewMatrix;
+uniform mat4 u_ProjectionMatrix;
+// dequantization of compact positions
+uniform mat4 u_PositionTransform;
+#ifdef INSTANCED
+attribute mat4 a_ModelMatrix;
+#else
+uniform mat4 u_ModelMatrices[MAX_INSTANCES];
+attribute float a_InstanceIndex;
+#endif
+#else
 uniform mat4 u_MVPMatrix;
 uniform mat4 u_MVMatrix;
 uniform mat4 u_NormalMatrix;
+#endif
 
-// the shadow projection matrix
+#ifdef CASCADES
+// the shadow projection matrix of every cascade, from world space for instances
+uniform mat4 u_ShadowProjMatrices[CASCADES];
+#else
+// the shadow projection matrix, from world space for instances
 uniform mat4 u_ShadowProjMatrix;
+#endif
 
 // position and normal of the vertices
 attribute vec4 a_Position;
+#ifdef OCT_NORMALS
+// octahedral encoded normal, two unsigned normalized bytes
+attribute vec2 a_Normal;
+#else
 attribute vec3 a_Normal;
+#endif
 attribute vec2 a_TextureCoordinate;
 
 // to pass on
 varying vec3 v_Position;
 varying vec3 v_Normal;
+#ifdef CASCADES
+varying vec4 v_ShadowCoords[CASCADES];
+#else
 varying vec4 v_ShadowCoord;
+#endif
 varying vec2 v_TextureCoordinate;
 
 
-void main() {
-	// the vertex position in camera space
-	v_Position = vec3(u_MVMatrix * a_Position);
+vec3 decodeNormal() {
+#ifdef OCT_NORMALS
+	vec2 e = a_Normal * 2.0 - 1.0;
+	vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+	if (n.z < 0.0) {
+		vec2 signs = vec2(n.x >= 0.0 ? 1.0 : -1.0, n.y >= 0.0 ? 1.0 : -1.0);
+		n.xy = (1.0 - abs(n.yx)) * signs;
+	}
+	return normalize(n);
+#else
+	return a_Normal;
+#endif
+}
+
+void setShadowCoord(vec4 position) {
+#ifdef CASCADES
+	for (int i = 0; i < CASCADES; i++) {
+		v_ShadowCoords[i] = u_ShadowProjMatrices[i] * position;
+	}
+#else
+	v_ShadowCoord = u_ShadowProjMatrix * position;
+#endif
+}
 
+void main() {
 	// the vertex color
 	v_TextureCoordinate = a_TextureCoordinate;
 
+#if defined(INSTANCED) || defined(INSTANCE_ARRAY)
+#ifdef INSTANCED
+	mat4 model = a_ModelMatrix;
+#else
+	mat4 model = u_ModelMatrices[int(a_InstanceIndex)];
+#endif
+	vec4 world = model * (u_PositionTransform * a_Position);
+	vec4 position = u_ViewMatrix * world;
+	v_Position = vec3(position);
+	// instances are scaled uniformly, so the model view matrix also transforms normals
+	v_Normal = normalize(vec3(u_ViewMatrix * (model * vec4(decodeNormal(), 0.0))));
+	setShadowCoord(world);
+	gl_Position = u_ProjectionMatrix * position;
+#else
+	// the vertex position in camera space
+	v_Position = vec3(u_MVMatrix * a_Position);
+
 	// the vertex normal coordinate in camera space
-	v_Normal = vec3(u_NormalMatrix * vec4(a_Normal, 0.0));
+	v_Normal = vec3(u_NormalMatrix * vec4(decodeNormal(), 0.0));
 
-	v_ShadowCoord = u_ShadowProjMatrix * a_Position;
+	setShadowCoord(a_Position);
 
-	gl_Position = uMVPMatrix * aPosition;
+	gl_Position = u_MVPMatrix * a_Position;
+#endif
 }
@@ -0,0 +1,136 @@
+package bertrandt.shadows.openGL.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameSchedulerTest {
+
+    private static final long VSYNC = FrameScheduler.DEFAULT_VSYNC_PERIOD_NANOS;
+
+    private static class FakeClock implements Clock {
+        long mNanos = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    /**
+     * Counts requests, the test plays the display and delivers the vsyncs.
+     */
+    private static class Display implements FrameScheduler.Callback {
+        int mVsyncRequests;
+        int mRenders;
+
+        @Override
+        public void requestVsync() {
+            mVsyncRequests++;
+        }
+
+        @Override
+        public void requestRender() {
+            mRenders++;
+        }
+    }
+
+    private FakeClock mClock;
+    private Display mDisplay;
+    private FrameScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mDisplay = new Display();
+        mScheduler = new FrameScheduler(mClock, mDisplay);
+    }
+
+    /**
+     * Advances to the next vsync and delivers it if one was requested.
+     *
+     * @param jitter nanos the vsync arrives late or, negative, early
+     */
+    private void vsync(long jitter) {
+        mClock.mNanos += VSYNC;
+        if (mDisplay.mVsyncRequests > 0) {
+            mDisplay.mVsyncRequests--;
+            mScheduler.onVsync(mClock.mNanos + jitter);
+        }
+    }
+
+    private void vsyncs(int count) {
+        for (int i = 0; i < count; i++) {
+            vsync(0L);
+        }
+    }
+
+    @Test
+    public void stillSceneRendersOnlyAfterChanges() {
+        mScheduler.start();
+        vsyncs(60);
+        // the first frame after start, then nothing is requested anymore
+        assertEquals(1, mDisplay.mRenders);
+        assertEquals(0, mDisplay.mVsyncRequests);
+
+        // changes between two vsyncs make one frame
+        mScheduler.invalidate();
+        mScheduler.invalidate();
+        assertEquals(1, mDisplay.mVsyncRequests);
+        vsyncs(59);
+        assertEquals(2, mDisplay.mRenders);
+
+        assertEquals(2, mScheduler.getRenderedFrames());
+        assertEquals(117, mScheduler.getSkippedFrames());
+    }
+
+    @Test
+    public void animationRendersEveryVsync() {
+        mScheduler.start();
+        mScheduler.setAnimating(true);
+        vsyncs(30);
+        assertEquals(30, mDisplay.mRenders);
+
+        mScheduler.setAnimating(false);
+        vsyncs(30);
+        // the vsync already requested runs out without a frame
+        assertEquals(30, mDisplay.mRenders);
+        assertEquals(30, mScheduler.getSkippedFrames());
+    }
+
+    @Test
+    public void capSkipsVsyncsDespiteJitter() {
+        mScheduler.setMaxFrameRate(30f);
+        mScheduler.start();
+        mScheduler.setAnimating(true);
+        for (int i = 0; i < 60; i++) {
+            vsync(i % 2 == 0 ? -200000L : 200000L);
+        }
+        assertEquals(30, mDisplay.mRenders);
+
+        // a change waits for the vsync the cap allows, but is not lost
+        mScheduler.setAnimating(false);
+        vsync(0L);
+        mScheduler.invalidate();
+        vsyncs(4);
+        assertEquals(31, mDisplay.mRenders);
+        assertEquals(0, mDisplay.mVsyncRequests);
+    }
+
+    @Test
+    public void stoppedSchedulerRequestsNothing() {
+        mScheduler.start();
+        vsync(0L);
+        mScheduler.stop();
+        mScheduler.invalidate();
+        mScheduler.setAnimating(true);
+        assertEquals(0, mDisplay.mVsyncRequests);
+
+        // a resumed view draws again
+        mScheduler.start();
+        assertEquals(1, mDisplay.mVsyncRequests);
+        vsync(0L);
+        assertEquals(2, mDisplay.mRenders);
+    }
+}
@@ -0,0 +1,94 @@
+package bertrandt.shadows.openGL.common;
+
+import org.junit.Test;
+
+import bertrandt.shadows.openGL.draw.InstancedMesh;
+
+import static org.junit.Assert.*;
+
+public class GlCapabilitiesTest {
+
+    @Test
+    public void parsesEs2VersionAndExtensions() {
+        GlCapabilities capabilities = new GlCapabilities("OpenGL ES 2.0 build 1.9",
+                "GL_OES_depth_texture GL_OES_element_index_uint ", "Vendor", "Renderer");
+
+        assertEquals(2, capabilities.getMajorVersion());
+        assertEquals(0, capabilities.getMinorVersion());
+        assertFalse(capabilities.isEs3());
+        assertFalse(capabilities.hasVertexArrayObjects());
+        assertTrue(capabilities.hasExtension("GL_OES_depth_texture"));
+        assertTrue(capabilities.hasExtension("OES_depth_texture"));
+        assertFalse(capabilities.hasExtension("OES_depth"));
+        assertTrue(capabilities.hasUintIndices());
+    }
+
+    @Test
+    public void es3HasVertexArraysAndUintIndices() {
+        GlCapabilities capabilities = new GlCapabilities("OpenGL ES 3.2 V@269.0", "", null, null);
+
+        assertEquals(3, capabilities.getMajorVersion());
+        assertEquals(2, capabilities.getMinorVersion());
+        assertTrue(capabilities.hasVertexArrayObjects());
+        assertTrue(capabilities.hasUintIndices());
+        assertEquals("", capabilities.getVendor());
+    }
+
+    @Test
+    public void es3NeedsTheGles30Bindings() {
+        GlCapabilities capabilities = new GlCapabilities("OpenGL ES 3.0", "GL_OES_element_index_uint",
+                null, null, 256, GlCapabilities.ES3_API_LEVEL - 1);
+
+        assertEquals(3, capabilities.getMajorVersion());
+        assertFalse(capabilities.isEs3());
+        assertFalse(capabilities.hasVertexArrayObjects());
+        assertFalse(capabilities.hasInstancing());
+        // extensions need no new bindings
+        assertTrue(capabilities.hasUintIndices());
+    }
+
+    @Test
+    public void fallsBackToEs2ForUnknownVersions() {
+        GlCapabilities capabilities = new GlCapabilities(null, null, null, null);
+
+        assertEquals(2, capabilities.getMajorVersion());
+        assertFalse(capabilities.hasUintIndices());
+    }
+
+    @Test
+    public void largeMeshesNeedUintIndices() {
+        GlCapabilities es2 = new GlCapabilities("OpenGL ES 2.0", "", null, null);
+        GlCapabilities es2Uint = new GlCapabilities("OpenGL ES 2.0", "GL_OES_element_index_uint", null, null);
+        int shortType = BufferHelper.getIndexType(BufferHelper.MAX_SHORT_INDEXED_VERTICES);
+        int intType = BufferHelper.getIndexType(BufferHelper.MAX_SHORT_INDEXED_VERTICES + 1);
+
+        assertTrue(BufferHelper.isIndexTypeSupported(shortType, es2));
+        assertFalse(BufferHelper.isIndexTypeSupported(intType, es2));
+        assertTrue(BufferHelper.isIndexTypeSupported(intType, es2Uint));
+    }
+
+    @Test
+    public void instancingBatchesFitTheUniformVectors() {
+        GlCapabilities es2 = new GlCapabilities("OpenGL ES 2.0", "GL_EXT_instanced_arrays", null, null, 256);
+        assertFalse(es2.hasInstancing());
+        assertEquals(256, es2.getMaxVertexUniformVectors());
+        assertEquals(58, InstancedMesh.getBatchSize(es2, 24));
+
+        // drivers reporting less than the minimum get the minimum
+        GlCapabilities small = new GlCapabilities("OpenGL ES 2.0", "", null, null, 64);
+        assertEquals(GlCapabilities.MIN_VERTEX_UNIFORM_VECTORS, small.getMaxVertexUniformVectors());
+        assertEquals(26, InstancedMesh.getBatchSize(small, 24));
+
+        GlCapabilities es3 = new GlCapabilities("OpenGL ES 3.0", "", null, null, 1024);
+        assertTrue(es3.hasInstancing());
+        assertEquals(64, InstancedMesh.getBatchSize(es3, 24));
+    }
+
+    @Test
+    public void depthTexturesNeedEs3OrTheExtension() {
+        assertFalse(new GlCapabilities("OpenGL ES 2.0", "GL_OES_packed_depth_stencil", null, null).hasDepthTexture());
+        assertTrue(new GlCapabilities("OpenGL ES 2.0", "GL_OES_depth_texture", null, null).hasDepthTexture());
+        assertTrue(new GlCapabilities("OpenGL ES 3.0", "", null, null).hasDepthTexture());
+        assertFalse(new GlCapabilities(null, null, null, null).hasDepthTexture());
+    }
+}
@@ -0,0 +1,183 @@
+package bertrandt.shadows.openGL.common;
+
+import android.opengl.GLES20;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GlStateCacheTest {
+
+    /**
+     * Counts the calls that reach GL, there is no context in unit tests.
+     */
+    private static class FakeGl implements GlStateCache.Gl {
+        int mCalls;
+        int mActiveTexture;
+
+        @Override
+        public void glUseProgram(int program) {
+            mCalls++;
+        }
+
+        @Override
+        public void glBindFramebuffer(int target, int framebuffer) {
+            mCalls++;
+        }
+
+        @Override
+        public void glViewport(int x, int y, int width, int height) {
+            mCalls++;
+        }
+
+        @Override
+        public void glActiveTexture(int texture) {
+            mActiveTexture = texture;
+            mCalls++;
+        }
+
+        @Override
+        public void glBindTexture(int target, int texture) {
+            mCalls++;
+        }
+
+        @Override
+        public void glCullFace(int mode) {
+            mCalls++;
+        }
+
+        @Override
+        public void glColorMask(boolean red, boolean green, boolean blue, boolean alpha) {
+            mCalls++;
+        }
+
+        @Override
+        public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+            mCalls++;
+        }
+
+        @Override
+        public void glUniform1f(int location, float x) {
+            mCalls++;
+        }
+
+        @Override
+        public void glUniform3f(int location, float x, float y, float z) {
+            mCalls++;
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            mCalls++;
+        }
+    }
+
+    private static ShaderProgram createProgram(int handle) {
+        return new ShaderProgram(handle,
+                new String[]{"u_MVPMatrix", "u_LightPos", "u_ShadowTexture", "u_Offsets[0]"},
+                new int[]{3, 0, 7, 4},
+                new int[]{GLES20.GL_FLOAT_MAT4, GLES20.GL_FLOAT_VEC3, GLES20.GL_SAMPLER_2D, GLES20.GL_FLOAT},
+                new int[]{1, 1, 1, 4},
+                new String[]{"a_Position"}, new int[]{0});
+    }
+
+    @Test
+    public void reflectsLocationsByName() {
+        ShaderProgram program = createProgram(1);
+
+        assertEquals(3, program.getUniformLocation("u_MVPMatrix"));
+        assertEquals(4, program.getUniformLocation("u_Offsets"));
+        assertEquals(4, program.getUniformLocation("u_Offsets[0]"));
+        assertEquals(-1, program.getUniformLocation("u_Missing"));
+        assertEquals(0, program.getAttributeLocation("a_Position"));
+        assertEquals(-1, program.getAttributeLocation("a_Normal"));
+    }
+
+    @Test
+    public void skipsRedundantBinds() {
+        FakeGl gl = new FakeGl();
+        GlStateCache state = new GlStateCache(gl);
+        ShaderProgram program = createProgram(1);
+
+        state.useProgram(program);
+        state.useProgram(program);
+        state.bindFramebuffer(0);
+        state.bindFramebuffer(0);
+        state.viewport(0, 0, 640, 480);
+        state.viewport(0, 0, 640, 480);
+        state.viewport(0, 0, 480, 640);
+        state.bindTexture(0, 5);
+        state.bindTexture(0, 5);
+        state.cullFace(GLES20.GL_FRONT);
+        state.cullFace(GLES20.GL_FRONT);
+        state.colorMask(false);
+        state.colorMask(false);
+
+        // the texture bind activates unit 0 first
+        assertEquals(8, state.getIssuedCalls());
+        assertEquals(6, state.getElidedCalls());
+        assertEquals(8, gl.mCalls);
+        assertEquals(GLES20.GL_TEXTURE0, gl.mActiveTexture);
+
+        state.resetCounters();
+        state.invalidate();
+        state.useProgram(program);
+        assertEquals(1, state.getIssuedCalls());
+        assertEquals(0, state.getElidedCalls());
+    }
+
+    @Test
+    public void comparesUniformsByValue() {
+        GlStateCache state = new GlStateCache(new FakeGl());
+        ShaderProgram program = createProgram(1);
+        float[] matrix = new float[16];
+        state.useProgram(program);
+        state.resetCounters();
+
+        state.uniformMatrix4fv(3, matrix, 0);
+        state.uniformMatrix4fv(3, matrix.clone(), 0);
+        matrix[15] = 1f;
+        state.uniformMatrix4fv(3, matrix, 0);
+        state.uniform3f(0, 1f, 2f, 3f);
+        state.uniform3f(0, 1f, 2f, 3f);
+        state.uniform3f(0, 1f, 2f, 4f);
+        state.uniform1i(7, 0);
+        state.uniform1i(7, 0);
+        // inactive uniforms are never uploaded
+        state.uniform1f(-1, 1f);
+
+        assertEquals(5, state.getIssuedCalls());
+        assertEquals(4, state.getElidedCalls());
+    }
+
+    @Test
+    public void keepsUniformsPerProgram() {
+        GlStateCache state = new GlStateCache(new FakeGl());
+        ShaderProgram first = createProgram(1);
+        ShaderProgram second = createProgram(2);
+        float[] matrix = new float[16];
+
+        state.useProgram(first);
+        state.uniformMatrix4fv(3, matrix, 0);
+        state.useProgram(second);
+        state.uniformMatrix4fv(3, matrix, 0);
+        state.useProgram(first);
+        state.resetCounters();
+        state.uniformMatrix4fv(3, matrix, 0);
+
+        assertEquals(0, state.getIssuedCalls());
+        assertEquals(1, state.getElidedCalls());
+    }
+
+    @Test
+    public void alwaysUploadsArrays() {
+        GlStateCache state = new GlStateCache(new FakeGl());
+        state.useProgram(createProgram(1));
+        state.resetCounters();
+
+        state.uniform1f(4, 1f);
+        state.uniform1f(4, 1f);
+
+        assertEquals(2, state.getIssuedCalls());
+    }
+}
@@ -0,0 +1,117 @@
+package bertrandt.shadows.openGL.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class ProgramBinaryCacheTest {
+
+    private static final String[] ATTRIBUTES = {"a_Position", "a_Normal"};
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("program-cache", "");
+        mDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDirectory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static GlCapabilities driver(String version) {
+        return new GlCapabilities("OpenGL ES 3.2 " + version, "", "Vendor", "Renderer");
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void loadsStoredBinary() throws Exception {
+        ProgramBinaryCache cache = new ProgramBinaryCache(mDirectory, driver("V@1"));
+        String key = ProgramBinaryCache.getKey("vertex", "fragment", ATTRIBUTES);
+        assertNull(cache.load(key));
+
+        cache.store(key, new ProgramBinaryCache.Binary(0x8E21, bytes(1000)));
+        ProgramBinaryCache.Binary binary = cache.load(key);
+
+        assertNotNull(binary);
+        assertEquals(0x8E21, binary.getFormat());
+        assertArrayEquals(bytes(1000), binary.getData());
+        // a new driver starts empty
+        assertNull(new ProgramBinaryCache(mDirectory, driver("V@2")).load(key));
+    }
+
+    @Test
+    public void keysFollowSourcesAndBindings() {
+        String key = ProgramBinaryCache.getKey("vertex", "fragment", ATTRIBUTES);
+        assertEquals(key, ProgramBinaryCache.getKey("vertex", "fragment", ATTRIBUTES.clone()));
+        assertNotEquals(key, ProgramBinaryCache.getKey("vertex ", "fragment", ATTRIBUTES));
+        assertNotEquals(key, ProgramBinaryCache.getKey("vertexf", "ragment", ATTRIBUTES));
+        assertNotEquals(key, ProgramBinaryCache.getKey("vertex", "fragment", new String[]{"a_Normal", "a_Position"}));
+    }
+
+    @Test
+    public void damagedEntriesAreDeleted() throws Exception {
+        ProgramBinaryCache cache = new ProgramBinaryCache(mDirectory, driver("V@1"));
+        String key = ProgramBinaryCache.getKey("vertex", "fragment", ATTRIBUTES);
+        cache.store(key, new ProgramBinaryCache.Binary(1, bytes(100)));
+        File file = cache.getFile(key);
+
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(file.length() - 1);
+            output.write(0x55);
+        } finally {
+            output.close();
+        }
+        assertNull(cache.load(key));
+        assertFalse(file.exists());
+
+        cache.store(key, new ProgramBinaryCache.Binary(1, bytes(100)));
+        output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(file.length() / 2);
+        } finally {
+            output.close();
+        }
+        assertNull(cache.load(key));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void storeDropsOtherDrivers() throws Exception {
+        String key = ProgramBinaryCache.getKey("vertex", "fragment", ATTRIBUTES);
+        ProgramBinaryCache before = new ProgramBinaryCache(mDirectory, driver("V@1"));
+        before.store(key, new ProgramBinaryCache.Binary(1, bytes(10)));
+
+        ProgramBinaryCache after = new ProgramBinaryCache(mDirectory, driver("V@2"));
+        after.store(key, new ProgramBinaryCache.Binary(2, bytes(20)));
+
+        assertFalse(before.getFile(key).exists());
+        assertNotNull(after.load(key));
+        assertEquals(1, mDirectory.listFiles().length);
+    }
+}
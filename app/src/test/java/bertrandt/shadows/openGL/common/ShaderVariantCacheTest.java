@@ -0,0 +1,78 @@
+package bertrandt.shadows.openGL.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class ShaderVariantCacheTest {
+
+    private static final String VERTEX = "attribute vec4 a_Position;\nvoid main() { gl_Position = a_Position; }\n";
+    private static final String FRAGMENT = "void main() { gl_FragColor = vec4(1.0); }\n";
+    private static final String[] ATTRIBUTES = {"a_Position"};
+
+    /**
+     * Records the sources instead of compiling them.
+     */
+    private static class RecordingCache extends ShaderVariantCache {
+        final ArrayList<String> mFragmentSources = new ArrayList<>();
+
+        @Override
+        protected PendingProgram submitCompile(String vertexSource, String fragmentSource, String[] attributes) {
+            mFragmentSources.add(fragmentSource);
+            return new PendingProgram(new ShaderProgram(mFragmentSources.size(), new String[0], new int[0],
+                    new int[0], new int[0], attributes, new int[]{0}));
+        }
+    }
+
+    @Test
+    public void compilesEveryVariantOnce() {
+        RecordingCache cache = new RecordingCache();
+
+        ShaderProgram pcf4 = cache.get(VERTEX, FRAGMENT, ATTRIBUTES, ShadowQuality.getDefine(ShadowQuality.PCF_4),
+                "CASCADES 4");
+        ShaderProgram pcf9 = cache.get(VERTEX, FRAGMENT, ATTRIBUTES, ShadowQuality.getDefine(ShadowQuality.PCF_9),
+                "CASCADES 4");
+        assertNotSame(pcf4, pcf9);
+        assertTrue(cache.mFragmentSources.get(0).startsWith("#define CASCADES 4\n#define PCF_4\n"));
+
+        // switching back, with the defines in any order, reuses the program
+        assertSame(pcf4, cache.get(VERTEX, FRAGMENT, ATTRIBUTES, "CASCADES 4", "PCF_4"));
+        assertSame(pcf9, cache.get(VERTEX, FRAGMENT, ATTRIBUTES, "PCF_9", "CASCADES 4"));
+        assertEquals(2, cache.getCompiles());
+
+        // other sources are other variants
+        cache.get(VERTEX, FRAGMENT + "\n", ATTRIBUTES, "PCF_4", "CASCADES 4");
+        assertEquals(3, cache.getCompiles());
+
+        // a new context compiles again
+        cache.clear();
+        assertNotSame(pcf4, cache.get(VERTEX, FRAGMENT, ATTRIBUTES, "PCF_4", "CASCADES 4"));
+        assertEquals(4, cache.getCompiles());
+    }
+
+    @Test
+    public void getResolvesTheSubmittedProgram() {
+        RecordingCache cache = new RecordingCache();
+
+        PendingProgram point = cache.submit(VERTEX, FRAGMENT, ATTRIBUTES);
+        PendingProgram pcf1 = cache.submit(VERTEX, FRAGMENT, ATTRIBUTES, "PCF_1");
+        assertEquals(2, cache.getCompiles());
+        assertTrue(pcf1.isComplete());
+
+        // submitting again and getting hands out the program of the first submit
+        assertSame(point, cache.submit(VERTEX, FRAGMENT, ATTRIBUTES));
+        assertSame(pcf1.get(), cache.get(VERTEX, FRAGMENT, ATTRIBUTES, "PCF_1"));
+        assertEquals(2, cache.getCompiles());
+    }
+
+    @Test
+    public void tiersHaveTheirTapCounts() {
+        int[] taps = {1, 4, 9, 16, 8};
+        for (int quality = 0; quality < ShadowQuality.COUNT; quality++) {
+            assertEquals(taps[quality], ShadowQuality.getTaps(quality));
+        }
+        assertEquals("PCF_POISSON", ShadowQuality.getDefine(ShadowQuality.POISSON));
+    }
+}
@@ -0,0 +1,93 @@
+package bertrandt.shadows.openGL.common;
+
+import org.junit.Test;
+
+import bertrandt.shadows.openGL.math.Mat4;
+import bertrandt.shadows.openGL.math.Vec4;
+
+import static org.junit.Assert.*;
+
+public class ShadowCascadesTest {
+
+    private static final float EPSILON = 1e-4f;
+    private static final int ATLAS_SIZE = 1024;
+    private static final float[] SCENE_BOX = {-30f, -1f, -13.5f, 30f, 2f, 13.5f};
+
+    private static Mat4 cameraView(float x) {
+        return new Mat4().setLookAt(x, 3f, 5f, x, 0f, -5f, 0f, 1f, 0f);
+    }
+
+    private static Mat4 lightView() {
+        return new Mat4().setLookAt(3f, 5f, 0f, 0f, 0f, 0f, 0f, 1f, 0f);
+    }
+
+    private static ShadowCascades fitted(int count, float cameraX, float[] sceneBox) {
+        ShadowCascades cascades = new ShadowCascades(count, 0.75f);
+        cascades.setCameraFrustum(-1.5f, 1.5f, -1f, 1f, 1f, 40f);
+        cascades.update(cameraView(cameraX), lightView(), sceneBox, ATLAS_SIZE);
+        return cascades;
+    }
+
+    @Test
+    public void splitsGrowTowardsTheShadowDistance() {
+        ShadowCascades uniform = new ShadowCascades(3, 0f);
+        uniform.setCameraFrustum(-1f, 1f, -1f, 1f, 1f, 31f);
+        assertArrayEquals(new float[]{11f, 21f, 31f}, uniform.getSplits(), EPSILON);
+
+        float[] splits = fitted(4, 0f, SCENE_BOX).getSplits();
+        assertEquals(40f, splits[3], 0f);
+        for (int i = 1; i < splits.length; i++) {
+            // the blend with the logarithmic distribution keeps near slices short
+            assertTrue(splits[i] - splits[i - 1] > splits[0] - 1f);
+        }
+    }
+
+    @Test
+    public void slicesProjectIntoTheirOwnTiles() {
+        // a scene around the whole frustum, depth is only clipped outside of the scene
+        ShadowCascades cascades = fitted(4, 0f, new float[]{-100f, -100f, -100f, 100f, 100f, 100f});
+        assertEquals(ATLAS_SIZE / 2, cascades.getTileSize());
+        Mat4 inverseView = new Mat4().invertRigid(cameraView(0f));
+        Mat4 lookup = new Mat4();
+        Vec4 corner = new Vec4();
+        Vec4 projected = new Vec4();
+        float near = 1f;
+        for (int cascade = 0; cascade < 4; cascade++) {
+            float far = cascades.getSplits()[cascade];
+            lookup.multiply(cascades.getLookupBias(cascade), cascades.getProjection(cascade));
+            lookup.multiply(lookup, lightView());
+            lookup.multiply(lookup, inverseView);
+            float minX = cascades.getTileX(cascade) / (float) ATLAS_SIZE;
+            float minY = cascades.getTileY(cascade) / (float) ATLAS_SIZE;
+            float size = cascades.getTileSize() / (float) ATLAS_SIZE;
+            for (int i = 0; i < 8; i++) {
+                float distance = (i & 4) != 0 ? far : near;
+                corner.set(((i & 1) != 0 ? 1.5f : -1.5f) * distance, ((i & 2) != 0 ? 1f : -1f) * distance,
+                        -distance, 1f);
+                projected.transform(lookup, corner);
+                assertEquals(1f, projected.getW(), EPSILON);
+                assertTrue(projected.getX() > minX && projected.getX() < minX + size);
+                assertTrue(projected.getY() > minY && projected.getY() < minY + size);
+                assertTrue(projected.getZ() >= -EPSILON && projected.getZ() <= 1f + EPSILON);
+            }
+            near = far;
+        }
+    }
+
+    @Test
+    public void projectionsMoveInWholeTexels() {
+        ShadowCascades before = fitted(2, 0f, SCENE_BOX);
+        ShadowCascades after = fitted(2, 0.013f, SCENE_BOX);
+        for (int cascade = 0; cascade < 2; cascade++) {
+            float[] a = before.getProjection(cascade).getValues();
+            float[] b = after.getProjection(cascade).getValues();
+            assertEquals(a[0], b[0], 0f);
+            assertEquals(a[5], b[5], 0f);
+            // translation in texels of the tile, [-1, 1] spans the tile
+            float texelsX = (b[12] - a[12]) * before.getTileSize() / 2f;
+            float texelsY = (b[13] - a[13]) * before.getTileSize() / 2f;
+            assertEquals(Math.round(texelsX), texelsX, 1e-2f);
+            assertEquals(Math.round(texelsY), texelsY, 1e-2f);
+        }
+    }
+}
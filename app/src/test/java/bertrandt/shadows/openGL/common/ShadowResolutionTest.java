@@ -0,0 +1,70 @@
+package bertrandt.shadows.openGL.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ShadowResolutionTest {
+
+    private static final long BUDGET = 4000000L;
+
+    @Test
+    public void sizesArePowersOfTwo() {
+        assertEquals(1024, ShadowResolution.toPowerOfTwo(1024));
+        assertEquals(1024, ShadowResolution.toPowerOfTwo(1200));
+        assertEquals(1024, ShadowResolution.toPowerOfTwo(1440));
+        assertEquals(2048, ShadowResolution.toPowerOfTwo(1600));
+        assertEquals(ShadowResolution.MIN_SIZE, ShadowResolution.toPowerOfTwo(1));
+        assertEquals(ShadowResolution.MAX_SIZE, ShadowResolution.toPowerOfTwo(10000));
+
+        ShadowResolution resolution = new ShadowResolution(2560);
+        assertEquals(2048, resolution.getSize());
+        // a fixed size ignores the measurements
+        assertFalse(resolution.update(BUDGET * 10));
+        assertEquals(2048, resolution.getSize());
+    }
+
+    @Test
+    public void adaptiveSizeStepsWithHysteresis() {
+        ShadowResolution resolution = new ShadowResolution(2048);
+        resolution.setAdaptive(BUDGET, 256, 2048);
+
+        // a single slow interval is not enough
+        assertFalse(resolution.update(BUDGET * 2));
+        assertFalse(resolution.update(BUDGET / 2));
+        assertFalse(resolution.update(BUDGET * 2));
+        assertTrue(resolution.update(BUDGET * 2));
+        assertEquals(1024, resolution.getSize());
+
+        // a quarter of the cost at half the size keeps it there, growing would exceed the headroom
+        for (int i = 0; i < 10; i++) {
+            assertFalse(resolution.update(BUDGET / 2));
+        }
+        assertEquals(1024, resolution.getSize());
+
+        // far below the budget it grows back
+        assertFalse(resolution.update(BUDGET / 8));
+        assertTrue(resolution.update(BUDGET / 8));
+        assertEquals(2048, resolution.getSize());
+
+        // never beyond the limits
+        assertFalse(resolution.update(BUDGET / 100));
+        assertFalse(resolution.update(BUDGET / 100));
+        assertEquals(2048, resolution.getSize());
+        for (int i = 0; i < 20; i++) {
+            resolution.update(BUDGET * 100);
+        }
+        assertEquals(256, resolution.getSize());
+    }
+
+    @Test
+    public void adaptiveLimitsClampTheCurrentSize() {
+        ShadowResolution resolution = new ShadowResolution(4096);
+        resolution.setAdaptive(BUDGET, 512, 1024);
+        assertTrue(resolution.isAdaptive());
+        assertEquals(1024, resolution.getSize());
+        resolution.setSize(700);
+        assertFalse(resolution.isAdaptive());
+        assertEquals(512, resolution.getSize());
+    }
+}
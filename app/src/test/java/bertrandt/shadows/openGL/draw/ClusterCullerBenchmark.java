@@ -0,0 +1,64 @@
+package bertrandt.shadows.openGL.draw;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import bertrandt.shadows.openGL.importer.Meshlets;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cull time per frame for a mesh of about a million triangles. Results are printed.
+ */
+
+@Ignore("benchmark, run manually")
+public class ClusterCullerBenchmark {
+
+    private static final int CLUSTERS = 8192;
+    private static final int WARMUP_RUNS = 200;
+    private static final int RUNS = 1000;
+
+    @Test
+    public void cullTimePerFrame() {
+        Random random = new Random(3);
+        int[] offsets = new int[CLUSTERS + 1];
+        float[] bounds = new float[CLUSTERS * Meshlets.BOUNDS_SIZE];
+        for (int i = 0; i < CLUSTERS; i++) {
+            offsets[i + 1] = offsets[i] + 128 * 3;
+            // clusters on the surface of a unit sphere, facing outwards
+            float x = (float) random.nextGaussian();
+            float y = (float) random.nextGaussian();
+            float z = (float) random.nextGaussian();
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            float[] cluster = {x / length, y / length, z / length, 0.03f, x / length, y / length, z / length, 0.4f};
+            System.arraycopy(cluster, 0, bounds, i * Meshlets.BOUNDS_SIZE, Meshlets.BOUNDS_SIZE);
+        }
+        Meshlets meshlets = new Meshlets(offsets, bounds);
+
+        // narrow perspective looking at the sphere from z = 3, near 0.1 and far 100
+        float[] mvp = new float[16];
+        mvp[0] = 6f;
+        mvp[5] = 6f;
+        mvp[10] = -100.1f / 99.9f;
+        mvp[11] = -1f;
+        mvp[14] = 3f * 100.1f / 99.9f - 20f / 99.9f;
+        mvp[15] = 3f;
+
+        ClusterCuller culler = new ClusterCuller();
+        long nanos = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            culler.cull(meshlets, mvp, 0f, 0f, 3f, false);
+            long time = System.nanoTime() - start;
+            if (run >= WARMUP_RUNS) {
+                nanos = Math.min(nanos, time);
+            }
+        }
+
+        assertTrue(culler.getVisibleClusters() < CLUSTERS / 2);
+        System.out.println(String.format("cluster culling, %d clusters: %.1f us, %d visible in %d ranges",
+                CLUSTERS, nanos / 1e3, culler.getVisibleClusters(), culler.getRangeCount()));
+    }
+}
@@ -0,0 +1,124 @@
+package bertrandt.shadows.openGL.draw;
+
+import org.junit.Test;
+
+import bertrandt.shadows.openGL.importer.Meshlets;
+
+import static org.junit.Assert.*;
+
+public class ClusterCullerTest {
+
+    /**
+     * Orthographic projection of the box [-10, 10] x [-10, 10] x [-1, -100] seen from the origin.
+     */
+    private static float[] projection() {
+        float[] matrix = new float[16];
+        matrix[0] = 0.1f;
+        matrix[5] = 0.1f;
+        matrix[10] = -2f / 99f;
+        matrix[14] = -101f / 99f;
+        matrix[15] = 1f;
+        return matrix;
+    }
+
+    /**
+     * Clusters of 10 triangles each, given as center x, y, z, radius and the cone.
+     */
+    private static Meshlets meshlets(float[]... clusters) {
+        int[] offsets = new int[clusters.length + 1];
+        float[] bounds = new float[clusters.length * Meshlets.BOUNDS_SIZE];
+        for (int i = 0; i < clusters.length; i++) {
+            offsets[i + 1] = offsets[i] + 30;
+            System.arraycopy(clusters[i], 0, bounds, i * Meshlets.BOUNDS_SIZE, Meshlets.BOUNDS_SIZE);
+        }
+        return new Meshlets(offsets, bounds);
+    }
+
+    private static float[] cluster(float x, float y, float z, float axisZ, float cutoff) {
+        return new float[]{x, y, z, 1f, 0f, 0f, axisZ, cutoff};
+    }
+
+    @Test
+    public void dropsClustersOutsideTheFrustum() {
+        ClusterCuller culler = new ClusterCuller();
+        Meshlets meshlets = meshlets(
+                cluster(0, 0, -50, 1, 1),
+                cluster(30, 0, -50, 1, 1),
+                cluster(0, 0, 5, 1, 1),
+                cluster(10.5f, 0, -50, 1, 1));
+
+        int ranges = culler.cull(meshlets, projection(), 0, 0, 0, false);
+
+        assertEquals(2, ranges);
+        assertEquals(2, culler.getVisibleClusters());
+        assertEquals(20, culler.getVisibleTriangles());
+        assertEquals(0, culler.getRanges()[0]);
+        assertEquals(30, culler.getRanges()[1]);
+        assertEquals(90, culler.getRanges()[2]);
+        assertEquals(30, culler.getRanges()[3]);
+    }
+
+    @Test
+    public void dropsClustersFacingTheCulledSide() {
+        ClusterCuller culler = new ClusterCuller();
+        // normals within 30 degrees around +z face the viewer at the origin, around -z they face away
+        Meshlets meshlets = meshlets(
+                cluster(0, 0, -50, 1, 0.5f),
+                cluster(0, 0, -50, -1, 0.5f),
+                cluster(0, 0, -50, -1, 1f));
+
+        culler.cull(meshlets, projection(), 0, 0, 0, false);
+        assertEquals(2, culler.getVisibleClusters());
+        assertEquals(2, culler.getRangeCount());
+        assertEquals(0, culler.getRanges()[0]);
+        assertEquals(60, culler.getRanges()[2]);
+
+        culler.cull(meshlets, projection(), 0, 0, 0, true);
+        assertEquals(2, culler.getVisibleClusters());
+        assertEquals(1, culler.getRangeCount());
+        assertEquals(30, culler.getRanges()[0]);
+        assertEquals(60, culler.getRanges()[1]);
+    }
+
+    @Test
+    public void orthographicConesFaceTheViewDirection() {
+        ClusterCuller culler = new ClusterCuller();
+        // seen from an eye at the origin the first cluster would face away, seen along -z it
+        // faces the camera
+        Meshlets meshlets = meshlets(
+                new float[]{9, 0, -2, 1, 0.8f, 0, 0.6f, 0.3f},
+                cluster(0, 0, -50, -1, 0.5f),
+                cluster(0, 0, -50, 1, 0.5f));
+
+        culler.cull(meshlets, projection(), 0, 0, 0, false);
+        assertEquals(1, culler.getVisibleClusters());
+
+        culler.cullOrthographic(meshlets, projection(), 0, 0, -1, false);
+        assertEquals(2, culler.getVisibleClusters());
+        assertEquals(0, culler.getRanges()[0]);
+        assertEquals(60, culler.getRanges()[2]);
+
+        culler.cullOrthographic(meshlets, projection(), 0, 0, -1, true);
+        assertEquals(1, culler.getVisibleClusters());
+        assertEquals(30, culler.getRanges()[0]);
+    }
+
+    @Test
+    public void mergesNeighbouringRanges() {
+        float[][] clusters = new float[200][];
+        for (int i = 0; i < clusters.length; i++) {
+            // every fourth cluster is outside
+            clusters[i] = cluster(i % 4 == 3 ? 50 : 0, 0, -50, 1, 1);
+        }
+        ClusterCuller culler = new ClusterCuller();
+
+        int ranges = culler.cull(meshlets(clusters), projection(), 0, 0, 0, false);
+
+        assertEquals(50, ranges);
+        assertEquals(150, culler.getVisibleClusters());
+        for (int range = 0; range < ranges; range++) {
+            assertEquals(range * 120, culler.getRanges()[range * 2]);
+            assertEquals(90, culler.getRanges()[range * 2 + 1]);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package bertrandt.shadows.openGL.draw;
+
+import org.junit.Test;
+
+import bertrandt.shadows.openGL.math.Mat4;
+import bertrandt.shadows.openGL.scene.SceneCamera;
+
+import static org.junit.Assert.*;
+
+public class LodSelectorTest {
+
+    private static final float[] ERRORS = {0f, 0.001f, 0.004f, 0.016f};
+
+    @Test
+    public void selectsCoarserLevelsWithDistance() {
+        LodSelector selector = new LodSelector(1f, 0);
+        float pixelsPerUnit = 1000f;
+
+        assertEquals(0, selector.select(ERRORS, 1f, 0.5f, pixelsPerUnit));
+        assertEquals(0, selector.select(ERRORS, 1f, 1.5f, pixelsPerUnit));
+        assertEquals(1, selector.select(ERRORS, 1f, 3f, pixelsPerUnit));
+        assertEquals(2, selector.select(ERRORS, 1f, 6f, pixelsPerUnit));
+        assertEquals(3, selector.select(ERRORS, 1f, 100f, pixelsPerUnit));
+    }
+
+    @Test
+    public void biasIsClampedToCoarsestLevel() {
+        LodSelector selector = new LodSelector(1f, 1);
+
+        assertEquals(1, selector.select(ERRORS, 1f, 0.5f, 1000f));
+        assertEquals(3, selector.select(ERRORS, 1f, 100f, 1000f));
+        assertEquals(0, selector.select(new float[]{0f}, 1f, 100f, 1000f));
+    }
+
+    @Test
+    public void measuresDistanceInViewSpace() {
+        LodSelector selector = new LodSelector(1f, 0);
+        float[] bounds = {-1f, -1f, -1f, 1f, 1f, 1f};
+        float[] modelView = new float[16];
+        modelView[0] = modelView[5] = modelView[10] = modelView[15] = 1f;
+
+        modelView[14] = -2f;
+        int near = selector.select(ERRORS, bounds, modelView, 1000f);
+        modelView[14] = -200f;
+        int far = selector.select(ERRORS, bounds, modelView, 1000f);
+
+        assertEquals(0, near);
+        assertEquals(3, far);
+    }
+
+    @Test
+    public void pixelsPerUnitFollowProjection() {
+        float[] projection = new float[16];
+        projection[5] = 2f;
+
+        assertEquals(1080f, LodSelector.getPixelsPerUnit(projection, 1080), 0f);
+    }
+
+    @Test
+    public void orthographicErrorDoesNotShrinkWithDistance() {
+        SceneCamera camera = new SceneCamera(0);
+        camera.setProjection(new Mat4().setOrtho(-10f, 10f, -10f, 10f, 1f, 100f), 2000);
+        assertTrue(camera.isOrthographic());
+        float pixelsPerUnit = camera.getPixelsPerUnit();
+        assertEquals(100f, pixelsPerUnit, 1e-3f);
+        LodSelector selector = new LodSelector(1f, 0);
+
+        // levels err 0.1, 0.4 and 1.6 pixels at any distance
+        assertEquals(2, selector.select(ERRORS, 1f, 0.5f, pixelsPerUnit, true));
+        assertEquals(2, selector.select(ERRORS, 1f, 100f, pixelsPerUnit, true));
+        // the perspective estimate would take the coarsest level
+        assertEquals(3, selector.select(ERRORS, 1f, 100f, pixelsPerUnit, false));
+    }
+}
@@ -0,0 +1,63 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * The String based obj import ImportObj used before the byte level parser, kept as reference
+ * for comparisons and benchmarks.
+ */
+
+class LegacyObjReader {
+
+    final List<String> mFacesList = new ArrayList<>();
+    final List<String> mVerticesList = new ArrayList<>();
+    final List<String> mNormalsList = new ArrayList<>();
+    final List<String> mTexelsList = new ArrayList<>();
+
+    FloatBuffer mVerticesBuffer;
+    FloatBuffer mNormalsBuffer;
+    FloatBuffer mTexelsBuffer;
+
+    LegacyObjReader(InputStream inputStream) {
+        Scanner scanner = new Scanner(inputStream);
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            if (line.startsWith("f ")) {
+                mFacesList.add(line.substring(2));
+            } else if (line.startsWith("v ")) {
+                mVerticesList.add(line.substring(2));
+            } else if (line.startsWith("vn ")) {
+                mNormalsList.add(line.substring(3));
+            } else if (line.startsWith("vt ")) {
+                mTexelsList.add(line.substring(3));
+            }
+        }
+
+        mVerticesBuffer = FloatBuffer.allocate(mFacesList.size() * 3 * 3);
+        mNormalsBuffer = FloatBuffer.allocate(mFacesList.size() * 3 * 3);
+        mTexelsBuffer = FloatBuffer.allocate(mFacesList.size() * 3 * 2);
+
+        for (String faces : mFacesList) {
+            String points[] = faces.split(" ");
+            for (String singlePoint : points) {
+                String element[] = singlePoint.split("/");
+                String vertice[] = mVerticesList.get(Integer.valueOf(element[0]) - 1).split(" ");
+                String normal[] = mNormalsList.get(Integer.valueOf(element[2]) - 1).split(" ");
+                String texel[] = mTexelsList.get(Integer.valueOf(element[1]) - 1).split(" ");
+                for (String value : vertice) {
+                    mVerticesBuffer.put(Float.parseFloat(value));
+                }
+                for (String value : normal) {
+                    mNormalsBuffer.put(Float.parseFloat(value));
+                }
+                for (String value : texel) {
+                    mTexelsBuffer.put(Float.parseFloat(value));
+                }
+            }
+        }
+    }
+}
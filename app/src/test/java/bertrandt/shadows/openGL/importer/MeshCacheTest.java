@@ -0,0 +1,134 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+public class MeshCacheTest {
+
+    private File mDirectory;
+    private MeshCache mMeshCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("mesh-cache", "");
+        mDirectory.delete();
+        mMeshCache = new MeshCache(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static MeshBuffers buffers(int segments) {
+        return MeshBuffers.fromMeshData(ObjTestData.weldedSphere(segments));
+    }
+
+    @Test
+    public void mapsStoredMesh() throws Exception {
+        MeshData mesh = ObjTestData.weldedSphere(16);
+        mMeshCache.store("android.obj", 42L, MeshBuffers.fromMeshData(mesh));
+
+        MeshBuffers mapped = mMeshCache.load("android.obj", 42L);
+
+        assertNotNull(mapped);
+        assertTrue(mapped.getVertices().isDirect());
+        assertEquals(VertexLayout.FLOAT, mapped.getLayout());
+        assertEquals(mesh.getVertexCount(), mapped.getVertexCount());
+        assertEquals(mesh.getIndexCount(), mapped.getIndexCount());
+        assertArrayEquals(mesh.getBounds(), mapped.getBounds(), 0f);
+        assertArrayEquals(mesh.getBoundingSphere(), mapped.getBoundingSphere(), 0f);
+        FloatBuffer vertices = mapped.getVerticesAsFloats();
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(mesh.getPositions()[vertex * 3 + i], vertices.get(vertex * 8 + i), 0f);
+                assertEquals(mesh.getNormals()[vertex * 3 + i], vertices.get(vertex * 8 + 3 + i), 0f);
+            }
+            for (int i = 0; i < 2; i++) {
+                assertEquals(mesh.getTexels()[vertex * 2 + i], vertices.get(vertex * 8 + 6 + i), 0f);
+            }
+        }
+        ShortBuffer indices = (ShortBuffer) mapped.getIndices();
+        for (int i = 0; i < mesh.getIndexCount(); i++) {
+            assertEquals(mesh.getIndices()[i], indices.get(i) & 0xFFFF);
+        }
+    }
+
+    @Test
+    public void usesIntIndicesForLargeMeshes() throws Exception {
+        MeshData mesh = ObjTestData.weldedSphere(300);
+        mMeshCache.store("large.obj", 1L, MeshBuffers.fromMeshData(mesh));
+
+        MeshBuffers mapped = mMeshCache.load("large.obj", 1L);
+
+        IntBuffer indices = (IntBuffer) mapped.getIndices();
+        for (int i = 0; i < mesh.getIndexCount(); i++) {
+            assertEquals(mesh.getIndices()[i], indices.get(i));
+        }
+    }
+
+    @Test
+    public void keepsLevelsOfDetail() throws Exception {
+        MeshData mesh = MeshSimplifier.buildLods(ObjTestData.weldedSphere(16), new float[]{0.5f, 0.25f});
+        mMeshCache.store("android.obj", 3L, MeshBuffers.fromMeshData(mesh));
+
+        MeshBuffers mapped = mMeshCache.load("android.obj", 3L);
+
+        assertEquals(mesh.getLodCount(), mapped.getLodCount());
+        assertArrayEquals(mesh.getLodOffsets(), mapped.getLodOffsets());
+        assertArrayEquals(mesh.getLodErrors(), mapped.getLodErrors(), 0f);
+        assertEquals(mesh.getIndexCount(), mapped.getIndexCount());
+    }
+
+    @Test
+    public void keepsMeshlets() throws Exception {
+        MeshData mesh = MeshletBuilder.build(ObjTestData.weldedSphere(16), 32);
+        mMeshCache.store("android.obj", 4L, MeshBuffers.fromMeshData(mesh));
+
+        MeshBuffers mapped = mMeshCache.load("android.obj", 4L);
+
+        assertArrayEquals(mesh.getMeshlets().getIndexOffsets(), mapped.getMeshlets().getIndexOffsets());
+        assertArrayEquals(mesh.getMeshlets().getBounds(), mapped.getMeshlets().getBounds(), 0f);
+        assertNull(mMeshCache.load("android.obj", 3L));
+    }
+
+    @Test
+    public void missesOnOtherContentAndReplacesOutdatedEntries() throws Exception {
+        long first = MeshCache.hash(new ByteArrayInputStream(ObjTestData.sphere(4)));
+        long second = MeshCache.hash(new ByteArrayInputStream(ObjTestData.sphere(5)));
+        assertTrue(first != second);
+
+        mMeshCache.store("android.obj", first, buffers(4));
+        assertNull(mMeshCache.load("android.obj", second));
+
+        mMeshCache.store("android.obj", second, buffers(5));
+        assertNotNull(mMeshCache.load("android.obj", second));
+        assertFalse(mMeshCache.getFile("android.obj", first).exists());
+    }
+
+    @Test
+    public void rejectsForeignFiles() throws Exception {
+        mDirectory.mkdirs();
+        FileOutputStream outputStream = new FileOutputStream(mMeshCache.getFile("android.obj", 7L));
+        outputStream.write(new byte[256]);
+        outputStream.close();
+
+        assertNull(mMeshCache.load("android.obj", 7L));
+    }
+}
@@ -0,0 +1,164 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MeshOptimizerTest {
+
+    /**
+     * The sphere with its triangles in random order, like an export that does not care.
+     */
+    private static MeshData shuffledSphere(int segments) {
+        MeshData mesh = ObjTestData.weldedSphere(segments);
+        int[] indices = mesh.getIndices();
+        int triangleCount = indices.length / 3;
+        int[] order = new int[triangleCount];
+        for (int i = 0; i < triangleCount; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(5);
+        for (int i = triangleCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        int[] shuffled = new int[indices.length];
+        for (int i = 0; i < triangleCount; i++) {
+            System.arraycopy(indices, order[i] * 3, shuffled, i * 3, 3);
+        }
+        return new MeshData(mesh.getPositions(), mesh.getNormals(), mesh.getTexels(), shuffled);
+    }
+
+    @Test
+    public void improvesVertexCacheLocality() {
+        MeshData mesh = shuffledSphere(64);
+        VertexCacheStatistics before = VertexCacheStatistics.analyze(mesh.getIndices(), mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE);
+
+        int[] indices = MeshOptimizer.optimizeVertexCache(mesh.getIndices(), mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE);
+        VertexCacheStatistics after = VertexCacheStatistics.analyze(indices, mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE);
+
+        assertTrue(before.getAcmr() > 2.5f);
+        assertTrue("ACMR " + after.getAcmr(), after.getAcmr() < 0.8f);
+        assertTrue("ATVR " + after.getAtvr(), after.getAtvr() < 1.6f);
+        assertSameTriangles(mesh.getIndices(), indices);
+    }
+
+    @Test
+    public void overdrawOrderKeepsCacheLocality() {
+        MeshData mesh = shuffledSphere(64);
+        int[] cacheOrder = MeshOptimizer.optimizeVertexCache(mesh.getIndices(), mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE);
+        float cacheAcmr = VertexCacheStatistics.analyze(cacheOrder, mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE).getAcmr();
+
+        int[] overdrawOrder = MeshOptimizer.optimizeOverdraw(cacheOrder, mesh.getPositions(), mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE, MeshOptimizer.DEFAULT_OVERDRAW_THRESHOLD);
+        float overdrawAcmr = VertexCacheStatistics.analyze(overdrawOrder, mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE).getAcmr();
+
+        assertTrue(cacheAcmr + " " + overdrawAcmr, overdrawAcmr <= cacheAcmr * 1.25f);
+        assertSameTriangles(cacheOrder, overdrawOrder);
+    }
+
+    @Test
+    public void clustersCoverAllTriangles() {
+        MeshData mesh = shuffledSphere(32);
+        int[] indices = MeshOptimizer.optimizeVertexCache(mesh.getIndices(), mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE);
+
+        int[] clusters = MeshOptimizer.findClusters(indices, mesh.getVertexCount(),
+                MeshOptimizer.DEFAULT_CACHE_SIZE, MeshOptimizer.DEFAULT_OVERDRAW_THRESHOLD);
+
+        assertEquals(0, clusters[0]);
+        assertEquals(indices.length / 3, clusters[clusters.length - 1]);
+        for (int i = 1; i < clusters.length; i++) {
+            assertTrue(clusters[i] > clusters[i - 1]);
+        }
+        assertTrue(clusters.length > 2);
+    }
+
+    @Test
+    public void vertexFetchFollowsIndexOrder() {
+        MeshData mesh = MeshOptimizer.optimize(shuffledSphere(32));
+
+        int next = 0;
+        for (int index : mesh.getIndices()) {
+            assertTrue(index <= next);
+            if (index == next) {
+                next++;
+            }
+        }
+        assertEquals(mesh.getVertexCount(), next);
+    }
+
+    @Test
+    public void optimizedMeshDrawsTheSameTriangles() {
+        MeshData original = ObjTestData.weld(ObjTestData.random(2000, 3000, 9));
+
+        MeshData optimized = MeshOptimizer.optimize(original);
+
+        assertEquals(corners(original), corners(optimized));
+    }
+
+    @Test
+    public void dropsUnreferencedVertices() {
+        MeshData mesh = new MeshData(
+                new float[]{0, 0, 0, 1, 1, 1, 2, 2, 2, 3, 3, 3},
+                new float[12],
+                new float[]{0, 0, 0.1f, 0.1f, 0.2f, 0.2f, 0.3f, 0.3f},
+                new int[]{3, 0, 2});
+
+        MeshData optimized = MeshOptimizer.optimizeVertexFetch(mesh);
+
+        assertEquals(3, optimized.getVertexCount());
+        assertArrayEquals(new int[]{0, 1, 2}, optimized.getIndices());
+        assertArrayEquals(new float[]{3, 3, 3, 0, 0, 0, 2, 2, 2}, optimized.getPositions(), 0f);
+        assertArrayEquals(new float[]{0.3f, 0.3f, 0, 0, 0.2f, 0.2f}, optimized.getTexels(), 0f);
+    }
+
+    /**
+     * Triangles keep their winding and their first corner.
+     */
+    private static void assertSameTriangles(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        assertEquals(triangles(expected), triangles(actual));
+    }
+
+    private static List<String> triangles(int[] indices) {
+        List<String> triangles = new ArrayList<>();
+        for (int i = 0; i < indices.length; i += 3) {
+            triangles.add(indices[i] + "/" + indices[i + 1] + "/" + indices[i + 2]);
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+
+    private static List<String> corners(MeshData mesh) {
+        List<String> triangles = new ArrayList<>();
+        int[] indices = mesh.getIndices();
+        for (int i = 0; i < indices.length; i += 3) {
+            StringBuilder builder = new StringBuilder();
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = indices[i + corner];
+                builder.append(mesh.getPositions()[vertex * 3]).append(',')
+                        .append(mesh.getPositions()[vertex * 3 + 1]).append(',')
+                        .append(mesh.getPositions()[vertex * 3 + 2]).append(',')
+                        .append(mesh.getNormals()[vertex * 3]).append(',')
+                        .append(mesh.getTexels()[vertex * 2]).append(';');
+            }
+            triangles.add(builder.toString());
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+}
@@ -0,0 +1,78 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import bertrandt.shadows.openGL.common.BufferHelper;
+
+import static org.junit.Assert.*;
+
+public class MeshReplicatorTest {
+
+    private static MeshBuffers sphere(int segments) {
+        return MeshBuffers.fromMeshData(ObjTestData.weldedSphere(segments));
+    }
+
+    private static int index(MeshBuffers mesh, int i) {
+        if (mesh.getIndices() instanceof ShortBuffer) {
+            return ((ShortBuffer) mesh.getIndices()).get(i) & 0xFFFF;
+        }
+        return ((IntBuffer) mesh.getIndices()).get(i);
+    }
+
+    @Test
+    public void copiesAreTaggedAndIndexedPerLevel() {
+        MeshBuffers mesh = sphere(8);
+        int copies = 5;
+        MeshBuffers replicated = MeshReplicator.replicate(mesh, copies);
+
+        int vertexCount = mesh.getVertexCount();
+        assertEquals(vertexCount * copies, replicated.getVertexCount());
+        assertEquals(mesh.getIndexCount() * copies, replicated.getIndexCount());
+
+        VertexLayout layout = replicated.getLayout();
+        int instance = layout.find(VertexLayout.SEMANTIC_INSTANCE);
+        assertTrue(instance >= 0);
+        ByteBuffer source = mesh.getVertices().duplicate().order(ByteOrder.nativeOrder());
+        ByteBuffer vertices = replicated.getVertices().duplicate().order(ByteOrder.nativeOrder());
+        int stride = mesh.getLayout().getStride();
+        for (int copy = 0; copy < copies; copy++) {
+            for (int i = 0; i < vertexCount; i++) {
+                int base = (copy * vertexCount + i) * layout.getStride();
+                assertEquals(copy, vertices.getFloat(base + layout.getOffset(instance)), 0f);
+                // the original attributes are unchanged
+                for (int b = 0; b < stride; b++) {
+                    assertEquals(source.get(i * stride + b), vertices.get(base + b));
+                }
+            }
+        }
+
+        // the first n copies of a level are one index range
+        int[] offsets = mesh.getLodOffsets();
+        int[] replicatedOffsets = replicated.getLodOffsets();
+        assertEquals(offsets.length, replicatedOffsets.length);
+        for (int lod = 0; lod + 1 < offsets.length; lod++) {
+            int levelCount = offsets[lod + 1] - offsets[lod];
+            assertEquals(levelCount * copies, replicatedOffsets[lod + 1] - replicatedOffsets[lod]);
+            for (int copy = 0; copy < copies; copy++) {
+                for (int i = 0; i < levelCount; i++) {
+                    assertEquals(index(mesh, offsets[lod] + i) + copy * vertexCount,
+                            index(replicated, replicatedOffsets[lod] + copy * levelCount + i));
+                }
+            }
+        }
+        assertNull(replicated.getMeshlets());
+    }
+
+    @Test
+    public void copiesAreLimitedByShortIndices() {
+        assertEquals(64, MeshReplicator.getMaxCopies(1000, 64, true));
+        assertEquals(BufferHelper.MAX_SHORT_INDEXED_VERTICES / 1000, MeshReplicator.getMaxCopies(1000, 200, false));
+        assertEquals(1, MeshReplicator.getMaxCopies(100000, 64, false));
+        assertEquals(1, MeshReplicator.getMaxCopies(10, 0, false));
+    }
+}
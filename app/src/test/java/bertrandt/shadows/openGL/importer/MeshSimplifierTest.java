@@ -0,0 +1,107 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MeshSimplifierTest {
+
+    /**
+     * A flat grid of quads, open on all four sides.
+     */
+    private static MeshData grid(int size) {
+        int row = size + 1;
+        float[] positions = new float[row * row * 3];
+        for (int y = 0; y < row; y++) {
+            for (int x = 0; x < row; x++) {
+                int vertex = (y * row + x) * 3;
+                positions[vertex] = x;
+                positions[vertex + 1] = y;
+            }
+        }
+        int[] indices = new int[size * size * 6];
+        int index = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int corner = y * row + x;
+                indices[index++] = corner;
+                indices[index++] = corner + 1;
+                indices[index++] = corner + row;
+                indices[index++] = corner + 1;
+                indices[index++] = corner + row + 1;
+                indices[index++] = corner + row;
+            }
+        }
+        return new MeshData(positions, new float[positions.length], new float[row * row * 2], indices);
+    }
+
+    @Test
+    public void reachesTargetTriangleCount() {
+        MeshData mesh = ObjTestData.weldedSphere(32);
+        MeshSimplifier simplifier = new MeshSimplifier(mesh.getPositions(), mesh.getIndices());
+
+        int target = mesh.getTriangleCount() / 4;
+        int[] simplified = simplifier.simplify(mesh.getIndices(), target);
+
+        assertTrue(simplified.length / 3 + " triangles", simplified.length / 3 <= target * 1.1f);
+        assertTrue(simplified.length / 3 > target / 2);
+        assertTrue(simplifier.getLastError() > 0f);
+        assertTrue("error " + simplifier.getLastError(), simplifier.getLastError() < 0.1f);
+    }
+
+    @Test
+    public void keepsBorderVertices() {
+        MeshData mesh = grid(16);
+        MeshSimplifier simplifier = new MeshSimplifier(mesh.getPositions(), mesh.getIndices());
+
+        int[] simplified = simplifier.simplify(mesh.getIndices(), 64);
+
+        Set<Integer> used = new HashSet<>();
+        for (int index : simplified) {
+            used.add(index);
+        }
+        for (int i = 0; i <= 16; i++) {
+            assertTrue(used.contains(i));
+            assertTrue(used.contains(16 * 17 + i));
+            assertTrue(used.contains(i * 17));
+            assertTrue(used.contains(i * 17 + 16));
+        }
+        // a flat grid simplifies without any error
+        assertEquals(0f, simplifier.getLastError(), 1e-6f);
+        assertTrue(simplified.length / 3 < mesh.getTriangleCount() / 2);
+    }
+
+    @Test
+    public void buildsLodChainWithGrowingError() {
+        MeshData mesh = ObjTestData.weldedSphere(32);
+
+        MeshData lods = MeshSimplifier.buildLods(mesh, new float[]{0.5f, 0.25f, 0.125f});
+
+        assertEquals(4, lods.getLodCount());
+        assertEquals(mesh.getTriangleCount(), lods.getTriangleCount());
+        assertArrayEquals(mesh.getIndices(), java.util.Arrays.copyOf(lods.getIndices(), mesh.getIndexCount()));
+        float[] errors = lods.getLodErrors();
+        assertEquals(0f, errors[0], 0f);
+        for (int lod = 1; lod < lods.getLodCount(); lod++) {
+            assertTrue(lods.getLodIndexCount(lod) < lods.getLodIndexCount(lod - 1));
+            assertTrue(errors[lod] >= errors[lod - 1]);
+            assertEquals(lods.getLodIndexOffset(lod - 1) + lods.getLodIndexCount(lod - 1),
+                    lods.getLodIndexOffset(lod));
+        }
+        assertEquals(lods.getIndexCount(), lods.getLodIndexOffset(3) + lods.getLodIndexCount(3));
+    }
+
+    @Test
+    public void stopsWhenNothingCanCollapse() {
+        MeshData mesh = new MeshData(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, new float[9], new float[6],
+                new int[]{0, 1, 2});
+
+        MeshData lods = MeshSimplifier.buildLods(mesh, new float[]{0.5f});
+
+        assertEquals(1, lods.getLodCount());
+        assertArrayEquals(new int[]{0, 1, 2}, lods.getIndices());
+    }
+}
@@ -0,0 +1,103 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MeshletBuilderTest {
+
+    @Test
+    public void clustersCoverLevelZeroOnce() {
+        MeshData mesh = MeshSimplifier.buildLods(MeshOptimizer.optimize(ObjTestData.weldedSphere(48)),
+                new float[]{0.5f});
+
+        MeshData clustered = MeshletBuilder.build(mesh, MeshletBuilder.DEFAULT_MAX_TRIANGLES);
+
+        Meshlets meshlets = clustered.getMeshlets();
+        assertEquals(0, meshlets.getIndexOffset(0));
+        assertEquals(mesh.getLodIndexCount(0), meshlets.getIndexOffsets()[meshlets.getCount()]);
+        for (int meshlet = 0; meshlet < meshlets.getCount(); meshlet++) {
+            assertTrue(meshlets.getIndexCount(meshlet) > 0);
+            assertTrue(meshlets.getIndexCount(meshlet) <= MeshletBuilder.DEFAULT_MAX_TRIANGLES * 3);
+        }
+        // most clusters are full
+        assertTrue(meshlets.getCount() < mesh.getTriangleCount() / MeshletBuilder.DEFAULT_MAX_TRIANGLES * 1.3f);
+
+        assertEquals(triangles(mesh.getIndices(), 0, mesh.getLodIndexCount(0)),
+                triangles(clustered.getIndices(), 0, clustered.getLodIndexCount(0)));
+        // the other levels are not touched
+        int[] lod1 = Arrays.copyOfRange(mesh.getIndices(), mesh.getLodIndexOffset(1), mesh.getIndexCount());
+        assertArrayEquals(lod1, Arrays.copyOfRange(clustered.getIndices(), clustered.getLodIndexOffset(1),
+                clustered.getIndexCount()));
+    }
+
+    @Test
+    public void boundsEncloseTheClusters() {
+        MeshData clustered = MeshletBuilder.build(MeshOptimizer.optimize(ObjTestData.weldedSphere(32)), 64);
+        Meshlets meshlets = clustered.getMeshlets();
+        float[] positions = clustered.getPositions();
+        int[] indices = clustered.getIndices();
+
+        int cullable = 0;
+        for (int meshlet = 0; meshlet < meshlets.getCount(); meshlet++) {
+            float[] bounds = Arrays.copyOfRange(meshlets.getBounds(), meshlet * Meshlets.BOUNDS_SIZE,
+                    (meshlet + 1) * Meshlets.BOUNDS_SIZE);
+            float cosine = (float) Math.sqrt(1 - bounds[7] * bounds[7]);
+            int end = meshlets.getIndexOffset(meshlet) + meshlets.getIndexCount(meshlet);
+            for (int i = meshlets.getIndexOffset(meshlet); i < end; i += 3) {
+                float[] normal = new float[3];
+                for (int corner = 0; corner < 3; corner++) {
+                    int vertex = indices[i + corner] * 3;
+                    float x = positions[vertex] - bounds[0];
+                    float y = positions[vertex + 1] - bounds[1];
+                    float z = positions[vertex + 2] - bounds[2];
+                    assertTrue(Math.sqrt(x * x + y * y + z * z) <= bounds[3] * 1.0001f);
+                }
+                triangleNormal(positions, indices, i, normal);
+                boolean degenerate = normal[0] == 0 && normal[1] == 0 && normal[2] == 0;
+                if (bounds[7] < 1f && !degenerate) {
+                    float dot = normal[0] * bounds[4] + normal[1] * bounds[5] + normal[2] * bounds[6];
+                    assertTrue(dot >= cosine - 1e-4f);
+                }
+            }
+            if (bounds[7] < 1f) {
+                cullable++;
+            }
+        }
+        // clusters on a smooth sphere are narrow enough for cone culling
+        assertTrue(cullable > meshlets.getCount() * 3 / 4);
+    }
+
+    private static void triangleNormal(float[] positions, int[] indices, int offset, float[] normal) {
+        int a = indices[offset] * 3;
+        int b = indices[offset + 1] * 3;
+        int c = indices[offset + 2] * 3;
+        float abX = positions[b] - positions[a];
+        float abY = positions[b + 1] - positions[a + 1];
+        float abZ = positions[b + 2] - positions[a + 2];
+        float acX = positions[c] - positions[a];
+        float acY = positions[c + 1] - positions[a + 1];
+        float acZ = positions[c + 2] - positions[a + 2];
+        normal[0] = abY * acZ - abZ * acY;
+        normal[1] = abZ * acX - abX * acZ;
+        normal[2] = abX * acY - abY * acX;
+        float length = (float) Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+        for (int i = 0; i < 3; i++) {
+            normal[i] = length > 0 ? normal[i] / length : 0;
+        }
+    }
+
+    private static List<String> triangles(int[] indices, int offset, int count) {
+        List<String> triangles = new ArrayList<>();
+        for (int i = offset; i < offset + count; i += 3) {
+            triangles.add(indices[i] + "/" + indices[i + 1] + "/" + indices[i + 2]);
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+}
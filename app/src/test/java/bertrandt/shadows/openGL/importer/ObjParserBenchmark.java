@@ -0,0 +1,53 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parse throughput of the byte level parser against the former String based import.
+ * Results are printed, the test only fails if both imports disagree on the face count.
+ */
+
+@Ignore("benchmark, run manually")
+public class ObjParserBenchmark {
+
+    private static final int SEGMENTS = 160;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    @Test
+    public void parseThroughput() throws Exception {
+        byte[] data = ObjTestData.sphere(SEGMENTS);
+
+        long legacyNanos = Long.MAX_VALUE;
+        long parserNanos = Long.MAX_VALUE;
+        int legacyFaces = 0;
+        int parserFaces = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            LegacyObjReader legacy = new LegacyObjReader(new ByteArrayInputStream(data));
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ObjParser parser = new ObjParser();
+            parser.parse(new ByteArrayInputStream(data));
+            long parserTime = System.nanoTime() - start;
+
+            if (run >= WARMUP_RUNS) {
+                legacyNanos = Math.min(legacyNanos, legacyTime);
+                parserNanos = Math.min(parserNanos, parserTime);
+            }
+            legacyFaces = legacy.mFacesList.size();
+            parserFaces = parser.getTriangleCount();
+        }
+        assertEquals(legacyFaces, parserFaces);
+
+        System.out.println(String.format("obj import, %d triangles, %.1f MB:", parserFaces, data.length / 1e6));
+        System.out.println(String.format("  legacy  %8.2f ms  %7.1f MB/s", legacyNanos / 1e6, data.length * 1e3 / legacyNanos));
+        System.out.println(String.format("  parser  %8.2f ms  %7.1f MB/s", parserNanos / 1e6, data.length * 1e3 / parserNanos));
+    }
+}
@@ -0,0 +1,94 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class ObjParserTest {
+
+    private static ObjParser parse(String obj) throws IOException {
+        ObjParser parser = new ObjParser();
+        parser.parse(new ByteArrayInputStream(obj.getBytes(Charset.forName("US-ASCII"))));
+        return parser;
+    }
+
+    @Test
+    public void parsesVerticesTexelsNormalsAndFaces() throws Exception {
+        ObjParser parser = parse("# comment\n"
+                + "mtllib a.mtl\n"
+                + "o Cube\n"
+                + "v 1.000000 -1.000000 -1.000000\n"
+                + "v -1.5 2.25 3\n"
+                + "v 0 0 1e-3\n"
+                + "vt 0.471212 0.080001\n"
+                + "vn 0.000000 -1.000000 0.000000\n"
+                + "usemtl Material\n"
+                + "s off\n"
+                + "f 1/1/1 2/1/1 3/1/1\n");
+
+        assertArrayEquals(new float[]{1f, -1f, -1f, -1.5f, 2.25f, 3f, 0f, 0f, 1e-3f},
+                parser.getPositions().toArray(), 0f);
+        assertArrayEquals(new float[]{0.471212f, 0.080001f}, parser.getTexels().toArray(), 0f);
+        assertArrayEquals(new float[]{0f, -1f, 0f}, parser.getNormals().toArray(), 0f);
+        assertEquals(1, parser.getTriangleCount());
+        assertArrayEquals(new int[]{0, 0, 0, 1, 0, 0, 2, 0, 0}, parser.getFaces().toArray());
+    }
+
+    @Test
+    public void triangulatesPolygonsAndResolvesRelativeAndMissingIndices() throws Exception {
+        ObjParser parser = parse("v 0 0 0\r\nv 1 0 0\r\nv 1 1 0\r\nv 0 1 0\r\nvn 0 0 1\r\n"
+                + "f -4//1 -3//1 -2//1 -1//1\r\n");
+
+        assertEquals(2, parser.getTriangleCount());
+        assertArrayEquals(new int[]{
+                0, -1, 0, 1, -1, 0, 2, -1, 0,
+                0, -1, 0, 2, -1, 0, 3, -1, 0}, parser.getFaces().toArray());
+    }
+
+    @Test
+    public void handlesLinesSplitAcrossReads() throws Exception {
+        final byte[] data = ObjTestData.sphere(24);
+        // deliver at most 7 bytes per read so that nearly every line is split
+        InputStream trickle = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        ObjParser split = new ObjParser();
+        split.parse(trickle);
+        ObjParser whole = new ObjParser();
+        whole.parse(data, 0, data.length);
+
+        assertArrayEquals(whole.getPositions().toArray(), split.getPositions().toArray(), 0f);
+        assertArrayEquals(whole.getFaces().toArray(), split.getFaces().toArray());
+    }
+
+    @Test
+    public void matchesLegacyImport() throws Exception {
+        byte[] data = ObjTestData.random(2000, 6000, 42L);
+        LegacyObjReader legacy = new LegacyObjReader(new ByteArrayInputStream(data));
+        ObjParser parser = new ObjParser();
+        parser.parse(new ByteArrayInputStream(data));
+
+        int corners = parser.getTriangleCount() * 3;
+        int[] faces = parser.getFaces().array();
+        float[] positions = parser.getPositions().array();
+        float[] normals = parser.getNormals().array();
+        float[] texels = parser.getTexels().array();
+        for (int corner = 0; corner < corners; corner++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(legacy.mVerticesBuffer.get(corner * 3 + i), positions[faces[3 * corner] * 3 + i], 0f);
+                assertEquals(legacy.mNormalsBuffer.get(corner * 3 + i), normals[faces[3 * corner + 2] * 3 + i], 0f);
+            }
+            for (int i = 0; i < 2; i++) {
+                assertEquals(legacy.mTexelsBuffer.get(corner * 2 + i), texels[faces[3 * corner + 1] * 2 + i], 0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package bertrandt.shadows.openGL.importer;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates obj test files in the format blender exports.
+ */
+
+class ObjTestData {
+
+    /**
+     * A closed grid sphere with {@code 2 * segments * segments} triangles, every position shared
+     * by up to six triangles.
+     */
+    static byte[] sphere(int segments) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("# generated test sphere\n");
+        builder.append("o Sphere\n");
+        for (int ring = 0; ring <= segments; ring++) {
+            double theta = Math.PI * ring / segments;
+            for (int segment = 0; segment <= segments; segment++) {
+                double phi = 2.0 * Math.PI * segment / segments;
+                float x = (float) (Math.sin(theta) * Math.cos(phi));
+                float y = (float) Math.cos(theta);
+                float z = (float) (Math.sin(theta) * Math.sin(phi));
+                builder.append(String.format(Locale.US, "v %f %f %f\n", x, y, z));
+                builder.append(String.format(Locale.US, "vt %f %f\n",
+                        (float) segment / segments, (float) ring / segments));
+                builder.append(String.format(Locale.US, "vn %f %f %f\n", x, y, z));
+            }
+        }
+        builder.append("usemtl Material\n");
+        builder.append("s off\n");
+        int stride = segments + 1;
+        for (int ring = 0; ring < segments; ring++) {
+            for (int segment = 0; segment < segments; segment++) {
+                int a = ring * stride + segment + 1;
+                int b = a + stride;
+                appendFace(builder, a, b, a + 1);
+                appendFace(builder, b, b + 1, a + 1);
+            }
+        }
+        return builder.toString().getBytes(Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * The mesh the import builds from obj data, parsed and welded.
+     */
+    static MeshData weld(byte[] data) {
+        ObjParser parser = new ObjParser();
+        parser.parse(data, 0, data.length);
+        return VertexWelder.weld(parser.getPositions(), parser.getTexels(), parser.getNormals(), parser.getFaces());
+    }
+
+    /**
+     * See {@link #sphere(int)} and {@link #weld(byte[])}.
+     */
+    static MeshData weldedSphere(int segments) {
+        return weld(sphere(segments));
+    }
+
+    /**
+     * Random vertex data with the six decimals blender writes.
+     */
+    static byte[] random(int vertices, int triangles, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < vertices; i++) {
+            builder.append(String.format(Locale.US, "v %f %f %f\n",
+                    random.nextFloat() * 200 - 100, random.nextFloat() * 2 - 1, random.nextFloat() * 1e-3));
+            builder.append(String.format(Locale.US, "vt %f %f\n", random.nextFloat(), random.nextFloat()));
+            builder.append(String.format(Locale.US, "vn %f %f %f\n",
+                    random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1));
+        }
+        for (int i = 0; i < triangles; i++) {
+            appendFace(builder, 1 + random.nextInt(vertices), 1 + random.nextInt(vertices), 1 + random.nextInt(vertices));
+        }
+        return builder.toString().getBytes(Charset.forName("US-ASCII"));
+    }
+
+    private static void appendFace(StringBuilder builder, int a, int b, int c) {
+        builder.append("f ")
+                .append(a).append('/').append(a).append('/').append(a).append(' ')
+                .append(b).append('/').append(b).append('/').append(b).append(' ')
+                .append(c).append('/').append(c).append('/').append(c).append('\n');
+    }
+}
@@ -0,0 +1,66 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parse and weld time of the parallel import by thread count. Results are printed, the
+ * sequential {@link ObjParser} is the baseline.
+ */
+
+@Ignore("benchmark, run manually")
+public class ParallelObjParserBenchmark {
+
+    private static final int SEGMENTS = 400;
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    @Test
+    public void scalingByThreadCount() {
+        byte[] data = ObjTestData.sphere(SEGMENTS);
+
+        long sequentialNanos = Long.MAX_VALUE;
+        int triangles = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            ObjParser parser = new ObjParser();
+            parser.parse(data, 0, data.length);
+            VertexWelder.weld(parser.getPositions(), parser.getTexels(), parser.getNormals(), parser.getFaces());
+            long time = System.nanoTime() - start;
+            if (run >= WARMUP_RUNS) {
+                sequentialNanos = Math.min(sequentialNanos, time);
+            }
+            triangles = parser.getTriangleCount();
+        }
+
+        System.out.println(String.format("parallel obj import, %d triangles, %.1f MB, %d cores:",
+                triangles, data.length / 1e6, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("  sequential  %8.2f ms", sequentialNanos / 1e6));
+
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long nanos = Long.MAX_VALUE;
+            try {
+                for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+                    long start = System.nanoTime();
+                    ParallelObjParser parser = new ParallelObjParser(pool);
+                    parser.parse(data, data.length);
+                    parser.weld();
+                    long time = System.nanoTime() - start;
+                    if (run >= WARMUP_RUNS) {
+                        nanos = Math.min(nanos, time);
+                    }
+                    assertEquals(triangles, parser.getTriangleCount());
+                }
+            } finally {
+                pool.shutdown();
+            }
+            System.out.println(String.format("  %d threads   %8.2f ms  %5.2fx", threads, nanos / 1e6,
+                    (double) sequentialNanos / nanos));
+        }
+    }
+}
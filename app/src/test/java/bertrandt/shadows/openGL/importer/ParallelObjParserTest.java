@@ -0,0 +1,76 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParallelObjParserTest {
+
+    private static void assertBitIdentical(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(actual[i]));
+        }
+    }
+
+    private static void assertSameAsSequential(byte[] data, int threads) {
+        ObjParser sequential = new ObjParser();
+        sequential.parse(data, 0, data.length);
+        MeshData sequentialMesh = VertexWelder.weld(sequential.getPositions(), sequential.getTexels(),
+                sequential.getNormals(), sequential.getFaces());
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ParallelObjParser parallel = new ParallelObjParser(pool);
+            parallel.parse(data, data.length);
+            assertBitIdentical(sequential.getPositions().toArray(), parallel.getPositions().toArray());
+            assertBitIdentical(sequential.getNormals().toArray(), parallel.getNormals().toArray());
+            assertBitIdentical(sequential.getTexels().toArray(), parallel.getTexels().toArray());
+            assertArrayEquals(sequential.getFaces().toArray(), parallel.getFaces().toArray());
+
+            MeshData parallelMesh = parallel.weld();
+            assertBitIdentical(sequentialMesh.getPositions(), parallelMesh.getPositions());
+            assertBitIdentical(sequentialMesh.getNormals(), parallelMesh.getNormals());
+            assertBitIdentical(sequentialMesh.getTexels(), parallelMesh.getTexels());
+            assertArrayEquals(sequentialMesh.getIndices(), parallelMesh.getIndices());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void matchesSequentialParser() {
+        byte[] data = ObjTestData.sphere(200);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            assertSameAsSequential(data, threads);
+        }
+    }
+
+    @Test
+    public void resolvesRelativeIndicesAcrossChunks() {
+        // every face refers to the vertices just before it, chunks will cut between them
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            builder.append("v ").append(i).append(" 0 0\n");
+            builder.append("vt 0.5 ").append(i % 10).append('\n');
+            builder.append("vn 0 1 0\n");
+            if (i >= 2) {
+                builder.append("f -3/-1/-1 -2/-1/-1 -1/-1/-1\n");
+            }
+        }
+        byte[] data = builder.toString().getBytes(Charset.forName("US-ASCII"));
+        assertTrue(data.length > 4 * 128 * 1024);
+        assertSameAsSequential(data, 4);
+    }
+
+    @Test
+    public void handlesFilesWithoutTrailingNewline() {
+        byte[] data = ObjTestData.sphere(120);
+        data = Arrays.copyOf(data, data.length - 1);
+        assertSameAsSequential(data, 4);
+    }
+}
@@ -0,0 +1,73 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PositionWelderTest {
+
+    @Test
+    public void collapsesSeams() {
+        MeshData mesh = ObjTestData.weldedSphere(16);
+
+        MeshData welded = PositionWelder.weld(mesh);
+
+        // the texture seam shares positions
+        assertTrue(welded.getVertexCount() <= mesh.getVertexCount() - 15);
+        assertEquals(mesh.getIndexCount(), welded.getIndexCount());
+        for (int i = 0; i < mesh.getIndexCount(); i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(mesh.getPositions()[mesh.getIndices()[i] * 3 + axis],
+                        welded.getPositions()[welded.getIndices()[i] * 3 + axis], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void numbersVerticesInOrderOfUse() {
+        MeshData welded = PositionWelder.weld(ObjTestData.weldedSphere(8));
+
+        int next = 0;
+        for (int index : welded.getIndices()) {
+            assertTrue(index <= next);
+            if (index == next) {
+                next++;
+            }
+        }
+        assertEquals(welded.getVertexCount(), next);
+    }
+
+    @Test
+    public void keepsRangesOfTheShadedMesh() {
+        MeshData mesh = MeshletBuilder.build(
+                MeshSimplifier.buildLods(ObjTestData.weldedSphere(32), new float[]{0.5f}), 64);
+
+        MeshData welded = PositionWelder.weld(mesh);
+
+        assertArrayEquals(mesh.getLodOffsets(), welded.getLodOffsets());
+        assertSame(mesh.getMeshlets(), welded.getMeshlets());
+    }
+
+    @Test
+    public void quantizesLikeTheShadedMesh() {
+        MeshData mesh = ObjTestData.weldedSphere(8);
+        MeshBuffers shaded = VertexQuantizer.quantize(mesh);
+
+        MeshData positions = PositionWelder.weld(mesh);
+        MeshBuffers depth = VertexQuantizer.quantizePositions(positions, shaded.getBounds());
+
+        assertEquals(8, depth.getLayout().getStride());
+        ByteBuffer shadedVertices = shaded.getVertices();
+        ByteBuffer depthVertices = depth.getVertices();
+        for (int i = 0; i < mesh.getIndexCount(); i++) {
+            int shadedVertex = mesh.getIndices()[i] * shaded.getLayout().getStride();
+            int depthVertex = positions.getIndices()[i] * depth.getLayout().getStride();
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(shadedVertices.getShort(shadedVertex + axis * 2),
+                        depthVertices.getShort(depthVertex + axis * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import bertrandt.shadows.openGL.math.Mat4;
+
+import static org.junit.Assert.*;
+
+public class StaticBatcherTest {
+
+    private static final float EPSILON = 1e-5f;
+
+    /**
+     * A unit quad in the xy plane facing +z, with a coarser second level of a single triangle.
+     */
+    private static MeshData quad() {
+        return new MeshData(
+                new float[]{0f, 0f, 0f, 1f, 0f, 0f, 1f, 1f, 0f, 0f, 1f, 0f},
+                new float[]{0f, 0f, 1f, 0f, 0f, 1f, 0f, 0f, 1f, 0f, 0f, 1f},
+                new float[]{0f, 0f, 1f, 0f, 1f, 1f, 0f, 1f},
+                new int[]{0, 1, 2, 0, 2, 3, 0, 1, 2},
+                new int[]{0, 6, 9}, new float[]{0f, 0.5f});
+    }
+
+    private static MeshData triangle() {
+        return new MeshData(
+                new float[]{0f, 0f, 0f, 1f, 0f, 0f, 0f, 1f, 0f},
+                new float[]{0f, 0f, 1f, 0f, 0f, 1f, 0f, 0f, 1f},
+                new float[]{0f, 0f, 1f, 0f, 0f, 1f},
+                new int[]{0, 1, 2});
+    }
+
+    private static Mat4 translation(float x, float y, float z) {
+        return new Mat4().setRows(
+                1f, 0f, 0f, x,
+                0f, 1f, 0f, y,
+                0f, 0f, 1f, z,
+                0f, 0f, 0f, 1f);
+    }
+
+    @Test
+    public void meshesAreMergedInWorldSpace() {
+        StaticBatcher batcher = new StaticBatcher();
+        batcher.add(0, quad(), translation(10f, 0f, 0f));
+        // turned to face +x, a quarter turn about y
+        batcher.add(0, triangle(), new Mat4().setRotate(90f, 0f, 1f, 0f));
+        ArrayList<StaticBatcher.Batch> batches = batcher.build();
+
+        assertEquals(1, batches.size());
+        StaticBatcher.Batch batch = batches.get(0);
+        assertEquals(2, batch.getMeshCount());
+        MeshData merged = batch.getMeshData();
+        assertEquals(7, merged.getVertexCount());
+
+        // sorted along x, the triangle comes first
+        float[] positions = merged.getPositions();
+        float[] normals = merged.getNormals();
+        assertEquals(0f, positions[3], EPSILON);
+        assertEquals(-1f, positions[5], EPSILON);
+        assertEquals(1f, normals[0], EPSILON);
+        assertEquals(0f, normals[2], EPSILON);
+        assertEquals(11f, positions[3 * 4 + 0], EPSILON);
+
+        float[] bounds = merged.getBounds();
+        assertArrayEquals(new float[]{0f, 0f, -1f, 11f, 1f, 0f}, bounds, EPSILON);
+
+        // level 1 holds the coarse quad and the only level of the triangle
+        assertEquals(2, merged.getLodCount());
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 3, 5, 6, 0, 1, 2, 3, 4, 5}, merged.getIndices());
+        assertEquals(9, merged.getLodIndexCount(0));
+        assertEquals(6, merged.getLodIndexCount(1));
+        assertEquals(0f, merged.getLodErrors()[0], 0f);
+        float quadRadius = (float) Math.sqrt(0.5);
+        assertEquals(0.5f * quadRadius / merged.getBoundingSphere()[3], merged.getLodErrors()[1], EPSILON);
+    }
+
+    @Test
+    public void batchesRespectMaterialsAndIndexLimits() {
+        StaticBatcher batcher = new StaticBatcher(10);
+        for (int i = 0; i < 6; i++) {
+            batcher.add(i % 2, quad(), translation(i * 2f, 0f, 0f));
+        }
+        batcher.add(1, new MeshData(new float[12 * 3], new float[12 * 3], new float[12 * 2], new int[]{0, 1, 2}),
+                translation(100f, 0f, 0f));
+        ArrayList<StaticBatcher.Batch> batches = batcher.build();
+
+        // three quads of material 0 need two batches of 8 and 4 vertices, the large mesh gets its own
+        int[] expectedMaterials = {0, 0, 1, 1, 1};
+        int[] expectedVertices = {8, 4, 8, 4, 12};
+        assertEquals(expectedMaterials.length, batches.size());
+        int meshes = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            assertEquals(expectedMaterials[i], batches.get(i).getMaterial());
+            assertEquals(expectedVertices[i], batches.get(i).getMeshData().getVertexCount());
+            meshes += batches.get(i).getMeshCount();
+        }
+        assertEquals(7, meshes);
+
+        // a batch only covers its own meshes
+        float[] bounds = batches.get(0).getMeshData().getBounds();
+        assertEquals(0f, bounds[0], EPSILON);
+        assertEquals(5f, bounds[3], EPSILON);
+    }
+}
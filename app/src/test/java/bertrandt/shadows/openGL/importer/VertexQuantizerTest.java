@@ -0,0 +1,113 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VertexQuantizerTest {
+
+    /**
+     * Largest angle between an input normal and its decoded octahedral encoding.
+     */
+    private static final double MAX_NORMAL_ERROR_DEGREES = 1.0;
+
+    @Test
+    public void halvesTheVertexSize() {
+        assertEquals(32, VertexLayout.FLOAT.getStride());
+        assertEquals(16, VertexQuantizer.COMPACT.getStride());
+        assertTrue(VertexQuantizer.isQuantized(VertexQuantizer.COMPACT));
+        assertFalse(VertexQuantizer.isQuantized(VertexLayout.FLOAT));
+    }
+
+    @Test
+    public void staysWithinErrorBoundsOfFloatPath() {
+        assertWithinErrorBounds(ObjTestData.weldedSphere(32));
+        assertWithinErrorBounds(ObjTestData.weld(ObjTestData.random(5000, 5000, 3)));
+    }
+
+    @Test
+    public void keepsFloatTexelsOutsideUnitRange() {
+        MeshData mesh = new MeshData(
+                new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0},
+                new float[]{0, 0, 1, 0, 0, 1, 0, 0, 1},
+                new float[]{0, 0, 4, 0, 0, -2},
+                new int[]{0, 1, 2});
+
+        MeshBuffers buffers = VertexQuantizer.quantize(mesh);
+
+        assertEquals(VertexQuantizer.COMPACT_FLOAT_TEXELS, buffers.getLayout());
+        VertexLayout layout = buffers.getLayout();
+        int texelOffset = layout.getOffset(layout.find(VertexLayout.SEMANTIC_TEXEL));
+        assertEquals(4f, buffers.getVertices().getFloat(layout.getStride() + texelOffset), 0f);
+        assertEquals(-2f, buffers.getVertices().getFloat(2 * layout.getStride() + texelOffset + 4), 0f);
+    }
+
+    @Test
+    public void encodesAllDirectionsWithinErrorBound() {
+        Random random = new Random(11);
+        byte[] encoded = new byte[2];
+        float[] decoded = new float[3];
+        for (int i = 0; i < 100000; i++) {
+            float x = (float) random.nextGaussian();
+            float y = (float) random.nextGaussian();
+            float z = (float) random.nextGaussian();
+            VertexQuantizer.encodeOctahedral(x, y, z, encoded);
+            VertexQuantizer.decodeOctahedral(encoded[0], encoded[1], decoded);
+            assertTrue(angleDegrees(x, y, z, decoded) <= MAX_NORMAL_ERROR_DEGREES);
+        }
+        // the poles and the folded edges
+        float[][] directions = {{0, 0, 1}, {0, 0, -1}, {1, 0, 0}, {-1, 0, 0}, {0, -1, 0}, {1, 1, -1e-4f}};
+        for (float[] direction : directions) {
+            VertexQuantizer.encodeOctahedral(direction[0], direction[1], direction[2], encoded);
+            VertexQuantizer.decodeOctahedral(encoded[0], encoded[1], decoded);
+            assertTrue(angleDegrees(direction[0], direction[1], direction[2], decoded) <= MAX_NORMAL_ERROR_DEGREES);
+        }
+    }
+
+    private static void assertWithinErrorBounds(MeshData mesh) {
+        MeshBuffers buffers = VertexQuantizer.quantize(mesh);
+        VertexLayout layout = buffers.getLayout();
+        assertEquals(VertexQuantizer.COMPACT, layout);
+        assertEquals(mesh.getVertexCount(), buffers.getVertexCount());
+        assertEquals(mesh.getIndexCount(), buffers.getIndexCount());
+
+        float[] bounds = mesh.getBounds();
+        float[] dequantization = new float[16];
+        VertexQuantizer.getDequantization(bounds, dequantization, 0);
+
+        ByteBuffer vertices = buffers.getVertices();
+        int stride = layout.getStride();
+        int normalOffset = layout.getOffset(layout.find(VertexLayout.SEMANTIC_NORMAL));
+        int texelOffset = layout.getOffset(layout.find(VertexLayout.SEMANTIC_TEXEL));
+        float[] normal = new float[3];
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            int base = vertex * stride;
+            for (int i = 0; i < 3; i++) {
+                // what the GPU does: normalize, then the dequantization matrix
+                float normalized = (vertices.getShort(base + 2 * i) & 0xFFFF) / 65535f;
+                float position = normalized * dequantization[i * 5] + dequantization[12 + i];
+                float extent = bounds[i + 3] - bounds[i];
+                assertEquals(mesh.getPositions()[vertex * 3 + i], position, extent / 65535f * 0.5f + 1e-5f * extent + 1e-6f);
+            }
+
+            VertexQuantizer.decodeOctahedral(vertices.get(base + normalOffset), vertices.get(base + normalOffset + 1), normal);
+            float[] normals = mesh.getNormals();
+            assertTrue(angleDegrees(normals[vertex * 3], normals[vertex * 3 + 1], normals[vertex * 3 + 2], normal)
+                    <= MAX_NORMAL_ERROR_DEGREES);
+
+            for (int i = 0; i < 2; i++) {
+                float texel = (vertices.getShort(base + texelOffset + 2 * i) & 0xFFFF) / 65535f;
+                assertEquals(mesh.getTexels()[vertex * 2 + i], texel, 0.5f / 65535f + 1e-6f);
+            }
+        }
+    }
+
+    private static double angleDegrees(float x, float y, float z, float[] decoded) {
+        double length = Math.sqrt(x * x + y * y + z * z);
+        double dot = (x * decoded[0] + y * decoded[1] + z * decoded[2]) / length;
+        return Math.toDegrees(Math.acos(Math.min(1.0, dot)));
+    }
+}
@@ -0,0 +1,56 @@
+package bertrandt.shadows.openGL.importer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VertexWelderTest {
+
+    @Test
+    public void returnsSameIndexForSameTriple() {
+        VertexWelder welder = new VertexWelder(2);
+        assertEquals(0, welder.weld(0, 0, 0));
+        assertEquals(1, welder.weld(0, 1, 0));
+        assertEquals(2, welder.weld(0, 0, -1));
+        assertEquals(1, welder.weld(0, 1, 0));
+        assertEquals(0, welder.weld(0, 0, 0));
+        assertEquals(3, welder.getVertexCount());
+    }
+
+    @Test
+    public void keepsIndicesWhileGrowing() {
+        VertexWelder welder = new VertexWelder(1);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, welder.weld(i, i % 7, -i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, welder.weld(i, i % 7, -i));
+        }
+        assertEquals(10000, welder.getVertexCount());
+    }
+
+    @Test
+    public void weldedMeshReproducesExpandedCorners() {
+        byte[] data = ObjTestData.sphere(24);
+        ObjParser parser = new ObjParser();
+        parser.parse(data, 0, data.length);
+
+        MeshData mesh = VertexWelder.weld(parser.getPositions(), parser.getTexels(),
+                parser.getNormals(), parser.getFaces());
+
+        assertEquals(25 * 25, mesh.getVertexCount());
+        assertEquals(parser.getTriangleCount() * 3, mesh.getIndexCount());
+
+        int[] faces = parser.getFaces().array();
+        for (int corner = 0; corner < mesh.getIndexCount(); corner++) {
+            int vertex = mesh.getIndices()[corner];
+            for (int i = 0; i < 3; i++) {
+                assertEquals(parser.getPositions().get(faces[3 * corner] * 3 + i), mesh.getPositions()[vertex * 3 + i], 0f);
+                assertEquals(parser.getNormals().get(faces[3 * corner + 2] * 3 + i), mesh.getNormals()[vertex * 3 + i], 0f);
+            }
+            for (int i = 0; i < 2; i++) {
+                assertEquals(parser.getTexels().get(faces[3 * corner + 1] * 2 + i), mesh.getTexels()[vertex * 2 + i], 0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package bertrandt.shadows.openGL.loader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bertrandt.shadows.openGL.common.Clock;
+
+import static org.junit.Assert.*;
+
+public class UploadQueueTest {
+
+    /**
+     * Clock that only advances when an upload runs.
+     */
+    private static class FakeClock implements Clock {
+        long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    private static class FakeUpload implements Upload {
+        private final FakeClock mClock;
+        private final long mBytes;
+        private final long mDurationNanos;
+        private final List<FakeUpload> mDone;
+
+        FakeUpload(FakeClock clock, long bytes, long durationNanos, List<FakeUpload> done) {
+            mClock = clock;
+            mBytes = bytes;
+            mDurationNanos = durationNanos;
+            mDone = done;
+        }
+
+        @Override
+        public long getByteSize() {
+            return mBytes;
+        }
+
+        @Override
+        public void upload() {
+            mClock.mNanos += mDurationNanos;
+            mDone.add(this);
+        }
+    }
+
+    @Test
+    public void stopsWhenTimeBudgetIsUsed() {
+        FakeClock clock = new FakeClock();
+        List<FakeUpload> done = new ArrayList<>();
+        UploadQueue queue = new UploadQueue(clock, 4000000L, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            queue.add(new FakeUpload(clock, 10, 1500000L, done));
+        }
+
+        assertEquals(3, queue.process());
+        assertEquals(2, queue.process());
+        assertEquals(0, queue.process());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void stopsBeforeExceedingByteBudget() {
+        FakeClock clock = new FakeClock();
+        List<FakeUpload> done = new ArrayList<>();
+        UploadQueue queue = new UploadQueue(clock, Long.MAX_VALUE, 1000);
+        queue.add(new FakeUpload(clock, 400, 0, done));
+        queue.add(new FakeUpload(clock, 500, 0, done));
+        queue.add(new FakeUpload(clock, 200, 0, done));
+
+        assertEquals(2, queue.process());
+        assertEquals(900, queue.getLastUploadBytes());
+        assertEquals(1, queue.process());
+    }
+
+    @Test
+    public void countsBytesOfReleasedUploads() {
+        FakeClock clock = new FakeClock();
+        final List<FakeUpload> done = new ArrayList<>();
+        UploadQueue queue = new UploadQueue(clock, Long.MAX_VALUE, 1000);
+        // like a texture that recycles its bitmap once it is in GL
+        queue.add(new FakeUpload(clock, 300, 0, done) {
+            @Override
+            public long getByteSize() {
+                return done.contains(this) ? 0 : super.getByteSize();
+            }
+        });
+        queue.add(new FakeUpload(clock, 200, 0, done));
+
+        assertEquals(2, queue.process());
+        assertEquals(500, queue.getLastUploadBytes());
+    }
+
+    @Test
+    public void neverAsksReleasedUploadsForTheirSize() {
+        FakeClock clock = new FakeClock();
+        final List<FakeUpload> done = new ArrayList<>();
+        UploadQueue queue = new UploadQueue(clock, Long.MAX_VALUE, Long.MAX_VALUE);
+        // like a mesh that drops its buffers at the end of the upload
+        FakeUpload mesh = new FakeUpload(clock, 300, 0, done) {
+            @Override
+            public long getByteSize() {
+                if (done.contains(this)) {
+                    throw new NullPointerException("mesh buffers released");
+                }
+                return super.getByteSize();
+            }
+        };
+        queue.add(mesh);
+
+        assertEquals(1, queue.process());
+        assertSame(mesh, done.get(0));
+        assertEquals(300, queue.getLastUploadBytes());
+    }
+
+    @Test
+    public void alwaysMakesProgressWithOversizedUploads() {
+        FakeClock clock = new FakeClock();
+        List<FakeUpload> done = new ArrayList<>();
+        UploadQueue queue = new UploadQueue(clock, 1, 100);
+        FakeUpload first = new FakeUpload(clock, 5000, 10, done);
+        FakeUpload second = new FakeUpload(clock, 5000, 10, done);
+        queue.add(first);
+        queue.add(second);
+
+        assertEquals(1, queue.process());
+        assertSame(first, done.get(0));
+        assertEquals(1, queue.process());
+        assertSame(second, done.get(1));
+    }
+}
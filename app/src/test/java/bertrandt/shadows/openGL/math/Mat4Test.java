@@ -0,0 +1,209 @@
+package bertrandt.shadows.openGL.math;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Mat4Test {
+
+    private static final float EPSILON = 1e-5f;
+
+    private static Mat4 randomMatrix(Random random) {
+        Mat4 matrix = new Mat4();
+        for (int i = 0; i < 16; i++) {
+            matrix.getValues()[i] = random.nextFloat() * 2f - 1f;
+        }
+        return matrix;
+    }
+
+    /**
+     * Rotation, non uniform scale and translation.
+     */
+    private static Mat4 affineMatrix() {
+        Mat4 scale = new Mat4().setRows(
+                2f, 0f, 0f, 0f,
+                0f, 0.5f, 0f, 0f,
+                0f, 0f, 3f, 0f,
+                0f, 0f, 0f, 1f);
+        Mat4 translation = new Mat4().setRows(
+                1f, 0f, 0f, 4f,
+                0f, 1f, 0f, -2f,
+                0f, 0f, 1f, 7f,
+                0f, 0f, 0f, 1f);
+        Mat4 rotation = new Mat4().setRotate(37f, 1f, 2f, -0.5f);
+        return new Mat4().multiply(translation, new Mat4().multiply(rotation, scale));
+    }
+
+    private static void assertMatrixEquals(Mat4 expected, Mat4 actual) {
+        for (int i = 0; i < 16; i++) {
+            assertEquals("element " + i, expected.getValues()[i], actual.getValues()[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void multiplyMatchesReferenceAndAllowsAliasing() {
+        Random random = new Random(7);
+        Mat4 lhs = randomMatrix(random);
+        Mat4 rhs = randomMatrix(random);
+
+        Mat4 expected = new Mat4();
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs.getValues()[k * 4 + row] * rhs.getValues()[column * 4 + k];
+                }
+                expected.getValues()[column * 4 + row] = sum;
+            }
+        }
+
+        assertMatrixEquals(expected, new Mat4().multiply(lhs, rhs));
+        assertMatrixEquals(expected, new Mat4().set(lhs).multiply(lhs, rhs.getValues(), 0));
+        assertMatrixEquals(expected, new Mat4().set(lhs).multiply(new Mat4().set(lhs), rhs));
+        Mat4 aliased = new Mat4().set(rhs);
+        assertMatrixEquals(expected, aliased.multiply(lhs, aliased));
+    }
+
+    @Test
+    public void affineInverseUndoesTheTransform() {
+        Mat4 affine = affineMatrix();
+        Mat4 inverse = new Mat4();
+
+        assertTrue(inverse.invertAffine(affine));
+        assertMatrixEquals(new Mat4(), new Mat4().multiply(inverse, affine));
+        assertMatrixEquals(new Mat4(), new Mat4().multiply(affine, inverse));
+        assertFalse(inverse.invertAffine(new Mat4().setRows(
+                1f, 0f, 0f, 0f,
+                0f, 0f, 0f, 0f,
+                0f, 0f, 1f, 0f,
+                0f, 0f, 0f, 1f)));
+    }
+
+    @Test
+    public void rigidInverseMatchesAffineInverse() {
+        Mat4 view = new Mat4().setLookAt(3f, 5f, 1f, 0f, -5f, 0f, -3f, 0f, -1f);
+        Mat4 rigid = new Mat4().invertRigid(view);
+        Mat4 affine = new Mat4();
+        assertTrue(affine.invertAffine(view));
+
+        assertMatrixEquals(affine, rigid);
+        assertMatrixEquals(affine, new Mat4().set(view).invertRigid(new Mat4().set(view)));
+    }
+
+    @Test
+    public void lookAtMovesTheEyeToTheOriginLookingDownZ() {
+        Mat4 view = new Mat4().setLookAt(0f, 3f, 5f, 0f, 0f, -5f, 0f, 1f, 0f);
+
+        Vec4 eye = new Vec4(0f, 3f, 5f, 1f).transform(view, new Vec4(0f, 3f, 5f, 1f));
+        assertEquals(0f, eye.getX(), EPSILON);
+        assertEquals(0f, eye.getY(), EPSILON);
+        assertEquals(0f, eye.getZ(), EPSILON);
+
+        Vec4 center = new Vec4(0f, 0f, -5f, 1f);
+        center.transform(view, center);
+        assertEquals(0f, center.getX(), EPSILON);
+        assertEquals(0f, center.getY(), EPSILON);
+        assertTrue(center.getZ() < 0f);
+    }
+
+    @Test
+    public void normalMatrixKeepsNormalsPerpendicular() {
+        Mat4 modelView = affineMatrix();
+        Mat4 normalMatrix = new Mat4();
+        assertTrue(normalMatrix.setNormalMatrix(modelView));
+
+        // a surface spanned by two tangents and its normal
+        Vec4 first = new Vec4(1f, 1f, 0f, 0f);
+        Vec4 second = new Vec4(0f, 1f, 1f, 0f);
+        Vec4 normal = new Vec4(1f, -1f, 1f, 0f);
+        first.transform(modelView, first);
+        second.transform(modelView, second);
+        normal.transform(normalMatrix, normal);
+
+        assertEquals(0f, first.getX() * normal.getX() + first.getY() * normal.getY() + first.getZ() * normal.getZ(),
+                EPSILON);
+        assertEquals(0f, second.getX() * normal.getX() + second.getY() * normal.getY()
+                + second.getZ() * normal.getZ(), EPSILON);
+        assertEquals(0f, normal.getW(), 0f);
+    }
+
+    @Test
+    public void frameMathAllocatesNothing() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        FrameMath frame = new FrameMath();
+        for (int i = 0; i < 1000; i++) {
+            frame.update(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            frame.update(i);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(0L, allocated);
+        assertTrue(frame.mNormalMatrix.getValues()[15] != 0f);
+    }
+
+    /**
+     * The matrix work of one frame of the renderer.
+     */
+    private static class FrameMath {
+        final Mat4 mView = new Mat4().setLookAt(0f, 3f, 5f, 0f, 0f, -5f, 0f, 1f, 0f);
+        final Mat4 mProjection = new Mat4().setFrustum(-1.5f, 1.5f, -1f, 1f, 1f, 1000f);
+        final Mat4 mDepthBias = new Mat4().setRows(
+                0.5f, 0f, 0f, 0.5f,
+                0f, 0.5f, 0f, 0.5f,
+                0f, 0f, 0.5f, 0.5f,
+                0f, 0f, 0f, 1f);
+        final float[] mPositionTransform = new Mat4().setRows(
+                2f, 0f, 0f, -1f,
+                0f, 2f, 0f, -1f,
+                0f, 0f, 2f, -1f,
+                0f, 0f, 0f, 1f).getValues();
+        final Vec4 mLightInModelSpace = new Vec4(3f, 5f, 0f, 1f);
+        final Vec4 mLight = new Vec4();
+        final Vec4 mLightInEyeSpace = new Vec4();
+        final Mat4 mLightRotation = new Mat4();
+        final Mat4 mLightView = new Mat4();
+        final Mat4 mRotationX = new Mat4();
+        final Mat4 mRotationY = new Mat4();
+        final Mat4 mModel = new Mat4();
+        final Mat4 mLightMvp = new Mat4();
+        final Mat4 mModelView = new Mat4();
+        final Mat4 mNormalMatrix = new Mat4();
+        final Mat4 mMvp = new Mat4();
+        final Mat4 mInverse = new Mat4();
+
+        void update(int frame) {
+            mLightRotation.setRotate(frame * 0.5f, 0f, 1f, 0f);
+            mLight.transform(mLightRotation, mLightInModelSpace);
+            mLightView.setLookAt(mLight.getX(), mLight.getY(), mLight.getZ(),
+                    mLight.getX(), -mLight.getY(), mLight.getZ(), -mLight.getX(), 0f, -mLight.getZ());
+            mRotationX.setRotate(frame, 0f, 1f, 0f);
+            mRotationY.setRotate(frame * 0.25f, 1f, 0f, 0f);
+            mModel.multiply(mRotationX, mRotationY);
+
+            mLightMvp.multiply(mLightView, mModel).multiply(mLightMvp, mPositionTransform, 0);
+            mLightMvp.multiply(mProjection, mLightMvp);
+            mLightMvp.multiply(mDepthBias, mLightMvp);
+
+            mLightInEyeSpace.transform(mView, mLight);
+            mModelView.multiply(mView, mModel);
+            mNormalMatrix.setNormalMatrix(mModelView);
+            mInverse.invertRigid(mModelView);
+            mModelView.multiply(mModelView, mPositionTransform, 0);
+            mMvp.multiply(mProjection, mModelView);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package bertrandt.shadows.openGL.scene;
+
+import org.junit.Test;
+
+import bertrandt.shadows.openGL.common.Frustum;
+import bertrandt.shadows.openGL.draw.ClusterCuller;
+import bertrandt.shadows.openGL.draw.LodSelector;
+import bertrandt.shadows.openGL.draw.Renderable;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.math.Mat4;
+
+import static org.junit.Assert.*;
+
+public class InstanceSetTest {
+
+    /**
+     * A sphere of radius one around the origin with three levels of detail.
+     */
+    private static class Ball implements Renderable {
+        boolean mInitialised = true;
+
+        @Override
+        public boolean getInitialised() {
+            return mInitialised;
+        }
+
+        @Override
+        public float[] getPositionTransform() {
+            return null;
+        }
+
+        @Override
+        public float[] getBounds() {
+            return new float[]{-1f, -1f, -1f, 1f, 1f, 1f};
+        }
+
+        @Override
+        public float[] getBoundingSphere() {
+            return new float[]{0f, 0f, 0f, 1f};
+        }
+
+        @Override
+        public float[] getLodErrors() {
+            return new float[]{0f, 0.01f, 0.1f};
+        }
+
+        @Override
+        public Meshlets getMeshlets() {
+            return null;
+        }
+
+        @Override
+        public int getTriangleCount(int lod) {
+            return 100 >> lod;
+        }
+
+        @Override
+        public void setDraw(int positionAttribute, int normalAttribute, int texelAttribute, int textureUniform,
+                            boolean onlyPosition) {
+        }
+
+        @Override
+        public void draw(int lod) {
+        }
+
+        @Override
+        public void draw(ClusterCuller culler) {
+        }
+    }
+
+    private static Mat4 translation(float x, float y, float z) {
+        return new Mat4().setRows(
+                1f, 0f, 0f, x,
+                0f, 1f, 0f, y,
+                0f, 0f, 1f, z,
+                0f, 0f, 0f, 1f);
+    }
+
+    private static SceneCamera camera() {
+        SceneCamera camera = new SceneCamera(0);
+        camera.setView(new Mat4().setLookAt(0f, 0f, 0f, 0f, 0f, -1f, 0f, 1f, 0f));
+        camera.setProjection(new Mat4().setFrustum(-0.5f, 0.5f, -0.5f, 0.5f, 1f, 1000f), 1000);
+        return camera;
+    }
+
+    private static Frustum frustum(SceneCamera camera) {
+        Frustum frustum = new Frustum();
+        frustum.set(camera.getViewProjection().getValues());
+        return frustum;
+    }
+
+    @Test
+    public void visibleCopiesAreSortedByLevelOfDetail() {
+        Ball ball = new Ball();
+        InstanceSet instances = new InstanceSet(ball);
+        // a row along the view direction, every fourth copy is behind the camera
+        for (int i = 0; i < 10000; i++) {
+            float z = -5f - (i / 4) * 0.2f;
+            instances.add(translation(0f, 0f, i % 4 == 3 ? -z : z));
+        }
+        SceneCamera camera = camera();
+        LodSelector selector = new LodSelector(1f, 0);
+        assertEquals(7500, instances.collect(frustum(camera), camera, selector));
+        assertEquals(2500, instances.getCulledCount());
+        assertEquals(3, instances.getLodCount());
+
+        int total = 0;
+        float nearestOfLevel = 0f;
+        for (int lod = 0; lod < instances.getLodCount(); lod++) {
+            float[] matrices = instances.getMatrices(lod);
+            float nearest = Float.MAX_VALUE;
+            for (int i = 0; i < instances.getInstanceCount(lod); i++) {
+                float distance = -matrices[i * 16 + 14];
+                assertEquals(lod, selector.select(ball.getLodErrors(), 1f, distance, camera.getPixelsPerUnit()));
+                // coarser levels are farther away
+                assertTrue(distance >= nearestOfLevel);
+                nearest = Math.min(nearest, distance);
+                total++;
+            }
+            if (instances.getInstanceCount(lod) > 0) {
+                nearestOfLevel = nearest;
+            }
+        }
+        assertEquals(7500, total);
+        assertTrue(instances.getInstanceCount(0) > 0);
+        assertTrue(instances.getInstanceCount(2) > 0);
+    }
+
+    @Test
+    public void movedAndScaledCopiesAreCulledWithTheirNewBounds() {
+        Ball ball = new Ball();
+        ball.mInitialised = false;
+        InstanceSet instances = new InstanceSet(ball);
+        int index = instances.add(translation(0f, 0f, 10f));
+        SceneCamera camera = camera();
+        LodSelector selector = new LodSelector(1f, 0);
+        assertEquals(0, instances.collect(frustum(camera), camera, selector));
+
+        ball.mInitialised = true;
+        assertEquals(0, instances.collect(frustum(camera), camera, selector));
+        assertEquals(1, instances.getCulledCount());
+
+        // scaled by 20 the sphere reaches in front of the camera
+        instances.set(index, new Mat4().setRows(
+                20f, 0f, 0f, 0f,
+                0f, 20f, 0f, 0f,
+                0f, 0f, 20f, 10f,
+                0f, 0f, 0f, 1f));
+        assertEquals(1, instances.collect(frustum(camera), camera, selector));
+
+        instances.set(index, translation(0f, 0f, -10f));
+        assertEquals(1, instances.collect(frustum(camera), camera, selector));
+        int lod = instances.getInstanceCount(0) == 1 ? 0 : 1;
+        assertEquals(1, instances.getInstanceCount(lod));
+        assertEquals(-10f, instances.getMatrices(lod)[14], 0f);
+    }
+}
@@ -0,0 +1,212 @@
+package bertrandt.shadows.openGL.scene;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import bertrandt.shadows.openGL.common.Frustum;
+import bertrandt.shadows.openGL.draw.ClusterCuller;
+import bertrandt.shadows.openGL.draw.Renderable;
+import bertrandt.shadows.openGL.importer.MeshData;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.math.Mat4;
+
+import static org.junit.Assert.*;
+
+public class SceneBvhTest {
+
+    /**
+     * A unit cube around the origin.
+     */
+    private static class Cube implements Renderable {
+        private final float[] mBounds = new float[]{-0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f};
+        boolean mInitialised = true;
+
+        @Override
+        public boolean getInitialised() {
+            return mInitialised;
+        }
+
+        @Override
+        public float[] getPositionTransform() {
+            return null;
+        }
+
+        @Override
+        public float[] getBounds() {
+            return mBounds;
+        }
+
+        @Override
+        public float[] getBoundingSphere() {
+            return MeshData.computeBoundingSphere(mBounds);
+        }
+
+        @Override
+        public float[] getLodErrors() {
+            return new float[]{0f};
+        }
+
+        @Override
+        public Meshlets getMeshlets() {
+            return null;
+        }
+
+        @Override
+        public int getTriangleCount(int lod) {
+            return 12;
+        }
+
+        @Override
+        public void setDraw(int positionAttribute, int normalAttribute, int texelAttribute, int textureUniform,
+                            boolean onlyPosition) {
+        }
+
+        @Override
+        public void draw(int lod) {
+        }
+
+        @Override
+        public void draw(ClusterCuller culler) {
+        }
+    }
+
+    private static Mat4 translation(float x, float y, float z) {
+        return new Mat4().setRows(
+                1f, 0f, 0f, x,
+                0f, 1f, 0f, y,
+                0f, 0f, 1f, z,
+                0f, 0f, 0f, 1f);
+    }
+
+    private static Frustum cameraFrustum() {
+        Mat4 view = new Mat4().setLookAt(0f, 0f, 0f, 0f, 0f, -1f, 0f, 1f, 0f);
+        Mat4 projection = new Mat4().setFrustum(-0.5f, 0.5f, -0.5f, 0.5f, 1f, 100f);
+        Frustum frustum = new Frustum();
+        frustum.set(new Mat4().multiply(projection, view).getValues());
+        return frustum;
+    }
+
+    /**
+     * The same tests as the tree, applied to every node.
+     */
+    private static HashSet<SceneNode> bruteForce(Frustum frustum, ArrayList<SceneNode> nodes) {
+        HashSet<SceneNode> visible = new HashSet<>();
+        for (SceneNode node : nodes) {
+            float[] world = node.getWorld().getValues();
+            float[] box = new float[]{world[12] - 0.5f, world[13] - 0.5f, world[14] - 0.5f,
+                    world[12] + 0.5f, world[13] + 0.5f, world[14] + 0.5f};
+            if (frustum.classifyBox(box, 0) != Frustum.OUTSIDE
+                    && frustum.intersectsSphere(world[12], world[13], world[14], (float) Math.sqrt(0.75))) {
+                visible.add(node);
+            }
+        }
+        return visible;
+    }
+
+    private static ArrayList<SceneNode> scatter(SceneNode root, int count, Random random) {
+        ArrayList<SceneNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SceneNode node = new SceneNode(new Cube());
+            node.setLocal(translation(random.nextFloat() * 200f - 100f, random.nextFloat() * 200f - 100f,
+                    random.nextFloat() * 200f - 100f));
+            root.addChild(node);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    @Test
+    public void cullingMatchesTestingEveryNode() {
+        SceneNode root = new SceneNode();
+        SceneBvh bvh = new SceneBvh(root);
+        Random random = new Random(3);
+        ArrayList<SceneNode> nodes = scatter(root, 2000, random);
+        root.updateWorld();
+        bvh.update();
+        assertEquals(2000, bvh.getLeafCount());
+
+        Frustum frustum = cameraFrustum();
+        ArrayList<SceneNode> visible = new ArrayList<>();
+        bvh.cull(frustum, visible);
+
+        HashSet<SceneNode> expected = bruteForce(frustum, nodes);
+        assertEquals(expected, new HashSet<>(visible));
+        assertEquals(expected.size(), visible.size());
+        assertTrue(visible.size() > 0 && visible.size() < 2000);
+        assertEquals(2000 - visible.size(), bvh.getCulledCount());
+    }
+
+    @Test
+    public void movedNodesAreRefitAndStaticNodesAreLeftAlone() {
+        SceneNode root = new SceneNode();
+        SceneBvh bvh = new SceneBvh(root);
+        Random random = new Random(5);
+        ArrayList<SceneNode> nodes = scatter(root, 500, random);
+        root.updateWorld();
+        bvh.update();
+
+        // a small step stays inside the enlarged box
+        SceneNode moving = nodes.get(0);
+        moving.setLocal(translation(0f, 0f, -10f));
+        root.updateWorld();
+        bvh.update();
+        moving.setLocal(translation(0.01f, 0f, -10f));
+        root.updateWorld();
+        bvh.update();
+        assertEquals(0, bvh.getReinsertions());
+
+        Frustum frustum = cameraFrustum();
+        ArrayList<SceneNode> visible = new ArrayList<>();
+        bvh.cull(frustum, visible);
+        assertTrue(visible.contains(moving));
+        assertEquals(bruteForce(frustum, nodes), new HashSet<>(visible));
+
+        // leaving the frustum, moving a parent moves the children
+        SceneNode group = new SceneNode();
+        root.addChild(group);
+        group.addChild(moving);
+        root.updateWorld();
+        bvh.update();
+        group.setLocal(translation(0f, 0f, 200f));
+        root.updateWorld();
+        bvh.update();
+        assertEquals(1, bvh.getReinsertions());
+        bvh.cull(frustum, visible);
+        assertFalse(visible.contains(moving));
+        assertEquals(bruteForce(frustum, nodes), new HashSet<>(visible));
+
+        // nothing moved, nothing is refit
+        root.updateWorld();
+        bvh.update();
+        assertEquals(0, bvh.getReinsertions());
+    }
+
+    @Test
+    public void nodesEnterWhenLoadedAndLeaveWhenRemoved() {
+        SceneNode root = new SceneNode();
+        SceneBvh bvh = new SceneBvh(root);
+        Cube loading = new Cube();
+        loading.mInitialised = false;
+        SceneNode node = new SceneNode(loading);
+        node.setLocal(translation(0f, 0f, -10f));
+        root.addChild(node);
+        root.updateWorld();
+        bvh.update();
+        assertEquals(0, bvh.getLeafCount());
+
+        loading.mInitialised = true;
+        bvh.update();
+        assertEquals(1, bvh.getLeafCount());
+        ArrayList<SceneNode> visible = new ArrayList<>();
+        assertEquals(1, bvh.cull(cameraFrustum(), visible));
+
+        root.removeChild(node);
+        bvh.update();
+        assertEquals(0, bvh.getLeafCount());
+        assertEquals(0, bvh.cull(cameraFrustum(), visible));
+        assertFalse(bvh.getBounds(new float[6]));
+    }
+}
@@ -0,0 +1,138 @@
+package bertrandt.shadows.openGL.scene;
+
+import org.junit.Test;
+
+import bertrandt.shadows.openGL.math.Mat4;
+import bertrandt.shadows.openGL.math.Vec4;
+
+import static org.junit.Assert.*;
+
+public class SceneNodeTest {
+
+    private static final float EPSILON = 1e-5f;
+
+    private static Mat4 translation(float x, float y, float z) {
+        return new Mat4().setRows(
+                1f, 0f, 0f, x,
+                0f, 1f, 0f, y,
+                0f, 0f, 1f, z,
+                0f, 0f, 0f, 1f);
+    }
+
+    private static void assertMatrixEquals(Mat4 expected, Mat4 actual) {
+        for (int i = 0; i < 16; i++) {
+            assertEquals("element " + i, expected.getValues()[i], actual.getValues()[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void worldCombinesTheTransformsOfAllAncestors() {
+        SceneNode root = new SceneNode();
+        SceneNode arm = new SceneNode();
+        SceneNode hand = new SceneNode();
+        root.addChild(arm);
+        arm.addChild(hand);
+        root.setLocal(translation(1f, 0f, 0f));
+        arm.setLocal(new Mat4().setRotate(90f, 0f, 1f, 0f));
+        hand.setLocal(translation(0f, 0f, 2f));
+        root.updateWorld();
+
+        Mat4 expected = new Mat4().multiply(root.getLocal(), new Mat4().multiply(arm.getLocal(), hand.getLocal()));
+        assertMatrixEquals(expected, hand.getWorld());
+
+        // moving the root moves the whole hierarchy
+        root.setLocal(translation(-3f, 0f, 0f));
+        root.updateWorld();
+        expected.multiply(root.getLocal(), new Mat4().multiply(arm.getLocal(), hand.getLocal()));
+        assertMatrixEquals(expected, hand.getWorld());
+
+        // a reparented node only keeps its own transform
+        root.addChild(hand);
+        root.updateWorld();
+        assertEquals(0, arm.getChildCount());
+        assertSame(root, hand.getParent());
+        assertMatrixEquals(new Mat4().multiply(root.getLocal(), hand.getLocal()), hand.getWorld());
+    }
+
+    @Test
+    public void staticNodesAreNotRecomputed() {
+        SceneNode root = new SceneNode();
+        SceneNode moving = new SceneNode();
+        SceneNode staticBranch = new SceneNode();
+        SceneNode staticLeaf = new SceneNode();
+        root.addChild(moving);
+        root.addChild(staticBranch);
+        staticBranch.addChild(staticLeaf);
+        root.updateWorld();
+
+        int rootVersion = root.getWorldVersion();
+        int branchVersion = staticBranch.getWorldVersion();
+        int leafVersion = staticLeaf.getWorldVersion();
+        int movingVersion = moving.getWorldVersion();
+
+        for (int frame = 0; frame < 10; frame++) {
+            moving.setLocal(translation(frame, 0f, 0f));
+            root.updateWorld();
+        }
+
+        assertEquals(movingVersion + 10, moving.getWorldVersion());
+        assertEquals(rootVersion, root.getWorldVersion());
+        assertEquals(branchVersion, staticBranch.getWorldVersion());
+        assertEquals(leafVersion, staticLeaf.getWorldVersion());
+        assertMatrixEquals(translation(9f, 0f, 0f), moving.getWorld());
+
+        // nothing changed, nothing is recomputed
+        root.updateWorld();
+        assertEquals(movingVersion + 10, moving.getWorldVersion());
+    }
+
+    @Test
+    public void cameraMatricesAreCachedUntilAnInputChanges() {
+        SceneNode root = new SceneNode();
+        SceneNode node = new SceneNode();
+        root.addChild(node);
+        node.setLocal(translation(0f, 0f, -4f));
+        root.updateWorld();
+
+        SceneCamera camera = new SceneCamera(0);
+        Mat4 view = new Mat4().setLookAt(0f, 3f, 5f, 0f, 0f, -5f, 0f, 1f, 0f);
+        Mat4 projection = new Mat4().setFrustum(-1f, 1f, -1f, 1f, 1f, 100f);
+        camera.setView(view);
+        camera.setProjection(projection, 480);
+
+        Mat4 mvp = node.getModelViewProjection(camera);
+        Mat4 expected = new Mat4().multiply(projection, new Mat4().multiply(view, node.getWorld()));
+        assertMatrixEquals(expected, mvp);
+
+        // a stale value shows that the cached matrix is returned without recomputing it
+        mvp.getValues()[0] = 42f;
+        camera.setView(new Mat4().set(view));
+        camera.setProjection(projection, 480);
+        assertEquals(42f, node.getModelViewProjection(camera).getValues()[0], 0f);
+
+        // a second camera has its own cache
+        SceneCamera other = new SceneCamera(3);
+        other.setView(view);
+        other.setProjection(projection, 480);
+        assertMatrixEquals(expected, node.getModelViewProjection(other));
+        assertEquals(42f, node.getModelViewProjection(camera).getValues()[0], 0f);
+
+        // moving the camera invalidates it
+        view.setLookAt(0f, 3f, 6f, 0f, 0f, -5f, 0f, 1f, 0f);
+        camera.setView(view);
+        expected.multiply(projection, new Mat4().multiply(view, node.getWorld()));
+        assertMatrixEquals(expected, node.getModelViewProjection(camera));
+
+        // and so does moving the node
+        node.setLocal(translation(1f, 0f, -4f));
+        root.updateWorld();
+        expected.multiply(projection, new Mat4().multiply(view, node.getWorld()));
+        assertMatrixEquals(expected, node.getModelViewProjection(camera));
+
+        // the eye is the camera position in object space
+        Vec4 eye = node.getEye(camera);
+        assertEquals(-1f, eye.getX(), EPSILON);
+        assertEquals(3f, eye.getY(), EPSILON);
+        assertEquals(10f, eye.getZ(), EPSILON);
+    }
+}
@@ -0,0 +1,123 @@
+package bertrandt.shadows.openGL.scene;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import bertrandt.shadows.openGL.draw.ClusterCuller;
+import bertrandt.shadows.openGL.draw.Renderable;
+import bertrandt.shadows.openGL.importer.Meshlets;
+import bertrandt.shadows.openGL.math.Mat4;
+
+import static org.junit.Assert.*;
+
+public class StaticShadowCacheTest {
+
+    private static class Loading implements Renderable {
+        boolean mInitialised;
+
+        @Override
+        public boolean getInitialised() {
+            return mInitialised;
+        }
+
+        @Override
+        public float[] getPositionTransform() {
+            return null;
+        }
+
+        @Override
+        public float[] getBounds() {
+            return new float[]{-1f, -1f, -1f, 1f, 1f, 1f};
+        }
+
+        @Override
+        public float[] getBoundingSphere() {
+            return new float[]{0f, 0f, 0f, 1.8f};
+        }
+
+        @Override
+        public float[] getLodErrors() {
+            return new float[]{0f};
+        }
+
+        @Override
+        public Meshlets getMeshlets() {
+            return null;
+        }
+
+        @Override
+        public int getTriangleCount(int lod) {
+            return 0;
+        }
+
+        @Override
+        public void setDraw(int positionAttribute, int normalAttribute, int texelAttribute, int textureUniform,
+                            boolean onlyPosition) {
+        }
+
+        @Override
+        public void draw(int lod) {
+        }
+
+        @Override
+        public void draw(ClusterCuller culler) {
+        }
+    }
+
+    private static Mat4 lightView(float x) {
+        return new Mat4().setLookAt(x, 5f, 0f, x, -5f, 0f, 1f, 0f, 0f);
+    }
+
+    @Test
+    public void staysValidUntilTheLightOrAStaticCasterChanges() {
+        SceneNode root = new SceneNode();
+        Loading loading = new Loading();
+        SceneNode ground = new SceneNode(new Loading());
+        SceneNode scenery = new SceneNode(loading);
+        ((Loading) ground.getRenderable()).mInitialised = true;
+        root.addChild(ground);
+        root.addChild(scenery);
+        root.updateWorld();
+        ArrayList<SceneNode> casters = new ArrayList<>();
+        casters.add(ground);
+        casters.add(scenery);
+
+        SceneCamera light = new SceneCamera(1);
+        light.setView(lightView(0f));
+        StaticShadowCache cache = new StaticShadowCache();
+        assertFalse(cache.isValid(light, casters));
+        cache.validate(light, casters);
+        assertTrue(cache.isValid(light, casters));
+
+        // the same view again keeps the camera version
+        light.setView(lightView(0f));
+        assertTrue(cache.isValid(light, casters));
+
+        // a caster finished loading
+        loading.mInitialised = true;
+        assertFalse(cache.isValid(light, casters));
+        cache.validate(light, casters);
+
+        // the light moved
+        light.setView(lightView(1f));
+        assertFalse(cache.isValid(light, casters));
+        cache.validate(light, casters);
+
+        // a caster moved
+        scenery.setLocal(new Mat4().setRotate(10f, 0f, 1f, 0f));
+        root.updateWorld();
+        assertFalse(cache.isValid(light, casters));
+        cache.validate(light, casters);
+
+        // a caster was removed
+        casters.remove(scenery);
+        assertFalse(cache.isValid(light, casters));
+        cache.validate(light, casters);
+        assertTrue(cache.isValid(light, casters));
+        assertEquals(5, cache.getUpdates());
+
+        cache.invalidate();
+        assertFalse(cache.isValid(light, casters));
+    }
+}